@@ -18,6 +18,7 @@ package com.android.apksigner;
 
 import static com.android.apksig.Constants.LIBRARY_PAGE_ALIGNMENT_BYTES;
 
+import com.android.apksig.ApkBatchSigner;
 import com.android.apksig.ApkSigner;
 import com.android.apksig.ApkVerifier;
 import com.android.apksig.SigningCertificateLineage;
@@ -63,6 +64,7 @@ public class ApkSignerTool {
     private static final String VERSION = "0.9";
     private static final String HELP_PAGE_GENERAL = "help.txt";
     private static final String HELP_PAGE_SIGN = "help_sign.txt";
+    private static final String HELP_PAGE_SIGN_BATCH = "help_sign_batch.txt";
     private static final String HELP_PAGE_VERIFY = "help_verify.txt";
     private static final String HELP_PAGE_ROTATE = "help_rotate.txt";
     private static final String HELP_PAGE_LINEAGE = "help_lineage.txt";
@@ -93,6 +95,9 @@ public class ApkSignerTool {
             if ("sign".equals(cmd)) {
                 sign(Arrays.copyOfRange(params, 1, params.length));
                 return;
+            } else if ("sign-batch".equals(cmd)) {
+                signBatch(Arrays.copyOfRange(params, 1, params.length));
+                return;
             } else if ("verify".equals(cmd)) {
                 verify(Arrays.copyOfRange(params, 1, params.length));
                 return;
@@ -135,87 +140,103 @@ public class ApkSignerTool {
     // END-AOSP
 
     private static void sign(String[] params) throws Exception {
+        sign(params, false);
+    }
+
+    private static void signBatch(String[] params) throws Exception {
+        sign(params, true);
+    }
+
+    /**
+     * Signs the APK specified by the provided parameters or, in batch mode, the APKs listed in the
+     * manifest file specified by the provided parameters.
+     */
+    private static void sign(String[] params, boolean batch) throws Exception {
+        String helpPage = batch ? HELP_PAGE_SIGN_BATCH : HELP_PAGE_SIGN;
         if (params.length == 0) {
-            printUsage(HELP_PAGE_SIGN);
+            printUsage(helpPage);
             return;
         }
 
         File outputApk = null;
         File inputApk = null;
+        File manifestFile = null;
+        int maxConcurrentApks = -1;
+        long memoryBudgetBytes = -1;
         boolean verbose = false;
-        boolean v1SigningEnabled = true;
-        boolean v2SigningEnabled = true;
-        boolean v3SigningEnabled = true;
-        boolean v4SigningEnabled = true;
-        boolean forceSourceStampOverwrite = false;
-        boolean sourceStampTimestampEnabled = true;
-        boolean alignFileSize = false;
-        boolean verityEnabled = false;
-        boolean debuggableApkPermitted = true;
-        boolean alignmentPreserved = false;
-        int libPageAlignment = LIBRARY_PAGE_ALIGNMENT_BYTES;
-        int minSdkVersion = 1;
-        boolean minSdkVersionSpecified = false;
+        SignOptions options = new SignOptions();
         int maxSdkVersion = Integer.MAX_VALUE;
-        int rotationMinSdkVersion = V3SchemeConstants.DEFAULT_ROTATION_MIN_SDK_VERSION;
-        boolean rotationTargetsDevRelease = false;
         List<SignerParams> signers = new ArrayList<>(1);
         SignerParams signerParams = new SignerParams();
-        SigningCertificateLineage lineage = null;
         SignerParams sourceStampSignerParams = new SignerParams();
-        SigningCertificateLineage sourceStampLineage = null;
         List<ProviderInstallSpec> providers = new ArrayList<>();
         ProviderInstallSpec providerParams = new ProviderInstallSpec();
         OptionsParser optionsParser = new OptionsParser(params);
         String optionName;
         String optionOriginalForm = null;
-        boolean v4SigningFlagFound = false;
         boolean sourceStampFlagFound = false;
         boolean deterministicDsaSigning = false;
-        boolean otherSignersSignaturesPreserved = false;
         while ((optionName = optionsParser.nextOption()) != null) {
             optionOriginalForm = optionsParser.getOptionOriginalForm();
             if (("help".equals(optionName)) || ("h".equals(optionName))) {
-                printUsage(HELP_PAGE_SIGN);
+                printUsage(helpPage);
                 return;
-            } else if ("out".equals(optionName)) {
+            } else if (!batch && "out".equals(optionName)) {
                 outputApk = new File(optionsParser.getRequiredValue("Output file name"));
-            } else if ("in".equals(optionName)) {
+            } else if (!batch && "in".equals(optionName)) {
                 inputApk = new File(optionsParser.getRequiredValue("Input file name"));
+            } else if (batch && "manifest".equals(optionName)) {
+                manifestFile = new File(optionsParser.getRequiredValue("Manifest file name"));
+            } else if (batch && "max-concurrent-apks".equals(optionName)) {
+                maxConcurrentApks = optionsParser.getRequiredIntValue(
+                        "Maximum number of APKs signed concurrently");
+                if (maxConcurrentApks < 1) {
+                    throw new ParameterException(
+                            "Maximum number of APKs signed concurrently must be positive: "
+                                    + maxConcurrentApks);
+                }
+            } else if (batch && "memory-budget-mb".equals(optionName)) {
+                int memoryBudgetMb = optionsParser.getRequiredIntValue(
+                        "Memory budget in megabytes");
+                if (memoryBudgetMb < 1) {
+                    throw new ParameterException(
+                            "Memory budget must be positive: " + memoryBudgetMb);
+                }
+                memoryBudgetBytes = memoryBudgetMb * 1024L * 1024L;
             } else if ("min-sdk-version".equals(optionName)) {
-                minSdkVersion = optionsParser.getRequiredIntValue("Mininimum API Level");
-                minSdkVersionSpecified = true;
+                options.minSdkVersion = optionsParser.getRequiredIntValue("Mininimum API Level");
+                options.minSdkVersionSpecified = true;
             } else if ("max-sdk-version".equals(optionName)) {
                 maxSdkVersion = optionsParser.getRequiredIntValue("Maximum API Level");
             } else if ("rotation-min-sdk-version".equals(optionName)) {
-                rotationMinSdkVersion = optionsParser.getRequiredIntValue(
+                options.rotationMinSdkVersion = optionsParser.getRequiredIntValue(
                         "Minimum API Level for Rotation");
             } else if ("rotation-targets-dev-release".equals(optionName)) {
-                rotationTargetsDevRelease = optionsParser.getOptionalBooleanValue(true);
+                options.rotationTargetsDevRelease = optionsParser.getOptionalBooleanValue(true);
             }
             else if ("v1-signing-enabled".equals(optionName)) {
-                v1SigningEnabled = optionsParser.getOptionalBooleanValue(true);
+                options.v1SigningEnabled = optionsParser.getOptionalBooleanValue(true);
             } else if ("v2-signing-enabled".equals(optionName)) {
-                v2SigningEnabled = optionsParser.getOptionalBooleanValue(true);
+                options.v2SigningEnabled = optionsParser.getOptionalBooleanValue(true);
             } else if ("v3-signing-enabled".equals(optionName)) {
-                v3SigningEnabled = optionsParser.getOptionalBooleanValue(true);
+                options.v3SigningEnabled = optionsParser.getOptionalBooleanValue(true);
             } else if ("v4-signing-enabled".equals(optionName)) {
-                v4SigningEnabled = optionsParser.getOptionalBooleanValue(true);
-                v4SigningFlagFound = true;
+                options.v4SigningEnabled = optionsParser.getOptionalBooleanValue(true);
+                options.v4SigningFlagFound = true;
             } else if ("force-stamp-overwrite".equals(optionName)) {
-                forceSourceStampOverwrite = optionsParser.getOptionalBooleanValue(true);
+                options.forceSourceStampOverwrite = optionsParser.getOptionalBooleanValue(true);
             } else if ("stamp-timestamp-enabled".equals(optionName)) {
-                sourceStampTimestampEnabled = optionsParser.getOptionalBooleanValue(true);
+                options.sourceStampTimestampEnabled = optionsParser.getOptionalBooleanValue(true);
             } else if ("align-file-size".equals(optionName)) {
-                alignFileSize = true;
+                options.alignFileSize = true;
             } else if ("verity-enabled".equals(optionName)) {
-                verityEnabled = optionsParser.getOptionalBooleanValue(true);
+                options.verityEnabled = optionsParser.getOptionalBooleanValue(true);
             } else if ("debuggable-apk-permitted".equals(optionName)) {
-                debuggableApkPermitted = optionsParser.getOptionalBooleanValue(true);
+                options.debuggableApkPermitted = optionsParser.getOptionalBooleanValue(true);
             } else if ("alignment-preserved".equals(optionName)) {
-                alignmentPreserved = optionsParser.getOptionalBooleanValue(true);
+                options.alignmentPreserved = optionsParser.getOptionalBooleanValue(true);
             } else if ("lib-page-alignment".equals(optionName)) {
-                libPageAlignment = optionsParser.getRequiredIntValue(
+                options.libPageAlignment = optionsParser.getRequiredIntValue(
                         "Native library page alignment size in bytes");
             } else if ("next-signer".equals(optionName)) {
                 if (!signerParams.isEmpty()) {
@@ -281,7 +302,7 @@ public class ApkSignerTool {
                 signerParams.setSigningCertificateLineage(getLineageFromInputFile(lineageFile));
             } else if ("lineage".equals(optionName)) {
                 File lineageFile = new File(optionsParser.getRequiredValue("Lineage file"));
-                lineage = getLineageFromInputFile(lineageFile);
+                options.lineage = getLineageFromInputFile(lineageFile);
             } else if ("v".equals(optionName) || "verbose".equals(optionName)) {
                 verbose = optionsParser.getOptionalBooleanValue(true);
             } else if ("next-provider".equals(optionName)) {
@@ -304,11 +325,12 @@ public class ApkSignerTool {
             } else if ("stamp-lineage".equals(optionName)) {
                 File stampLineageFile = new File(
                         optionsParser.getRequiredValue("Stamp Lineage File"));
-                sourceStampLineage = getLineageFromInputFile(stampLineageFile);
+                options.sourceStampLineage = getLineageFromInputFile(stampLineageFile);
             } else if ("deterministic-dsa-signing".equals(optionName)) {
                 deterministicDsaSigning = optionsParser.getOptionalBooleanValue(false);
             } else if ("append-signature".equals(optionName)) {
-                otherSignersSignaturesPreserved = optionsParser.getOptionalBooleanValue(true);
+                options.otherSignersSignaturesPreserved =
+                        optionsParser.getOptionalBooleanValue(true);
             } else {
                 throw new ParameterException(
                         "Unsupported option: " + optionOriginalForm + ". See --help for supported"
@@ -329,7 +351,21 @@ public class ApkSignerTool {
         }
 
         params = optionsParser.getRemainingParams();
-        if (inputApk != null) {
+        if (batch) {
+            if (manifestFile == null) {
+                // The manifest file has not been specified via preceding parameters. The next
+                // parameter is supposed to be the path to the manifest file.
+                if (params.length < 1) {
+                    throw new ParameterException("Missing manifest file");
+                }
+                manifestFile = new File(params[0]);
+                params = Arrays.copyOfRange(params, 1, params.length);
+            }
+            if (params.length > 0) {
+                throw new ParameterException(
+                        "Unexpected parameter(s) after manifest file: " + params[0]);
+            }
+        } else if (inputApk != null) {
             // Input APK has been specified via preceding parameters. We don't expect any more
             // parameters.
             if (params.length > 0) {
@@ -347,18 +383,18 @@ public class ApkSignerTool {
             }
             inputApk = new File(params[0]);
         }
-        if ((minSdkVersionSpecified) && (minSdkVersion > maxSdkVersion)) {
+        if ((options.minSdkVersionSpecified) && (options.minSdkVersion > maxSdkVersion)) {
             throw new ParameterException(
-                    "Min API Level (" + minSdkVersion + ") > max API Level (" + maxSdkVersion
-                            + ")");
+                    "Min API Level (" + options.minSdkVersion + ") > max API Level ("
+                            + maxSdkVersion + ")");
         }
+        List<File[]> batchApks = batch ? readSignBatchManifest(manifestFile) : null;
 
         // Install additional JCA Providers
         for (ProviderInstallSpec providerInstallSpec : providers) {
             providerInstallSpec.installProvider();
         }
 
-        ApkSigner.SignerConfig sourceStampSignerConfig = null;
         List<ApkSigner.SignerConfig> signerConfigs = new ArrayList<>(signers.size());
         int signerNumber = 0;
         try (PasswordRetriever passwordRetriever = new PasswordRetriever()) {
@@ -374,15 +410,21 @@ public class ApkSignerTool {
             }
             if (sourceStampFlagFound) {
                 sourceStampSignerParams.setName("stamp signer");
-                sourceStampSignerConfig =
+                options.sourceStampSignerConfig =
                         getSignerConfig(sourceStampSignerParams, passwordRetriever,
                                 deterministicDsaSigning);
-                if (sourceStampSignerConfig == null) {
+                if (options.sourceStampSignerConfig == null) {
                     return;
                 }
             }
         }
 
+        if (batch) {
+            signBatch(signerConfigs, options, batchApks, maxConcurrentApks, memoryBudgetBytes,
+                    verbose);
+            return;
+        }
+
         if (outputApk == null) {
             outputApk = inputApk;
         }
@@ -396,36 +438,14 @@ public class ApkSignerTool {
         ApkSigner.Builder apkSignerBuilder =
                 new ApkSigner.Builder(signerConfigs)
                         .setInputApk(inputApk)
-                        .setOutputApk(tmpOutputApk)
-                        .setOtherSignersSignaturesPreserved(otherSignersSignaturesPreserved)
-                        .setV1SigningEnabled(v1SigningEnabled)
-                        .setV2SigningEnabled(v2SigningEnabled)
-                        .setV3SigningEnabled(v3SigningEnabled)
-                        .setV4SigningEnabled(v4SigningEnabled)
-                        .setForceSourceStampOverwrite(forceSourceStampOverwrite)
-                        .setSourceStampTimestampEnabled(sourceStampTimestampEnabled)
-                        .setAlignFileSize(alignFileSize)
-                        .setVerityEnabled(verityEnabled)
-                        .setV4ErrorReportingEnabled(v4SigningEnabled && v4SigningFlagFound)
-                        .setDebuggableApkPermitted(debuggableApkPermitted)
-                        .setSigningCertificateLineage(lineage)
-                        .setMinSdkVersionForRotation(rotationMinSdkVersion)
-                        .setRotationTargetsDevRelease(rotationTargetsDevRelease)
-                        .setAlignmentPreserved(alignmentPreserved)
-                        .setLibraryPageAlignmentBytes(libPageAlignment);
-        if (minSdkVersionSpecified) {
-            apkSignerBuilder.setMinSdkVersion(minSdkVersion);
-        }
-        if (v4SigningEnabled) {
+                        .setOutputApk(tmpOutputApk);
+        options.applyTo(apkSignerBuilder);
+        if (options.v4SigningEnabled) {
             final File outputV4SignatureFile =
                     new File(outputApk.getCanonicalPath() + ".idsig");
             Files.deleteIfExists(outputV4SignatureFile.toPath());
             apkSignerBuilder.setV4SignatureOutputFile(outputV4SignatureFile);
         }
-        if (sourceStampSignerConfig != null) {
-            apkSignerBuilder.setSourceStampSignerConfig(sourceStampSignerConfig)
-                    .setSourceStampSigningCertificateLineage(sourceStampLineage);
-        }
         ApkSigner apkSigner = apkSignerBuilder.build();
         try {
             apkSigner.sign();
@@ -449,6 +469,85 @@ public class ApkSignerTool {
         }
     }
 
+    /**
+     * Signs the provided input APKs into the corresponding output APKs using an
+     * {@link ApkBatchSigner}, and exits with an error if any of them could not be signed.
+     */
+    private static void signBatch(List<ApkSigner.SignerConfig> signerConfigs, SignOptions options,
+            List<File[]> apks, int maxConcurrentApks, long memoryBudgetBytes, boolean verbose)
+            throws Exception {
+        ApkBatchSigner.Builder batchSignerBuilder =
+                new ApkBatchSigner.Builder(signerConfigs).setApkSignerOptions(options::applyTo);
+        if (maxConcurrentApks != -1) {
+            batchSignerBuilder.setMaxConcurrentApks(maxConcurrentApks);
+        }
+        if (memoryBudgetBytes != -1) {
+            batchSignerBuilder.setMemoryBudgetBytes(memoryBudgetBytes);
+        }
+        for (File[] apk : apks) {
+            File outputV4SignatureFile = null;
+            if (options.v4SigningEnabled) {
+                outputV4SignatureFile = new File(apk[1].getCanonicalPath() + ".idsig");
+                Files.deleteIfExists(outputV4SignatureFile.toPath());
+            }
+            batchSignerBuilder.addApk(apk[0], apk[1], outputV4SignatureFile);
+        }
+        ApkBatchSigner.Result result = batchSignerBuilder.build().sign();
+
+        for (ApkBatchSigner.Apk apk : result.getApks()) {
+            Exception failure = result.getFailures().get(apk);
+            if (failure != null) {
+                System.err.println("Failed to sign " + apk.getInputApk() + ": " + failure);
+            } else if (verbose) {
+                System.out.println("Signed " + apk.getInputApk());
+            }
+        }
+        if (!result.isSuccessful()) {
+            System.err.println("Failed to sign " + result.getFailures().size() + " of "
+                    + result.getApks().size() + " APKs");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns the input and output APKs listed in the provided {@code sign-batch} manifest file.
+     * Each line lists an input APK, optionally followed by a tab and the output APK; the input APK
+     * is overwritten if no output APK is listed. Empty lines and lines starting with {@code #} are
+     * ignored.
+     */
+    private static List<File[]> readSignBatchManifest(File manifestFile)
+            throws IOException, ParameterException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new ParameterException(
+                    "Failed to read manifest file " + manifestFile + ": " + e.getMessage());
+        }
+        List<File[]> result = new ArrayList<>(lines.size());
+        int lineNumber = 0;
+        for (String line : lines) {
+            lineNumber++;
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            if (fields.length > 2 || fields[0].isEmpty()) {
+                throw new ParameterException(
+                        "Malformed line " + lineNumber + " in manifest file " + manifestFile
+                                + ": expected an input APK, optionally followed by a tab and an"
+                                + " output APK");
+            }
+            File inputApk = new File(fields[0]);
+            File outputApk = (fields.length == 2) ? new File(fields[1]) : inputApk;
+            result.add(new File[] {inputApk, outputApk});
+        }
+        if (result.isEmpty()) {
+            throw new ParameterException("No APKs listed in manifest file " + manifestFile);
+        }
+        return result;
+    }
+
     private static ApkSigner.SignerConfig getSignerConfig(SignerParams signer,
             PasswordRetriever passwordRetriever, boolean deterministicDsaSigning) {
         try {
@@ -1227,6 +1326,60 @@ public class ApkSignerTool {
         System.out.println("Has auth capability          : " + capabilities.hasAuth());
     }
 
+    /**
+     * Options of the {@code sign} and {@code sign-batch} commands applied to the
+     * {@link ApkSigner.Builder} of each signed APK.
+     */
+    private static class SignOptions {
+        boolean v1SigningEnabled = true;
+        boolean v2SigningEnabled = true;
+        boolean v3SigningEnabled = true;
+        boolean v4SigningEnabled = true;
+        boolean v4SigningFlagFound = false;
+        boolean forceSourceStampOverwrite = false;
+        boolean sourceStampTimestampEnabled = true;
+        boolean alignFileSize = false;
+        boolean verityEnabled = false;
+        boolean debuggableApkPermitted = true;
+        boolean alignmentPreserved = false;
+        boolean otherSignersSignaturesPreserved = false;
+        int libPageAlignment = LIBRARY_PAGE_ALIGNMENT_BYTES;
+        int minSdkVersion = 1;
+        boolean minSdkVersionSpecified = false;
+        int rotationMinSdkVersion = V3SchemeConstants.DEFAULT_ROTATION_MIN_SDK_VERSION;
+        boolean rotationTargetsDevRelease = false;
+        SigningCertificateLineage lineage = null;
+        ApkSigner.SignerConfig sourceStampSignerConfig = null;
+        SigningCertificateLineage sourceStampLineage = null;
+
+        private void applyTo(ApkSigner.Builder apkSignerBuilder) {
+            apkSignerBuilder
+                    .setOtherSignersSignaturesPreserved(otherSignersSignaturesPreserved)
+                    .setV1SigningEnabled(v1SigningEnabled)
+                    .setV2SigningEnabled(v2SigningEnabled)
+                    .setV3SigningEnabled(v3SigningEnabled)
+                    .setV4SigningEnabled(v4SigningEnabled)
+                    .setForceSourceStampOverwrite(forceSourceStampOverwrite)
+                    .setSourceStampTimestampEnabled(sourceStampTimestampEnabled)
+                    .setAlignFileSize(alignFileSize)
+                    .setVerityEnabled(verityEnabled)
+                    .setV4ErrorReportingEnabled(v4SigningEnabled && v4SigningFlagFound)
+                    .setDebuggableApkPermitted(debuggableApkPermitted)
+                    .setSigningCertificateLineage(lineage)
+                    .setMinSdkVersionForRotation(rotationMinSdkVersion)
+                    .setRotationTargetsDevRelease(rotationTargetsDevRelease)
+                    .setAlignmentPreserved(alignmentPreserved)
+                    .setLibraryPageAlignmentBytes(libPageAlignment);
+            if (minSdkVersionSpecified) {
+                apkSignerBuilder.setMinSdkVersion(minSdkVersion);
+            }
+            if (sourceStampSignerConfig != null) {
+                apkSignerBuilder.setSourceStampSignerConfig(sourceStampSignerConfig)
+                        .setSourceStampSigningCertificateLineage(sourceStampLineage);
+            }
+        }
+    }
+
     private static class ProviderInstallSpec {
         String className;
         String constructorParam;
@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig;
+
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.util.AvailableProcessors;
+import com.android.apksig.internal.util.GuaranteedEncodedFormX509Certificate;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.util.RunnablesExecutor;
+import com.android.apksig.zip.ZipFormatException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Signs multiple APKs with the same signers.
+ *
+ * <p>The signers' keys are loaded by the caller once, their certificates are encoded once, and
+ * the digests of all APKs are computed using the same {@link RunnablesExecutor}. APKs are signed
+ * concurrently, up to a configured number at a time, as long as the memory they are estimated to
+ * need fits into a configured budget. An APK whose estimate exceeds the whole budget is signed on
+ * its own.
+ *
+ * <p>Use {@link Builder} to obtain instances of this signer.
+ */
+public class ApkBatchSigner {
+    /**
+     * Memory (in bytes) estimated to be needed to sign an APK regardless of its size, mostly for
+     * the buffers used to copy its entries and digest its contents.
+     */
+    private static final long BASE_MEMORY_PER_APK_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Number of times the size of an APK's ZIP Central Directory estimated to be needed to sign
+     * it: the input and output Central Directories are parsed and held in memory, and so are the
+     * JAR signature files, which list all entries when v1 signing is enabled.
+     */
+    private static final int CENTRAL_DIRECTORY_MEMORY_FACTOR = 4;
+
+    private static final AtomicInteger sBatchCount = new AtomicInteger();
+
+    private final List<ApkSigner.SignerConfig> mSignerConfigs;
+    private final Consumer<ApkSigner.Builder> mApkSignerOptions;
+    private final List<Apk> mApks;
+    private final int mMaxConcurrentApks;
+    private final long mMemoryBudgetBytes;
+    private final RunnablesExecutor mExecutor;
+
+    private ApkBatchSigner(
+            List<ApkSigner.SignerConfig> signerConfigs,
+            Consumer<ApkSigner.Builder> apkSignerOptions,
+            List<Apk> apks,
+            int maxConcurrentApks,
+            long memoryBudgetBytes,
+            RunnablesExecutor executor) {
+        mSignerConfigs = signerConfigs;
+        mApkSignerOptions = apkSignerOptions;
+        mApks = apks;
+        mMaxConcurrentApks = maxConcurrentApks;
+        mMemoryBudgetBytes = memoryBudgetBytes;
+        mExecutor = executor;
+    }
+
+    /**
+     * Signs all APKs of this batch and returns the outcome. A failure to sign one APK does not
+     * prevent the others from being signed.
+     *
+     * @throws CertificateEncodingException if a signer's certificate cannot be encoded
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the
+     *     APKs to be signed. APKs being signed at that time are left partially written.
+     */
+    public Result sign() throws CertificateEncodingException, InterruptedException {
+        List<ApkSigner.SignerConfig> signerConfigs = new ArrayList<>(mSignerConfigs.size());
+        for (ApkSigner.SignerConfig signerConfig : mSignerConfigs) {
+            signerConfigs.add(withEncodedCertificates(signerConfig));
+        }
+
+        MemoryBudget memoryBudget = new MemoryBudget(mMemoryBudgetBytes);
+        String threadNamePrefix = "apksig-batch-" + sBatchCount.incrementAndGet() + "-thread-";
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executorService =
+                Executors.newFixedThreadPool(
+                        Math.max(1, Math.min(mMaxConcurrentApks, mApks.size())),
+                        r -> {
+                            Thread thread =
+                                    new Thread(r, threadNamePrefix + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        try {
+            List<Future<Exception>> futures = new ArrayList<>(mApks.size());
+            for (Apk apk : mApks) {
+                futures.add(executorService.submit(() -> sign(apk, signerConfigs, memoryBudget)));
+            }
+            Map<Apk, Exception> failures = new LinkedHashMap<>();
+            for (int i = 0; i < mApks.size(); i++) {
+                Exception failure;
+                try {
+                    failure = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    failure = (Exception) cause;
+                }
+                if (failure != null) {
+                    failures.put(mApks.get(i), failure);
+                }
+            }
+            return new Result(mApks, failures);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Signs the provided APK once its estimated memory fits into the budget, and returns the
+     * exception which prevented it from being signed, or {@code null} if it was signed.
+     */
+    private Exception sign(
+            Apk apk, List<ApkSigner.SignerConfig> signerConfigs, MemoryBudget memoryBudget)
+            throws InterruptedException {
+        long memoryBytes = memoryBudget.acquire(estimateMemoryBytes(apk.getInputApk()));
+        try {
+            File outputApk = apk.getOutputApk();
+            File tmpOutputApk = outputApk;
+            if (apk.getInputApk().getCanonicalPath().equals(outputApk.getCanonicalPath())) {
+                tmpOutputApk =
+                        File.createTempFile(
+                                "apksigner", ".apk", outputApk.getAbsoluteFile().getParentFile());
+            }
+            try {
+                ApkSigner.Builder apkSignerBuilder = new ApkSigner.Builder(signerConfigs);
+                if (mApkSignerOptions != null) {
+                    mApkSignerOptions.accept(apkSignerBuilder);
+                }
+                apkSignerBuilder
+                        .setInputApk(apk.getInputApk())
+                        .setOutputApk(tmpOutputApk)
+                        .setRunnablesExecutor(mExecutor);
+                if (apk.getV4SignatureOutputFile() != null) {
+                    apkSignerBuilder.setV4SignatureOutputFile(apk.getV4SignatureOutputFile());
+                }
+                apkSignerBuilder.build().sign();
+                if (tmpOutputApk != outputApk) {
+                    Files.move(
+                            tmpOutputApk.toPath(),
+                            outputApk.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                if (tmpOutputApk != outputApk) {
+                    Files.deleteIfExists(tmpOutputApk.toPath());
+                }
+            }
+            return null;
+        } catch (Exception e) {
+            return e;
+        } finally {
+            memoryBudget.release(memoryBytes);
+        }
+    }
+
+    /**
+     * Returns the memory (in bytes) estimated to be needed to sign the provided APK, based on the
+     * size of its ZIP Central Directory.
+     */
+    private static long estimateMemoryBytes(File apk) {
+        long result = BASE_MEMORY_PER_APK_BYTES;
+        try (RandomAccessFile file = new RandomAccessFile(apk, "r")) {
+            ApkUtils.ZipSections zipSections =
+                    ApkUtils.findZipSections(DataSources.asDataSource(file));
+            result += CENTRAL_DIRECTORY_MEMORY_FACTOR
+                    * zipSections.getZipCentralDirectorySizeBytes();
+        } catch (IOException | ZipFormatException e) {
+            // The APK will fail to be signed, with the same error, once its turn comes.
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of the provided signer config whose certificates return their encoded form
+     * without encoding it again.
+     */
+    private static ApkSigner.SignerConfig withEncodedCertificates(
+            ApkSigner.SignerConfig signerConfig) throws CertificateEncodingException {
+        List<X509Certificate> certificates =
+                new ArrayList<>(signerConfig.getCertificates().size());
+        for (X509Certificate certificate : signerConfig.getCertificates()) {
+            certificates.add(
+                    new GuaranteedEncodedFormX509Certificate(
+                            certificate, certificate.getEncoded()));
+        }
+        ApkSigner.SignerConfig.Builder builder =
+                new ApkSigner.SignerConfig.Builder(
+                        signerConfig.getName(),
+                        signerConfig.getKeyConfig(),
+                        certificates,
+                        signerConfig.getDeterministicDsaSigning());
+        if (signerConfig.getMinSdkVersion() > 0) {
+            builder.setLineageForMinSdkVersion(
+                    signerConfig.getSigningCertificateLineage(), signerConfig.getMinSdkVersion());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Memory (in bytes) shared by the APKs signed concurrently.
+     */
+    private static class MemoryBudget {
+        private final long mTotalBytes;
+        private long mAvailableBytes;
+
+        private MemoryBudget(long totalBytes) {
+            mTotalBytes = totalBytes;
+            mAvailableBytes = totalBytes;
+        }
+
+        /**
+         * Waits until the provided amount of memory, capped to the whole budget, is available and
+         * returns the amount acquired.
+         */
+        private synchronized long acquire(long bytes) throws InterruptedException {
+            long result = Math.min(bytes, mTotalBytes);
+            while (mAvailableBytes < result) {
+                wait();
+            }
+            mAvailableBytes -= result;
+            return result;
+        }
+
+        private synchronized void release(long bytes) {
+            mAvailableBytes += bytes;
+            notifyAll();
+        }
+    }
+
+    /**
+     * APK to sign, the file into which to output it once signed and, optionally, the file into
+     * which to output its APK Signature Scheme v4 signature.
+     */
+    public static class Apk {
+        private final File mInputApk;
+        private final File mOutputApk;
+        private final File mV4SignatureOutputFile;
+
+        private Apk(File inputApk, File outputApk, File v4SignatureOutputFile) {
+            mInputApk = inputApk;
+            mOutputApk = outputApk;
+            mV4SignatureOutputFile = v4SignatureOutputFile;
+        }
+
+        public File getInputApk() {
+            return mInputApk;
+        }
+
+        public File getOutputApk() {
+            return mOutputApk;
+        }
+
+        /**
+         * Returns the file into which the APK Signature Scheme v4 signature is output, or
+         * {@code null} if none is.
+         */
+        public File getV4SignatureOutputFile() {
+            return mV4SignatureOutputFile;
+        }
+    }
+
+    /**
+     * Outcome of signing a batch of APKs.
+     */
+    public static class Result {
+        private final List<Apk> mApks;
+        private final Map<Apk, Exception> mFailures;
+
+        private Result(List<Apk> apks, Map<Apk, Exception> failures) {
+            mApks = apks;
+            mFailures = failures;
+        }
+
+        /**
+         * Returns {@code true} if all APKs of the batch were signed.
+         */
+        public boolean isSuccessful() {
+            return mFailures.isEmpty();
+        }
+
+        /**
+         * Returns the APKs of the batch, in the order in which they were added.
+         */
+        public List<Apk> getApks() {
+            return Collections.unmodifiableList(mApks);
+        }
+
+        /**
+         * Returns the exceptions which prevented APKs from being signed, keyed by APK, in the
+         * order in which the APKs were added.
+         */
+        public Map<Apk, Exception> getFailures() {
+            return Collections.unmodifiableMap(mFailures);
+        }
+    }
+
+    /**
+     * Builder of {@link ApkBatchSigner} instances.
+     */
+    public static class Builder {
+        private final List<ApkSigner.SignerConfig> mSignerConfigs;
+        private Consumer<ApkSigner.Builder> mApkSignerOptions;
+        private final List<Apk> mApks = new ArrayList<>();
+        private int mMaxConcurrentApks = -1;
+        private long mMemoryBudgetBytes = -1;
+        private RunnablesExecutor mExecutor = RunnablesExecutor.MULTI_THREADED;
+
+        /**
+         * Constructs a new {@code Builder} for signing APKs using the provided signers.
+         *
+         * @param signerConfigs signer configurations, as passed to
+         *     {@link ApkSigner.Builder#Builder(List)} for each APK
+         */
+        public Builder(List<ApkSigner.SignerConfig> signerConfigs) {
+            if (signerConfigs.isEmpty()) {
+                throw new IllegalArgumentException("At least one signer config must be provided");
+            }
+            mSignerConfigs = new ArrayList<>(signerConfigs);
+        }
+
+        /**
+         * Sets the options applied to the {@link ApkSigner.Builder} of each APK, such as the
+         * enabled signature schemes. The input and output APKs, v4 signature output file and
+         * executor are set by this signer after the options are applied.
+         */
+        public Builder setApkSignerOptions(Consumer<ApkSigner.Builder> options) {
+            mApkSignerOptions = options;
+            return this;
+        }
+
+        /**
+         * Adds the provided APK to the batch. The signed APK is output into {@code outputApk},
+         * which may be the same file as {@code inputApk}.
+         */
+        public Builder addApk(File inputApk, File outputApk) {
+            return addApk(inputApk, outputApk, null);
+        }
+
+        /**
+         * Adds the provided APK to the batch. The signed APK is output into {@code outputApk},
+         * which may be the same file as {@code inputApk}, and its APK Signature Scheme v4
+         * signature, if any, into {@code v4SignatureOutputFile}.
+         */
+        public Builder addApk(File inputApk, File outputApk, File v4SignatureOutputFile) {
+            if (inputApk == null) {
+                throw new NullPointerException("inputApk == null");
+            }
+            if (outputApk == null) {
+                throw new NullPointerException("outputApk == null");
+            }
+            mApks.add(new Apk(inputApk, outputApk, v4SignatureOutputFile));
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of APKs signed concurrently. By default, this is the number of
+         * processors available to the process.
+         */
+        public Builder setMaxConcurrentApks(int maxConcurrentApks) {
+            if (maxConcurrentApks < 1) {
+                throw new IllegalArgumentException(
+                        "maxConcurrentApks must be positive: " + maxConcurrentApks);
+            }
+            mMaxConcurrentApks = maxConcurrentApks;
+            return this;
+        }
+
+        /**
+         * Sets the memory (in bytes) which the APKs signed concurrently are estimated to need at
+         * most. By default, this is half of the maximum heap size.
+         */
+        public Builder setMemoryBudgetBytes(long memoryBudgetBytes) {
+            if (memoryBudgetBytes < 1) {
+                throw new IllegalArgumentException(
+                        "memoryBudgetBytes must be positive: " + memoryBudgetBytes);
+            }
+            mMemoryBudgetBytes = memoryBudgetBytes;
+            return this;
+        }
+
+        /**
+         * Sets the executor used to compute the digests of all APKs. By default, the
+         * process-wide thread pool of {@link RunnablesExecutor#MULTI_THREADED} is used.
+         */
+        public Builder setRunnablesExecutor(RunnablesExecutor executor) {
+            if (executor == null) {
+                throw new NullPointerException("executor == null");
+            }
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Returns a new {@code ApkBatchSigner} instance initialized according to the
+         * configuration of this builder.
+         */
+        public ApkBatchSigner build() {
+            int maxConcurrentApks =
+                    (mMaxConcurrentApks != -1) ? mMaxConcurrentApks : AvailableProcessors.get();
+            long memoryBudgetBytes =
+                    (mMemoryBudgetBytes != -1)
+                            ? mMemoryBudgetBytes
+                            : Runtime.getRuntime().maxMemory() / 2;
+            return new ApkBatchSigner(
+                    mSignerConfigs,
+                    mApkSignerOptions,
+                    new ArrayList<>(mApks),
+                    maxConcurrentApks,
+                    memoryBudgetBytes,
+                    mExecutor);
+        }
+    }
+}
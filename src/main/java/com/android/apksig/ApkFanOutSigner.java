@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig;
+
+import com.android.apksig.apk.ApkFormatException;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Signs an APK with several sets of signers, outputting one signed APK per set of signers.
+ *
+ * <p>APKs are signed using APK Signature Scheme v2 and/or v3 only. Without the JAR signature, the
+ * ZIP entries of the output APKs do not depend on their signers. They are thus output and digested
+ * once, into the first output APK, and copied into the other output APKs without passing through
+ * the Java heap. Only the APK Signing Block is generated for each set of signers, so that the cost
+ * of each additional set of signers does not grow with the size of the APK.
+ *
+ * <p>Use {@link Builder} to obtain instances of this signer.
+ */
+public class ApkFanOutSigner {
+    private final File mInputApk;
+    private final Consumer<ApkSigner.Builder> mApkSignerOptions;
+    private final List<Output> mOutputs;
+
+    private ApkFanOutSigner(
+            File inputApk, Consumer<ApkSigner.Builder> apkSignerOptions, List<Output> outputs) {
+        mInputApk = inputApk;
+        mApkSignerOptions = apkSignerOptions;
+        mOutputs = outputs;
+    }
+
+    /**
+     * Signs the input APK with each set of signers and outputs the resulting signed APKs. The
+     * input APK is not modified.
+     *
+     * @throws IOException if an I/O error is encountered while reading or writing the APKs
+     * @throws ApkFormatException if the input APK is malformed
+     * @throws NoSuchAlgorithmException if the APK signatures cannot be produced or verified because
+     *     a required cryptographic algorithm implementation is missing
+     * @throws InvalidKeyException if a signature could not be generated because a signing key is
+     *     not suitable for generating the signature
+     * @throws SignatureException if an error occurred while generating or verifying a signature
+     */
+    public void sign()
+            throws IOException, ApkFormatException, NoSuchAlgorithmException, InvalidKeyException,
+                    SignatureException {
+        Output firstOutput = mOutputs.get(0);
+        ApkSigner.Builder apkSignerBuilder = new ApkSigner.Builder(firstOutput.getSignerConfigs());
+        if (mApkSignerOptions != null) {
+            mApkSignerOptions.accept(apkSignerBuilder);
+        }
+        apkSignerBuilder
+                .setV1SigningEnabled(false)
+                .setInputApk(mInputApk)
+                .setOutputApk(firstOutput.getOutputApk())
+                .setFanOutOutputs(mOutputs.subList(1, mOutputs.size()));
+        if (firstOutput.getSigningCertificateLineage() != null) {
+            apkSignerBuilder.setSigningCertificateLineage(
+                    firstOutput.getSigningCertificateLineage());
+        }
+        if (firstOutput.getV4SignatureOutputFile() != null) {
+            apkSignerBuilder.setV4SignatureOutputFile(firstOutput.getV4SignatureOutputFile());
+        }
+        apkSignerBuilder.build().sign();
+    }
+
+    /**
+     * Set of signers, the file into which to output the APK signed by them and, optionally, the
+     * file into which to output its APK Signature Scheme v4 signature.
+     */
+    public static class Output {
+        private final List<ApkSigner.SignerConfig> mSignerConfigs;
+        private final SigningCertificateLineage mSigningCertificateLineage;
+        private final File mOutputApk;
+        private final File mV4SignatureOutputFile;
+
+        private Output(
+                List<ApkSigner.SignerConfig> signerConfigs,
+                SigningCertificateLineage signingCertificateLineage,
+                File outputApk,
+                File v4SignatureOutputFile) {
+            mSignerConfigs = signerConfigs;
+            mSigningCertificateLineage = signingCertificateLineage;
+            mOutputApk = outputApk;
+            mV4SignatureOutputFile = v4SignatureOutputFile;
+        }
+
+        public List<ApkSigner.SignerConfig> getSignerConfigs() {
+            return Collections.unmodifiableList(mSignerConfigs);
+        }
+
+        /**
+         * Returns the {@link SigningCertificateLineage} used with the v3 signature scheme, or
+         * {@code null} if none is.
+         */
+        public SigningCertificateLineage getSigningCertificateLineage() {
+            return mSigningCertificateLineage;
+        }
+
+        public File getOutputApk() {
+            return mOutputApk;
+        }
+
+        /**
+         * Returns the file into which the APK Signature Scheme v4 signature is output, or
+         * {@code null} if none is.
+         */
+        public File getV4SignatureOutputFile() {
+            return mV4SignatureOutputFile;
+        }
+    }
+
+    /**
+     * Builder of {@link ApkFanOutSigner} instances.
+     */
+    public static class Builder {
+        private final File mInputApk;
+        private Consumer<ApkSigner.Builder> mApkSignerOptions;
+        private final List<Output> mOutputs = new ArrayList<>();
+
+        /**
+         * Constructs a new {@code Builder} for signing the provided APK.
+         */
+        public Builder(File inputApk) {
+            if (inputApk == null) {
+                throw new NullPointerException("inputApk == null");
+            }
+            mInputApk = inputApk;
+        }
+
+        /**
+         * Sets the options applied to the {@link ApkSigner.Builder} of the first output APK, such
+         * as the enabled signature schemes, which are then used for all output APKs. The input
+         * and output APKs, signing certificate lineage and v4 signature output file are set by
+         * this signer after the options are applied, and v1 signing is disabled.
+         *
+         * <p>As the signature schemes are the same for all output APKs, APK Signature Scheme v3,
+         * if enabled, requires each set of signers to consist of a single signer or to be
+         * provided with a {@link SigningCertificateLineage}.
+         */
+        public Builder setApkSignerOptions(Consumer<ApkSigner.Builder> options) {
+            mApkSignerOptions = options;
+            return this;
+        }
+
+        /**
+         * Adds an output APK signed by the provided signers.
+         *
+         * @param signerConfigs signer configurations, as passed to
+         *     {@link ApkSigner.Builder#Builder(List)}
+         */
+        public Builder addOutput(List<ApkSigner.SignerConfig> signerConfigs, File outputApk) {
+            return addOutput(signerConfigs, null, outputApk, null);
+        }
+
+        /**
+         * Adds an output APK signed by the provided signers, with the provided
+         * {@link SigningCertificateLineage}, if not {@code null}, and whose APK Signature Scheme
+         * v4 signature, if any, is output into {@code v4SignatureOutputFile}.
+         *
+         * @param signerConfigs signer configurations, as passed to
+         *     {@link ApkSigner.Builder#Builder(List)}
+         */
+        public Builder addOutput(
+                List<ApkSigner.SignerConfig> signerConfigs,
+                SigningCertificateLineage signingCertificateLineage,
+                File outputApk,
+                File v4SignatureOutputFile) {
+            if (signerConfigs.isEmpty()) {
+                throw new IllegalArgumentException("At least one signer config must be provided");
+            }
+            if (outputApk == null) {
+                throw new NullPointerException("outputApk == null");
+            }
+            mOutputs.add(
+                    new Output(
+                            new ArrayList<>(signerConfigs),
+                            signingCertificateLineage,
+                            outputApk,
+                            v4SignatureOutputFile));
+            return this;
+        }
+
+        /**
+         * Returns a new {@code ApkFanOutSigner} instance initialized according to the
+         * configuration of this builder.
+         *
+         * @throws IllegalStateException if no output APK was added
+         */
+        public ApkFanOutSigner build() {
+            if (mOutputs.isEmpty()) {
+                throw new IllegalStateException("At least one output APK must be added");
+            }
+            return new ApkFanOutSigner(mInputApk, mApkSignerOptions, new ArrayList<>(mOutputs));
+        }
+    }
+}
@@ -25,9 +25,15 @@ import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.apk.ApkSigningBlockNotFoundException;
 import com.android.apksig.apk.ApkUtils;
 import com.android.apksig.apk.MinSdkVersionException;
+import com.android.apksig.internal.apk.ApkSigningBlockUtils;
+import com.android.apksig.internal.apk.ContentDigestAlgorithm;
+import com.android.apksig.internal.apk.v1.JarEntryDigestsCache;
 import com.android.apksig.internal.apk.v3.V3SchemeConstants;
 import com.android.apksig.internal.util.AndroidSdkVersion;
 import com.android.apksig.internal.util.ByteBufferDataSource;
+import com.android.apksig.internal.util.RandomAccessFileDataSink;
+import com.android.apksig.internal.util.TeeDataSink;
+import com.android.apksig.internal.zip.CentralDirectoryIndex;
 import com.android.apksig.internal.zip.CentralDirectoryRecord;
 import com.android.apksig.internal.zip.EocdRecord;
 import com.android.apksig.internal.zip.LocalFileRecord;
@@ -37,6 +43,7 @@ import com.android.apksig.util.DataSinks;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
 import com.android.apksig.util.ReadableDataSink;
+import com.android.apksig.util.RunnablesExecutor;
 import com.android.apksig.zip.ZipFormatException;
 
 import java.io.Closeable;
@@ -53,11 +60,12 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * APK signer.
@@ -109,6 +117,12 @@ public class ApkSigner {
     private final boolean mAlignmentPreserved;
     private final int mLibraryPageAlignmentBytes;
     private final String mCreatedBy;
+    private final RunnablesExecutor mExecutor;
+    private final File mJarEntryDigestsCacheFile;
+    private final List<ApkFanOutSigner.Output> mFanOutOutputs;
+    private final boolean mInputContentDigestsReused;
+    private final boolean mInputContentDigestsIntegrityVerified;
+    private final boolean mInPlaceSigningEnabled;
 
     private final ApkSignerEngine mSignerEngine;
 
@@ -144,6 +158,12 @@ public class ApkSigner {
             boolean alignmentPreserved,
             int libraryPageAlignmentBytes,
             String createdBy,
+            RunnablesExecutor executor,
+            File jarEntryDigestsCacheFile,
+            List<ApkFanOutSigner.Output> fanOutOutputs,
+            boolean inputContentDigestsReused,
+            boolean inputContentDigestsIntegrityVerified,
+            boolean inPlaceSigningEnabled,
             ApkSignerEngine signerEngine,
             File inputApkFile,
             DataSource inputApkDataSource,
@@ -173,6 +193,12 @@ public class ApkSigner {
         mAlignmentPreserved = alignmentPreserved;
         mLibraryPageAlignmentBytes = libraryPageAlignmentBytes;
         mCreatedBy = createdBy;
+        mExecutor = executor;
+        mJarEntryDigestsCacheFile = jarEntryDigestsCacheFile;
+        mFanOutOutputs = fanOutOutputs;
+        mInputContentDigestsReused = inputContentDigestsReused;
+        mInputContentDigestsIntegrityVerified = inputContentDigestsIntegrityVerified;
+        mInPlaceSigningEnabled = inPlaceSigningEnabled;
 
         mSignerEngine = signerEngine;
 
@@ -206,11 +232,19 @@ public class ApkSigner {
                     SignatureException, IllegalStateException {
         Closeable in = null;
         DataSource inputApk;
+        RandomAccessFile inputFile = null;
+        boolean signedInPlace = false;
         try {
             if (mInputApkDataSource != null) {
                 inputApk = mInputApkDataSource;
             } else if (mInputApkFile != null) {
-                RandomAccessFile inputFile = new RandomAccessFile(mInputApkFile, "r");
+                signedInPlace =
+                        mInPlaceSigningEnabled
+                                && mOutputApkDataSink == null
+                                && mOutputApkFile != null
+                                && mInputApkFile.getCanonicalFile().equals(
+                                        mOutputApkFile.getCanonicalFile());
+                inputFile = new RandomAccessFile(mInputApkFile, signedInPlace ? "rw" : "r");
                 in = inputFile;
                 inputApk = DataSources.asDataSource(inputFile);
             } else {
@@ -221,11 +255,18 @@ public class ApkSigner {
             try {
                 DataSink outputApkOut;
                 DataSource outputApkIn;
+                RandomAccessFile outputFile = null;
                 if (mOutputApkDataSink != null) {
                     outputApkOut = mOutputApkDataSink;
                     outputApkIn = mOutputApkDataSource;
+                } else if (signedInPlace) {
+                    // The ZIP entries section of the input APK is left in place, so the output APK
+                    // is only written to after the section.
+                    outputFile = inputFile;
+                    outputApkOut = DataSinks.asDataSink(outputFile);
+                    outputApkIn = DataSources.asDataSource(outputFile);
                 } else if (mOutputApkFile != null) {
-                    RandomAccessFile outputFile = new RandomAccessFile(mOutputApkFile, "rw");
+                    outputFile = new RandomAccessFile(mOutputApkFile, "rw");
                     out = outputFile;
                     outputFile.setLength(0);
                     outputApkOut = DataSinks.asDataSink(outputFile);
@@ -233,8 +274,11 @@ public class ApkSigner {
                 } else {
                     throw new IllegalStateException("Output APK not specified");
                 }
+                if (!mFanOutOutputs.isEmpty() && outputFile == null) {
+                    throw new IllegalStateException("Fan-out signing requires an output APK file");
+                }
 
-                sign(inputApk, outputApkOut, outputApkIn);
+                sign(inputApk, outputApkOut, outputApkIn, inputFile, outputFile);
             } finally {
                 if (out != null) {
                     out.close();
@@ -247,7 +291,18 @@ public class ApkSigner {
         }
     }
 
-    private void sign(DataSource inputApk, DataSink outputApkOut, DataSource outputApkIn)
+    /**
+     * Signs the input APK into the output APK and, if fan-out signers are configured, into their
+     * output APKs, in which case {@code outputApkFile} must be the file of the output APK.
+     * {@code inputApkFile} and {@code outputApkFile} are the files of the input and output APKs,
+     * or {@code null} if they are not files. If they are the same file, the APK is signed in place.
+     */
+    private void sign(
+            DataSource inputApk,
+            DataSink outputApkOut,
+            DataSource outputApkIn,
+            RandomAccessFile inputApkFile,
+            RandomAccessFile outputApkFile)
             throws IOException, ApkFormatException, NoSuchAlgorithmException, InvalidKeyException,
                     SignatureException {
         // Step 1. Find input APK's main ZIP sections
@@ -278,15 +333,18 @@ public class ApkSigner {
 
         // Step 2. Parse the input APK's ZIP Central Directory
         ByteBuffer inputCd = getZipCentralDirectory(inputApk, inputZipSections);
-        List<CentralDirectoryRecord> inputCdRecords =
-                parseZipCentralDirectory(inputCd, inputZipSections);
+        CentralDirectoryIndex inputCdIndex = parseZipCentralDirectory(inputCd, inputZipSections);
 
         List<Hints.PatternWithRange> pinPatterns =
-                extractPinPatterns(inputCdRecords, inputApkLfhSection);
+                extractPinPatterns(inputCdIndex, inputApkLfhSection);
         List<Hints.ByteRange> pinByteRanges = pinPatterns == null ? null : new ArrayList<>();
 
         // Step 3. Obtain a signer engine instance
         ApkSignerEngine signerEngine;
+        JarEntryDigestsCache jarEntryDigestsCache = null;
+        DefaultApkSignerEngine jarEntryDigestsCachingEngine = null;
+        DefaultApkSignerEngine defaultSignerEngine = null;
+        List<DefaultApkSignerEngine> fanOutSignerEngines = new ArrayList<>(mFanOutOutputs.size());
         if (mSignerEngine != null) {
             // Use the provided signer engine
             signerEngine = mSignerEngine;
@@ -298,83 +356,129 @@ public class ApkSigner {
                 minSdkVersion = mMinSdkVersion;
             } else {
                 // Need to extract minSdkVersion from the APK's AndroidManifest.xml
-                minSdkVersion = getMinSdkVersionFromApk(inputCdRecords, inputApkLfhSection);
-            }
-            List<DefaultApkSignerEngine.SignerConfig> engineSignerConfigs =
-                    new ArrayList<>(mSignerConfigs.size());
-            for (SignerConfig signerConfig : mSignerConfigs) {
-                DefaultApkSignerEngine.SignerConfig.Builder signerConfigBuilder =
-                        new DefaultApkSignerEngine.SignerConfig.Builder(
-                                signerConfig.getName(),
-                                signerConfig.getKeyConfig(),
-                                signerConfig.getCertificates(),
-                                signerConfig.getDeterministicDsaSigning());
-                int signerMinSdkVersion = signerConfig.getMinSdkVersion();
-                SigningCertificateLineage signerLineage =
-                        signerConfig.getSigningCertificateLineage();
-                if (signerMinSdkVersion > 0) {
-                    signerConfigBuilder.setLineageForMinSdkVersion(signerLineage,
-                            signerMinSdkVersion);
-                }
-                engineSignerConfigs.add(signerConfigBuilder.build());
-            }
-            DefaultApkSignerEngine.Builder signerEngineBuilder =
-                    new DefaultApkSignerEngine.Builder(engineSignerConfigs, minSdkVersion)
-                            .setV1SigningEnabled(mV1SigningEnabled)
-                            .setV2SigningEnabled(mV2SigningEnabled)
-                            .setV3SigningEnabled(mV3SigningEnabled)
-                            .setVerityEnabled(mVerityEnabled)
-                            .setDebuggableApkPermitted(mDebuggableApkPermitted)
-                            .setOtherSignersSignaturesPreserved(mOtherSignersSignaturesPreserved)
-                            .setSigningCertificateLineage(mSigningCertificateLineage)
-                            .setMinSdkVersionForRotation(mRotationMinSdkVersion)
-                            .setRotationTargetsDevRelease(mRotationTargetsDevRelease);
-            if (mCreatedBy != null) {
-                signerEngineBuilder.setCreatedBy(mCreatedBy);
-            }
-            if (mSourceStampSignerConfig != null) {
-                signerEngineBuilder.setStampSignerConfig(
-                        new DefaultApkSignerEngine.SignerConfig.Builder(
-                                        mSourceStampSignerConfig.getName(),
-                                        mSourceStampSignerConfig.getKeyConfig(),
-                                        mSourceStampSignerConfig.getCertificates(),
-                                        mSourceStampSignerConfig.getDeterministicDsaSigning())
-                                .build());
-                signerEngineBuilder.setSourceStampTimestampEnabled(mSourceStampTimestampEnabled);
-            }
-            if (mSourceStampSigningCertificateLineage != null) {
-                signerEngineBuilder.setSourceStampSigningCertificateLineage(
-                        mSourceStampSigningCertificateLineage);
-            }
-            signerEngine = signerEngineBuilder.build();
+                minSdkVersion = getMinSdkVersionFromApk(inputCdIndex, inputApkLfhSection);
+            }
+            defaultSignerEngine =
+                    createSignerEngine(
+                            mSignerConfigs,
+                            mSigningCertificateLineage,
+                            minSdkVersion,
+                            mV1SigningEnabled,
+                            mV4SigningEnabled && mOutputV4File != null,
+                            mDebuggableApkPermitted);
+            for (ApkFanOutSigner.Output fanOutOutput : mFanOutOutputs) {
+                // The APKs signed by fan-out signers have the same contents as the output APK, so
+                // only the output APK is checked for being debuggable.
+                fanOutSignerEngines.add(
+                        createSignerEngine(
+                                fanOutOutput.getSignerConfigs(),
+                                fanOutOutput.getSigningCertificateLineage(),
+                                minSdkVersion,
+                                false,
+                                mV4SigningEnabled
+                                        && fanOutOutput.getV4SignatureOutputFile() != null,
+                                true));
+            }
+            if (mJarEntryDigestsCacheFile != null && mV1SigningEnabled) {
+                jarEntryDigestsCache = new JarEntryDigestsCache(mJarEntryDigestsCacheFile);
+                defaultSignerEngine.setJarEntryDigestsCache(jarEntryDigestsCache);
+                jarEntryDigestsCachingEngine = defaultSignerEngine;
+            }
+            signerEngine = defaultSignerEngine;
         }
 
         // Step 4. Provide the signer engine with the input APK's APK Signing Block (if any)
         if (inputApkSigningBlock != null) {
             signerEngine.inputApkSigningBlock(inputApkSigningBlock);
+            for (DefaultApkSignerEngine fanOutSignerEngine : fanOutSignerEngines) {
+                fanOutSignerEngine.inputApkSigningBlock(inputApkSigningBlock);
+            }
+        }
+
+        // Determine whether the input APK's ZIP entries section can be output unchanged, in which
+        // case it is left in place, or copied into the output APK file, instead of being output
+        // entry by entry in Steps 5 to 8.
+        boolean signedInPlace = inputApkFile != null && inputApkFile == outputApkFile;
+        boolean zipEntriesCopied =
+                mInPlaceSigningEnabled
+                        && inputApkFile != null
+                        && outputApkFile != null
+                        && defaultSignerEngine != null
+                        && pinPatterns == null
+                        && isInputZipEntriesSectionOutputUnchanged(
+                                defaultSignerEngine, inputCdIndex, inputApkLfhSection);
+        if (signedInPlace && !zipEntriesCopied) {
+            throw new IllegalStateException(
+                    "APK cannot be signed in place because its ZIP entries need to be modified");
+        }
+
+        // Obtain the content digests recorded in the input APK's APK Signing Block, if they are
+        // to be reused. They are reused if the ZIP entries section is output unchanged.
+        Map<ContentDigestAlgorithm, byte[]> inputContentDigests = null;
+        if (mInputContentDigestsReused && defaultSignerEngine != null
+                && inputApkSigningBlock != null) {
+            inputContentDigests =
+                    ApkVerifier.getVerifiedApkContentDigests(
+                            (mExecutor != null) ? mExecutor : RunnablesExecutor.MULTI_THREADED,
+                            inputApk,
+                            inputZipSections,
+                            mInputContentDigestsIntegrityVerified);
+        }
+
+        // Output the ZIP entries section (Steps 5 to 8) through the signer engine's digesting
+        // sink, if supported, so that the engine does not need to read the section back from the
+        // output APK to compute its content digests. The section is not digested if the input
+        // APK's content digests are expected to be reused.
+        DataSink outputApkEntriesOut = outputApkOut;
+        DataSink zipEntriesDigestingSink = null;
+        if (inputContentDigests == null && !zipEntriesCopied) {
+            // The section is digested once on behalf of the fan-out signer engines too.
+            zipEntriesDigestingSink =
+                    fanOutSignerEngines.isEmpty()
+                            ? signerEngine.getZipEntriesDigestingSink()
+                            : defaultSignerEngine.getZipEntriesDigestingSink(fanOutSignerEngines);
+        }
+        if (zipEntriesDigestingSink != null) {
+            outputApkEntriesOut =
+                    new TeeDataSink(new DataSink[] {outputApkOut, zipEntriesDigestingSink});
         }
 
         // Step 5. Iterate over input APK's entries and output the Local File Header + data of those
         // entries which need to be output. Entries are iterated in the order in which their Local
         // File Header records are stored in the file. This is to achieve better data locality in
-        // case Central Directory entries are in the wrong order.
-        List<CentralDirectoryRecord> inputCdRecordsSortedByLfhOffset =
-                new ArrayList<>(inputCdRecords);
-        Collections.sort(
-                inputCdRecordsSortedByLfhOffset,
-                CentralDirectoryRecord.BY_LOCAL_FILE_HEADER_OFFSET_COMPARATOR);
+        // case Central Directory entries are in the wrong order. If the ZIP entries section is
+        // output unchanged, the entries are iterated without outputting them. Runs of input data
+        // output verbatim are output at once, which lets them be transferred directly between
+        // files if the output is not digested as it is output.
+        CoalescingDataCopier verbatimOutput =
+                new CoalescingDataCopier(inputApkLfhSection, outputApkEntriesOut);
         int lastModifiedDateForNewEntries = -1;
         int lastModifiedTimeForNewEntries = -1;
         long inputOffset = 0;
         long outputOffset = 0;
         byte[] sourceStampCertificateDigest = null;
-        Map<String, CentralDirectoryRecord> outputCdRecordsByName =
-                new HashMap<>(inputCdRecords.size());
-        for (final CentralDirectoryRecord inputCdRecord : inputCdRecordsSortedByLfhOffset) {
-            String entryName = inputCdRecord.getName();
+        // Output Central Directory records of the input entries, at the index of the input record
+        CentralDirectoryRecord[] outputCdRecordsByInputIndex =
+                new CentralDirectoryRecord[inputCdIndex.getRecordCount()];
+        // Requests of the engine constructed above may be fulfilled concurrently. Its requests to
+        // inspect output entries, which cover most of the APK's data when v1 signing is enabled,
+        // are thus inflated and digested in parallel once all entries have been output, provided
+        // that the input APK is a file opened by this signer, which may be read concurrently. A
+        // DataSource provided as the input APK is not required to be thread-safe. Requests of a
+        // provided engine are fulfilled in order, as soon as they are obtained.
+        RunnablesExecutor inspectExecutor =
+                (mSignerEngine != null || inputApkFile == null)
+                        ? null
+                        : (mExecutor != null) ? mExecutor : RunnablesExecutor.MULTI_THREADED;
+        List<PendingInspectJarEntryRequest> outputEntryInspectRequests = new ArrayList<>();
+        // Whether each input entry is output unmodified at its offset in the input APK
+        boolean inputEntriesOutputUnchanged = true;
+        for (int inputCdRecordIndex : inputCdIndex.getRecordsByLocalFileHeaderOffset()) {
+            String entryName = inputCdIndex.getName(inputCdRecordIndex);
             if (Hints.PIN_BYTE_RANGE_ZIP_ENTRY_NAME.equals(entryName)) {
                 continue; // We'll re-add below if needed.
             }
+            final CentralDirectoryRecord inputCdRecord = inputCdIndex.getRecord(inputCdRecordIndex);
             if (SOURCE_STAMP_CERTIFICATE_HASH_ZIP_ENTRY_NAME.equals(entryName)) {
                 try {
                     sourceStampCertificateDigest =
@@ -400,6 +504,7 @@ public class ApkSigner {
                     throw new RuntimeException(
                             "Unknown output policy: " + entryInstructions.getOutputPolicy());
             }
+            inputEntriesOutputUnchanged &= shouldOutput;
 
             long inputLocalFileHeaderStartOffset = inputCdRecord.getLocalFileHeaderOffset();
             if (inputLocalFileHeaderStartOffset > inputOffset) {
@@ -407,7 +512,9 @@ public class ApkSigner {
                 // this record's LFH. We output this data verbatim because this signer is supposed
                 // to preserve as much of input as possible.
                 long chunkSize = inputLocalFileHeaderStartOffset - inputOffset;
-                inputApkLfhSection.feed(inputOffset, chunkSize, outputApkOut);
+                if (!zipEntriesCopied) {
+                    verbatimOutput.copy(inputOffset, chunkSize);
+                }
                 outputOffset += chunkSize;
                 inputOffset = inputLocalFileHeaderStartOffset;
             }
@@ -441,23 +548,48 @@ public class ApkSigner {
                     lastModifiedTimeForNewEntries = lastModifiedTime;
                 }
 
-                inspectEntryRequest = signerEngine.outputJarEntry(entryName);
+                if (jarEntryDigestsCachingEngine != null
+                        && !inputLocalFileRecord.isDataDescriptorUsed()) {
+                    // The entry's CRC-32 and sizes in its Local File Header match those of its
+                    // Central Directory record, so its cached digest, if any, can be reused.
+                    inspectEntryRequest =
+                            jarEntryDigestsCachingEngine.outputJarEntry(
+                                    entryName,
+                                    inputCdRecord.getCrc32(),
+                                    inputCdRecord.getCompressedSize(),
+                                    inputCdRecord.getUncompressedSize());
+                } else {
+                    inspectEntryRequest = signerEngine.outputJarEntry(entryName);
+                }
                 if (inspectEntryRequest != null) {
-                    fulfillInspectInputJarEntryRequest(
-                            inputApkLfhSection, inputLocalFileRecord, inspectEntryRequest);
+                    if (inspectExecutor != null) {
+                        outputEntryInspectRequests.add(
+                                new PendingInspectJarEntryRequest(
+                                        inputLocalFileRecord, inspectEntryRequest));
+                    } else {
+                        fulfillInspectInputJarEntryRequest(
+                                inputApkLfhSection, inputLocalFileRecord, inspectEntryRequest);
+                    }
                 }
 
                 // Output entry's Local File Header + data
                 long outputLocalFileHeaderOffset = outputOffset;
                 OutputSizeAndDataOffset outputLfrResult =
-                        outputInputJarEntryLfhRecord(
-                                inputApkLfhSection,
-                                inputLocalFileRecord,
-                                outputApkOut,
-                                outputLocalFileHeaderOffset);
+                        zipEntriesCopied
+                                ? new OutputSizeAndDataOffset(
+                                        inputLocalFileRecord.getSize(),
+                                        inputLocalFileRecord.getDataStartOffsetInRecord())
+                                : outputInputJarEntryLfhRecord(
+                                        inputLocalFileRecord,
+                                        verbatimOutput,
+                                        outputLocalFileHeaderOffset);
                 outputOffset += outputLfrResult.outputBytes;
                 long outputDataOffset =
                         outputLocalFileHeaderOffset + outputLfrResult.dataOffsetBytes;
+                inputEntriesOutputUnchanged &=
+                        outputLocalFileHeaderOffset
+                                        == inputLocalFileRecord.getStartOffsetInArchive()
+                                && !outputLfrResult.extraModified;
 
                 if (pinPatterns != null) {
                     boolean pinFileHeader = false;
@@ -488,7 +620,7 @@ public class ApkSigner {
                             inputCdRecord.createWithModifiedLocalFileHeaderOffset(
                                     outputLocalFileHeaderOffset);
                 }
-                outputCdRecordsByName.put(entryName, outputCdRecord);
+                outputCdRecordsByInputIndex[inputCdRecordIndex] = outputCdRecord;
             }
         }
         long inputLfhSectionSize = inputApkLfhSection.size();
@@ -497,17 +629,23 @@ public class ApkSigner {
             // APK's LFH section. We output this data verbatim because this signer is supposed
             // to preserve as much of input as possible.
             long chunkSize = inputLfhSectionSize - inputOffset;
-            inputApkLfhSection.feed(inputOffset, chunkSize, outputApkOut);
+            if (!zipEntriesCopied) {
+                verbatimOutput.copy(inputOffset, chunkSize);
+            }
             outputOffset += chunkSize;
             inputOffset = inputLfhSectionSize;
         }
+        verbatimOutput.flush();
+        if (inspectExecutor != null) {
+            fulfillInspectInputJarEntryRequests(
+                    inputApkLfhSection, outputEntryInspectRequests, inspectExecutor);
+        }
 
         // Step 6. Sort output APK's Central Directory records in the order in which they should
         // appear in the output
-        List<CentralDirectoryRecord> outputCdRecords = new ArrayList<>(inputCdRecords.size() + 10);
-        for (CentralDirectoryRecord inputCdRecord : inputCdRecords) {
-            String entryName = inputCdRecord.getName();
-            CentralDirectoryRecord outputCdRecord = outputCdRecordsByName.get(entryName);
+        List<CentralDirectoryRecord> outputCdRecords =
+                new ArrayList<>(outputCdRecordsByInputIndex.length + 10);
+        for (CentralDirectoryRecord outputCdRecord : outputCdRecordsByInputIndex) {
             if (outputCdRecord != null) {
                 outputCdRecords.add(outputCdRecord);
             }
@@ -534,7 +672,7 @@ public class ApkSigner {
                                 outputCdRecords,
                                 lastModifiedTimeForNewEntries,
                                 lastModifiedDateForNewEntries,
-                                outputApkOut);
+                                outputApkEntriesOut);
             } else {
                 throw new ApkFormatException(
                         String.format(
@@ -564,7 +702,7 @@ public class ApkSigner {
                     outputCdRecords,
                     lastModifiedTimeForNewEntries,
                     lastModifiedDateForNewEntries,
-                    outputApkOut);
+                    outputApkEntriesOut);
         }
 
         // Step 8. Generate and output JAR signatures, if necessary. This may output more Local File
@@ -586,10 +724,13 @@ public class ApkSigner {
                                 outputCdRecords,
                                 lastModifiedTimeForNewEntries,
                                 lastModifiedDateForNewEntries,
-                                outputApkOut);
+                                outputApkEntriesOut);
             }
             outputJarSignatureRequest.done();
         }
+        if (jarEntryDigestsCache != null) {
+            jarEntryDigestsCache.store();
+        }
 
         // Step 9. Construct output ZIP Central Directory in an in-memory buffer
         long outputCentralDirSizeBytes = 0;
@@ -611,6 +752,28 @@ public class ApkSigner {
         long outputCentralDirStartOffset = outputOffset;
         int outputCentralDirRecordCount = outputCdRecords.size();
 
+        // If all input entries were output unchanged, and no entries were added, the ZIP entries
+        // section is the same as the input APK's. The signer engines then reuse the input APK's
+        // content digests if the ZIP Central Directory and End of Central Directory are the same.
+        if (inputContentDigests != null
+                && inputEntriesOutputUnchanged
+                && outputCentralDirStartOffset == inputLfhSectionSize) {
+            ByteBuffer inputCentralDir = inputCd.duplicate();
+            inputCentralDir.rewind();
+            defaultSignerEngine.setInputContentDigests(
+                    inputContentDigests,
+                    inputLfhSectionSize,
+                    inputCentralDir,
+                    inputZipSections.getZipEndOfCentralDirectory());
+            for (DefaultApkSignerEngine fanOutSignerEngine : fanOutSignerEngines) {
+                fanOutSignerEngine.setInputContentDigests(
+                        inputContentDigests,
+                        inputLfhSectionSize,
+                        inputCentralDir,
+                        inputZipSections.getZipEndOfCentralDirectory());
+            }
+        }
+
         // Step 10. Construct output ZIP End of Central Directory record in an in-memory buffer
         // because it can be adjusted in Step 11 due to signing block.
         //   - CD offset (it's shifted by signing block)
@@ -621,13 +784,101 @@ public class ApkSigner {
                         outputCentralDirRecordCount,
                         outputCentralDirDataSource.size(),
                         outputCentralDirStartOffset);
+        if (outputCentralDirStartOffset + ApkSigningBlockUtils.ANDROID_COMMON_PAGE_ALIGNMENT_BYTES
+                >= ZipUtils.UINT32_MAX_VALUE) {
+            // The padding which aligns the APK Signing Block on a page boundary, see Step 11, may
+            // move the ZIP Central Directory beyond the offsets which fit into the ZIP End of
+            // Central Directory record, in which case its ZIP64 counterpart is needed.
+            outputEocd = EocdRecord.createWithZip64Records(outputEocd);
+        }
+
+        // Output the unchanged ZIP entries section by leaving it in place, in which case the rest
+        // of the input APK is overwritten, and truncated once the output APK is fully output, or
+        // by copying it without passing through the Java heap.
+        // If there are fan-out signer engines, the section is digested once on their behalf too,
+        // rather than being read back by each of the engines.
+        DataSink outputApkTailOut = outputApkOut;
+        if (zipEntriesCopied) {
+            if (inputContentDigests == null && !fanOutSignerEngines.isEmpty()) {
+                DataSink sharedDigestingSink =
+                        defaultSignerEngine.getZipEntriesDigestingSink(fanOutSignerEngines);
+                if (sharedDigestingSink != null) {
+                    inputApkLfhSection.feed(0, inputLfhSectionSize, sharedDigestingSink);
+                }
+            }
+            if (signedInPlace) {
+                outputApkTailOut =
+                        new RandomAccessFileDataSink(outputApkFile, inputLfhSectionSize);
+            } else {
+                outputApkTailOut = new RandomAccessFileDataSink(outputApkFile);
+                inputApkLfhSection.feed(0, inputLfhSectionSize, outputApkTailOut);
+            }
+        }
+
+        // Steps 11 to 13. Output the APK Signing Block, if any, and the rest of the output APK
+        outputApkSigningBlockAndCentralDir(
+                signerEngine,
+                outputApkTailOut,
+                outputApkIn,
+                outputCentralDir,
+                outputCentralDirStartOffset,
+                copyOf(outputEocd),
+                mOutputV4File,
+                signedInPlace ? outputApkFile : null);
+
+        // Step 14. Output the APKs signed by the fan-out signer engines. Their ZIP entries section
+        // is the same as the output APK's and is thus copied from it, without passing through the
+        // Java heap, and its content digests are reused.
+        for (int i = 0; i < fanOutSignerEngines.size(); i++) {
+            ApkFanOutSigner.Output fanOutOutput = mFanOutOutputs.get(i);
+            try (RandomAccessFile fanOutOutputFile =
+                    new RandomAccessFile(fanOutOutput.getOutputApk(), "rw")) {
+                fanOutOutputFile.setLength(0);
+                DataSink fanOutOutputApkOut = new RandomAccessFileDataSink(fanOutOutputFile);
+                DataSources.asDataSource(outputApkFile)
+                        .feed(0, outputCentralDirStartOffset, fanOutOutputApkOut);
+                outputApkSigningBlockAndCentralDir(
+                        fanOutSignerEngines.get(i),
+                        fanOutOutputApkOut,
+                        DataSources.asDataSource(fanOutOutputFile),
+                        outputCentralDir,
+                        outputCentralDirStartOffset,
+                        copyOf(outputEocd),
+                        fanOutOutput.getV4SignatureOutputFile(),
+                        null);
+            }
+        }
+    }
+
+    /**
+     * Outputs the APK Signing Block generated by the provided signer engine, if any, followed by
+     * the ZIP Central Directory and ZIP End of Central Directory, after the ZIP entries section
+     * which is already output, and outputs the APK Signature Scheme v4 signature, if necessary.
+     * If {@code truncatedOutputApkFile} is not {@code null}, it is the file of the output APK and
+     * is truncated to the size of the output APK once the APK is output, because data follows the
+     * ZIP entries section in the file.
+     */
+    private void outputApkSigningBlockAndCentralDir(
+            ApkSignerEngine signerEngine,
+            DataSink outputApkOut,
+            DataSource outputApkIn,
+            ByteBuffer outputCentralDir,
+            long outputCentralDirStartOffset,
+            ByteBuffer outputEocd,
+            File outputV4File,
+            RandomAccessFile truncatedOutputApkFile)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException, InvalidKeyException,
+                    SignatureException {
+        DataSource outputZipEntries = outputApkIn.slice(0, outputCentralDirStartOffset);
+        DataSource outputCentralDirDataSource = new ByteBufferDataSource(outputCentralDir);
+        long outputCentralDirOffset = outputCentralDirStartOffset;
 
         // Step 11. Generate and output APK Signature Scheme v2 and/or v3 signatures and/or
         // SourceStamp signatures, if necessary.
         // This may insert an APK Signing Block just before the output's ZIP Central Directory
         ApkSignerEngine.OutputApkSigningBlockRequest2 outputApkSigningBlockRequest =
                 signerEngine.outputZipSections2(
-                        outputApkIn,
+                        outputZipEntries,
                         outputCentralDirDataSource,
                         DataSources.asDataSource(outputEocd));
 
@@ -636,11 +887,21 @@ public class ApkSigner {
             byte[] outputApkSigningBlock = outputApkSigningBlockRequest.getApkSigningBlock();
             outputApkSigningBlockRequest.done();
 
+            // If the APK Signing Block moves the ZIP Central Directory beyond the offsets which
+            // fit into the ZIP End of Central Directory record, the ZIP64 End of Central
+            // Directory record and locator are added.
+            boolean eocdModified = false;
+            outputCentralDirOffset =
+                    outputCentralDirStartOffset + padding + outputApkSigningBlock.length;
+            if ((outputCentralDirOffset >= ZipUtils.UINT32_MAX_VALUE)
+                    && (!ZipUtils.isZip64EndOfCentralDirectory(outputEocd))) {
+                outputEocd = EocdRecord.createWithZip64Records(outputEocd);
+                eocdModified = true;
+            }
+
             long fileSize =
-                    outputCentralDirStartOffset
+                    outputCentralDirOffset
                             + outputCentralDirDataSource.size()
-                            + padding
-                            + outputApkSigningBlock.length
                             + outputEocd.remaining();
             if (mAlignFileSize && (fileSize % ANDROID_FILE_ALIGNMENT_BYTES != 0)) {
                 int eocdPadding =
@@ -650,35 +911,120 @@ public class ApkSigner {
                 // Replace EOCD with padding one so that output file size can be the multiples of
                 // alignment.
                 outputEocd = EocdRecord.createWithPaddedComment(outputEocd, eocdPadding);
+                eocdModified = true;
+            }
 
+            if (eocdModified) {
                 // Since EoCD has changed, we need to regenerate signing block as well.
                 outputApkSigningBlockRequest =
                         signerEngine.outputZipSections2(
-                                outputApkIn,
+                                outputZipEntries,
                                 new ByteBufferDataSource(outputCentralDir),
                                 DataSources.asDataSource(outputEocd));
                 outputApkSigningBlock = outputApkSigningBlockRequest.getApkSigningBlock();
                 outputApkSigningBlockRequest.done();
+                outputCentralDirOffset =
+                        outputCentralDirStartOffset + padding + outputApkSigningBlock.length;
             }
 
             outputApkOut.consume(ByteBuffer.allocate(padding));
             outputApkOut.consume(outputApkSigningBlock, 0, outputApkSigningBlock.length);
-            ZipUtils.setZipEocdCentralDirectoryOffset(
-                    outputEocd,
-                    outputCentralDirStartOffset + padding + outputApkSigningBlock.length);
+            ZipUtils.setZipEocdCentralDirectoryOffset(outputEocd, outputCentralDirOffset);
         }
 
         // Step 12. Output ZIP Central Directory and ZIP End of Central Directory
         outputCentralDirDataSource.feed(0, outputCentralDirDataSource.size(), outputApkOut);
+        long outputApkSize =
+                outputCentralDirOffset + outputCentralDirDataSource.size() + outputEocd.remaining();
         outputApkOut.consume(outputEocd);
+        if (truncatedOutputApkFile != null) {
+            truncatedOutputApkFile.setLength(outputApkSize);
+        }
         signerEngine.outputDone();
 
         // Step 13. Generate and output APK Signature Scheme v4 signatures, if necessary.
         if (mV4SigningEnabled) {
-            signerEngine.signV4(outputApkIn, mOutputV4File, !mV4ErrorReportingEnabled);
+            signerEngine.signV4(outputApkIn, outputV4File, !mV4ErrorReportingEnabled);
         }
     }
 
+    /** Returns a copy of the remaining contents of the provided little-endian buffer. */
+    private static ByteBuffer copyOf(ByteBuffer buffer) {
+        ByteBuffer result = ByteBuffer.allocate(buffer.remaining());
+        result.order(ByteOrder.LITTLE_ENDIAN);
+        result.put(buffer.slice());
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Returns a new signer engine which signs using the provided signers and the other parameters
+     * of this signer.
+     */
+    private DefaultApkSignerEngine createSignerEngine(
+            List<SignerConfig> signerConfigs,
+            SigningCertificateLineage signingCertificateLineage,
+            int minSdkVersion,
+            boolean v1SigningEnabled,
+            boolean v4SigningEnabled,
+            boolean debuggableApkPermitted)
+            throws InvalidKeyException {
+        List<DefaultApkSignerEngine.SignerConfig> engineSignerConfigs =
+                new ArrayList<>(signerConfigs.size());
+        for (SignerConfig signerConfig : signerConfigs) {
+            DefaultApkSignerEngine.SignerConfig.Builder signerConfigBuilder =
+                    new DefaultApkSignerEngine.SignerConfig.Builder(
+                            signerConfig.getName(),
+                            signerConfig.getKeyConfig(),
+                            signerConfig.getCertificates(),
+                            signerConfig.getDeterministicDsaSigning());
+            int signerMinSdkVersion = signerConfig.getMinSdkVersion();
+            SigningCertificateLineage signerLineage =
+                    signerConfig.getSigningCertificateLineage();
+            if (signerMinSdkVersion > 0) {
+                signerConfigBuilder.setLineageForMinSdkVersion(signerLineage,
+                        signerMinSdkVersion);
+            }
+            engineSignerConfigs.add(signerConfigBuilder.build());
+        }
+        DefaultApkSignerEngine.Builder signerEngineBuilder =
+                new DefaultApkSignerEngine.Builder(engineSignerConfigs, minSdkVersion)
+                        .setV1SigningEnabled(v1SigningEnabled)
+                        .setV2SigningEnabled(mV2SigningEnabled)
+                        .setV3SigningEnabled(mV3SigningEnabled)
+                        .setVerityEnabled(mVerityEnabled)
+                        .setV4SigningEnabled(v4SigningEnabled)
+                        .setDebuggableApkPermitted(debuggableApkPermitted)
+                        .setOtherSignersSignaturesPreserved(mOtherSignersSignaturesPreserved)
+                        .setSigningCertificateLineage(signingCertificateLineage)
+                        .setMinSdkVersionForRotation(mRotationMinSdkVersion)
+                        .setRotationTargetsDevRelease(mRotationTargetsDevRelease);
+        if (mCreatedBy != null) {
+            signerEngineBuilder.setCreatedBy(mCreatedBy);
+        }
+        if (mSourceStampSignerConfig != null) {
+            signerEngineBuilder.setStampSignerConfig(
+                    new DefaultApkSignerEngine.SignerConfig.Builder(
+                                    mSourceStampSignerConfig.getName(),
+                                    mSourceStampSignerConfig.getKeyConfig(),
+                                    mSourceStampSignerConfig.getCertificates(),
+                                    mSourceStampSignerConfig.getDeterministicDsaSigning())
+                            .build());
+            signerEngineBuilder.setSourceStampTimestampEnabled(mSourceStampTimestampEnabled);
+        }
+        if (mSourceStampSigningCertificateLineage != null) {
+            signerEngineBuilder.setSourceStampSigningCertificateLineage(
+                    mSourceStampSigningCertificateLineage);
+        }
+        DefaultApkSignerEngine defaultSignerEngine = signerEngineBuilder.build();
+        // The output ZIP entries section is not modified once it has been output.
+        defaultSignerEngine.setZipSectionsUnmodifiedWhileSizeUnchanged(true);
+        if (mExecutor != null) {
+            defaultSignerEngine.setExecutor(mExecutor);
+        }
+        return defaultSignerEngine;
+    }
+
     private static void requestOutputEntryInspection(
             ApkSignerEngine signerEngine,
             String entryName,
@@ -739,63 +1085,220 @@ public class ApkSigner {
         inspectEntryRequest.done();
     }
 
+    /**
+     * Fulfills the provided JAR entry inspection requests using the provided executor. Each
+     * {@code Runnable} of the executor claims the next unfulfilled request until none are left,
+     * so that a few large entries do not hold back the rest.
+     */
+    private static void fulfillInspectInputJarEntryRequests(
+            DataSource lfhSection,
+            List<PendingInspectJarEntryRequest> requests,
+            RunnablesExecutor executor)
+            throws IOException, ApkFormatException {
+        if (requests.isEmpty()) {
+            return;
+        }
+        AtomicInteger nextRequestIndex = new AtomicInteger();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Runnable fulfiller = () -> {
+            for (int i = nextRequestIndex.getAndIncrement();
+                    i < requests.size() && failure.get() == null;
+                    i = nextRequestIndex.getAndIncrement()) {
+                PendingInspectJarEntryRequest request = requests.get(i);
+                try {
+                    fulfillInspectInputJarEntryRequest(
+                            lfhSection, request.localFileRecord, request.inspectRequest);
+                } catch (IOException | ApkFormatException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        };
+        executor.execute(() -> fulfiller);
+
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw (ApkFormatException) e;
+        }
+    }
+
+    private static class PendingInspectJarEntryRequest {
+        public final LocalFileRecord localFileRecord;
+        public final ApkSignerEngine.InspectJarEntryRequest inspectRequest;
+
+        public PendingInspectJarEntryRequest(
+                LocalFileRecord localFileRecord,
+                ApkSignerEngine.InspectJarEntryRequest inspectRequest) {
+            this.localFileRecord = localFileRecord;
+            this.inspectRequest = inspectRequest;
+        }
+    }
+
     private static class OutputSizeAndDataOffset {
         public long outputBytes;
         public long dataOffsetBytes;
+        public boolean extraModified;
 
         public OutputSizeAndDataOffset(long outputBytes, long dataOffsetBytes) {
+            this(outputBytes, dataOffsetBytes, false);
+        }
+
+        public OutputSizeAndDataOffset(
+                long outputBytes, long dataOffsetBytes, boolean extraModified) {
             this.outputBytes = outputBytes;
             this.dataOffsetBytes = dataOffsetBytes;
+            this.extraModified = extraModified;
+        }
+    }
+
+    /**
+     * Outputs regions of a data source into a sink, outputting runs of consecutive regions with a
+     * single feed, so that a run can be transferred between files at once. {@link #flush()} must
+     * be invoked before anything else is output into the sink.
+     */
+    private static class CoalescingDataCopier {
+        private final DataSource mSource;
+        private final DataSink mSink;
+        private long mPendingOffset;
+        private long mPendingSize;
+
+        public CoalescingDataCopier(DataSource source, DataSink sink) {
+            mSource = source;
+            mSink = sink;
+        }
+
+        public DataSource getSource() {
+            return mSource;
+        }
+
+        public DataSink getSink() {
+            return mSink;
+        }
+
+        /**
+         * Outputs the specified region of the source, once the regions which precede it are
+         * output.
+         */
+        public void copy(long offset, long size) throws IOException {
+            if (mPendingSize > 0 && mPendingOffset + mPendingSize == offset) {
+                mPendingSize += size;
+                return;
+            }
+            flush();
+            mPendingOffset = offset;
+            mPendingSize = size;
+        }
+
+        /** Outputs the regions which are not output yet. */
+        public void flush() throws IOException {
+            if (mPendingSize > 0) {
+                mSource.feed(mPendingOffset, mPendingSize, mSink);
+                mPendingSize = 0;
+            }
         }
     }
 
     private OutputSizeAndDataOffset outputInputJarEntryLfhRecord(
-            DataSource inputLfhSection,
             LocalFileRecord inputRecord,
-            DataSink outputLfhSection,
+            CoalescingDataCopier output,
             long outputOffset)
             throws IOException {
+        ByteBuffer aligningExtra = getExtraFieldToAlignData(inputRecord, outputOffset);
+        if (aligningExtra == null) {
+            output.copy(inputRecord.getStartOffsetInArchive(), inputRecord.getSize());
+            return new OutputSizeAndDataOffset(
+                    inputRecord.getSize(), inputRecord.getDataStartOffsetInRecord());
+        }
+        long dataOffset =
+                (long) inputRecord.getDataStartOffsetInRecord()
+                        + aligningExtra.remaining()
+                        - inputRecord.getExtra().remaining();
+        output.flush();
+        return new OutputSizeAndDataOffset(
+                inputRecord.outputRecordWithModifiedExtra(
+                        output.getSource(), aligningExtra, output.getSink()),
+                dataOffset,
+                !aligningExtra.equals(inputRecord.getExtra()));
+    }
+
+    /**
+     * Returns the extra field with which the provided input record must be output at the provided
+     * offset for its data to be aligned as required, or {@code null} if the record is output as
+     * is.
+     */
+    private ByteBuffer getExtraFieldToAlignData(LocalFileRecord inputRecord, long outputOffset) {
         long inputOffset = inputRecord.getStartOffsetInArchive();
         if (inputOffset == outputOffset && mAlignmentPreserved) {
             // This record's data will be aligned same as in the input APK.
-            return new OutputSizeAndDataOffset(
-                    inputRecord.outputRecord(inputLfhSection, outputLfhSection),
-                    inputRecord.getDataStartOffsetInRecord());
+            return null;
         }
         int dataAlignmentMultiple = getInputJarEntryDataAlignmentMultiple(inputRecord);
         if ((dataAlignmentMultiple <= 1)
                 || ((inputOffset % dataAlignmentMultiple) == (outputOffset % dataAlignmentMultiple)
                         && mAlignmentPreserved)) {
             // This record's data will be aligned same as in the input APK.
-            return new OutputSizeAndDataOffset(
-                    inputRecord.outputRecord(inputLfhSection, outputLfhSection),
-                    inputRecord.getDataStartOffsetInRecord());
+            return null;
         }
 
         long inputDataStartOffset = inputOffset + inputRecord.getDataStartOffsetInRecord();
         if ((inputDataStartOffset % dataAlignmentMultiple) != 0 && mAlignmentPreserved) {
             // This record's data is not aligned in the input APK. No need to align it in the
             // output.
-            return new OutputSizeAndDataOffset(
-                    inputRecord.outputRecord(inputLfhSection, outputLfhSection),
-                    inputRecord.getDataStartOffsetInRecord());
+            return null;
         }
 
         // This record's data needs to be re-aligned in the output. This is achieved using the
         // record's extra field.
-        ByteBuffer aligningExtra =
-                createExtraFieldToAlignData(
-                        inputRecord.getExtra(),
-                        outputOffset + inputRecord.getExtraFieldStartOffsetInsideRecord(),
-                        dataAlignmentMultiple);
-        long dataOffset =
-                (long) inputRecord.getDataStartOffsetInRecord()
-                        + aligningExtra.remaining()
-                        - inputRecord.getExtra().remaining();
-        return new OutputSizeAndDataOffset(
-                inputRecord.outputRecordWithModifiedExtra(
-                        inputLfhSection, aligningExtra, outputLfhSection),
-                dataOffset);
+        return createExtraFieldToAlignData(
+                inputRecord.getExtra(),
+                outputOffset + inputRecord.getExtraFieldStartOffsetInsideRecord(),
+                dataAlignmentMultiple);
+    }
+
+    /**
+     * Returns whether the ZIP entries section of the input APK is output unchanged by the
+     * provided signer engine. This is the case if the engine outputs each input entry and no
+     * other entries, and if the data of each entry is already aligned as required.
+     */
+    private boolean isInputZipEntriesSectionOutputUnchanged(
+            DefaultApkSignerEngine signerEngine,
+            CentralDirectoryIndex inputCdIndex,
+            DataSource inputApkLfhSection)
+            throws IOException, ApkFormatException {
+        if (mV1SigningEnabled || signerEngine.isEligibleForSourceStamp()) {
+            return false;
+        }
+        for (int inputCdRecordIndex : inputCdIndex.getRecordsByLocalFileHeaderOffset()) {
+            String entryName = inputCdIndex.getName(inputCdRecordIndex);
+            if (Hints.PIN_BYTE_RANGE_ZIP_ENTRY_NAME.equals(entryName)
+                    || SOURCE_STAMP_CERTIFICATE_HASH_ZIP_ENTRY_NAME.equals(entryName)) {
+                // These entries are not output, but their data is left in the ZIP entries
+                // section, see Step 5.
+                continue;
+            }
+            if (signerEngine.getInputJarEntryOutputPolicy(entryName)
+                    != ApkSignerEngine.InputJarEntryInstructions.OutputPolicy.OUTPUT) {
+                return false;
+            }
+            LocalFileRecord inputLocalFileRecord;
+            try {
+                inputLocalFileRecord =
+                        LocalFileRecord.getRecord(
+                                inputApkLfhSection,
+                                inputCdIndex.getRecord(inputCdRecordIndex),
+                                inputApkLfhSection.size());
+            } catch (ZipFormatException e) {
+                throw new ApkFormatException("Malformed ZIP entry: " + entryName, e);
+            }
+            ByteBuffer aligningExtra =
+                    getExtraFieldToAlignData(
+                            inputLocalFileRecord, inputLocalFileRecord.getStartOffsetInArchive());
+            if (aligningExtra != null && !aligningExtra.equals(inputLocalFileRecord.getExtra())) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private int getInputJarEntryDataAlignmentMultiple(LocalFileRecord entry) {
@@ -850,6 +1353,7 @@ public class ApkSigner {
         // In the worst case scenario, we'll increase the output size by 6 + dataAlignment - 1.
         ByteBuffer result = ByteBuffer.allocate(original.remaining() + 5 + dataAlignmentMultiple);
         result.order(ByteOrder.LITTLE_ENDIAN);
+        original.order(ByteOrder.LITTLE_ENDIAN);
 
         // Step 1. Output all extra fields other than the one which is to do with alignment
         // FORMAT: sequence of fields. Each field consists of:
@@ -915,31 +1419,19 @@ public class ApkSigner {
         return cd;
     }
 
-    private static List<CentralDirectoryRecord> parseZipCentralDirectory(
+    private static CentralDirectoryIndex parseZipCentralDirectory(
             ByteBuffer cd, ApkUtils.ZipSections apkSections) throws ApkFormatException {
         long cdOffset = apkSections.getZipCentralDirectoryOffset();
-        int expectedCdRecordCount = apkSections.getZipCentralDirectoryRecordCount();
-        List<CentralDirectoryRecord> cdRecords = new ArrayList<>(expectedCdRecordCount);
-        Set<String> entryNames = new HashSet<>(expectedCdRecordCount);
-        for (int i = 0; i < expectedCdRecordCount; i++) {
-            CentralDirectoryRecord cdRecord;
-            int offsetInsideCd = cd.position();
-            try {
-                cdRecord = CentralDirectoryRecord.getRecord(cd);
-            } catch (ZipFormatException e) {
-                throw new ApkFormatException(
-                        "Malformed ZIP Central Directory record #"
-                                + (i + 1)
-                                + " at file offset "
-                                + (cdOffset + offsetInsideCd),
-                        e);
-            }
-            String entryName = cdRecord.getName();
+        CentralDirectoryIndex cdIndex =
+                CentralDirectoryIndex.create(
+                        cd, cdOffset, apkSections.getZipCentralDirectoryRecordCount());
+        Set<String> entryNames = new HashSet<>(cdIndex.getRecordCount());
+        for (int i = 0; i < cdIndex.getRecordCount(); i++) {
+            String entryName = cdIndex.getName(i);
             if (!entryNames.add(entryName)) {
                 throw new ApkFormatException(
                         "Multiple ZIP entries with the same name: " + entryName);
             }
-            cdRecords.add(cdRecord);
         }
         if (cd.hasRemaining()) {
             throw new ApkFormatException(
@@ -949,7 +1441,7 @@ public class ApkSigner {
                             + (cdOffset + cd.position()));
         }
 
-        return cdRecords;
+        return cdIndex;
     }
 
     private static CentralDirectoryRecord findCdRecord(
@@ -962,6 +1454,12 @@ public class ApkSigner {
         return null;
     }
 
+    private static CentralDirectoryRecord findCdRecord(
+            CentralDirectoryIndex cdIndex, String name) {
+        int index = cdIndex.findRecord(name);
+        return (index != -1) ? cdIndex.getRecord(index) : null;
+    }
+
     /**
      * Returns the contents of the APK's {@code AndroidManifest.xml} or {@code null} if this entry
      * is not present in the APK.
@@ -969,8 +1467,13 @@ public class ApkSigner {
     static ByteBuffer getAndroidManifestFromApk(
             List<CentralDirectoryRecord> cdRecords, DataSource lhfSection)
             throws IOException, ApkFormatException, ZipFormatException {
-        CentralDirectoryRecord androidManifestCdRecord =
-                findCdRecord(cdRecords, ANDROID_MANIFEST_ZIP_ENTRY_NAME);
+        return getAndroidManifestFromApk(
+                findCdRecord(cdRecords, ANDROID_MANIFEST_ZIP_ENTRY_NAME), lhfSection);
+    }
+
+    private static ByteBuffer getAndroidManifestFromApk(
+            CentralDirectoryRecord androidManifestCdRecord, DataSource lhfSection)
+            throws IOException, ApkFormatException, ZipFormatException {
         if (androidManifestCdRecord == null) {
             throw new ApkFormatException("Missing " + ANDROID_MANIFEST_ZIP_ENTRY_NAME);
         }
@@ -985,10 +1488,10 @@ public class ApkSigner {
      * {@code null}.
      */
     private static List<Hints.PatternWithRange> extractPinPatterns(
-            List<CentralDirectoryRecord> cdRecords, DataSource lhfSection)
+            CentralDirectoryIndex cdIndex, DataSource lhfSection)
             throws IOException, ApkFormatException {
         CentralDirectoryRecord pinListCdRecord =
-                findCdRecord(cdRecords, Hints.PIN_HINT_ASSET_ZIP_ENTRY_NAME);
+                findCdRecord(cdIndex, Hints.PIN_HINT_ASSET_ZIP_ENTRY_NAME);
         List<Hints.PatternWithRange> pinPatterns = null;
         if (pinListCdRecord != null) {
             pinPatterns = new ArrayList<>();
@@ -1010,11 +1513,13 @@ public class ApkSigner {
      * on the {@code android:minSdkVersion} attributes of the APK's {@code AndroidManifest.xml}.
      */
     private static int getMinSdkVersionFromApk(
-            List<CentralDirectoryRecord> cdRecords, DataSource lhfSection)
+            CentralDirectoryIndex cdIndex, DataSource lhfSection)
             throws IOException, MinSdkVersionException {
         ByteBuffer androidManifest;
         try {
-            androidManifest = getAndroidManifestFromApk(cdRecords, lhfSection);
+            androidManifest =
+                    getAndroidManifestFromApk(
+                            findCdRecord(cdIndex, ANDROID_MANIFEST_ZIP_ENTRY_NAME), lhfSection);
         } catch (ZipFormatException | ApkFormatException e) {
             throw new MinSdkVersionException(
                     "Failed to determine APK's minimum supported Android platform version", e);
@@ -1279,6 +1784,12 @@ public class ApkSigner {
         private boolean mAlignmentPreserved = false;
         private int mLibraryPageAlignmentBytes = LIBRARY_PAGE_ALIGNMENT_BYTES;
         private String mCreatedBy;
+        private RunnablesExecutor mExecutor;
+        private File mJarEntryDigestsCacheFile;
+        private List<ApkFanOutSigner.Output> mFanOutOutputs = Collections.emptyList();
+        private boolean mInputContentDigestsReused = false;
+        private boolean mInputContentDigestsIntegrityVerified = true;
+        private boolean mInPlaceSigningEnabled = false;
         private Integer mMinSdkVersion;
         private int mRotationMinSdkVersion = V3SchemeConstants.DEFAULT_ROTATION_MIN_SDK_VERSION;
         private boolean mRotationTargetsDevRelease = false;
@@ -1743,6 +2254,143 @@ public class ApkSigner {
             return this;
         }
 
+        /**
+         * Sets the executor used to compute the content digests of the APK Signature Scheme v2 and
+         * v3 signatures and, if the input APK is provided as a {@link File}, the digests of the JAR
+         * entries covered by the v1 signature. The JAR entries of an input APK provided as a
+         * {@link DataSource} are digested sequentially, as the data source is not required to
+         * support concurrent reads. By default, the process-wide thread pool of
+         * {@link RunnablesExecutor#MULTI_THREADED} is used.
+         *
+         * <p><em>Note:</em> This method may only be invoked when this builder is not initialized
+         * with an {@link ApkSignerEngine}.
+         *
+         * @throws IllegalStateException if this builder was initialized with an {@link
+         *     ApkSignerEngine}
+         */
+        public Builder setRunnablesExecutor(RunnablesExecutor executor) {
+            checkInitializedWithoutEngine();
+            if (executor == null) {
+                throw new NullPointerException("executor == null");
+            }
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the file in which the digests of the JAR entries covered by the v1 signature are
+         * persisted, so that re-signing an APK only inflates and digests the entries which changed
+         * since it was last signed using the same file. By default, no digests are persisted.
+         *
+         * <p>An entry is considered unchanged if its name, CRC-32, compressed size and
+         * uncompressed size, as recorded in its Local File Header, are unchanged. Entries which
+         * record these in a Data Descriptor instead are always digested. As CRC-32 is not a
+         * cryptographic hash, this must only be used for APKs built from trusted sources, and the
+         * file must only be writable by trusted users. Only the digests of the most recently
+         * signed APK are kept in the file.
+         *
+         * <p><em>Note:</em> This method may only be invoked when this builder is not initialized
+         * with an {@link ApkSignerEngine}.
+         *
+         * @throws IllegalStateException if this builder was initialized with an {@link
+         *     ApkSignerEngine}
+         */
+        public Builder setJarEntryDigestsCacheFile(File file) {
+            checkInitializedWithoutEngine();
+            mJarEntryDigestsCacheFile = file;
+            return this;
+        }
+
+        /**
+         * Sets the outputs into which the input APK is also signed, each with its own signers,
+         * sharing the ZIP entries section of the output APK and its content digests. The output
+         * APK must be a file and v1 signing must be disabled.
+         *
+         * @see ApkFanOutSigner
+         */
+        Builder setFanOutOutputs(List<ApkFanOutSigner.Output> fanOutOutputs) {
+            checkInitializedWithoutEngine();
+            mFanOutOutputs = new ArrayList<>(fanOutOutputs);
+            return this;
+        }
+
+        /**
+         * Sets whether the content digests recorded by the APK Signature Scheme v2 and v3
+         * signatures of the input APK are reused for the output APK instead of digesting it, when
+         * its ZIP entries, ZIP Central Directory and ZIP End of Central Directory are the same as
+         * the input APK's. This is the case when an APK signed with v1 signing disabled is
+         * re-signed, for example to rotate its signing key, without changing its entries or their
+         * alignment. The digests are not reused when a SourceStamp signature is being added, since
+         * the {@code stamp-cert-sha256} entry then changes the output APK's entries. By default,
+         * the output APK is always digested.
+         *
+         * <p>The digests are only reused once the signatures of the input APK over them are
+         * verified and, unless disabled using {@link #setInputContentDigestsIntegrityVerified},
+         * once the input APK is verified to match them. Otherwise, the output APK is digested.
+         * v1 signing must be disabled.
+         *
+         * <p><em>Note:</em> This method may only be invoked when this builder is not initialized
+         * with an {@link ApkSignerEngine}.
+         *
+         * @throws IllegalStateException if this builder was initialized with an {@link
+         *     ApkSignerEngine}
+         */
+        public Builder setInputContentDigestsReused(boolean reused) {
+            checkInitializedWithoutEngine();
+            mInputContentDigestsReused = reused;
+            return this;
+        }
+
+        /**
+         * Sets whether the input APK is verified to match the content digests recorded by its
+         * signatures before they are reused, see {@link #setInputContentDigestsReused(boolean)};
+         * the default for this setting is {@code true}. Verifying the digests costs as much as
+         * digesting the output APK. It may thus only be skipped to avoid digesting altogether
+         * when the input APK was verified since it was last modified, as an input APK whose
+         * contents do not match its signatures would otherwise be signed as is.
+         *
+         * <p><em>Note:</em> This method may only be invoked when this builder is not initialized
+         * with an {@link ApkSignerEngine}.
+         *
+         * @throws IllegalStateException if this builder was initialized with an {@link
+         *     ApkSignerEngine}
+         */
+        public Builder setInputContentDigestsIntegrityVerified(boolean integrityVerified) {
+            checkInitializedWithoutEngine();
+            mInputContentDigestsIntegrityVerified = integrityVerified;
+            return this;
+        }
+
+        /**
+         * Sets whether the ZIP entries of the input APK are left as they are, instead of being
+         * rewritten, if none of them needs to be modified; the default for this setting is
+         * {@code false}. This is the case when v1 signing is disabled, no SourceStamp certificate
+         * digest or pinlist entry is added, and the data of the entries is already aligned.
+         *
+         * <p>If the output APK is the same file as the input APK, the APK is then signed in place:
+         * only the APK Signing Block, ZIP Central Directory and ZIP End of Central Directory are
+         * written after the ZIP entries, and the rest of the file is truncated. {@link
+         * ApkSigner#sign()} then fails with an {@link IllegalStateException} if an entry needs to
+         * be modified. The APK is signed before anything is written to it, so that it is left as
+         * it is if signing fails. If the output APK is a different file, the ZIP
+         * entries are copied from the input APK file without passing through the Java heap.
+         * Either way, the ZIP entries are not digested as they are output, so that the output APK
+         * is read to be digested unless {@link #setInputContentDigestsReused(boolean)} is used.
+         *
+         * <p>This setting only applies when the input and output APKs are files.
+         *
+         * <p><em>Note:</em> This method may only be invoked when this builder is not initialized
+         * with an {@link ApkSignerEngine}.
+         *
+         * @throws IllegalStateException if this builder was initialized with an {@link
+         *     ApkSignerEngine}
+         */
+        public Builder setInPlaceSigningEnabled(boolean enabled) {
+            checkInitializedWithoutEngine();
+            mInPlaceSigningEnabled = enabled;
+            return this;
+        }
+
         private void checkInitializedWithoutEngine() {
             if (mSignerEngine != null) {
                 throw new IllegalStateException(
@@ -1815,6 +2463,17 @@ public class ApkSigner {
                 }
             }
 
+            if (!mFanOutOutputs.isEmpty() && mV1SigningEnabled) {
+                throw new IllegalStateException(
+                        "Fan-out signing requires v1 signing to be disabled");
+            }
+
+            if (mInputContentDigestsReused && mV1SigningEnabled) {
+                throw new IllegalStateException(
+                        "Reusing the input APK's content digests requires v1 signing to be"
+                                + " disabled");
+            }
+
             // TODO - if v3 signing is enabled, check provided signers and history to see if valid
 
             return new ApkSigner(
@@ -1838,6 +2497,12 @@ public class ApkSigner {
                     mAlignmentPreserved,
                     mLibraryPageAlignmentBytes,
                     mCreatedBy,
+                    mExecutor,
+                    mJarEntryDigestsCacheFile,
+                    mFanOutOutputs,
+                    mInputContentDigestsReused,
+                    mInputContentDigestsIntegrityVerified,
+                    mInPlaceSigningEnabled,
                     mSignerEngine,
                     mInputApkFile,
                     mInputApkDataSource,
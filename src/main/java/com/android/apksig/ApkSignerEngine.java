@@ -262,6 +262,27 @@ public interface ApkSignerEngine extends Closeable {
             throws IOException, ApkFormatException, NoSuchAlgorithmException,
             InvalidKeyException, SignatureException, IllegalStateException;
 
+    /**
+     * Returns a sink into which the client may feed the data of the output APK's ZIP entries
+     * section (see {@code zipEntries} of {@link #outputZipSections2(DataSource, DataSource,
+     * DataSource) outputZipSections2}) while outputting it, or {@code null} if this engine does not
+     * support digesting the section while it's being output.
+     *
+     * <p>If all the data of the section is fed, in order, into the returned sink before
+     * {@code outputZipSections2} is invoked, the engine may compute the content digests of the
+     * section without reading it back from {@code zipEntries}. Each invocation of this method
+     * discards the data fed into the sink returned by the previous invocation.
+     *
+     * @throws InvalidKeyException if a signing key is not suitable for computing the digests
+     * @throws NoSuchAlgorithmException if a required cryptographic algorithm implementation is
+     *         missing
+     * @throws IllegalStateException if this engine is closed
+     */
+    default DataSink getZipEntriesDigestingSink()
+            throws InvalidKeyException, NoSuchAlgorithmException, IllegalStateException {
+        return null;
+    }
+
     /**
      * Indicates to this engine that the ZIP sections comprising the output APK have been output.
      *
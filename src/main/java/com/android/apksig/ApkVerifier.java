@@ -34,11 +34,13 @@ import com.android.apksig.ApkVerifier.Result.V2SchemeSignerInfo;
 import com.android.apksig.ApkVerifier.Result.V3SchemeSignerInfo;
 import com.android.apksig.SigningCertificateLineage.SignerConfig;
 import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.apk.ApkSigningBlockNotFoundException;
 import com.android.apksig.apk.ApkUtils;
 import com.android.apksig.internal.apk.ApkSigResult;
 import com.android.apksig.internal.apk.ApkSignerInfo;
 import com.android.apksig.internal.apk.ApkSigningBlockUtils;
 import com.android.apksig.internal.apk.ApkSigningBlockUtils.Result.SignerInfo.ContentDigest;
+import com.android.apksig.internal.apk.ChunkDigestsSidecarCache;
 import com.android.apksig.internal.apk.ContentDigestAlgorithm;
 import com.android.apksig.internal.apk.SignatureAlgorithm;
 import com.android.apksig.internal.apk.SignatureInfo;
@@ -64,6 +66,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
@@ -115,17 +118,24 @@ public class ApkVerifier {
     private final Integer mMinSdkVersion;
     private final int mMaxSdkVersion;
 
+    private final RunnablesExecutor mExecutor;
+    private final File mChunkDigestsCacheDirectory;
+
     private ApkVerifier(
             File apkFile,
             DataSource apkDataSource,
             File v4SignatureFile,
             Integer minSdkVersion,
-            int maxSdkVersion) {
+            int maxSdkVersion,
+            RunnablesExecutor executor,
+            File chunkDigestsCacheDirectory) {
         mApkFile = apkFile;
         mApkDataSource = apkDataSource;
         mV4SignatureFile = v4SignatureFile;
         mMinSdkVersion = minSdkVersion;
         mMaxSdkVersion = maxSdkVersion;
+        mExecutor = executor;
+        mChunkDigestsCacheDirectory = chunkDigestsCacheDirectory;
     }
 
     /**
@@ -169,6 +179,26 @@ public class ApkVerifier {
         }
     }
 
+    /**
+     * Returns the cache of the digests of chunks of the APK file persisted in the configured
+     * directory, or {@code null} if no digests are to be persisted.
+     */
+    private ApkSigningBlockUtils.ChunkDigestsCache createChunkDigestsCache(
+            DataSource apk, ApkUtils.ZipSections zipSections) throws NoSuchAlgorithmException {
+        if (mChunkDigestsCacheDirectory == null || mApkFile == null) {
+            return null;
+        }
+        try {
+            ApkUtils.ApkSigningBlock apkSigningBlock =
+                    ApkUtils.findApkSigningBlock(apk, zipSections);
+            return ChunkDigestsSidecarCache.forDirectory(
+                    mChunkDigestsCacheDirectory, mApkFile, apkSigningBlock.getContents());
+        } catch (ApkSigningBlockNotFoundException | IOException e) {
+            // Nothing to cache, or the cache is not usable: digest all chunks.
+            return null;
+        }
+    }
+
     /**
      * Verifies the APK's signatures and returns the result of verification. The APK can be
      * considered verified iff the result's {@link Result#isVerified()} returns {@code true}.
@@ -215,7 +245,9 @@ public class ApkVerifier {
         // verification. If the signature is found but does not verify, the APK is rejected.
         Set<Integer> foundApkSigSchemeIds = new HashSet<>(2);
         if (maxSdkVersion >= AndroidSdkVersion.N) {
-            RunnablesExecutor executor = RunnablesExecutor.SINGLE_THREADED;
+            RunnablesExecutor executor = mExecutor;
+            ApkSigningBlockUtils.ChunkDigestsCache chunkDigestsCache =
+                    createChunkDigestsCache(apk, zipSections);
             // Android T and newer attempts to verify APKs using APK Signature Scheme V3.1. v3.0
             // also includes stripping protection for the minimum SDK version on which the rotated
             // signing key should be used.
@@ -226,6 +258,7 @@ public class ApkVerifier {
                             zipSections, Math.max(minSdkVersion, MIN_SDK_WITH_V31_SUPPORT),
                             maxSdkVersion)
                             .setRunnablesExecutor(executor)
+                            .setChunkDigestsCache(chunkDigestsCache)
                             .setBlockId(V3SchemeConstants.APK_SIGNATURE_SCHEME_V31_BLOCK_ID)
                             .build()
                             .verify();
@@ -252,6 +285,7 @@ public class ApkVerifier {
                             zipSections, Math.max(minSdkVersion, AndroidSdkVersion.P),
                             maxSdkVersion)
                             .setRunnablesExecutor(executor)
+                            .setChunkDigestsCache(chunkDigestsCache)
                             .setBlockId(V3SchemeConstants.APK_SIGNATURE_SCHEME_V3_BLOCK_ID);
                     if (rotationMinSdkVersion > 0) {
                         builder.setRotationMinSdkVersion(rotationMinSdkVersion);
@@ -290,7 +324,8 @@ public class ApkVerifier {
                                     supportedSchemeNames,
                                     foundApkSigSchemeIds,
                                     Math.max(minSdkVersion, AndroidSdkVersion.N),
-                                    maxSdkVersion);
+                                    maxSdkVersion,
+                                    chunkDigestsCache);
                     foundApkSigSchemeIds.add(ApkSigningBlockUtils.VERSION_APK_SIGNATURE_SCHEME_V2);
                     result.mergeFrom(v2Result);
                     signatureSchemeApkContentDigests.put(
@@ -1142,6 +1177,96 @@ public class ApkVerifier {
         return result;
     }
 
+    /**
+     * Returns the content digests recorded by the APK Signature Scheme v2, v3 and v3.1 signers of
+     * the provided APK, once the signatures of the signers over them are verified, or
+     * {@code null} if the APK has no such signers, if any of their signatures does not verify or
+     * if they record different digests for the same content digest algorithm.
+     *
+     * <p>If {@code integrityVerified} is {@code true}, {@code null} is also returned if the
+     * recorded digests do not match the APK's contents, which are digested once for all signers.
+     * Otherwise, the recorded digests are trusted to match the APK's contents.
+     */
+    static Map<ContentDigestAlgorithm, byte[]> getVerifiedApkContentDigests(
+            RunnablesExecutor executor,
+            DataSource apk,
+            ApkUtils.ZipSections zipSections,
+            boolean integrityVerified)
+            throws IOException, NoSuchAlgorithmException {
+        Map<Integer, Map<ContentDigestAlgorithm, byte[]>> sigSchemeApkContentDigests =
+                new HashMap<>();
+        Map<Integer, String> supportedSchemeNames = getSupportedSchemeNames(Integer.MAX_VALUE);
+        Set<Integer> foundApkSigSchemeIds = new HashSet<>(3);
+        Map<ContentDigestAlgorithm, byte[]> apkContentDigests =
+                new EnumMap<>(ContentDigestAlgorithm.class);
+        // The v3.1 and v3 signatures are parsed first so that the stripping protection of the v2
+        // signature finds them.
+        int[] apkSigSchemeVersions = {
+            VERSION_APK_SIGNATURE_SCHEME_V31,
+            VERSION_APK_SIGNATURE_SCHEME_V3,
+            VERSION_APK_SIGNATURE_SCHEME_V2
+        };
+        for (int apkSigSchemeVersion : apkSigSchemeVersions) {
+            ApkSigningBlockUtils.Result result = getApkContentDigests(apk, zipSections,
+                    foundApkSigSchemeIds, supportedSchemeNames, sigSchemeApkContentDigests,
+                    apkSigSchemeVersion, AndroidSdkVersion.N, Integer.MAX_VALUE);
+            if (result == null) {
+                continue;
+            }
+            if (result.containsErrors() || result.signers.isEmpty()) {
+                return null;
+            }
+            for (ApkSigningBlockUtils.Result.SignerInfo signerInfo : result.signers) {
+                for (ContentDigest contentDigest : signerInfo.contentDigests) {
+                    SignatureAlgorithm signatureAlgorithm = SignatureAlgorithm.findById(
+                            contentDigest.getSignatureAlgorithmId());
+                    if (signatureAlgorithm == null) {
+                        continue;
+                    }
+                    byte[] previousDigest = apkContentDigests.put(
+                            signatureAlgorithm.getContentDigestAlgorithm(),
+                            contentDigest.getValue());
+                    if (previousDigest != null
+                            && !Arrays.equals(previousDigest, contentDigest.getValue())) {
+                        return null;
+                    }
+                }
+            }
+        }
+        if (apkContentDigests.isEmpty()) {
+            return null;
+        }
+        if (!integrityVerified) {
+            return apkContentDigests;
+        }
+
+        long apkSigningBlockOffset;
+        try {
+            apkSigningBlockOffset =
+                    ApkUtils.findApkSigningBlock(apk, zipSections).getStartOffset();
+        } catch (ApkSigningBlockNotFoundException e) {
+            return null;
+        }
+        DataSource beforeApkSigningBlock = apk.slice(0, apkSigningBlockOffset);
+        DataSource centralDir = apk.slice(zipSections.getZipCentralDirectoryOffset(),
+                zipSections.getZipCentralDirectorySizeBytes());
+        DataSource eocd = ApkSigningBlockUtils.copyWithModifiedCDOffset(beforeApkSigningBlock,
+                DataSources.asDataSource(zipSections.getZipEndOfCentralDirectory()));
+        Map<ContentDigestAlgorithm, byte[]> actualContentDigests;
+        try {
+            actualContentDigests = ApkSigningBlockUtils.computeContentDigests(executor,
+                    apkContentDigests.keySet(), beforeApkSigningBlock, centralDir, eocd);
+        } catch (DigestException | RuntimeException e) {
+            return null;
+        }
+        for (Map.Entry<ContentDigestAlgorithm, byte[]> entry : apkContentDigests.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), actualContentDigests.get(entry.getKey()))) {
+                return null;
+            }
+        }
+        return apkContentDigests;
+    }
+
     private static void checkV4Signer(List<Result.V3SchemeSignerInfo> v3Signers,
             List<X509Certificate> v4Certs, byte[] digestFromV4, Result result) {
         if (v3Signers.size() != 1) {
@@ -3475,6 +3600,9 @@ public class ApkVerifier {
         private Integer mMinSdkVersion;
         private int mMaxSdkVersion = Integer.MAX_VALUE;
 
+        private RunnablesExecutor mExecutor = RunnablesExecutor.SINGLE_THREADED;
+        private File mChunkDigestsCacheDirectory;
+
         /**
          * Constructs a new {@code Builder} for verifying the provided APK file.
          */
@@ -3536,6 +3664,37 @@ public class ApkVerifier {
             return this;
         }
 
+        /**
+         * Sets the executor used to digest the contents of the APK when verifying APK Signature
+         * Scheme v2 and v3 signatures.
+         *
+         * <p>By default, the contents are digested on the calling thread. Use
+         * {@link RunnablesExecutor#MULTI_THREADED} to share the process-wide thread pool, or a
+         * {@link com.android.apksig.util.PooledRunnablesExecutor} to use a dedicated one.
+         */
+        public Builder setRunnablesExecutor(RunnablesExecutor executor) {
+            if (executor == null) {
+                throw new NullPointerException("executor == null");
+            }
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the directory in which the digests of the 1 MB chunks of APK files verified using
+         * APK Signature Scheme v2 or v3 are persisted, so that verifying an unchanged APK file again
+         * only digests a random sample of its chunks. By default, no digests are persisted.
+         *
+         * <p>An APK file is considered unchanged if its size, last modification time, file key and
+         * APK Signing Block are unchanged. The persisted digests are trusted, so the directory must
+         * only be writable by trusted users. This setting has no effect when the APK is provided as
+         * a {@link DataSource}.
+         */
+        public Builder setChunkDigestsCacheDirectory(File directory) {
+            mChunkDigestsCacheDirectory = directory;
+            return this;
+        }
+
         /**
          * Returns an {@link ApkVerifier} initialized according to the configuration of this
          * builder.
@@ -3546,7 +3705,9 @@ public class ApkVerifier {
                     mApkDataSource,
                     mV4SignatureFile,
                     mMinSdkVersion,
-                    mMaxSdkVersion);
+                    mMaxSdkVersion,
+                    mExecutor,
+                    mChunkDigestsCacheDirectory);
         }
     }
 
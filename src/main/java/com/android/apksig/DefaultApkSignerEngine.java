@@ -21,6 +21,7 @@ import static com.android.apksig.apk.ApkUtils.computeSha256DigestBytes;
 import static com.android.apksig.internal.apk.ApkSigningBlockUtils.VERITY_PADDING_BLOCK_ID;
 import static com.android.apksig.internal.apk.ApkSigningBlockUtils.VERSION_APK_SIGNATURE_SCHEME_V2;
 import static com.android.apksig.internal.apk.ApkSigningBlockUtils.VERSION_APK_SIGNATURE_SCHEME_V3;
+import static com.android.apksig.internal.apk.ApkSigningBlockUtils.VERSION_APK_SIGNATURE_SCHEME_V31;
 import static com.android.apksig.internal.apk.ApkSigningBlockUtils.VERSION_JAR_SIGNATURE_SCHEME;
 import static com.android.apksig.internal.apk.v3.V3SchemeConstants.MIN_SDK_WITH_V31_SUPPORT;
 import static com.android.apksig.internal.apk.v3.V3SchemeConstants.MIN_SDK_WITH_V3_SUPPORT;
@@ -30,8 +31,10 @@ import com.android.apksig.apk.ApkUtils;
 import com.android.apksig.internal.apk.ApkSigningBlockUtils;
 import com.android.apksig.internal.apk.ContentDigestAlgorithm;
 import com.android.apksig.internal.apk.SignatureAlgorithm;
+import com.android.apksig.internal.apk.StreamingContentDigester;
 import com.android.apksig.internal.apk.stamp.V2SourceStampSigner;
 import com.android.apksig.internal.apk.v1.DigestAlgorithm;
+import com.android.apksig.internal.apk.v1.JarEntryDigestsCache;
 import com.android.apksig.internal.apk.v1.V1SchemeConstants;
 import com.android.apksig.internal.apk.v1.V1SchemeSigner;
 import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
@@ -44,9 +47,11 @@ import com.android.apksig.internal.jar.ManifestParser;
 import com.android.apksig.internal.util.AndroidSdkVersion;
 import com.android.apksig.internal.util.Pair;
 import com.android.apksig.internal.util.TeeDataSink;
+import com.android.apksig.internal.zip.ZipUtils;
 import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSinks;
 import com.android.apksig.util.DataSource;
+import com.android.apksig.util.MessageDigestProviders;
 import com.android.apksig.util.RunnablesExecutor;
 
 import java.io.ByteArrayOutputStream;
@@ -54,6 +59,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.DigestException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -78,6 +85,10 @@ import java.util.Set;
  * Default implementation of {@link ApkSignerEngine}.
  *
  * <p>Use {@link Builder} to obtain instances of this engine.
+ *
+ * <p>The {@link InspectJarEntryRequest}s returned by this engine may be fulfilled concurrently,
+ * each on a different thread, as long as all of them are done before the next call which needs
+ * their results, such as {@link #outputJarEntries()}.
  */
 public class DefaultApkSignerEngine implements ApkSignerEngine {
 
@@ -100,6 +111,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
     private final boolean mV2SigningEnabled;
     private final boolean mV3SigningEnabled;
     private final boolean mVerityEnabled;
+    private final boolean mV4SigningEnabled;
     private final boolean mDebuggableApkPermitted;
     private final boolean mOtherSignersSignaturesPreserved;
     private final String mCreatedBy;
@@ -170,6 +182,60 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
 
     private RunnablesExecutor mExecutor = RunnablesExecutor.MULTI_THREADED;
 
+    /**
+     * Persistent cache of the digests of output JAR entries covered by the v1 signature, or
+     * {@code null} if every such entry is inspected.
+     */
+    private JarEntryDigestsCache mJarEntryDigestsCache;
+
+    /**
+     * Digests of the 1 MB chunks of the most recently digested output APK contents. These are
+     * reused when the APK Signing Block is regenerated for mostly unchanged contents, for example
+     * when only the ZIP End of Central Directory record has been modified.
+     */
+    private final ApkSigningBlockUtils.ChunkDigestsCache mChunkDigestsCache =
+            new ApkSigningBlockUtils.ChunkDigestsCache();
+
+    /**
+     * Whether the ZIP sections provided to {@code outputZipSections} are known not to be modified
+     * between invocations while their size does not change.
+     */
+    private boolean mZipSectionsUnmodifiedWhileSizeUnchanged;
+
+    /**
+     * ZIP entries section provided to the most recent {@code outputZipSections} invocation, its
+     * size and the corresponding padded section which was digested, or {@code null} if the ZIP
+     * entries section has changed since.
+     */
+    private DataSource mDigestedZipEntries;
+    private long mDigestedZipEntriesSize;
+    private boolean mDigestedZipEntriesPadded;
+    private Pair<DataSource, Integer> mDigestedBeforeCentralDir;
+
+    /**
+     * Digester of the output APK's ZIP entries section fed by the client while outputting the
+     * section, or {@code null} if the client does not digest the section while outputting it.
+     */
+    private StreamingContentDigester mZipEntriesDigester;
+
+    /**
+     * Content digests recorded in the input APK's APK Signing Block, which are reused for the
+     * output APK if its ZIP sections are the same as the input APK's, and the input APK's ZIP
+     * entries section size, ZIP Central Directory and ZIP End of Central Directory over which they
+     * were computed, or {@code null} if the input APK's content digests are not reused.
+     */
+    private Map<ContentDigestAlgorithm, byte[]> mInputContentDigests;
+    private long mInputZipEntriesSize;
+    private ByteBuffer mInputZipCentralDirectory;
+    private ByteBuffer mInputZipEocd;
+
+    /**
+     * Content digests and verity tree leaves of the output APK computed while generating the most
+     * recent APK Signing Block which are reused by APK Signature Scheme v4 signing, or
+     * {@code null} if they are not available.
+     */
+    private V4SigningInputs mV4SigningInputs;
+
     /**
      * A Set of block IDs to be discarded when requesting to preserve the original signatures.
      */
@@ -196,6 +262,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             boolean v2SigningEnabled,
             boolean v3SigningEnabled,
             boolean verityEnabled,
+            boolean v4SigningEnabled,
             boolean debuggableApkPermitted,
             boolean otherSignersSignaturesPreserved,
             String createdBy,
@@ -209,6 +276,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         mV2SigningEnabled = v2SigningEnabled;
         mV3SigningEnabled = v3SigningEnabled;
         mVerityEnabled = verityEnabled;
+        mV4SigningEnabled = v4SigningEnabled;
         mV1SignaturePending = v1SigningEnabled;
         mV2SignaturePending = v2SigningEnabled;
         mV3SignaturePending = v3SigningEnabled;
@@ -638,6 +706,46 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         mExecutor = executor;
     }
 
+    /**
+     * Sets the cache in which the digests of output JAR entries covered by the v1 signature are
+     * looked up by {@link #outputJarEntry(String, long, long, long)} and recorded once computed.
+     */
+    void setJarEntryDigestsCache(JarEntryDigestsCache cache) {
+        mJarEntryDigestsCache = cache;
+    }
+
+    /**
+     * Sets whether the {@link DataSource} instances provided to {@link #outputZipSections2} are
+     * known not to be modified between invocations while their size does not change. If they are,
+     * the digests of the chunks of the same ZIP entries instance are reused when the APK Signing
+     * Block is regenerated. This is the case for {@link ApkSigner}, which invalidates the
+     * digested ZIP entries whenever it modifies them. By default, only the digests of the chunks
+     * of the ZIP Central Directory and ZIP End of Central Directory found unchanged are reused.
+     */
+    void setZipSectionsUnmodifiedWhileSizeUnchanged(boolean unmodified) {
+        mZipSectionsUnmodifiedWhileSizeUnchanged = unmodified;
+        mChunkDigestsCache.setSameInstancesUnmodified(unmodified);
+    }
+
+    /**
+     * Sets the content digests recorded in the input APK's APK Signing Block, which are reused
+     * instead of digesting the output APK if the output APK's ZIP Central Directory and ZIP End of
+     * Central Directory are the same as the provided ones of the input APK, apart from the offset
+     * of the Central Directory. The caller guarantees that the ZIP entries section of the output
+     * APK is the same as the {@code zipEntriesSize} bytes of the input APK preceding its APK
+     * Signing Block. The digests are no longer reused once output entries are modified.
+     */
+    void setInputContentDigests(
+            Map<ContentDigestAlgorithm, byte[]> contentDigests,
+            long zipEntriesSize,
+            ByteBuffer zipCentralDirectory,
+            ByteBuffer zipEocd) {
+        mInputContentDigests = contentDigests;
+        mInputZipEntriesSize = zipEntriesSize;
+        mInputZipCentralDirectory = zipCentralDirectory.slice();
+        mInputZipEocd = zipEocd.slice();
+    }
+
     @Override
     public void inputApkSigningBlock(DataSource apkSigningBlock) {
         checkNotClosed();
@@ -764,8 +872,38 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
 
     @Override
     public InspectJarEntryRequest outputJarEntry(String entryName) {
+        return outputJarEntry(entryName, null);
+    }
+
+    /**
+     * Indicates to this engine that the specified JAR entry was output, with the provided CRC-32
+     * and sizes recorded in its Local File Header. If the digest of the entry's data needed for
+     * the v1 signature is found in this engine's {@link JarEntryDigestsCache}, the data is not
+     * inspected.
+     *
+     * @see #outputJarEntry(String)
+     */
+    InspectJarEntryRequest outputJarEntry(
+            String entryName, long crc32, long compressedSize, long uncompressedSize) {
+        JarEntryDigestsCache.Key digestsCacheKey = null;
+        if (mJarEntryDigestsCache != null && mV1ContentDigestAlgorithm != null) {
+            digestsCacheKey =
+                    new JarEntryDigestsCache.Key(
+                            entryName,
+                            crc32,
+                            compressedSize,
+                            uncompressedSize,
+                            V1SchemeSigner.getJcaMessageDigestAlgorithm(
+                                    mV1ContentDigestAlgorithm));
+        }
+        return outputJarEntry(entryName, digestsCacheKey);
+    }
+
+    private InspectJarEntryRequest outputJarEntry(
+            String entryName, JarEntryDigestsCache.Key digestsCacheKey) {
         checkNotClosed();
         invalidateV2Signature();
+        invalidateDigestedZipEntries();
 
         if (!isDebuggable(entryName)) {
             forgetOutputApkDebuggableStatus();
@@ -794,20 +932,31 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             GetJarEntryDataDigestRequest dataDigestRequest =
                     new GetJarEntryDataDigestRequest(
                             entryName,
-                            V1SchemeSigner.getJcaMessageDigestAlgorithm(mV1ContentDigestAlgorithm));
+                            V1SchemeSigner.getJcaMessageDigestAlgorithm(mV1ContentDigestAlgorithm),
+                            (digestsCacheKey != null) ? mJarEntryDigestsCache : null,
+                            digestsCacheKey);
             mOutputJarEntryDigestRequests.put(entryName, dataDigestRequest);
             mOutputJarEntryDigests.remove(entryName);
+            if (digestsCacheKey != null) {
+                byte[] cachedDigest = mJarEntryDigestsCache.get(digestsCacheKey);
+                if (cachedDigest != null) {
+                    dataDigestRequest.setDigest(cachedDigest);
+                }
+            }
 
             if ((!mDebuggableApkPermitted)
                     && (ApkUtils.ANDROID_MANIFEST_ZIP_ENTRY_NAME.equals(entryName))) {
                 // To reject debuggable APKs we need to inspect the APK's AndroidManifest.xml to
                 // check whether it declares that the APK is debuggable
                 mOutputAndroidManifestEntryDataRequest = new GetJarEntryDataRequest(entryName);
+                if (dataDigestRequest.isDone()) {
+                    return mOutputAndroidManifestEntryDataRequest;
+                }
                 return new CompoundInspectJarEntryRequest(
                         entryName, mOutputAndroidManifestEntryDataRequest, dataDigestRequest);
             }
 
-            return dataDigestRequest;
+            return dataDigestRequest.isDone() ? null : dataDigestRequest;
         }
 
         if (mSignatureExpectedOutputJarEntryNames.contains(entryName)) {
@@ -847,6 +996,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
     public void outputJarEntryRemoved(String entryName) {
         checkNotClosed();
         invalidateV2Signature();
+        invalidateDigestedZipEntries();
         if (!mV1SigningEnabled) {
             return;
         }
@@ -1025,6 +1175,65 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         return outputZipSectionsInternal(zipEntries, zipCentralDirectory, zipEocd, true);
     }
 
+    @Override
+    public DataSink getZipEntriesDigestingSink()
+            throws InvalidKeyException, NoSuchAlgorithmException {
+        return getZipEntriesDigestingSink(Collections.emptyList());
+    }
+
+    /**
+     * Returns the sink into which the ZIP entries section of the output APK must be fed for it to
+     * be digested like by {@link #getZipEntriesDigestingSink()}, on behalf of both this engine and
+     * the provided engines. This lets engines with different signers, which output the same ZIP
+     * entries section into different APKs, digest the section once.
+     */
+    DataSink getZipEntriesDigestingSink(List<DefaultApkSignerEngine> sharingEngines)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+        List<DefaultApkSignerEngine> engines = new ArrayList<>(sharingEngines.size() + 1);
+        engines.add(this);
+        engines.addAll(sharingEngines);
+        Set<ContentDigestAlgorithm> contentDigestAlgorithms = new HashSet<>();
+        boolean v4VerityLeavesDigested = false;
+        for (DefaultApkSignerEngine engine : engines) {
+            engine.checkNotClosed();
+            engine.mZipEntriesDigester = null;
+            contentDigestAlgorithms.addAll(engine.getZipEntriesContentDigestAlgorithms());
+            v4VerityLeavesDigested |= engine.mV4SigningEnabled;
+        }
+        if (contentDigestAlgorithms.isEmpty()) {
+            return null;
+        }
+        StreamingContentDigester zipEntriesDigester =
+                new StreamingContentDigester(
+                        contentDigestAlgorithms, v4VerityLeavesDigested, mExecutor);
+        for (DefaultApkSignerEngine engine : engines) {
+            engine.mZipEntriesDigester = zipEntriesDigester;
+        }
+        return zipEntriesDigester.getDataSink();
+    }
+
+    /**
+     * Returns the content digest algorithms of the v2 and v3 signatures of this engine, or an
+     * empty set if neither is enabled.
+     */
+    private Set<ContentDigestAlgorithm> getZipEntriesContentDigestAlgorithms()
+            throws InvalidKeyException {
+        // The section is digested as if the APK Signing Block may be padded, as is the case for
+        // outputZipSections2. The digests are not used if the section is not digested fully.
+        Set<ContentDigestAlgorithm> contentDigestAlgorithms = new HashSet<>();
+        if (mV2SigningEnabled) {
+            contentDigestAlgorithms.addAll(
+                    ApkSigningBlockUtils.getContentDigestAlgorithms(createV2SignerConfigs(true)));
+        }
+        if (mV3SigningEnabled) {
+            // V3.1 signer configs are split off from the V3 signer configs, thus the digest
+            // algorithms of the V3 signer configs include those of the V3.1 signer configs.
+            contentDigestAlgorithms.addAll(
+                    ApkSigningBlockUtils.getContentDigestAlgorithms(createV3SignerConfigs(true)));
+        }
+        return contentDigestAlgorithms;
+    }
+
     private OutputApkSigningBlockRequestImpl outputZipSectionsInternal(
             DataSource zipEntries,
             DataSource zipCentralDirectory,
@@ -1037,11 +1246,11 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             return null;
         }
         checkOutputApkNotDebuggableIfDebuggableMustBeRejected();
+        mV4SigningInputs = null;
 
         // adjust to proper padding
         Pair<DataSource, Integer> paddingPair =
-                ApkSigningBlockUtils.generateApkSigningBlockPadding(
-                        zipEntries, apkSigningBlockPaddingSupported);
+                getPaddedZipEntries(zipEntries, apkSigningBlockPaddingSupported);
         DataSource beforeCentralDir = paddingPair.getFirst();
         int padSizeBeforeApkSigningBlock = paddingPair.getSecond();
         DataSource eocd = ApkSigningBlockUtils.copyWithModifiedCDOffset(beforeCentralDir, zipEocd);
@@ -1057,34 +1266,66 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             signingSchemeBlocks.addAll(mPreservedSignatureBlocks);
         }
 
-        // create APK Signature Scheme V2 Signature if requested
+        // Create the signer configs for all requested signature schemes up front so that the
+        // content digests required by any of them can be computed in a single pass over the APK.
+        List<ApkSigningBlockUtils.SignerConfig> v2SignerConfigs = null;
+        List<ApkSigningBlockUtils.SignerConfig> v3SignerConfigs = null;
+        List<ApkSigningBlockUtils.SignerConfig> v31SignerConfigs = null;
+        Set<ContentDigestAlgorithm> contentDigestAlgorithms = new HashSet<>();
         if (mV2SigningEnabled) {
             invalidateV2Signature();
-            List<ApkSigningBlockUtils.SignerConfig> v2SignerConfigs =
-                    createV2SignerConfigs(apkSigningBlockPaddingSupported);
-            v2SigningSchemeBlockAndDigests =
-                    V2SchemeSigner.generateApkSignatureSchemeV2Block(
-                            mExecutor,
+            v2SignerConfigs = createV2SignerConfigs(apkSigningBlockPaddingSupported);
+            contentDigestAlgorithms.addAll(
+                    ApkSigningBlockUtils.getContentDigestAlgorithms(v2SignerConfigs));
+        }
+        if (mV3SigningEnabled) {
+            invalidateV3Signature();
+            v3SignerConfigs = createV3SignerConfigs(apkSigningBlockPaddingSupported);
+            v31SignerConfigs = processV31SignerConfigs(v3SignerConfigs);
+            contentDigestAlgorithms.addAll(
+                    ApkSigningBlockUtils.getContentDigestAlgorithms(v3SignerConfigs));
+            if (v31SignerConfigs != null) {
+                contentDigestAlgorithms.addAll(
+                        ApkSigningBlockUtils.getContentDigestAlgorithms(v31SignerConfigs));
+            }
+        }
+        // Use the digests of the ZIP entries section computed while the section was being output,
+        // provided that all of it was digested.
+        StreamingContentDigester zipEntriesDigester =
+                (mZipEntriesDigester != null && mZipEntriesDigester.size() == zipEntries.size())
+                        ? mZipEntriesDigester
+                        : null;
+        Map<ContentDigestAlgorithm, byte[]> contentDigests =
+                getInputContentDigestsIfUnchanged(
+                        contentDigestAlgorithms, beforeCentralDir, zipCentralDirectory, eocd);
+        if (contentDigests == null) {
+            contentDigests =
+                    computeContentDigests(
+                            contentDigestAlgorithms,
                             beforeCentralDir,
                             zipCentralDirectory,
                             eocd,
+                            zipEntriesDigester);
+        }
+
+        // create APK Signature Scheme V2 Signature if requested
+        if (mV2SigningEnabled) {
+            v2SigningSchemeBlockAndDigests =
+                    V2SchemeSigner.generateApkSignatureSchemeV2Block(
+                            contentDigests,
                             v2SignerConfigs,
                             mV3SigningEnabled,
                             mOtherSignersSignaturesPreserved ? mPreservedV2Signers : null);
             signingSchemeBlocks.add(v2SigningSchemeBlockAndDigests.signingSchemeBlock);
         }
         if (mV3SigningEnabled) {
-            invalidateV3Signature();
-            List<ApkSigningBlockUtils.SignerConfig> v3SignerConfigs =
-                    createV3SignerConfigs(apkSigningBlockPaddingSupported);
-            List<ApkSigningBlockUtils.SignerConfig> v31SignerConfigs = processV31SignerConfigs(
-                    v3SignerConfigs);
             if (v31SignerConfigs != null && v31SignerConfigs.size() > 0) {
                 ApkSigningBlockUtils.SigningSchemeBlockAndDigests
                         v31SigningSchemeBlockAndDigests =
                         new V3SchemeSigner.Builder(beforeCentralDir, zipCentralDirectory, eocd,
                                 v31SignerConfigs)
                                 .setRunnablesExecutor(mExecutor)
+                                .setContentDigests(contentDigests)
                                 .setBlockId(V3SchemeConstants.APK_SIGNATURE_SCHEME_V31_BLOCK_ID)
                                 .build()
                                 .generateApkSignatureSchemeV3BlockAndDigests();
@@ -1093,6 +1334,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             V3SchemeSigner.Builder builder = new V3SchemeSigner.Builder(beforeCentralDir,
                 zipCentralDirectory, eocd, v3SignerConfigs)
                 .setRunnablesExecutor(mExecutor)
+                .setContentDigests(contentDigests)
                 .setBlockId(V3SchemeConstants.APK_SIGNATURE_SCHEME_V3_BLOCK_ID);
             if (v31SignerConfigs != null && !v31SignerConfigs.isEmpty()) {
                 // The V3.1 stripping protection writes the minimum SDK version from the targeted
@@ -1157,9 +1399,197 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
 
         mAddSigningBlockRequest =
                 new OutputApkSigningBlockRequestImpl(apkSigningBlock, padSizeBeforeApkSigningBlock);
+        mV4SigningInputs = createV4SigningInputs(
+                contentDigests,
+                v2SignerConfigs,
+                v3SignerConfigs,
+                v31SignerConfigs,
+                apkSigningBlock,
+                beforeCentralDir.size(),
+                zipCentralDirectory.size() + eocd.size(),
+                zipEntriesDigester);
         return mAddSigningBlockRequest;
     }
 
+    /**
+     * Returns the inputs of APK Signature Scheme v4 signing which are known once the APK Signing
+     * Block has been generated, or {@code null} if the v4 signer has to obtain them from the
+     * output APK.
+     */
+    private V4SigningInputs createV4SigningInputs(
+            Map<ContentDigestAlgorithm, byte[]> contentDigests,
+            List<ApkSigningBlockUtils.SignerConfig> v2SignerConfigs,
+            List<ApkSigningBlockUtils.SignerConfig> v3SignerConfigs,
+            List<ApkSigningBlockUtils.SignerConfig> v31SignerConfigs,
+            byte[] apkSigningBlock,
+            long beforeApkSigningBlockSize,
+            long afterApkSigningBlockSize,
+            StreamingContentDigester beforeCentralDirDigester)
+            throws SignatureException {
+        if (mOtherSignersSignaturesPreserved) {
+            // The signature scheme blocks may contain signers other than the ones of this engine.
+            return null;
+        }
+        Map<Integer, byte[]> apkDigests = new HashMap<>(3);
+        putBestV4ApkDigest(
+                apkDigests, VERSION_APK_SIGNATURE_SCHEME_V2, v2SignerConfigs, contentDigests);
+        putBestV4ApkDigest(
+                apkDigests, VERSION_APK_SIGNATURE_SCHEME_V3, v3SignerConfigs, contentDigests);
+        putBestV4ApkDigest(
+                apkDigests, VERSION_APK_SIGNATURE_SCHEME_V31, v31SignerConfigs, contentDigests);
+        if (apkDigests.isEmpty()) {
+            return null;
+        }
+
+        // The v4 verity tree covers the whole output APK. The digests of the blocks before the
+        // APK Signing Block can only be reused if none of them also covers the APK Signing Block.
+        ByteBuffer beforeApkSigningBlockLeafDigests = null;
+        if (beforeCentralDirDigester != null
+                && beforeCentralDirDigester.isDigestingV4VerityLeaves()
+                && beforeApkSigningBlockSize
+                        % ApkSigningBlockUtils.ANDROID_COMMON_PAGE_ALIGNMENT_BYTES == 0) {
+            int paddingSize = (int) (beforeApkSigningBlockSize - beforeCentralDirDigester.size());
+            try {
+                beforeApkSigningBlockLeafDigests =
+                        beforeCentralDirDigester.getV4VerityLeafDigests(paddingSize);
+            } catch (DigestException e) {
+                throw new SignatureException("Failed to compute digests of APK", e);
+            }
+        }
+        return new V4SigningInputs(
+                apkDigests,
+                apkSigningBlock,
+                beforeApkSigningBlockSize,
+                afterApkSigningBlockSize,
+                beforeApkSigningBlockLeafDigests);
+    }
+
+    /**
+     * Adds to {@code apkDigests} the content digest which the v4 signer picks from the signature
+     * scheme block of the provided scheme, provided that the block has a single signer.
+     */
+    private static void putBestV4ApkDigest(
+            Map<Integer, byte[]> apkDigests,
+            int schemeVersion,
+            List<ApkSigningBlockUtils.SignerConfig> signerConfigs,
+            Map<ContentDigestAlgorithm, byte[]> contentDigests) {
+        if (signerConfigs == null || signerConfigs.size() != 1) {
+            return;
+        }
+        Map<ContentDigestAlgorithm, byte[]> signerContentDigests = new HashMap<>();
+        for (ContentDigestAlgorithm digestAlgorithm :
+                ApkSigningBlockUtils.getContentDigestAlgorithms(signerConfigs)) {
+            signerContentDigests.put(digestAlgorithm, contentDigests.get(digestAlgorithm));
+        }
+        try {
+            apkDigests.put(schemeVersion, V4SchemeSigner.pickBestDigest(signerContentDigests));
+        } catch (SignatureException expected) {
+            // The v4 signer does not use the block if none of its digests is supported.
+        }
+    }
+
+    /**
+     * Returns the requested {@code contentDigestAlgorithms} content digests recorded in the input
+     * APK, or {@code null} if they are not all recorded or if the provided APK sections are not
+     * the same as those of the input APK over which they were computed.
+     */
+    private Map<ContentDigestAlgorithm, byte[]> getInputContentDigestsIfUnchanged(
+            Set<ContentDigestAlgorithm> contentDigestAlgorithms,
+            DataSource beforeCentralDir,
+            DataSource centralDir,
+            DataSource eocd)
+            throws IOException {
+        if (mInputContentDigests == null
+                || !mInputContentDigests.keySet().containsAll(contentDigestAlgorithms)
+                || beforeCentralDir.size() != mInputZipEntriesSize
+                || centralDir.size() != mInputZipCentralDirectory.remaining()
+                || eocd.size() != mInputZipEocd.remaining()) {
+            return null;
+        }
+        // The EoCD provided here and the one over which the recorded digests were computed both
+        // have their Central Directory offset pointing to the start of the APK Signing Block.
+        ByteBuffer inputEocd = ByteBuffer.allocate(mInputZipEocd.remaining());
+        inputEocd.order(ByteOrder.LITTLE_ENDIAN);
+        inputEocd.put(mInputZipEocd.duplicate());
+        inputEocd.flip();
+        ZipUtils.setZipEocdCentralDirectoryOffset(inputEocd, mInputZipEntriesSize);
+        if (!centralDir.getByteBuffer(0, (int) centralDir.size())
+                        .equals(mInputZipCentralDirectory)
+                || !eocd.getByteBuffer(0, (int) eocd.size()).equals(inputEocd)) {
+            return null;
+        }
+        Map<ContentDigestAlgorithm, byte[]> contentDigests = new HashMap<>();
+        for (ContentDigestAlgorithm contentDigestAlgorithm : contentDigestAlgorithms) {
+            contentDigests.put(
+                    contentDigestAlgorithm,
+                    mInputContentDigests.get(contentDigestAlgorithm).clone());
+        }
+        return contentDigests;
+    }
+
+    /**
+     * Computes the requested {@code contentDigestAlgorithms} over the provided APK sections in a
+     * single pass, without reading {@code beforeCentralDir} if it was digested by the provided
+     * {@code beforeCentralDirDigester}. Returns an empty map if no algorithms are requested.
+     */
+    private Map<ContentDigestAlgorithm, byte[]> computeContentDigests(
+            Set<ContentDigestAlgorithm> contentDigestAlgorithms,
+            DataSource beforeCentralDir,
+            DataSource centralDir,
+            DataSource eocd,
+            StreamingContentDigester beforeCentralDirDigester)
+            throws IOException, NoSuchAlgorithmException, SignatureException {
+        if (contentDigestAlgorithms.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        try {
+            return ApkSigningBlockUtils.computeContentDigests(
+                    mExecutor,
+                    contentDigestAlgorithms,
+                    beforeCentralDir,
+                    centralDir,
+                    eocd,
+                    mChunkDigestsCache,
+                    beforeCentralDirDigester);
+        } catch (IOException e) {
+            throw new IOException("Failed to read APK being signed", e);
+        } catch (DigestException e) {
+            throw new SignatureException("Failed to compute digests of APK", e);
+        }
+    }
+
+    /**
+     * Returns the provided ZIP entries section padded as required for the APK Signing Block. The
+     * padded section produced by the previous invocation is returned if the ZIP entries section
+     * is known to be unchanged since then, which allows the digests of its chunks to be reused.
+     */
+    private Pair<DataSource, Integer> getPaddedZipEntries(
+            DataSource zipEntries, boolean apkSigningBlockPaddingSupported) {
+        long zipEntriesSize = zipEntries.size();
+        if (mZipSectionsUnmodifiedWhileSizeUnchanged
+                && mDigestedBeforeCentralDir != null
+                && mDigestedZipEntries == zipEntries
+                && mDigestedZipEntriesSize == zipEntriesSize
+                && mDigestedZipEntriesPadded == apkSigningBlockPaddingSupported) {
+            return mDigestedBeforeCentralDir;
+        }
+        Pair<DataSource, Integer> paddingPair =
+                ApkSigningBlockUtils.generateApkSigningBlockPadding(
+                        zipEntries, apkSigningBlockPaddingSupported);
+        mDigestedZipEntries = zipEntries;
+        mDigestedZipEntriesSize = zipEntriesSize;
+        mDigestedZipEntriesPadded = apkSigningBlockPaddingSupported;
+        mDigestedBeforeCentralDir = paddingPair;
+        return paddingPair;
+    }
+
+    private void invalidateDigestedZipEntries() {
+        mInputContentDigests = null;
+        mDigestedZipEntries = null;
+        mDigestedBeforeCentralDir = null;
+        mChunkDigestsCache.clear();
+    }
+
     @Override
     public void outputDone() {
         checkNotClosed();
@@ -1178,7 +1608,15 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         }
         try {
             V4SchemeSigner.SignerConfig v4SignerConfig = createV4SignerConfig();
-            V4SchemeSigner.generateV4Signature(dataSource, v4SignerConfig, outputFile);
+            V4SigningInputs v4SigningInputs = getV4SigningInputs(dataSource);
+            V4SchemeSigner.generateV4Signature(
+                    dataSource,
+                    v4SignerConfig,
+                    (v4SigningInputs != null) ? v4SigningInputs.mApkDigests : null,
+                    (v4SigningInputs != null)
+                            ? v4SigningInputs.computeVerityTreeAndDigest(dataSource)
+                            : null,
+                    outputFile);
         } catch (InvalidKeyException | IOException | NoSuchAlgorithmException e) {
             if (ignoreFailures) {
                 return;
@@ -1195,8 +1633,15 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         }
         try {
             V4SchemeSigner.SignerConfig v4SignerConfig = createV4SignerConfig();
+            V4SigningInputs v4SigningInputs = getV4SigningInputs(dataSource);
             Pair<V4Signature, byte[]> pair =
-                    V4SchemeSigner.generateV4Signature(dataSource, v4SignerConfig);
+                    V4SchemeSigner.generateV4Signature(
+                            dataSource,
+                            v4SignerConfig,
+                            (v4SigningInputs != null) ? v4SigningInputs.mApkDigests : null,
+                            (v4SigningInputs != null)
+                                    ? v4SigningInputs.computeVerityTreeAndDigest(dataSource)
+                                    : null);
             pair.getFirst().writeTo(sigOutput);
             return pair.getSecond();
         } catch (InvalidKeyException | IOException | NoSuchAlgorithmException e) {
@@ -1204,6 +1649,30 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         }
     }
 
+    /**
+     * Returns the inputs of APK Signature Scheme v4 signing computed while generating the APK
+     * Signing Block, or {@code null} if the provided APK is not laid out as the output APK with
+     * that APK Signing Block.
+     */
+    private V4SigningInputs getV4SigningInputs(DataSource apk) throws IOException {
+        V4SigningInputs v4SigningInputs = mV4SigningInputs;
+        if (v4SigningInputs == null) {
+            return null;
+        }
+        byte[] apkSigningBlock = v4SigningInputs.mApkSigningBlock;
+        long apkSigningBlockOffset = v4SigningInputs.mBeforeApkSigningBlockSize;
+        if (apk.size() != apkSigningBlockOffset + apkSigningBlock.length
+                + v4SigningInputs.mAfterApkSigningBlockSize) {
+            return null;
+        }
+        ByteBuffer outputApkSigningBlock =
+                apk.getByteBuffer(apkSigningBlockOffset, apkSigningBlock.length);
+        if (!outputApkSigningBlock.equals(ByteBuffer.wrap(apkSigningBlock))) {
+            return null;
+        }
+        return v4SigningInputs;
+    }
+
     @Override
     public boolean isEligibleForSourceStamp() {
         return mSourceStampSignerConfig != null
@@ -1237,6 +1706,9 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         mOutputSignatureJarEntryDataRequests.clear();
 
         mAddSigningBlockRequest = null;
+        mZipEntriesDigester = null;
+        mV4SigningInputs = null;
+        invalidateDigestedZipEntries();
     }
 
     private void invalidateV1Signature() {
@@ -1370,8 +1842,11 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         mDebuggable = null;
     }
 
-    /** Returns the output policy for the provided input JAR entry. */
-    private InputJarEntryInstructions.OutputPolicy getInputJarEntryOutputPolicy(String entryName) {
+    /**
+     * Returns the output policy for the provided input JAR entry, which is also the policy
+     * returned by {@link #inputJarEntry(String)} without it affecting the state of this engine.
+     */
+    InputJarEntryInstructions.OutputPolicy getInputJarEntryOutputPolicy(String entryName) {
         if (mSignatureExpectedOutputJarEntryNames.contains(entryName)) {
             return InputJarEntryInstructions.OutputPolicy.OUTPUT_BY_ENGINE;
         }
@@ -1438,6 +1913,54 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         }
     }
 
+    /**
+     * Inputs of APK Signature Scheme v4 signing of the output APK which are known once its APK
+     * Signing Block has been generated.
+     */
+    private static class V4SigningInputs {
+        /** Content digest picked by the v4 signer for each of the v2/v3/v3.1 blocks. */
+        private final Map<Integer, byte[]> mApkDigests;
+        private final byte[] mApkSigningBlock;
+        private final long mBeforeApkSigningBlockSize;
+        private final long mAfterApkSigningBlockSize;
+
+        /**
+         * Unsalted digests of the 4 KB blocks of the output APK before the APK Signing Block, or
+         * {@code null} if they were not computed.
+         */
+        private final ByteBuffer mBeforeApkSigningBlockLeafDigests;
+
+        private V4SigningInputs(
+                Map<Integer, byte[]> apkDigests,
+                byte[] apkSigningBlock,
+                long beforeApkSigningBlockSize,
+                long afterApkSigningBlockSize,
+                ByteBuffer beforeApkSigningBlockLeafDigests) {
+            mApkDigests = apkDigests;
+            mApkSigningBlock = apkSigningBlock;
+            mBeforeApkSigningBlockSize = beforeApkSigningBlockSize;
+            mAfterApkSigningBlockSize = afterApkSigningBlockSize;
+            mBeforeApkSigningBlockLeafDigests = beforeApkSigningBlockLeafDigests;
+        }
+
+        /**
+         * Returns the v4 verity tree and digest of the provided output APK, reading only the part
+         * of the APK from the APK Signing Block onwards, or {@code null} if the digests of the
+         * blocks before the APK Signing Block were not computed.
+         */
+        private ApkSigningBlockUtils.VerityTreeAndDigest computeVerityTreeAndDigest(
+                DataSource apk) throws IOException, NoSuchAlgorithmException {
+            if (mBeforeApkSigningBlockLeafDigests == null) {
+                return null;
+            }
+            return ApkSigningBlockUtils.computeChunkVerityTreeAndDigest(
+                    mBeforeApkSigningBlockLeafDigests,
+                    mBeforeApkSigningBlockSize,
+                    apk.slice(mBeforeApkSigningBlockSize,
+                            apk.size() - mBeforeApkSigningBlockSize));
+        }
+    }
+
     /** JAR entry inspection request which obtain the entry's uncompressed data. */
     private static class GetJarEntryDataRequest implements InspectJarEntryRequest {
         private final String mEntryName;
@@ -1508,6 +2031,8 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
     private static class GetJarEntryDataDigestRequest implements InspectJarEntryRequest {
         private final String mEntryName;
         private final String mJcaDigestAlgorithm;
+        private final JarEntryDigestsCache mDigestsCache;
+        private final JarEntryDigestsCache.Key mDigestsCacheKey;
         private final Object mLock = new Object();
 
         private boolean mDone;
@@ -1515,9 +2040,19 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         private MessageDigest mMessageDigest;
         private byte[] mDigest;
 
-        private GetJarEntryDataDigestRequest(String entryName, String jcaDigestAlgorithm) {
+        /**
+         * Constructs a new request which records the obtained digest in the provided cache, if
+         * any, under the provided key.
+         */
+        private GetJarEntryDataDigestRequest(
+                String entryName,
+                String jcaDigestAlgorithm,
+                JarEntryDigestsCache digestsCache,
+                JarEntryDigestsCache.Key digestsCacheKey) {
             mEntryName = entryName;
             mJcaDigestAlgorithm = jcaDigestAlgorithm;
+            mDigestsCache = digestsCache;
+            mDigestsCacheKey = digestsCacheKey;
         }
 
         @Override
@@ -1540,7 +2075,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             synchronized (mLock) {
                 if (mMessageDigest == null) {
                     try {
-                        mMessageDigest = MessageDigest.getInstance(mJcaDigestAlgorithm);
+                        mMessageDigest = MessageDigestProviders.getInstance(mJcaDigestAlgorithm);
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(
                                 mJcaDigestAlgorithm + " MessageDigest not available", e);
@@ -1560,6 +2095,20 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
                 mDigest = getMessageDigest().digest();
                 mMessageDigest = null;
                 mDataSink = null;
+                if (mDigestsCache != null) {
+                    mDigestsCache.put(mDigestsCacheKey, mDigest);
+                }
+            }
+        }
+
+        /**
+         * Completes this request with the provided digest, without inspecting the entry's data.
+         */
+        private void setDigest(byte[] digest) {
+            synchronized (mLock) {
+                checkNotDone();
+                mDone = true;
+                mDigest = digest.clone();
             }
         }
 
@@ -1898,6 +2447,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         private int mRotationMinSdkVersion = V3SchemeConstants.DEFAULT_ROTATION_MIN_SDK_VERSION;
         private boolean mRotationTargetsDevRelease = false;
         private boolean mVerityEnabled = false;
+        private boolean mV4SigningEnabled = false;
         private boolean mDebuggableApkPermitted = true;
         private boolean mOtherSignersSignaturesPreserved;
         private String mCreatedBy = "1.0 (Android)";
@@ -2126,6 +2676,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
                     mV2SigningEnabled,
                     mV3SigningEnabled,
                     mVerityEnabled,
+                    mV4SigningEnabled,
                     mDebuggableApkPermitted,
                     mOtherSignersSignaturesPreserved,
                     mCreatedBy,
@@ -2206,6 +2757,19 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             return this;
         }
 
+        /**
+         * Sets whether the output APK will also be signed using APK Signature Scheme v4 by
+         * invoking {@link #signV4(DataSource, File, boolean)}. If enabled, the digests required
+         * by v4 signing are also computed while the ZIP entries are output to the sink returned by
+         * {@link #getZipEntriesDigestingSink()}, so that v4 signing does not read them back.
+         *
+         * <p>By default, these digests are not computed. This does not prevent v4 signing.
+         */
+        public Builder setV4SigningEnabled(boolean enabled) {
+            mV4SigningEnabled = enabled;
+            return this;
+        }
+
         /**
          * Sets whether the APK should be signed even if it is marked as debuggable ({@code
          * android:debuggable="true"} in its {@code AndroidManifest.xml}). For backward
@@ -87,7 +87,8 @@ public abstract class ApkUtils {
      *
      * @param zipEndOfCentralDirectory APK's ZIP End of Central Directory record
      * @param offset offset of the ZIP Central Directory relative to the start of the archive. Must
-     *        be between {@code 0} and {@code 2^32 - 1} inclusive.
+     *        be between {@code 0} and {@code 2^32 - 1} inclusive, unless the record is preceded by
+     *        the ZIP64 End of Central Directory record and locator.
      */
     public static void setZipEocdCentralDirectoryOffset(
             ByteBuffer zipEndOfCentralDirectory, long offset) {
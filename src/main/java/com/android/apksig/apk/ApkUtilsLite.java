@@ -36,7 +36,8 @@ public class ApkUtilsLite {
     private ApkUtilsLite() {}
 
     /**
-     * Finds the main ZIP sections of the provided APK.
+     * Finds the main ZIP sections of the provided APK. For ZIP64 archives, the ZIP End of Central
+     * Directory section starts with the ZIP64 End of Central Directory record and locator.
      *
      * @throws IOException if an I/O error occurred while reading the APK
      * @throws ZipFormatException if the APK is malformed
@@ -52,6 +53,15 @@ public class ApkUtilsLite {
         ByteBuffer eocdBuf = eocdAndOffsetInFile.getFirst();
         long eocdOffset = eocdAndOffsetInFile.getSecond();
         eocdBuf.order(ByteOrder.LITTLE_ENDIAN);
+
+        // ZIP64 archives store the Central Directory information in the ZIP64 EoCD record, which
+        // is then treated as the start of the EoCD
+        Pair<ByteBuffer, Long> zip64EocdAndOffsetInFile =
+                ZipUtils.findZip64EndOfCentralDirectoryRecord(apk, eocdOffset, eocdBuf);
+        if (zip64EocdAndOffsetInFile != null) {
+            eocdBuf = zip64EocdAndOffsetInFile.getFirst();
+            eocdOffset = zip64EocdAndOffsetInFile.getSecond();
+        }
         long cdStartOffset = ZipUtils.getZipEocdCentralDirectoryOffset(eocdBuf);
         if (cdStartOffset > eocdOffset) {
             throw new ZipFormatException(
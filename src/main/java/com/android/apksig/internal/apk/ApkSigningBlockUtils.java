@@ -40,9 +40,11 @@ import com.android.apksig.internal.pkcs7.Pkcs7Constants;
 import com.android.apksig.internal.pkcs7.SignedData;
 import com.android.apksig.internal.pkcs7.SignerIdentifier;
 import com.android.apksig.internal.pkcs7.SignerInfo;
+import com.android.apksig.internal.util.AvailableProcessors;
 import com.android.apksig.internal.util.ByteBufferDataSource;
 import com.android.apksig.internal.util.ChainedDataSource;
 import com.android.apksig.internal.util.GuaranteedEncodedFormX509Certificate;
+import com.android.apksig.internal.util.MappedFileDataSource;
 import com.android.apksig.internal.util.Pair;
 import com.android.apksig.internal.util.VerityTreeBuilder;
 import com.android.apksig.internal.util.X509CertificateUtils;
@@ -53,6 +55,7 @@ import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSinks;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.MessageDigestProviders;
 import com.android.apksig.util.RunnablesExecutor;
 
 import java.io.IOException;
@@ -78,11 +81,13 @@ import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
@@ -90,8 +95,14 @@ import javax.security.auth.x500.X500Principal;
 
 public class ApkSigningBlockUtils {
 
-    private static final long CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES = 1024 * 1024;
+    static final long CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES = 1024 * 1024;
     public static final int ANDROID_COMMON_PAGE_ALIGNMENT_BYTES = 4096;
+
+    /**
+     * Salt of the APK verity tree. Use 0s as salt for now. This also needs to be consistent in
+     * the fsverify header for kernel to use.
+     */
+    static final byte[] VERITY_SALT = new byte[8];
     private static final byte[] APK_SIGNING_BLOCK_MAGIC =
           new byte[] {
               0x41, 0x50, 0x4b, 0x20, 0x53, 0x69, 0x67, 0x20,
@@ -138,6 +149,24 @@ public class ApkSigningBlockUtils {
             ByteBuffer eocd,
             Set<ContentDigestAlgorithm> contentDigestAlgorithms,
             Result result) throws IOException, NoSuchAlgorithmException {
+        verifyIntegrity(executor, beforeApkSigningBlock, centralDir, eocd,
+                contentDigestAlgorithms, result, null);
+    }
+
+    /**
+     * Verifies integrity of the APK outside of the APK Signing Block like
+     * {@link #verifyIntegrity(RunnablesExecutor, DataSource, DataSource, ByteBuffer, Set,
+     * Result)}, reusing the digests of chunks recorded in the provided {@code chunkDigestsCache},
+     * if any.
+     */
+    public static void verifyIntegrity(
+            RunnablesExecutor executor,
+            DataSource beforeApkSigningBlock,
+            DataSource centralDir,
+            ByteBuffer eocd,
+            Set<ContentDigestAlgorithm> contentDigestAlgorithms,
+            Result result,
+            ChunkDigestsCache chunkDigestsCache) throws IOException, NoSuchAlgorithmException {
         if (contentDigestAlgorithms.isEmpty()) {
             // This should never occur because this method is invoked once at least one signature
             // is verified, meaning at least one content digest is known.
@@ -164,7 +193,8 @@ public class ApkSigningBlockUtils {
                             contentDigestAlgorithms,
                             beforeApkSigningBlock,
                             centralDir,
-                            new ByteBufferDataSource(modifiedEocd));
+                            new ByteBufferDataSource(modifiedEocd),
+                            chunkDigestsCache);
             // Special checks for the verity algorithm requirements.
             if (actualContentDigests.containsKey(VERITY_CHUNKED_SHA256)) {
                 if ((beforeApkSigningBlock.size() % ANDROID_COMMON_PAGE_ALIGNMENT_BYTES != 0)) {
@@ -264,6 +294,54 @@ public class ApkSigningBlockUtils {
             DataSource beforeCentralDir,
             DataSource centralDir,
             DataSource eocd) throws IOException, NoSuchAlgorithmException, DigestException {
+        return computeContentDigests(
+                executor, digestAlgorithms, beforeCentralDir, centralDir, eocd, null);
+    }
+
+    /**
+     * Computes the requested content digests of the provided APK sections, reusing the digests of
+     * the 1 MB chunks which are unmodified since the previous computation recorded in the provided
+     * {@code chunkDigestsCache}, if any. The cache is updated with the digests of chunks computed
+     * by this invocation.
+     */
+    public static Map<ContentDigestAlgorithm, byte[]> computeContentDigests(
+            RunnablesExecutor executor,
+            Set<ContentDigestAlgorithm> digestAlgorithms,
+            DataSource beforeCentralDir,
+            DataSource centralDir,
+            DataSource eocd,
+            ChunkDigestsCache chunkDigestsCache)
+            throws IOException, NoSuchAlgorithmException, DigestException {
+        return computeContentDigests(executor, digestAlgorithms, beforeCentralDir, centralDir,
+                eocd, chunkDigestsCache, null);
+    }
+
+    /**
+     * Computes the requested content digests of the provided APK sections like
+     * {@link #computeContentDigests(RunnablesExecutor, Set, DataSource, DataSource, DataSource,
+     * ChunkDigestsCache)}, without reading {@code beforeCentralDir} if it was digested while being
+     * output by the provided {@code beforeCentralDirDigester}. {@code beforeCentralDir} may extend
+     * the digested data with zero padding.
+     */
+    public static Map<ContentDigestAlgorithm, byte[]> computeContentDigests(
+            RunnablesExecutor executor,
+            Set<ContentDigestAlgorithm> digestAlgorithms,
+            DataSource beforeCentralDir,
+            DataSource centralDir,
+            DataSource eocd,
+            ChunkDigestsCache chunkDigestsCache,
+            StreamingContentDigester beforeCentralDirDigester)
+            throws IOException, NoSuchAlgorithmException, DigestException {
+        int paddingSize = 0;
+        if (beforeCentralDirDigester != null) {
+            long padding = beforeCentralDir.size() - beforeCentralDirDigester.size();
+            if (padding < 0 || padding >= ANDROID_COMMON_PAGE_ALIGNMENT_BYTES) {
+                throw new IllegalArgumentException(
+                        "Digested " + beforeCentralDirDigester.size() + " bytes of "
+                                + beforeCentralDir.size() + " bytes long section");
+            }
+            paddingSize = (int) padding;
+        }
         Map<ContentDigestAlgorithm, byte[]> contentDigests = new HashMap<>();
         Set<ContentDigestAlgorithm> oneMbChunkBasedAlgorithm = new HashSet<>();
         for (ContentDigestAlgorithm digestAlgorithm : digestAlgorithms) {
@@ -272,14 +350,66 @@ public class ApkSigningBlockUtils {
                 oneMbChunkBasedAlgorithm.add(digestAlgorithm);
             }
         }
+        Map<ContentDigestAlgorithm, byte[]> beforeCentralDirChunkDigests = null;
+        if (beforeCentralDirDigester != null) {
+            beforeCentralDirChunkDigests = new HashMap<>();
+            for (ContentDigestAlgorithm digestAlgorithm : oneMbChunkBasedAlgorithm) {
+                if (!beforeCentralDirDigester.isDigesting(digestAlgorithm)) {
+                    beforeCentralDirChunkDigests = null;
+                    break;
+                }
+                beforeCentralDirChunkDigests.put(
+                        digestAlgorithm,
+                        beforeCentralDirDigester.getChunkDigests(digestAlgorithm, paddingSize));
+            }
+        }
+        boolean verityDigestRequested = digestAlgorithms.contains(VERITY_CHUNKED_SHA256);
+        boolean verityLeavesStreamed = beforeCentralDirDigester != null
+                && beforeCentralDirDigester.isDigesting(VERITY_CHUNKED_SHA256);
+
+        // Unless already computed while streaming, the verity digests of the 4 KB blocks before
+        // the Central Directory are computed from the same reads as the 1 MB chunk digests. This
+        // requires the blocks to be aligned with the chunks.
+        byte[] beforeCentralDirVerityLeafDigests = null;
+        if (verityDigestRequested && !verityLeavesStreamed
+                && beforeCentralDir.size() % ANDROID_COMMON_PAGE_ALIGNMENT_BYTES == 0) {
+            long leafDigestsSize = beforeCentralDir.size() / ANDROID_COMMON_PAGE_ALIGNMENT_BYTES
+                    * VERITY_CHUNKED_SHA256.getChunkDigestOutputSizeBytes();
+            if (leafDigestsSize <= Integer.MAX_VALUE) {
+                beforeCentralDirVerityLeafDigests = new byte[(int) leafDigestsSize];
+            }
+        }
+
         computeOneMbChunkContentDigests(
                 executor,
                 oneMbChunkBasedAlgorithm,
                 new DataSource[] { beforeCentralDir, centralDir, eocd },
-                contentDigests);
-
-        if (digestAlgorithms.contains(VERITY_CHUNKED_SHA256)) {
-            computeApkVerityDigest(beforeCentralDir, centralDir, eocd, contentDigests);
+                contentDigests,
+                chunkDigestsCache,
+                beforeCentralDirChunkDigests,
+                beforeCentralDirVerityLeafDigests);
+
+        if (verityDigestRequested) {
+            if (verityLeavesStreamed) {
+                computeApkVerityDigest(
+                        executor,
+                        beforeCentralDirDigester.getVerityLeafDigests(paddingSize),
+                        beforeCentralDir.size(),
+                        centralDir,
+                        eocd,
+                        contentDigests);
+            } else if (beforeCentralDirVerityLeafDigests != null) {
+                computeApkVerityDigest(
+                        executor,
+                        ByteBuffer.wrap(beforeCentralDirVerityLeafDigests),
+                        beforeCentralDir.size(),
+                        centralDir,
+                        eocd,
+                        contentDigests);
+            } else {
+                computeApkVerityDigest(
+                        executor, beforeCentralDir, centralDir, eocd, contentDigests);
+            }
         }
         return contentDigests;
     }
@@ -325,7 +455,7 @@ public class ApkSigningBlockUtils {
                     chunkCount, concatenationOfChunkCountAndChunkDigests, 1);
             digestsOfChunks[i] = concatenationOfChunkCountAndChunkDigests;
             String jcaAlgorithm = digestAlgorithm.getJcaMessageDigestAlgorithm();
-            mds[i] = MessageDigest.getInstance(jcaAlgorithm);
+            mds[i] = MessageDigestProviders.getInstance(jcaAlgorithm);
         }
 
         DataSink mdSink = DataSinks.asDataSink(mds);
@@ -393,6 +523,62 @@ public class ApkSigningBlockUtils {
             DataSource[] contents,
             Map<ContentDigestAlgorithm, byte[]> outputContentDigests)
             throws NoSuchAlgorithmException, DigestException {
+        computeOneMbChunkContentDigests(
+                executor, digestAlgorithms, contents, outputContentDigests, null, null);
+    }
+
+    static void computeOneMbChunkContentDigests(
+            RunnablesExecutor executor,
+            Set<ContentDigestAlgorithm> digestAlgorithms,
+            DataSource[] contents,
+            Map<ContentDigestAlgorithm, byte[]> outputContentDigests,
+            ChunkDigestsCache chunkDigestsCache)
+            throws NoSuchAlgorithmException, DigestException {
+        computeOneMbChunkContentDigests(executor, digestAlgorithms, contents,
+                outputContentDigests, chunkDigestsCache, null);
+    }
+
+    /**
+     * Computes the 1 MB chunk based content digests of the provided {@code contents}, reusing the
+     * digests of unmodified chunks recorded in {@code chunkDigestsCache} and, if provided, the
+     * concatenated digests of all chunks of the first segment of {@code contents}.
+     */
+    static void computeOneMbChunkContentDigests(
+            RunnablesExecutor executor,
+            Set<ContentDigestAlgorithm> digestAlgorithms,
+            DataSource[] contents,
+            Map<ContentDigestAlgorithm, byte[]> outputContentDigests,
+            ChunkDigestsCache chunkDigestsCache,
+            Map<ContentDigestAlgorithm, byte[]> firstSegmentChunkDigests)
+            throws NoSuchAlgorithmException, DigestException {
+        computeOneMbChunkContentDigests(executor, digestAlgorithms, contents,
+                outputContentDigests, chunkDigestsCache, firstSegmentChunkDigests, null);
+    }
+
+    /**
+     * Computes the 1 MB chunk based content digests of the provided {@code contents} like
+     * {@link #computeOneMbChunkContentDigests(RunnablesExecutor, Set, DataSource[], Map,
+     * ChunkDigestsCache, Map)} and, if {@code firstSegmentVerityLeafDigests} is provided, outputs
+     * into it the salted verity digests of the 4 KB blocks of the first segment of
+     * {@code contents}, whose size must be a multiple of 4 KB. The verity digests are computed
+     * from the chunks read for the 1 MB chunk based digests; only chunks whose digests are reused
+     * are read for the sole purpose of computing verity digests.
+     */
+    static void computeOneMbChunkContentDigests(
+            RunnablesExecutor executor,
+            Set<ContentDigestAlgorithm> digestAlgorithms,
+            DataSource[] contents,
+            Map<ContentDigestAlgorithm, byte[]> outputContentDigests,
+            ChunkDigestsCache chunkDigestsCache,
+            Map<ContentDigestAlgorithm, byte[]> firstSegmentChunkDigests,
+            byte[] firstSegmentVerityLeafDigests)
+            throws NoSuchAlgorithmException, DigestException {
+        VerityLeafDigests verityLeafDigests = null;
+        if (firstSegmentVerityLeafDigests != null) {
+            verityLeafDigests = new VerityLeafDigests(firstSegmentVerityLeafDigests,
+                    (int) getChunkCount(contents[0].size(), CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES));
+        }
+
         long chunkCountLong = 0;
         for (DataSource input : contents) {
             chunkCountLong +=
@@ -408,8 +594,65 @@ public class ApkSigningBlockUtils {
             chunkDigestsList.add(new ChunkDigests(algorithms, chunkCount));
         }
 
-        ChunkSupplier chunkSupplier = new ChunkSupplier(contents);
-        executor.execute(() -> new ChunkDigester(chunkSupplier, chunkDigestsList));
+        boolean[] reusedChunks = null;
+        if (chunkDigestsCache != null) {
+            try {
+                reusedChunks = chunkDigestsCache.reuseChunkDigests(contents, chunkDigestsList);
+            } catch (IOException e) {
+                // The cache only avoids recomputation; fall back to digesting all chunks.
+                reusedChunks = null;
+            }
+        }
+        int firstSegmentChunkCount = 0;
+        if (firstSegmentChunkDigests != null) {
+            firstSegmentChunkCount = (int) getChunkCount(
+                    contents[0].size(), CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
+            for (ChunkDigests chunkDigests : chunkDigestsList) {
+                byte[] digests = firstSegmentChunkDigests.get(chunkDigests.algorithm);
+                if (digests.length != firstSegmentChunkCount * chunkDigests.digestOutputSize) {
+                    throw new DigestException(
+                            "Unexpected size of " + chunkDigests.algorithm + " digests of chunks: "
+                                    + digests.length);
+                }
+                System.arraycopy(digests, 0, chunkDigests.concatOfDigestsOfChunks,
+                        chunkDigests.getOffset(0), digests.length);
+            }
+            if (reusedChunks == null) {
+                reusedChunks = new boolean[chunkCount];
+            }
+            Arrays.fill(reusedChunks, 0, firstSegmentChunkCount, true);
+        }
+
+        digestChunks(executor, contents, reusedChunks, chunkDigestsList, verityLeafDigests);
+
+        if (chunkDigestsCache != null
+                && !chunkDigestsCache.update(contents, chunkDigestsList)) {
+            // Some of the digests reused from the cache are stale: digest all chunks again, other
+            // than those of the first segment if their digests were provided.
+            reusedChunks = null;
+            if (firstSegmentChunkCount > 0) {
+                reusedChunks = new boolean[chunkCount];
+                Arrays.fill(reusedChunks, 0, firstSegmentChunkCount, true);
+            }
+            digestChunks(executor, contents, reusedChunks, chunkDigestsList, verityLeafDigests);
+            chunkDigestsCache.update(contents, chunkDigestsList);
+        }
+
+        if (verityLeafDigests != null && reusedChunks != null) {
+            // The chunks of the first segment whose digests were reused have not been read:
+            // read them for their verity digests only.
+            boolean[] skippedChunks = new boolean[chunkCount];
+            Arrays.fill(skippedChunks, true);
+            boolean anyReused = false;
+            for (int i = 0; i < verityLeafDigests.chunkCount; i++) {
+                skippedChunks[i] = !reusedChunks[i];
+                anyReused |= reusedChunks[i];
+            }
+            if (anyReused) {
+                digestChunks(executor, contents, skippedChunks, Collections.emptyList(),
+                        verityLeafDigests);
+            }
+        }
 
         // Compute and write out final digest for each algorithm.
         for (ChunkDigests chunkDigests : chunkDigestsList) {
@@ -420,10 +663,41 @@ public class ApkSigningBlockUtils {
         }
     }
 
-    private static class ChunkDigests {
-        private final ContentDigestAlgorithm algorithm;
-        private final int digestOutputSize;
-        private final byte[] concatOfDigestsOfChunks;
+    /**
+     * Digests the chunks of the provided {@code contents} other than the {@code reusedChunks},
+     * if any, into {@code chunkDigestsList}.
+     */
+    private static void digestChunks(RunnablesExecutor executor, DataSource[] contents,
+            boolean[] reusedChunks, List<ChunkDigests> chunkDigestsList,
+            VerityLeafDigests verityLeafDigests) {
+        if (chunkDigestsList.isEmpty() && verityLeafDigests == null) {
+            return;
+        }
+        ChunkSupplier chunkSupplier = new ChunkSupplier(contents, reusedChunks);
+        if (chunkSupplier.hasChunksToSupply()) {
+            executor.execute(() -> new ChunkDigester(
+                    chunkSupplier, chunkDigestsList, verityLeafDigests));
+        }
+    }
+
+    /**
+     * Salted verity digests of the 4 KB blocks of the first chunks of the digested contents,
+     * computed from the same data as the digests of those chunks.
+     */
+    private static class VerityLeafDigests {
+        private final byte[] digests;
+        private final int chunkCount;
+
+        private VerityLeafDigests(byte[] digests, int chunkCount) {
+            this.digests = digests;
+            this.chunkCount = chunkCount;
+        }
+    }
+
+    static class ChunkDigests {
+        final ContentDigestAlgorithm algorithm;
+        final int digestOutputSize;
+        final byte[] concatOfDigestsOfChunks;
 
         private ChunkDigests(ContentDigestAlgorithm algorithm, int chunkCount) {
             this.algorithm = algorithm;
@@ -437,14 +711,188 @@ public class ApkSigningBlockUtils {
         }
 
         private MessageDigest createMessageDigest() throws NoSuchAlgorithmException {
-            return MessageDigest.getInstance(algorithm.getJcaMessageDigestAlgorithm());
+            return MessageDigestProviders.getInstance(algorithm.getJcaMessageDigestAlgorithm());
         }
 
-        private int getOffset(int chunkIndex) {
+        int getOffset(int chunkIndex) {
             return 1 + 4 + chunkIndex * digestOutputSize;
         }
     }
 
+    /**
+     * Digests of the 1 MB chunks of the APK contents most recently digested using
+     * {@link #computeContentDigests(RunnablesExecutor, Set, DataSource, DataSource, DataSource,
+     * ChunkDigestsCache)}. When the same contents are digested again with only some of their chunks
+     * modified, for example when the ZIP End of Central Directory comment is padded to align the
+     * size of the output file, only the modified chunks are digested again.
+     *
+     * <p>A chunk of any segment of the contents other than the first one (the ZIP entries, which
+     * are typically backed by the output file) is considered unmodified if the segment is at most
+     * {@link #MAX_COPIED_SEGMENT_SIZE_BYTES} long and the chunk's bytes are equal to the bytes
+     * previously digested. If {@link #setSameInstancesUnmodified(boolean)} is enabled, a chunk of
+     * any segment is also considered unmodified if the segment is provided as the same
+     * {@link DataSource} instance of the same size as before. Callers which enable it must invoke
+     * {@link #clear()} whenever the data of a previously digested {@code DataSource} instance may
+     * have changed.
+     *
+     * <p>This class is not thread-safe.
+     */
+    public static class ChunkDigestsCache {
+        private static final long MAX_COPIED_SEGMENT_SIZE_BYTES = 16 * 1024 * 1024;
+
+        private DataSource[] mSegments;
+        private long[] mSegmentSizes;
+        private ByteBuffer[] mSegmentCopies;
+        private int[] mSegmentFirstChunkIndices;
+        private Map<ContentDigestAlgorithm, ChunkDigests> mChunkDigests;
+        private boolean mSameInstancesUnmodified;
+
+        /**
+         * Sets whether the data of a {@link DataSource} instance is known not to change while its
+         * size does not, in which case the digests of its chunks are reused whenever the same
+         * instance is digested again. By default, only the chunks of segments whose data is
+         * compared with the previously digested data are reused.
+         */
+        public void setSameInstancesUnmodified(boolean unmodified) {
+            mSameInstancesUnmodified = unmodified;
+        }
+
+        /**
+         * Forgets all the digests of chunks recorded by this cache.
+         */
+        public void clear() {
+            mSegments = null;
+            mSegmentSizes = null;
+            mSegmentCopies = null;
+            mSegmentFirstChunkIndices = null;
+            mChunkDigests = null;
+        }
+
+        /**
+         * Copies the cached digests of unmodified chunks of the provided {@code contents} into
+         * {@code chunkDigestsList} and returns the indices of the copied chunks, or {@code null}
+         * if no digests can be reused.
+         */
+        boolean[] reuseChunkDigests(
+                DataSource[] contents, List<ChunkDigests> chunkDigestsList) throws IOException {
+            if ((mChunkDigests == null) || (mSegments.length != contents.length)) {
+                return null;
+            }
+            for (ChunkDigests chunkDigests : chunkDigestsList) {
+                if (!mChunkDigests.containsKey(chunkDigests.algorithm)) {
+                    return null;
+                }
+            }
+
+            int totalChunkCount = 0;
+            for (DataSource input : contents) {
+                totalChunkCount += (int) getChunkCount(
+                        input.size(), CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
+            }
+            boolean[] reusedChunks = new boolean[totalChunkCount];
+            boolean anyReused = false;
+            int segmentFirstChunkIndex = 0;
+            for (int i = 0; i < contents.length; i++) {
+                DataSource input = contents[i];
+                long inputSize = input.size();
+                int chunkCount =
+                        (int) getChunkCount(inputSize, CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
+                long previousSize = mSegmentSizes[i];
+                int previousChunkCount =
+                        (int) getChunkCount(previousSize, CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
+                boolean sameInstance =
+                        mSameInstancesUnmodified
+                                && (input == mSegments[i])
+                                && (inputSize == previousSize);
+                ByteBuffer previousCopy = mSegmentCopies[i];
+                if (sameInstance || (previousCopy != null)) {
+                    for (int j = 0; j < Math.min(chunkCount, previousChunkCount); j++) {
+                        long chunkOffset = (long) j * CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES;
+                        int chunkSize = (int) Math.min(
+                                inputSize - chunkOffset, CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
+                        int previousChunkSize = (int) Math.min(
+                                previousSize - chunkOffset, CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
+                        if (chunkSize != previousChunkSize) {
+                            continue;
+                        }
+                        if (!sameInstance) {
+                            ByteBuffer previousChunk = previousCopy.duplicate();
+                            previousChunk.position((int) chunkOffset);
+                            previousChunk.limit((int) chunkOffset + chunkSize);
+                            if (!previousChunk.equals(
+                                    input.getByteBuffer(chunkOffset, chunkSize))) {
+                                continue;
+                            }
+                        }
+                        int chunkIndex = segmentFirstChunkIndex + j;
+                        int previousChunkIndex = mSegmentFirstChunkIndices[i] + j;
+                        for (ChunkDigests chunkDigests : chunkDigestsList) {
+                            ChunkDigests previous = mChunkDigests.get(chunkDigests.algorithm);
+                            System.arraycopy(
+                                    previous.concatOfDigestsOfChunks,
+                                    previous.getOffset(previousChunkIndex),
+                                    chunkDigests.concatOfDigestsOfChunks,
+                                    chunkDigests.getOffset(chunkIndex),
+                                    chunkDigests.digestOutputSize);
+                        }
+                        reusedChunks[chunkIndex] = true;
+                        anyReused = true;
+                    }
+                }
+                segmentFirstChunkIndex += chunkCount;
+            }
+            return anyReused ? reusedChunks : null;
+        }
+
+        /**
+         * Records the digests of all chunks of the provided {@code contents}. Returns
+         * {@code false}, without recording them, if the digests reused from this cache by the
+         * preceding {@link #reuseChunkDigests(DataSource[], List)} call turned out to be stale, in
+         * which case all chunks must be digested again.
+         */
+        boolean update(DataSource[] contents, List<ChunkDigests> chunkDigestsList) {
+            clear();
+            DataSource[] segments = new DataSource[contents.length];
+            long[] segmentSizes = new long[contents.length];
+            ByteBuffer[] segmentCopies = new ByteBuffer[contents.length];
+            int[] segmentFirstChunkIndices = new int[contents.length];
+            int chunkIndex = 0;
+            for (int i = 0; i < contents.length; i++) {
+                DataSource input = contents[i];
+                long inputSize = input.size();
+                segments[i] = input;
+                segmentSizes[i] = inputSize;
+                segmentFirstChunkIndices[i] = chunkIndex;
+                chunkIndex +=
+                        (int) getChunkCount(inputSize, CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
+                if (i > 0 && inputSize <= MAX_COPIED_SEGMENT_SIZE_BYTES) {
+                    ByteBuffer copy = ByteBuffer.allocate((int) inputSize);
+                    try {
+                        input.copyTo(0, (int) inputSize, copy);
+                    } catch (IOException e) {
+                        // Without a copy, this segment's chunks can only be reused if the same
+                        // data source instance is provided again.
+                        copy = null;
+                    }
+                    if (copy != null) {
+                        copy.clear();
+                    }
+                    segmentCopies[i] = copy;
+                }
+            }
+            Map<ContentDigestAlgorithm, ChunkDigests> chunkDigests = new HashMap<>();
+            for (ChunkDigests digests : chunkDigestsList) {
+                chunkDigests.put(digests.algorithm, digests);
+            }
+            mSegments = segments;
+            mSegmentSizes = segmentSizes;
+            mSegmentCopies = segmentCopies;
+            mSegmentFirstChunkIndices = segmentFirstChunkIndices;
+            mChunkDigests = chunkDigests;
+            return true;
+        }
+    }
+
     /**
      * A per-thread digest worker.
      */
@@ -453,17 +901,25 @@ public class ApkSigningBlockUtils {
         private final List<ChunkDigests> chunkDigests;
         private final List<MessageDigest> messageDigests;
         private final DataSink mdSink;
+        private final VerityLeafDigests verityLeafDigests;
+        private final MessageDigest verityMessageDigest;
 
-        private ChunkDigester(ChunkSupplier dataSupplier, List<ChunkDigests> chunkDigests) {
+        private ChunkDigester(ChunkSupplier dataSupplier, List<ChunkDigests> chunkDigests,
+                VerityLeafDigests verityLeafDigests) {
             this.dataSupplier = dataSupplier;
             this.chunkDigests = chunkDigests;
+            this.verityLeafDigests = verityLeafDigests;
             messageDigests = new ArrayList<>(chunkDigests.size());
-            for (ChunkDigests chunkDigest : chunkDigests) {
-                try {
+            try {
+                for (ChunkDigests chunkDigest : chunkDigests) {
                     messageDigests.add(chunkDigest.createMessageDigest());
-                } catch (NoSuchAlgorithmException ex) {
-                    throw new RuntimeException(ex);
                 }
+                verityMessageDigest = (verityLeafDigests != null)
+                        ? MessageDigestProviders.getInstance(
+                                VERITY_CHUNKED_SHA256.getJcaMessageDigestAlgorithm())
+                        : null;
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException(ex);
             }
             mdSink = DataSinks.asDataSink(messageDigests.toArray(new MessageDigest[0]));
         }
@@ -474,39 +930,79 @@ public class ApkSigningBlockUtils {
             chunkContentPrefix[0] = (byte) 0xa5;
 
             try {
-                for (ChunkSupplier.Chunk chunk = dataSupplier.get();
-                     chunk != null;
-                     chunk = dataSupplier.get()) {
-                    int size = chunk.size;
-                    if (size > CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES) {
-                        throw new RuntimeException("Chunk size greater than expected: " + size);
-                    }
-
-                    // First update with the chunk prefix.
-                    setUnsignedInt32LittleEndian(size, chunkContentPrefix, 1);
-                    mdSink.consume(chunkContentPrefix, 0, chunkContentPrefix.length);
-
-                    // Then update with the chunk data.
-                    mdSink.consume(chunk.data);
-
-                    // Now finalize chunk for all algorithms.
-                    for (int i = 0; i < chunkDigests.size(); i++) {
-                        ChunkDigests chunkDigest = chunkDigests.get(i);
-                        int actualDigestSize = messageDigests.get(i).digest(
-                                chunkDigest.concatOfDigestsOfChunks,
-                                chunkDigest.getOffset(chunk.chunkIndex),
-                                chunkDigest.digestOutputSize);
-                        if (actualDigestSize != chunkDigest.digestOutputSize) {
-                            throw new RuntimeException(
-                                    "Unexpected output size of " + chunkDigest.algorithm
-                                            + " digest: " + actualDigestSize);
+                for (ChunkSupplier.Chunks chunks = dataSupplier.get();
+                     chunks != null;
+                     chunks = dataSupplier.get()) {
+                    try {
+                        for (int chunkIndex = chunks.firstChunkIndex, offset = 0;
+                                offset < chunks.size;
+                                chunkIndex++, offset += CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES) {
+                            int size = (int) Math.min(
+                                    chunks.size - offset, CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
+                            ByteBuffer data = chunks.data.duplicate();
+                            data.limit(offset + size);
+                            data.position(offset);
+                            if (verityLeafDigests != null
+                                    && chunkIndex < verityLeafDigests.chunkCount) {
+                                digestVerityBlocks(chunkIndex, data.duplicate());
+                            }
+                            if (!chunkDigests.isEmpty()) {
+                                digestChunk(chunkIndex, data, size, chunkContentPrefix);
+                            }
                         }
+                    } finally {
+                        dataSupplier.release(chunks);
                     }
                 }
             } catch (IOException | DigestException e) {
                 throw new RuntimeException(e);
             }
         }
+
+        /**
+         * Outputs the salted verity digests of the 4 KB blocks of the provided chunk, which must
+         * consist of whole blocks.
+         */
+        private void digestVerityBlocks(int chunkIndex, ByteBuffer data) throws DigestException {
+            int digestSize = verityMessageDigest.getDigestLength();
+            int blocksPerChunk = (int) (CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES
+                    / ANDROID_COMMON_PAGE_ALIGNMENT_BYTES);
+            int digestOffset = chunkIndex * blocksPerChunk * digestSize;
+            int end = data.limit();
+            for (int blockStart = data.position(); blockStart < end;
+                    blockStart += ANDROID_COMMON_PAGE_ALIGNMENT_BYTES) {
+                data.limit(blockStart + ANDROID_COMMON_PAGE_ALIGNMENT_BYTES);
+                data.position(blockStart);
+                verityMessageDigest.update(VERITY_SALT);
+                verityMessageDigest.update(data);
+                verityMessageDigest.digest(verityLeafDigests.digests, digestOffset, digestSize);
+                digestOffset += digestSize;
+            }
+        }
+
+        private void digestChunk(int chunkIndex, ByteBuffer data, int size,
+                byte[] chunkContentPrefix) throws IOException, DigestException {
+            // First update with the chunk prefix.
+            setUnsignedInt32LittleEndian(size, chunkContentPrefix, 1);
+            mdSink.consume(chunkContentPrefix, 0, chunkContentPrefix.length);
+
+            // Then update with the chunk data.
+            mdSink.consume(data);
+
+            // Now finalize chunk for all algorithms.
+            for (int i = 0; i < chunkDigests.size(); i++) {
+                ChunkDigests chunkDigest = chunkDigests.get(i);
+                int actualDigestSize = messageDigests.get(i).digest(
+                        chunkDigest.concatOfDigestsOfChunks,
+                        chunkDigest.getOffset(chunkIndex),
+                        chunkDigest.digestOutputSize);
+                if (actualDigestSize != chunkDigest.digestOutputSize) {
+                    throw new RuntimeException(
+                            "Unexpected output size of " + chunkDigest.algorithm
+                                    + " digest: " + actualDigestSize);
+                }
+            }
+        }
     }
 
     /**
@@ -514,17 +1010,63 @@ public class ApkSigningBlockUtils {
      * supplied {@link DataSource}, the data from the next {@link DataSource}
      * are NOT concatenated. Only the next call to get() will fetch from the
      * next {@link DataSource} in the input {@link DataSource} array.
+     *
+     * <p>To reduce the number of I/O operations, each call to get() reads up to
+     * {@link #MAX_CHUNKS_PER_READ} consecutive chunks of the same {@link DataSource} at once. The
+     * chunks are read into buffers, of which a few direct ones are pooled for reuse by all
+     * suppliers: the buffer of the returned {@link Chunks} must be handed back using
+     * {@link #release(Chunks)} once the chunks have been digested. Chunks of a
+     * {@link MappedFileDataSource} are not copied: they are supplied as views of the mapped file.
      */
-    private static class ChunkSupplier implements Supplier<ChunkSupplier.Chunk> {
+    static class ChunkSupplier implements Supplier<ChunkSupplier.Chunks> {
+        /**
+         * Maximum number of consecutive chunks read at once. Inputs with few chunks are read in
+         * fewer chunks at a time so that their chunks can still be digested in parallel.
+         */
+        private static final int MAX_CHUNKS_PER_READ = 4;
+
+        /**
+         * Size (in bytes) of the pooled buffers, which hold the largest possible read.
+         */
+        static final int BUFFER_SIZE_BYTES =
+                (int) (MAX_CHUNKS_PER_READ * CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
+
+        /**
+         * Maximum number of direct buffers allocated, all of which are retained by the pool once
+         * released. The direct memory of the pool is never freed, thus it is bounded regardless of
+         * the number of processors. Digesting threads beyond this number read into heap buffers,
+         * which are left to the garbage collector once released.
+         */
+        static final int MAX_POOLED_BUFFERS = Math.min(AvailableProcessors.get(), 8);
+
+        /**
+         * Direct buffers released by all suppliers. The most recently released buffer is reused
+         * first.
+         */
+        private static final Deque<ByteBuffer> sBufferPool = new ConcurrentLinkedDeque<>();
+        private static final AtomicInteger sDirectBufferCount = new AtomicInteger();
+
         private final DataSource[] dataSources;
-        private final int[] chunkCounts;
-        private final int totalChunkCount;
-        private final AtomicInteger nextIndex;
+        private final int chunksPerRead;
+        private final int[] readDataSourceIndices;
+        private final long[] readOffsets;
+        private final int[] readSizes;
+        private final int[] readFirstChunkIndices;
+        private final int readCount;
+        private final AtomicInteger nextRead;
+
+        ChunkSupplier(DataSource[] dataSources) {
+            this(dataSources, null);
+        }
 
-        private ChunkSupplier(DataSource[] dataSources) {
+        /**
+         * Constructs a supplier of the chunks of the provided data sources, skipping the chunks
+         * whose indices are marked in {@code skippedChunks}, if provided.
+         */
+        ChunkSupplier(DataSource[] dataSources, boolean[] skippedChunks) {
             this.dataSources = dataSources;
-            chunkCounts = new int[dataSources.length];
-            int totalChunkCount = 0;
+            int[] chunkCounts = new int[dataSources.length];
+            long totalChunkCount = 0;
             for (int i = 0; i < dataSources.length; i++) {
                 long chunkCount = getChunkCount(dataSources[i].size(),
                         CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
@@ -534,75 +1076,145 @@ public class ApkSigningBlockUtils {
                                     "Number of chunks in dataSource[%d] is greater than max int.",
                                     i));
                 }
-                chunkCounts[i] = (int)chunkCount;
-                totalChunkCount = (int) (totalChunkCount + chunkCount);
+                chunkCounts[i] = (int) chunkCount;
+                totalChunkCount += chunkCount;
+            }
+            chunksPerRead = (int) Math.max(1, Math.min(MAX_CHUNKS_PER_READ,
+                    totalChunkCount / (2L * AvailableProcessors.get())));
+
+            // Plan the reads up front: each read covers consecutive chunks of one data source
+            // which need to be digested.
+            int maxReadCount = (int) Math.min(Integer.MAX_VALUE, totalChunkCount);
+            int[] dataSourceIndices = new int[maxReadCount];
+            long[] offsets = new long[maxReadCount];
+            int[] sizes = new int[maxReadCount];
+            int[] firstChunkIndices = new int[maxReadCount];
+            int readCount = 0;
+            int chunkIndex = 0;
+            for (int i = 0; i < dataSources.length; i++) {
+                long dataSourceSize = dataSources[i].size();
+                int j = 0;
+                while (j < chunkCounts[i]) {
+                    if (skippedChunks != null && skippedChunks[chunkIndex + j]) {
+                        j++;
+                        continue;
+                    }
+                    int first = j;
+                    while (j < chunkCounts[i] && (j - first) < chunksPerRead
+                            && (skippedChunks == null || !skippedChunks[chunkIndex + j])) {
+                        j++;
+                    }
+                    long offset = first * CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES;
+                    long end = Math.min(j * CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES, dataSourceSize);
+                    dataSourceIndices[readCount] = i;
+                    offsets[readCount] = offset;
+                    sizes[readCount] = (int) (end - offset);
+                    firstChunkIndices[readCount] = chunkIndex + first;
+                    readCount++;
+                }
+                chunkIndex += chunkCounts[i];
             }
-            this.totalChunkCount = totalChunkCount;
-            nextIndex = new AtomicInteger(0);
+            this.readDataSourceIndices = dataSourceIndices;
+            this.readOffsets = offsets;
+            this.readSizes = sizes;
+            this.readFirstChunkIndices = firstChunkIndices;
+            this.readCount = readCount;
+            nextRead = new AtomicInteger(0);
+        }
+
+        private boolean hasChunksToSupply() {
+            return readCount > 0;
         }
 
         /**
-         * We map an integer index to the termination-adjusted dataSources 1MB chunks.
-         * Note that {@link Chunk}s could be less than 1MB, namely the last 1MB-aligned
-         * blocks in each input {@link DataSource} (unless the DataSource itself is
-         * 1MB-aligned).
+         * Returns the next run of consecutive chunks of one of the {@link DataSource}s, or
+         * {@code null} if there are no more chunks. Note that {@link Chunk}s could be less than
+         * 1MB, namely the last 1MB-aligned blocks in each input {@link DataSource} (unless the
+         * DataSource itself is 1MB-aligned).
          */
         @Override
-        public ChunkSupplier.Chunk get() {
-            int index = nextIndex.getAndIncrement();
-            if (index < 0 || index >= totalChunkCount) {
+        public ChunkSupplier.Chunks get() {
+            int index = nextRead.getAndIncrement();
+            if (index < 0 || index >= readCount) {
                 return null;
             }
 
-            int dataSourceIndex = 0;
-            long dataSourceChunkOffset = index;
-            for (; dataSourceIndex < dataSources.length; dataSourceIndex++) {
-                if (dataSourceChunkOffset < chunkCounts[dataSourceIndex]) {
-                    break;
+            final int size = readSizes[index];
+            DataSource dataSource = dataSources[readDataSourceIndices[index]];
+            if (dataSource instanceof MappedFileDataSource) {
+                try {
+                    return new Chunks(
+                            readFirstChunkIndices[index],
+                            dataSource.getByteBuffer(readOffsets[index], size),
+                            size,
+                            false);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to read chunk", e);
                 }
-                dataSourceChunkOffset -= chunkCounts[dataSourceIndex];
             }
-
-            long remainingSize = Math.min(
-                    dataSources[dataSourceIndex].size() -
-                            dataSourceChunkOffset * CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES,
-                    CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
-
-            final int size = (int)remainingSize;
-            final ByteBuffer buffer = ByteBuffer.allocate(size);
+            ByteBuffer buffer = acquireBuffer();
             try {
-                dataSources[dataSourceIndex].copyTo(
-                        dataSourceChunkOffset * CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES, size,
-                        buffer);
+                dataSource.copyTo(readOffsets[index], size, buffer);
             } catch (IOException e) {
+                release(buffer);
                 throw new IllegalStateException("Failed to read chunk", e);
             }
-            buffer.rewind();
+            buffer.flip();
+
+            return new Chunks(readFirstChunkIndices[index], buffer, size, true);
+        }
 
-            return new Chunk(index, buffer, size);
+        /**
+         * Hands the buffer of the provided chunks back to the pool for reuse, if it was taken
+         * from the pool.
+         */
+        void release(Chunks chunks) {
+            if (chunks.pooled) {
+                release(chunks.data);
+            }
         }
 
-        static class Chunk {
-            private final int chunkIndex;
-            private final ByteBuffer data;
-            private final int size;
+        private static ByteBuffer acquireBuffer() {
+            ByteBuffer buffer = sBufferPool.pollFirst();
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+            if (sDirectBufferCount.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+                return ByteBuffer.allocateDirect(BUFFER_SIZE_BYTES);
+            }
+            sDirectBufferCount.decrementAndGet();
+            return ByteBuffer.allocate(BUFFER_SIZE_BYTES);
+        }
 
-            private Chunk(int chunkIndex, ByteBuffer data, int size) {
-                this.chunkIndex = chunkIndex;
+        private static void release(ByteBuffer buffer) {
+            if (buffer.isDirect()) {
+                sBufferPool.offerFirst(buffer);
+            }
+        }
+
+        static class Chunks {
+            final int firstChunkIndex;
+            final ByteBuffer data;
+            final int size;
+            private final boolean pooled;
+
+            private Chunks(int firstChunkIndex, ByteBuffer data, int size, boolean pooled) {
+                this.firstChunkIndex = firstChunkIndex;
                 this.data = data;
                 this.size = size;
+                this.pooled = pooled;
             }
         }
     }
 
     @SuppressWarnings("ByteBufferBackingArray")
-    private static void computeApkVerityDigest(DataSource beforeCentralDir, DataSource centralDir,
-            DataSource eocd, Map<ContentDigestAlgorithm, byte[]> outputContentDigests)
+    private static void computeApkVerityDigest(RunnablesExecutor executor,
+            DataSource beforeCentralDir, DataSource centralDir, DataSource eocd,
+            Map<ContentDigestAlgorithm, byte[]> outputContentDigests)
             throws IOException, NoSuchAlgorithmException {
         ByteBuffer encoded = createVerityDigestBuffer(true);
-        // Use 0s as salt for now.  This also needs to be consistent in the fsverify header for
-        // kernel to use.
-        try (VerityTreeBuilder builder = new VerityTreeBuilder(new byte[8])) {
+        try (VerityTreeBuilder builder = new VerityTreeBuilder(VERITY_SALT, executor)) {
             byte[] rootHash = builder.generateVerityTreeRootHash(beforeCentralDir, centralDir,
                     eocd);
             encoded.put(rootHash);
@@ -611,6 +1223,22 @@ public class ApkSigningBlockUtils {
         }
     }
 
+    @SuppressWarnings("ByteBufferBackingArray")
+    private static void computeApkVerityDigest(RunnablesExecutor executor,
+            ByteBuffer beforeCentralDirBlockDigests, long beforeCentralDirSize,
+            DataSource centralDir, DataSource eocd,
+            Map<ContentDigestAlgorithm, byte[]> outputContentDigests)
+            throws IOException, NoSuchAlgorithmException {
+        ByteBuffer encoded = createVerityDigestBuffer(true);
+        try (VerityTreeBuilder builder = new VerityTreeBuilder(VERITY_SALT, executor)) {
+            byte[] rootHash = builder.generateVerityTreeRootHash(beforeCentralDirBlockDigests,
+                    beforeCentralDirSize, centralDir, eocd);
+            encoded.put(rootHash);
+            encoded.putLong(beforeCentralDirSize + centralDir.size() + eocd.size());
+            outputContentDigests.put(VERITY_CHUNKED_SHA256, encoded.array());
+        }
+    }
+
     private static ByteBuffer createVerityDigestBuffer(boolean includeSourceDataSize) {
         // FORMAT:
         // OFFSET       DATA TYPE  DESCRIPTION
@@ -653,6 +1281,44 @@ public class ApkSigningBlockUtils {
         }
     }
 
+    /**
+     * Returns the verity tree and digest of data which consists of {@code leadingDataSize} bytes,
+     * whose 4 KB blocks have already been digested without salt, followed by the contents of
+     * {@code remainingData}, like {@link #computeChunkVerityTreeAndDigest(DataSource)} of the
+     * whole data.
+     */
+    public static VerityTreeAndDigest computeChunkVerityTreeAndDigest(
+            ByteBuffer leadingDataDigests, long leadingDataSize, DataSource remainingData)
+            throws IOException, NoSuchAlgorithmException {
+        ByteBuffer encoded = createVerityDigestBuffer(false);
+        try (VerityTreeBuilder builder = new VerityTreeBuilder(null)) {
+            ByteBuffer tree =
+                    builder.generateVerityTree(leadingDataDigests, leadingDataSize, remainingData);
+            byte[] rootHash = builder.getRootHashFromTree(tree);
+            encoded.put(rootHash);
+            return new VerityTreeAndDigest(VERITY_CHUNKED_SHA256, encoded.array(), tree.array());
+        }
+    }
+
+    /**
+     * Returns the digest, as returned by {@link #computeChunkVerityTreeAndDigest(DataSource)}, of
+     * the provided data if the provided verity tree is its verity tree, or {@code null} if it is
+     * not. The tree of the data is verified without being held in memory.
+     */
+    @SuppressWarnings("ByteBufferBackingArray")
+    public static byte[] verifyChunkVerityTreeAndGetDigest(RunnablesExecutor executor,
+            DataSource dataSource, DataSource verityTree)
+            throws IOException, NoSuchAlgorithmException {
+        try (VerityTreeBuilder builder = new VerityTreeBuilder(null, executor)) {
+            if (!builder.verifyVerityTree(dataSource, verityTree)) {
+                return null;
+            }
+            ByteBuffer encoded = createVerityDigestBuffer(false);
+            encoded.put(builder.getRootHashFromTree(verityTree));
+            return encoded.array();
+        }
+    }
+
     private static long getChunkCount(long inputSize, long chunkSize) {
         return (inputSize + chunkSize - 1) / chunkSize;
     }
@@ -1041,12 +1707,8 @@ public class ApkSigningBlockUtils {
         }
 
         // Figure out which digest(s) to use for APK contents.
-        Set<ContentDigestAlgorithm> contentDigestAlgorithms = new HashSet<>(1);
-        for (SignerConfig signerConfig : signerConfigs) {
-            for (SignatureAlgorithm signatureAlgorithm : signerConfig.signatureAlgorithms) {
-                contentDigestAlgorithms.add(signatureAlgorithm.getContentDigestAlgorithm());
-            }
-        }
+        Set<ContentDigestAlgorithm> contentDigestAlgorithms =
+                getContentDigestAlgorithms(signerConfigs);
 
         // Compute digests of APK contents.
         Map<ContentDigestAlgorithm, byte[]> contentDigests; // digest algorithm ID -> digest
@@ -1068,6 +1730,50 @@ public class ApkSigningBlockUtils {
         return Pair.of(signerConfigs, contentDigests);
     }
 
+    /**
+     * Returns the content digest algorithms required by the signature algorithms of the provided
+     * {@code signerConfigs}.
+     */
+    public static Set<ContentDigestAlgorithm> getContentDigestAlgorithms(
+            List<SignerConfig> signerConfigs) {
+        Set<ContentDigestAlgorithm> contentDigestAlgorithms = new HashSet<>(1);
+        for (SignerConfig signerConfig : signerConfigs) {
+            for (SignatureAlgorithm signatureAlgorithm : signerConfig.signatureAlgorithms) {
+                contentDigestAlgorithms.add(signatureAlgorithm.getContentDigestAlgorithm());
+            }
+        }
+        return contentDigestAlgorithms;
+    }
+
+    /**
+     * Returns the subset of the provided {@code contentDigests} required by the signature
+     * algorithms of the provided {@code signerConfigs}.
+     *
+     * <p>This allows the content digests to be computed once for the union of all signature
+     * schemes being generated, while each scheme only reports the digests it actually uses.
+     *
+     * @throws IllegalArgumentException if no signer configs are provided, or if
+     *         {@code contentDigests} lacks the digest of an algorithm required by a signer
+     */
+    public static Map<ContentDigestAlgorithm, byte[]> getContentDigestsForSigners(
+            Map<ContentDigestAlgorithm, byte[]> contentDigests,
+            List<SignerConfig> signerConfigs) {
+        if (signerConfigs.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "No signer configs provided. At least one is required");
+        }
+        Map<ContentDigestAlgorithm, byte[]> result = new HashMap<>();
+        for (ContentDigestAlgorithm algorithm : getContentDigestAlgorithms(signerConfigs)) {
+            byte[] digest = contentDigests.get(algorithm);
+            if (digest == null) {
+                throw new IllegalArgumentException(
+                        algorithm + " content digest required by signers not provided");
+            }
+            result.put(algorithm, digest);
+        }
+        return result;
+    }
+
     /**
      * Returns the subset of signatures which are expected to be verified by at least one Android
      * platform version in the {@code [minSdkVersion, maxSdkVersion]} range. The returned result is
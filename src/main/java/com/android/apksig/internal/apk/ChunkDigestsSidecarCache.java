@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import static com.android.apksig.internal.apk.ApkSigningBlockUtils.CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES;
+
+import com.android.apksig.util.DataSinks;
+import com.android.apksig.util.DataSource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link ApkSigningBlockUtils.ChunkDigestsCache} which persists the digests of the 1 MB chunks of
+ * an APK file in a sidecar file, so that verifying the unchanged APK again only needs to digest a
+ * sample of its chunks.
+ *
+ * <p>The sidecar records the APK file's size, last modification time and file key, and the
+ * digest of its APK Signing Block; it is ignored if any of these differ. The digests of the
+ * chunks of the ZIP Central Directory and End of Central Directory, the first and last chunks of
+ * the ZIP entries, and a random sample of the other chunks of the ZIP entries are always computed
+ * again and compared against the recorded ones. If any of them differ, the sidecar is discarded
+ * and all chunks are digested again.
+ *
+ * <p>The recorded digests are trusted: a modification of the APK which preserves its size and
+ * last modification time, and which is not sampled, is not detected. Sidecar files must thus be
+ * stored in a directory which can only be written by trusted users.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class ChunkDigestsSidecarCache extends ApkSigningBlockUtils.ChunkDigestsCache {
+    private static final String SIDECAR_FILE_SUFFIX = ".chunkdigests";
+    private static final int MAGIC = 0x41434443; // "ACDC"
+    private static final int VERSION = 1;
+
+    /**
+     * Minimum number of chunks of the ZIP entries sampled, in addition to the first and last one.
+     */
+    private static final int MIN_SAMPLED_CHUNKS = 8;
+
+    /**
+     * One in every this many chunks of the ZIP entries is sampled, if that is more than
+     * {@link #MIN_SAMPLED_CHUNKS}.
+     */
+    private static final int SAMPLED_CHUNKS_RATIO = 64;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private final File mSidecarFile;
+    private final FileIdentity mApkIdentity;
+    private final byte[] mSigningBlockDigest;
+
+    private boolean mLoaded;
+    private long[] mSegmentSizes;
+    private Map<ContentDigestAlgorithm, byte[]> mChunkDigests;
+
+    private int[] mSampledChunks;
+
+    /**
+     * Constructs a new cache for the provided APK file backed by the provided sidecar file.
+     *
+     * @param sidecarFile file in which the digests of the chunks are persisted
+     * @param apkFile APK file whose chunks are digested. The identity of the file is determined
+     *        at construction time, before the file's contents are read.
+     * @param signingBlockDigest digest of the APK's APK Signing Block
+     */
+    public ChunkDigestsSidecarCache(File sidecarFile, File apkFile, byte[] signingBlockDigest)
+            throws IOException {
+        mSidecarFile = sidecarFile;
+        mApkIdentity = FileIdentity.of(apkFile);
+        mSigningBlockDigest = signingBlockDigest.clone();
+    }
+
+    /**
+     * Returns a new cache for the provided APK file backed by a sidecar file in the provided
+     * directory, which is created if needed. The name of the sidecar file is derived from the
+     * canonical path of the APK file.
+     *
+     * @param apkSigningBlock the APK's APK Signing Block
+     */
+    public static ChunkDigestsSidecarCache forDirectory(
+            File directory, File apkFile, DataSource apkSigningBlock)
+            throws IOException, NoSuchAlgorithmException {
+        Files.createDirectories(directory.toPath());
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        String sidecarFileName = ApkSigningBlockUtilsLite.toHex(md.digest(
+                apkFile.getCanonicalPath().getBytes(StandardCharsets.UTF_8)))
+                + SIDECAR_FILE_SUFFIX;
+        md.reset();
+        apkSigningBlock.feed(0, apkSigningBlock.size(), DataSinks.asDataSink(md));
+        return new ChunkDigestsSidecarCache(
+                new File(directory, sidecarFileName), apkFile, md.digest());
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        mSegmentSizes = null;
+        mChunkDigests = null;
+        mSampledChunks = null;
+        mLoaded = true;
+    }
+
+    @Override
+    boolean[] reuseChunkDigests(DataSource[] contents,
+            List<ApkSigningBlockUtils.ChunkDigests> chunkDigestsList) throws IOException {
+        mSampledChunks = null;
+        load();
+        if (mChunkDigests == null || !Arrays.equals(mSegmentSizes, getSegmentSizes(contents))) {
+            return null;
+        }
+        for (ApkSigningBlockUtils.ChunkDigests chunkDigests : chunkDigestsList) {
+            if (!mChunkDigests.containsKey(chunkDigests.algorithm)) {
+                return null;
+            }
+        }
+
+        int chunkCount = getChunkCount(mSegmentSizes);
+        int firstSegmentChunkCount = getChunkCount(mSegmentSizes[0]);
+        boolean[] reusedChunks = new boolean[chunkCount];
+        Arrays.fill(reusedChunks, 0, firstSegmentChunkCount, true);
+        if (firstSegmentChunkCount > 0) {
+            reusedChunks[0] = false;
+            reusedChunks[firstSegmentChunkCount - 1] = false;
+            int sampleCount = Math.max(MIN_SAMPLED_CHUNKS,
+                    firstSegmentChunkCount / SAMPLED_CHUNKS_RATIO);
+            for (int i = 0; i < sampleCount; i++) {
+                reusedChunks[sRandom.nextInt(firstSegmentChunkCount)] = false;
+            }
+        }
+
+        int sampledChunkCount = 0;
+        int[] sampledChunks = new int[chunkCount];
+        for (int chunkIndex = 0; chunkIndex < chunkCount; chunkIndex++) {
+            if (!reusedChunks[chunkIndex]) {
+                sampledChunks[sampledChunkCount++] = chunkIndex;
+                continue;
+            }
+            for (ApkSigningBlockUtils.ChunkDigests chunkDigests : chunkDigestsList) {
+                int offset = chunkDigests.getOffset(chunkIndex);
+                System.arraycopy(mChunkDigests.get(chunkDigests.algorithm), offset,
+                        chunkDigests.concatOfDigestsOfChunks, offset,
+                        chunkDigests.digestOutputSize);
+            }
+        }
+        mSampledChunks = Arrays.copyOf(sampledChunks, sampledChunkCount);
+        return reusedChunks;
+    }
+
+    @Override
+    boolean update(DataSource[] contents,
+            List<ApkSigningBlockUtils.ChunkDigests> chunkDigestsList) {
+        int[] sampledChunks = mSampledChunks;
+        mSampledChunks = null;
+        if (sampledChunks != null) {
+            for (ApkSigningBlockUtils.ChunkDigests chunkDigests : chunkDigestsList) {
+                byte[] recorded = mChunkDigests.get(chunkDigests.algorithm);
+                for (int chunkIndex : sampledChunks) {
+                    int offset = chunkDigests.getOffset(chunkIndex);
+                    if (!rangeEquals(recorded, chunkDigests.concatOfDigestsOfChunks, offset,
+                            chunkDigests.digestOutputSize)) {
+                        clear();
+                        mSidecarFile.delete();
+                        return false;
+                    }
+                }
+            }
+        }
+
+        long[] segmentSizes = getSegmentSizes(contents);
+        Map<ContentDigestAlgorithm, byte[]> chunkDigestsMap = new HashMap<>();
+        if (mChunkDigests != null && Arrays.equals(mSegmentSizes, segmentSizes)) {
+            chunkDigestsMap.putAll(mChunkDigests);
+        }
+        boolean modified = false;
+        for (ApkSigningBlockUtils.ChunkDigests chunkDigests : chunkDigestsList) {
+            byte[] previous = chunkDigestsMap.put(
+                    chunkDigests.algorithm, chunkDigests.concatOfDigestsOfChunks.clone());
+            modified |= (previous == null)
+                    || !Arrays.equals(previous, chunkDigests.concatOfDigestsOfChunks);
+        }
+        mSegmentSizes = segmentSizes;
+        mChunkDigests = chunkDigestsMap;
+        mLoaded = true;
+        if (modified) {
+            try {
+                store();
+            } catch (IOException e) {
+                // The sidecar only avoids recomputation on the next verification.
+                mSidecarFile.delete();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the recorded digests from the sidecar file, if it exists and matches the APK.
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mSidecarFile.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(mSidecarFile.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            if (!mApkIdentity.equals(FileIdentity.read(in))
+                    || !Arrays.equals(mSigningBlockDigest, readBytes(in))) {
+                return;
+            }
+            long[] segmentSizes = new long[in.readInt()];
+            for (int i = 0; i < segmentSizes.length; i++) {
+                segmentSizes[i] = in.readLong();
+            }
+            int chunkCount = getChunkCount(segmentSizes);
+            Map<ContentDigestAlgorithm, byte[]> chunkDigests = new HashMap<>();
+            int algorithmCount = in.readInt();
+            for (int i = 0; i < algorithmCount; i++) {
+                ContentDigestAlgorithm algorithm = ContentDigestAlgorithm.valueOf(in.readUTF());
+                byte[] digests = readBytes(in);
+                if (digests.length
+                        != 5 + (long) chunkCount * algorithm.getChunkDigestOutputSizeBytes()) {
+                    return;
+                }
+                chunkDigests.put(algorithm, digests);
+            }
+            mSegmentSizes = segmentSizes;
+            mChunkDigests = chunkDigests;
+        } catch (IOException | RuntimeException e) {
+            // Malformed or unreadable sidecar: digest all chunks.
+        }
+    }
+
+    /**
+     * Writes the recorded digests into the sidecar file, replacing it atomically.
+     */
+    private void store() throws IOException {
+        Path sidecar = mSidecarFile.toPath();
+        Path directory = sidecar.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(directory, mSidecarFile.getName(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                mApkIdentity.write(out);
+                writeBytes(out, mSigningBlockDigest);
+                out.writeInt(mSegmentSizes.length);
+                for (long segmentSize : mSegmentSizes) {
+                    out.writeLong(segmentSize);
+                }
+                out.writeInt(mChunkDigests.size());
+                for (Map.Entry<ContentDigestAlgorithm, byte[]> entry : mChunkDigests.entrySet()) {
+                    out.writeUTF(entry.getKey().name());
+                    writeBytes(out, entry.getValue());
+                }
+            }
+            Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static long[] getSegmentSizes(DataSource[] contents) {
+        long[] result = new long[contents.length];
+        for (int i = 0; i < contents.length; i++) {
+            result[i] = contents[i].size();
+        }
+        return result;
+    }
+
+    private static int getChunkCount(long[] segmentSizes) {
+        long result = 0;
+        for (long segmentSize : segmentSizes) {
+            result += getChunkCount(segmentSize);
+        }
+        return Math.toIntExact(result);
+    }
+
+    private static int getChunkCount(long segmentSize) {
+        return Math.toIntExact((segmentSize + CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES - 1)
+                / CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] b, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative length: " + length);
+        }
+        byte[] result = new byte[length];
+        in.readFully(result);
+        return result;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    /**
+     * Size, last modification time and file key (such as the device and inode numbers) of a file.
+     */
+    private static class FileIdentity {
+        private final long mSize;
+        private final long mLastModifiedMillis;
+        private final String mFileKey;
+
+        private FileIdentity(long size, long lastModifiedMillis, String fileKey) {
+            mSize = size;
+            mLastModifiedMillis = lastModifiedMillis;
+            mFileKey = fileKey;
+        }
+
+        private static FileIdentity of(File file) throws IOException {
+            BasicFileAttributes attributes =
+                    Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            Object fileKey = attributes.fileKey();
+            return new FileIdentity(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                    (fileKey != null) ? fileKey.toString() : "");
+        }
+
+        private static FileIdentity read(DataInputStream in) throws IOException {
+            return new FileIdentity(in.readLong(), in.readLong(), in.readUTF());
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(mSize);
+            out.writeLong(mLastModifiedMillis);
+            out.writeUTF(mFileKey);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileIdentity)) {
+                return false;
+            }
+            FileIdentity other = (FileIdentity) o;
+            return mSize == other.mSize
+                    && mLastModifiedMillis == other.mLastModifiedMillis
+                    && mFileKey.equals(other.mFileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(mSize) * 31 + Long.hashCode(mLastModifiedMillis);
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import com.android.apksig.internal.util.AvailableProcessors;
+import com.android.apksig.internal.util.MessageDigestSink;
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.MessageDigestProviders;
+import com.android.apksig.util.RunnablesExecutor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Digester of the ZIP entries section of an APK which computes, while the section is being
+ * output, the digests of its 1 MB chunks used by APK Signature Scheme v2 and v3 content digests
+ * and the digests of its 4 KB blocks which form the bottom level of the APK verity tree and,
+ * optionally, of the APK Signature Scheme v4 verity tree. This avoids reading the section back
+ * once it has been output.
+ *
+ * <p>The section's data must be fed, in order, into the sink returned by {@link #getDataSink()}.
+ * Complete chunks are digested in batches, whose chunks are digested concurrently by the
+ * {@link RunnablesExecutor} provided to the constructor. This class is not thread-safe.
+ */
+public class StreamingContentDigester {
+    private static final int CHUNK_SIZE_BYTES =
+            (int) ApkSigningBlockUtils.CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES;
+    private static final int VERITY_BLOCK_SIZE_BYTES =
+            ApkSigningBlockUtils.ANDROID_COMMON_PAGE_ALIGNMENT_BYTES;
+    private static final int VERITY_DIGEST_SIZE_BYTES =
+            ContentDigestAlgorithm.VERITY_CHUNKED_SHA256.getChunkDigestOutputSizeBytes();
+    private static final int VERITY_BLOCKS_PER_CHUNK = CHUNK_SIZE_BYTES / VERITY_BLOCK_SIZE_BYTES;
+
+    /**
+     * Maximum number of chunks digested concurrently by a multi-threaded executor. This bounds
+     * the data retained by the digester to this number of chunks.
+     */
+    private static final int MAX_CHUNKS_PER_BATCH = 8;
+
+    private final RunnablesExecutor mExecutor;
+    private final ContentDigestAlgorithm[] mChunkAlgorithms;
+    private final Map<ContentDigestAlgorithm, ByteArrayOutputStream> mChunkDigests =
+            new EnumMap<>(ContentDigestAlgorithm.class);
+    private final ByteArrayOutputStream mVerityLeafDigests;
+    private final ByteArrayOutputStream mV4VerityLeafDigests;
+    private final ByteBuffer mBatch;
+    private final ChunkDigester mTailDigester;
+    private final DataSink mDataSink;
+    private long mSize;
+
+    /**
+     * Constructs a new digester computing the digests required by the provided content digest
+     * algorithms. Algorithms other than {@link ContentDigestAlgorithm#CHUNKED_SHA256},
+     * {@link ContentDigestAlgorithm#CHUNKED_SHA512} and
+     * {@link ContentDigestAlgorithm#VERITY_CHUNKED_SHA256} are ignored.
+     */
+    public StreamingContentDigester(Set<ContentDigestAlgorithm> digestAlgorithms)
+            throws NoSuchAlgorithmException {
+        this(digestAlgorithms, false);
+    }
+
+    /**
+     * Constructs a new digester computing the digests required by the provided content digest
+     * algorithms and, if {@code v4VerityLeavesDigested} is {@code true}, the unsalted digests of
+     * the 4 KB blocks which form the bottom level of the APK Signature Scheme v4 verity tree.
+     */
+    public StreamingContentDigester(
+            Set<ContentDigestAlgorithm> digestAlgorithms, boolean v4VerityLeavesDigested)
+            throws NoSuchAlgorithmException {
+        this(digestAlgorithms, v4VerityLeavesDigested, RunnablesExecutor.SINGLE_THREADED);
+    }
+
+    /**
+     * Constructs a new digester like {@link #StreamingContentDigester(Set, boolean)}, which
+     * digests the chunks of the data on the threads of the provided executor. Unless the
+     * executor is {@link RunnablesExecutor#SINGLE_THREADED}, up to
+     * {@link #MAX_CHUNKS_PER_BATCH} chunks are buffered so that they can be digested
+     * concurrently.
+     */
+    public StreamingContentDigester(
+            Set<ContentDigestAlgorithm> digestAlgorithms,
+            boolean v4VerityLeavesDigested,
+            RunnablesExecutor executor)
+            throws NoSuchAlgorithmException {
+        mExecutor = executor;
+        List<ContentDigestAlgorithm> chunkAlgorithms = new ArrayList<>(2);
+        for (ContentDigestAlgorithm digestAlgorithm : digestAlgorithms) {
+            if (digestAlgorithm == ContentDigestAlgorithm.CHUNKED_SHA256
+                    || digestAlgorithm == ContentDigestAlgorithm.CHUNKED_SHA512) {
+                chunkAlgorithms.add(digestAlgorithm);
+                mChunkDigests.put(digestAlgorithm, new ByteArrayOutputStream());
+            }
+        }
+        mChunkAlgorithms = chunkAlgorithms.toArray(new ContentDigestAlgorithm[0]);
+        mVerityLeafDigests =
+                digestAlgorithms.contains(ContentDigestAlgorithm.VERITY_CHUNKED_SHA256)
+                        ? new ByteArrayOutputStream()
+                        : null;
+        mV4VerityLeafDigests = v4VerityLeavesDigested ? new ByteArrayOutputStream() : null;
+        int chunksPerBatch = (executor == RunnablesExecutor.SINGLE_THREADED)
+                ? 1
+                : Math.min(AvailableProcessors.get(), MAX_CHUNKS_PER_BATCH);
+        mBatch = ByteBuffer.allocate(chunksPerBatch * CHUNK_SIZE_BYTES);
+        // Also checks that the digest algorithms are available before any data is consumed.
+        mTailDigester = new ChunkDigester();
+        mDataSink = new DataSink() {
+            @Override
+            public void consume(byte[] buf, int offset, int length) throws IOException {
+                consume(ByteBuffer.wrap(buf, offset, length));
+            }
+
+            @Override
+            public void consume(ByteBuffer buf) throws IOException {
+                mSize += buf.remaining();
+                try {
+                    consumeData(buf);
+                } catch (DigestException e) {
+                    throw new IOException("Failed to digest ZIP entries", e);
+                }
+            }
+        };
+    }
+
+    /** Returns the sink into which the digested data must be fed. */
+    public DataSink getDataSink() {
+        return mDataSink;
+    }
+
+    /** Returns the number of bytes digested so far. */
+    public long size() {
+        return mSize;
+    }
+
+    /** Returns {@code true} if this digester computes the digests of chunks for the algorithm. */
+    boolean isDigesting(ContentDigestAlgorithm digestAlgorithm) {
+        if (digestAlgorithm == ContentDigestAlgorithm.VERITY_CHUNKED_SHA256) {
+            return mVerityLeafDigests != null;
+        }
+        return mChunkDigests.containsKey(digestAlgorithm);
+    }
+
+    /**
+     * Returns the concatenated digests of the 1 MB chunks of the data digested so far followed by
+     * {@code paddingSize} zero bytes.
+     */
+    byte[] getChunkDigests(ContentDigestAlgorithm digestAlgorithm, int paddingSize)
+            throws DigestException {
+        if (!isDigesting(digestAlgorithm)
+                || digestAlgorithm == ContentDigestAlgorithm.VERITY_CHUNKED_SHA256) {
+            throw new IllegalArgumentException("Chunks not digested using " + digestAlgorithm);
+        }
+        digestCompleteChunksOfBatch();
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] digestsOfCompleteChunks = mChunkDigests.get(digestAlgorithm).toByteArray();
+        result.write(digestsOfCompleteChunks, 0, digestsOfCompleteChunks.length);
+
+        // Digest the incomplete chunk along with the padding without modifying the state of this
+        // digester, so that more data may still be consumed afterwards.
+        int digestSize = digestAlgorithm.getChunkDigestOutputSizeBytes();
+        ByteBuffer tail = getTail();
+        long remaining = (long) tail.remaining() + paddingSize;
+        while (remaining > 0) {
+            int chunkSize = (int) Math.min(remaining, CHUNK_SIZE_BYTES);
+            byte[][] chunkDigests = new byte[mChunkAlgorithms.length][];
+            for (int i = 0; i < mChunkAlgorithms.length; i++) {
+                chunkDigests[i] =
+                        new byte[mChunkAlgorithms[i].getChunkDigestOutputSizeBytes()];
+            }
+            mTailDigester.digestChunk(tail, chunkSize, chunkDigests, 0);
+            for (int i = 0; i < mChunkAlgorithms.length; i++) {
+                if (mChunkAlgorithms[i] == digestAlgorithm) {
+                    result.write(chunkDigests[i], 0, digestSize);
+                }
+            }
+            remaining -= chunkSize;
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Returns the concatenated salted digests of the 4 KB blocks of the data digested so far
+     * followed by {@code paddingSize} zero bytes. The final block is padded with zeros.
+     */
+    ByteBuffer getVerityLeafDigests(int paddingSize) throws DigestException {
+        if (mVerityLeafDigests == null) {
+            throw new IllegalStateException("Verity tree leaves not digested");
+        }
+        return getLeafDigests(mVerityLeafDigests, ApkSigningBlockUtils.VERITY_SALT, paddingSize);
+    }
+
+    /**
+     * Returns {@code true} if this digester computes the unsalted digests of the 4 KB blocks used
+     * by the APK Signature Scheme v4 verity tree.
+     */
+    public boolean isDigestingV4VerityLeaves() {
+        return mV4VerityLeafDigests != null;
+    }
+
+    /**
+     * Returns the concatenated unsalted digests of the 4 KB blocks of the data digested so far
+     * followed by {@code paddingSize} zero bytes. The final block is padded with zeros.
+     */
+    public ByteBuffer getV4VerityLeafDigests(int paddingSize) throws DigestException {
+        if (mV4VerityLeafDigests == null) {
+            throw new IllegalStateException("V4 verity tree leaves not digested");
+        }
+        return getLeafDigests(mV4VerityLeafDigests, null, paddingSize);
+    }
+
+    private ByteBuffer getLeafDigests(
+            ByteArrayOutputStream leafDigests, byte[] salt, int paddingSize)
+            throws DigestException {
+        digestCompleteChunksOfBatch();
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] digestsOfCompleteBlocks = leafDigests.toByteArray();
+        result.write(digestsOfCompleteBlocks, 0, digestsOfCompleteBlocks.length);
+
+        ByteBuffer tail = getTail();
+        long remaining = (long) tail.remaining() + paddingSize;
+        int blockCount =
+                (int) ((remaining + VERITY_BLOCK_SIZE_BYTES - 1) / VERITY_BLOCK_SIZE_BYTES);
+        byte[] tailLeafDigests = new byte[blockCount * VERITY_DIGEST_SIZE_BYTES];
+        MessageDigest md =
+                (salt != null) ? mTailDigester.mVerityMd : mTailDigester.mV4VerityMd;
+        mTailDigester.digestVerityBlocks(tail, blockCount, md, salt, tailLeafDigests, 0);
+        result.write(tailLeafDigests, 0, tailLeafDigests.length);
+        return ByteBuffer.wrap(result.toByteArray());
+    }
+
+    /** Returns the data consumed after the last complete chunk. */
+    private ByteBuffer getTail() {
+        ByteBuffer tail = mBatch.duplicate();
+        tail.flip();
+        return tail;
+    }
+
+    private void consumeData(ByteBuffer buf) throws DigestException {
+        while (buf.hasRemaining()) {
+            if ((mBatch.position() == 0) && (buf.remaining() >= mBatch.capacity())) {
+                // Digest whole batches directly from the provided buffer.
+                ByteBuffer batch = buf.slice();
+                batch.limit(mBatch.capacity());
+                digestChunks(batch);
+                buf.position(buf.position() + mBatch.capacity());
+                continue;
+            }
+            int size = Math.min(buf.remaining(), mBatch.remaining());
+            ByteBuffer part = buf.slice();
+            part.limit(size);
+            mBatch.put(part);
+            buf.position(buf.position() + size);
+            if (!mBatch.hasRemaining()) {
+                mBatch.flip();
+                digestChunks(mBatch);
+                mBatch.clear();
+            }
+        }
+    }
+
+    /**
+     * Digests the complete chunks of the current batch, retaining only the data of the incomplete
+     * chunk which follows them.
+     */
+    private void digestCompleteChunksOfBatch() throws DigestException {
+        int completeChunksSize = mBatch.position() - (mBatch.position() % CHUNK_SIZE_BYTES);
+        if (completeChunksSize == 0) {
+            return;
+        }
+        ByteBuffer completeChunks = getTail();
+        completeChunks.limit(completeChunksSize);
+        digestChunks(completeChunks);
+        mBatch.flip();
+        mBatch.position(completeChunksSize);
+        mBatch.compact();
+    }
+
+    /**
+     * Digests the provided complete chunks on the threads of the executor and appends the
+     * resulting digests to those of this digester.
+     */
+    private void digestChunks(ByteBuffer chunks) throws DigestException {
+        int chunkCount = chunks.remaining() / CHUNK_SIZE_BYTES;
+        byte[][] chunkDigests = new byte[mChunkAlgorithms.length][];
+        for (int i = 0; i < mChunkAlgorithms.length; i++) {
+            chunkDigests[i] =
+                    new byte[chunkCount * mChunkAlgorithms[i].getChunkDigestOutputSizeBytes()];
+        }
+        int leafDigestsSize = chunkCount * VERITY_BLOCKS_PER_CHUNK * VERITY_DIGEST_SIZE_BYTES;
+        byte[] verityLeafDigests = (mVerityLeafDigests != null) ? new byte[leafDigestsSize] : null;
+        byte[] v4VerityLeafDigests =
+                (mV4VerityLeafDigests != null) ? new byte[leafDigestsSize] : null;
+
+        AtomicInteger nextChunkIndex = new AtomicInteger();
+        try {
+            mExecutor.execute(() -> () -> {
+                ChunkDigester digester;
+                try {
+                    digester = new ChunkDigester();
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int chunkIndex = nextChunkIndex.getAndIncrement();
+                        chunkIndex < chunkCount;
+                        chunkIndex = nextChunkIndex.getAndIncrement()) {
+                    ByteBuffer chunk = chunks.duplicate();
+                    chunk.position(chunks.position() + chunkIndex * CHUNK_SIZE_BYTES);
+                    chunk.limit(chunk.position() + CHUNK_SIZE_BYTES);
+                    try {
+                        digester.digestChunk(chunk.duplicate(), CHUNK_SIZE_BYTES, chunkDigests,
+                                chunkIndex);
+                        int leafDigestsOffset =
+                                chunkIndex * VERITY_BLOCKS_PER_CHUNK * VERITY_DIGEST_SIZE_BYTES;
+                        if (verityLeafDigests != null) {
+                            digester.digestVerityBlocks(chunk.duplicate(),
+                                    VERITY_BLOCKS_PER_CHUNK, digester.mVerityMd,
+                                    ApkSigningBlockUtils.VERITY_SALT, verityLeafDigests,
+                                    leafDigestsOffset);
+                        }
+                        if (v4VerityLeafDigests != null) {
+                            digester.digestVerityBlocks(chunk.duplicate(),
+                                    VERITY_BLOCKS_PER_CHUNK, digester.mV4VerityMd, null,
+                                    v4VerityLeafDigests, leafDigestsOffset);
+                        }
+                    } catch (DigestException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof DigestException) {
+                throw (DigestException) e.getCause();
+            }
+            throw e;
+        }
+
+        for (int i = 0; i < mChunkAlgorithms.length; i++) {
+            mChunkDigests.get(mChunkAlgorithms[i]).write(
+                    chunkDigests[i], 0, chunkDigests[i].length);
+        }
+        if (verityLeafDigests != null) {
+            mVerityLeafDigests.write(verityLeafDigests, 0, verityLeafDigests.length);
+        }
+        if (v4VerityLeafDigests != null) {
+            mV4VerityLeafDigests.write(v4VerityLeafDigests, 0, v4VerityLeafDigests.length);
+        }
+    }
+
+    /**
+     * Message digests of one thread, which digest chunks and their 4 KB blocks.
+     */
+    private class ChunkDigester {
+        private final byte[] mChunkPrefix = new byte[5];
+        private final MessageDigest[] mChunkMds;
+        private final MessageDigestSink mChunkMdSink;
+        private final MessageDigest mVerityMd;
+        private final MessageDigest mV4VerityMd;
+
+        private ChunkDigester() throws NoSuchAlgorithmException {
+            mChunkMds = new MessageDigest[mChunkAlgorithms.length];
+            for (int i = 0; i < mChunkAlgorithms.length; i++) {
+                mChunkMds[i] = MessageDigestProviders.getInstance(
+                        mChunkAlgorithms[i].getJcaMessageDigestAlgorithm());
+            }
+            mChunkMdSink = new MessageDigestSink(mChunkMds);
+            mVerityMd = (mVerityLeafDigests != null) ? createVerityMessageDigest() : null;
+            mV4VerityMd = (mV4VerityLeafDigests != null) ? createVerityMessageDigest() : null;
+            mChunkPrefix[0] = (byte) 0xa5;
+        }
+
+        /**
+         * Digests the provided chunk data, followed by zeros up to {@code chunkSize}, and stores
+         * the digest for each algorithm at position {@code chunkIndex} of {@code output}.
+         */
+        private void digestChunk(ByteBuffer data, int chunkSize, byte[][] output, int chunkIndex)
+                throws DigestException {
+            mChunkPrefix[1] = (byte) (chunkSize & 0xff);
+            mChunkPrefix[2] = (byte) ((chunkSize >>> 8) & 0xff);
+            mChunkPrefix[3] = (byte) ((chunkSize >>> 16) & 0xff);
+            mChunkPrefix[4] = (byte) ((chunkSize >>> 24) & 0xff);
+            mChunkMdSink.consume(mChunkPrefix, 0, mChunkPrefix.length);
+            int size = Math.min(data.remaining(), chunkSize);
+            ByteBuffer chunk = data.slice();
+            chunk.limit(size);
+            mChunkMdSink.consume(chunk);
+            data.position(data.position() + size);
+            int paddingSize = chunkSize - size;
+            if (paddingSize > 0) {
+                mChunkMdSink.consume(new byte[paddingSize], 0, paddingSize);
+            }
+            for (int i = 0; i < mChunkAlgorithms.length; i++) {
+                int digestSize = mChunkAlgorithms[i].getChunkDigestOutputSizeBytes();
+                int actualDigestSize =
+                        mChunkMds[i].digest(output[i], chunkIndex * digestSize, digestSize);
+                if (actualDigestSize != digestSize) {
+                    throw new DigestException(
+                            "Unexpected output size of " + mChunkAlgorithms[i] + " digest: "
+                                    + actualDigestSize);
+                }
+            }
+        }
+
+        /**
+         * Digests {@code blockCount} 4 KB blocks of the provided data, the last of which are
+         * padded with zeros, prepending the salt, if any, to each block. The digests are stored in
+         * {@code output} starting at {@code outputOffset}.
+         */
+        private void digestVerityBlocks(ByteBuffer data, int blockCount, MessageDigest md,
+                byte[] salt, byte[] output, int outputOffset) throws DigestException {
+            for (int i = 0; i < blockCount; i++) {
+                if (salt != null) {
+                    md.update(salt);
+                }
+                int size = Math.min(data.remaining(), VERITY_BLOCK_SIZE_BYTES);
+                ByteBuffer block = data.slice();
+                block.limit(size);
+                md.update(block);
+                data.position(data.position() + size);
+                if (size < VERITY_BLOCK_SIZE_BYTES) {
+                    md.update(new byte[VERITY_BLOCK_SIZE_BYTES - size]);
+                }
+                int digestSize = md.digest(
+                        output,
+                        outputOffset + i * VERITY_DIGEST_SIZE_BYTES,
+                        VERITY_DIGEST_SIZE_BYTES);
+                if (digestSize != VERITY_DIGEST_SIZE_BYTES) {
+                    throw new DigestException("Unexpected verity digest size: " + digestSize);
+                }
+            }
+        }
+    }
+
+    private static MessageDigest createVerityMessageDigest() throws NoSuchAlgorithmException {
+        return MessageDigestProviders.getInstance(
+                ContentDigestAlgorithm.VERITY_CHUNKED_SHA256.getJcaMessageDigestAlgorithm());
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk.v1;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Cache of the digests of the uncompressed data of JAR entries covered by the v1 signature,
+ * persisted in a file, so that re-signing an APK does not need to inflate and digest the entries
+ * which did not change since it was last signed.
+ *
+ * <p>Digests are keyed by the entry's name, the CRC-32, compressed size and uncompressed size
+ * recorded in its Local File Header, and the digest algorithm. Entries whose Local File Header
+ * does not record these values, because they are stored in a Data Descriptor instead, must not be
+ * looked up.
+ *
+ * <p>The recorded digests are trusted: an entry whose data was modified without changing its
+ * name, sizes and CRC-32 is not detected. As CRC-32 is not a cryptographic hash, this cache must
+ * only be used for APKs built from trusted sources, and the cache file must only be writable by
+ * trusted users.
+ *
+ * <p>Only the digests looked up or recorded since this cache was opened are persisted by
+ * {@link #store()}, so that the file does not grow with the entries of previous versions of the
+ * APK. A cache file is thus meant to be used for a single APK.
+ *
+ * <p>This class is thread-safe.
+ */
+public class JarEntryDigestsCache {
+    private static final int MAGIC = 0x4a454443; // "JEDC"
+    private static final int VERSION = 1;
+
+    private final File mFile;
+
+    private boolean mLoaded;
+    private Map<Key, byte[]> mRecordedDigests = new HashMap<>();
+    private final Map<Key, byte[]> mUsedDigests = new LinkedHashMap<>();
+    private boolean mModified;
+
+    /**
+     * Constructs a new cache backed by the provided file. The file is read when the first digest
+     * is looked up.
+     */
+    public JarEntryDigestsCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the recorded digest of the uncompressed data of the entry identified by the
+     * provided key, or {@code null} if no digest is recorded.
+     */
+    public synchronized byte[] get(Key key) {
+        load();
+        byte[] digest = mRecordedDigests.get(key);
+        if (digest == null) {
+            return null;
+        }
+        mUsedDigests.put(key, digest);
+        return digest.clone();
+    }
+
+    /**
+     * Records the digest of the uncompressed data of the entry identified by the provided key.
+     */
+    public synchronized void put(Key key, byte[] digest) {
+        load();
+        byte[] copy = digest.clone();
+        mRecordedDigests.put(key, copy);
+        mUsedDigests.put(key, copy);
+        mModified = true;
+    }
+
+    /**
+     * Writes the digests looked up or recorded since this cache was opened into the cache file,
+     * replacing it atomically. The file is left untouched if all digests were found in it, and is
+     * deleted if it cannot be written, as it only avoids recomputation on the next signing.
+     */
+    public synchronized void store() {
+        if (!mModified && mUsedDigests.size() == mRecordedDigests.size()) {
+            return;
+        }
+        try {
+            Path file = mFile.toPath();
+            Path directory = file.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            Path tmp = Files.createTempFile(directory, mFile.getName(), ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(mUsedDigests.size());
+                    for (Map.Entry<Key, byte[]> entry : mUsedDigests.entrySet()) {
+                        entry.getKey().write(out);
+                        writeBytes(out, entry.getValue());
+                    }
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            mRecordedDigests = new HashMap<>(mUsedDigests);
+            mModified = false;
+        } catch (IOException e) {
+            mFile.delete();
+        }
+    }
+
+    /**
+     * Reads the recorded digests from the cache file, if it exists.
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.isFile()) {
+            return;
+        }
+        Map<Key, byte[]> recordedDigests = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(mFile.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                recordedDigests.put(Key.read(in), readBytes(in));
+            }
+        } catch (IOException | RuntimeException e) {
+            // Malformed or unreadable cache file: digest all entries.
+            return;
+        }
+        mRecordedDigests = recordedDigests;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readUnsignedShort();
+        byte[] result = new byte[length];
+        in.readFully(result);
+        return result;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeShort(value.length);
+        out.write(value);
+    }
+
+    /**
+     * Identity of the uncompressed data of a JAR entry and of the algorithm used to digest it.
+     */
+    public static class Key {
+        private final String mEntryName;
+        private final long mCrc32;
+        private final long mCompressedSize;
+        private final long mUncompressedSize;
+        private final String mJcaDigestAlgorithm;
+
+        public Key(
+                String entryName,
+                long crc32,
+                long compressedSize,
+                long uncompressedSize,
+                String jcaDigestAlgorithm) {
+            mEntryName = entryName;
+            mCrc32 = crc32;
+            mCompressedSize = compressedSize;
+            mUncompressedSize = uncompressedSize;
+            mJcaDigestAlgorithm = jcaDigestAlgorithm;
+        }
+
+        private static Key read(DataInputStream in) throws IOException {
+            return new Key(in.readUTF(), in.readLong(), in.readLong(), in.readLong(),
+                    in.readUTF());
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeUTF(mEntryName);
+            out.writeLong(mCrc32);
+            out.writeLong(mCompressedSize);
+            out.writeLong(mUncompressedSize);
+            out.writeUTF(mJcaDigestAlgorithm);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mCrc32 == other.mCrc32
+                    && mCompressedSize == other.mCompressedSize
+                    && mUncompressedSize == other.mUncompressedSize
+                    && mEntryName.equals(other.mEntryName)
+                    && mJcaDigestAlgorithm.equals(other.mJcaDigestAlgorithm);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mEntryName, mCrc32, mCompressedSize, mUncompressedSize,
+                    mJcaDigestAlgorithm);
+        }
+    }
+}
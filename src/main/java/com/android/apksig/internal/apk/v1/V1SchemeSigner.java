@@ -30,6 +30,7 @@ import com.android.apksig.internal.jar.ManifestWriter;
 import com.android.apksig.internal.jar.SignatureFileWriter;
 import com.android.apksig.internal.pkcs7.AlgorithmIdentifier;
 import com.android.apksig.internal.util.Pair;
+import com.android.apksig.util.MessageDigestProviders;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -181,7 +182,7 @@ public abstract class V1SchemeSigner {
     private static MessageDigest getMessageDigestInstance(DigestAlgorithm digestAlgorithm)
             throws NoSuchAlgorithmException {
         String jcaAlgorithm = digestAlgorithm.getJcaMessageDigestAlgorithm();
-        return MessageDigest.getInstance(jcaAlgorithm);
+        return MessageDigestProviders.getInstance(jcaAlgorithm);
     }
 
     /**
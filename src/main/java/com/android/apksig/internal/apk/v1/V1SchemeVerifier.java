@@ -51,6 +51,7 @@ import com.android.apksig.internal.zip.LocalFileRecord;
 import com.android.apksig.internal.zip.ZipUtils;
 import com.android.apksig.util.DataSinks;
 import com.android.apksig.util.DataSource;
+import com.android.apksig.util.MessageDigestProviders;
 import com.android.apksig.zip.ZipFormatException;
 
 import java.io.IOException;
@@ -1400,7 +1401,7 @@ public abstract class V1SchemeVerifier {
 
     private static MessageDigest getMessageDigest(String algorithm)
             throws NoSuchAlgorithmException {
-        return MessageDigest.getInstance(algorithm);
+        return MessageDigestProviders.getInstance(algorithm);
     }
 
     private static byte[] digest(String algorithm, byte[] data, int offset, int length)
@@ -177,6 +177,31 @@ public abstract class V2SchemeSigner {
                 digestInfo.getSecond());
     }
 
+    /**
+     * Generates the APK Signature Scheme v2 block using the provided precomputed
+     * {@code contentDigests}, which must contain a digest for every content digest algorithm
+     * required by the {@code signerConfigs}. This allows the content digests to be shared with
+     * other signature schemes instead of recomputing them over the APK.
+     *
+     * @throws IllegalArgumentException if no signer configs are provided, or if
+     *         {@code contentDigests} lacks the digest of an algorithm required by a signer
+     */
+    public static ApkSigningBlockUtils.SigningSchemeBlockAndDigests
+            generateApkSignatureSchemeV2Block(
+                    Map<ContentDigestAlgorithm, byte[]> contentDigests,
+                    List<SignerConfig> signerConfigs,
+                    boolean v3SigningEnabled,
+                    List<byte[]> preservedV2SignerBlocks)
+                    throws InvalidKeyException, NoSuchAlgorithmException, SignatureException {
+        Map<ContentDigestAlgorithm, byte[]> signerContentDigests =
+                ApkSigningBlockUtils.getContentDigestsForSigners(contentDigests, signerConfigs);
+        return new ApkSigningBlockUtils.SigningSchemeBlockAndDigests(
+                generateApkSignatureSchemeV2Block(
+                        signerConfigs, signerContentDigests, v3SigningEnabled,
+                        preservedV2SignerBlocks),
+                signerContentDigests);
+    }
+
     private static Pair<byte[], Integer> generateApkSignatureSchemeV2Block(
             List<SignerConfig> signerConfigs,
             Map<ContentDigestAlgorithm, byte[]> contentDigests,
@@ -96,6 +96,27 @@ public abstract class V2SchemeVerifier {
             int maxSdkVersion)
             throws IOException, ApkFormatException, NoSuchAlgorithmException,
             ApkSigningBlockUtils.SignatureNotFoundException {
+        return verify(executor, apk, zipSections, supportedApkSigSchemeNames, foundSigSchemeIds,
+                minSdkVersion, maxSdkVersion, null);
+    }
+
+    /**
+     * Verifies the provided APK's APK Signature Scheme v2 signatures like
+     * {@link #verify(RunnablesExecutor, DataSource, ApkUtils.ZipSections, Map, Set, int, int)},
+     * reusing the digests of chunks of the APK recorded in the provided
+     * {@code chunkDigestsCache}, if any.
+     */
+    public static ApkSigningBlockUtils.Result verify(
+            RunnablesExecutor executor,
+            DataSource apk,
+            ApkUtils.ZipSections zipSections,
+            Map<Integer, String> supportedApkSigSchemeNames,
+            Set<Integer> foundSigSchemeIds,
+            int minSdkVersion,
+            int maxSdkVersion,
+            ApkSigningBlockUtils.ChunkDigestsCache chunkDigestsCache)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException,
+            ApkSigningBlockUtils.SignatureNotFoundException {
         ApkSigningBlockUtils.Result result = new ApkSigningBlockUtils.Result(
                 ApkSigningBlockUtils.VERSION_APK_SIGNATURE_SCHEME_V2);
         SignatureInfo signatureInfo =
@@ -118,7 +139,8 @@ public abstract class V2SchemeVerifier {
                 foundSigSchemeIds,
                 minSdkVersion,
                 maxSdkVersion,
-                result);
+                result,
+                chunkDigestsCache);
         return result;
     }
 
@@ -141,7 +163,8 @@ public abstract class V2SchemeVerifier {
             Set<Integer> foundSigSchemeIds,
             int minSdkVersion,
             int maxSdkVersion,
-            ApkSigningBlockUtils.Result result)
+            ApkSigningBlockUtils.Result result,
+            ApkSigningBlockUtils.ChunkDigestsCache chunkDigestsCache)
             throws IOException, NoSuchAlgorithmException {
         Set<ContentDigestAlgorithm> contentDigestsToVerify = new HashSet<>(1);
         parseSigners(
@@ -155,8 +178,8 @@ public abstract class V2SchemeVerifier {
         if (result.containsErrors()) {
             return;
         }
-        ApkSigningBlockUtils.verifyIntegrity(
-                executor, beforeApkSigningBlock, centralDir, eocd, contentDigestsToVerify, result);
+        ApkSigningBlockUtils.verifyIntegrity(executor, beforeApkSigningBlock, centralDir, eocd,
+                contentDigestsToVerify, result, chunkDigestsCache);
         if (!result.containsErrors()) {
             result.verified = true;
         }
@@ -72,6 +72,7 @@ public class V3SchemeSigner {
     private final int mBlockId;
     private final OptionalInt mOptionalV31MinSdkVersion;
     private final boolean mRotationTargetsDevRelease;
+    private final Map<ContentDigestAlgorithm, byte[]> mContentDigests;
 
     private V3SchemeSigner(DataSource beforeCentralDir,
             DataSource centralDir,
@@ -80,7 +81,8 @@ public class V3SchemeSigner {
             RunnablesExecutor executor,
             int blockId,
             OptionalInt optionalV31MinSdkVersion,
-            boolean rotationTargetsDevRelease) {
+            boolean rotationTargetsDevRelease,
+            Map<ContentDigestAlgorithm, byte[]> contentDigests) {
         mBeforeCentralDir = beforeCentralDir;
         mCentralDir = centralDir;
         mEocd = eocd;
@@ -89,6 +91,7 @@ public class V3SchemeSigner {
         mBlockId = blockId;
         mOptionalV31MinSdkVersion = optionalV31MinSdkVersion;
         mRotationTargetsDevRelease = rotationTargetsDevRelease;
+        mContentDigests = contentDigests;
     }
 
     /**
@@ -227,11 +230,19 @@ public class V3SchemeSigner {
      */
     public SigningSchemeBlockAndDigests generateApkSignatureSchemeV3BlockAndDigests()
             throws IOException, InvalidKeyException, NoSuchAlgorithmException, SignatureException {
-        Pair<List<SignerConfig>, Map<ContentDigestAlgorithm, byte[]>> digestInfo =
-                ApkSigningBlockUtils.computeContentDigests(
-                        mExecutor, mBeforeCentralDir, mCentralDir, mEocd, mSignerConfigs);
+        Map<ContentDigestAlgorithm, byte[]> contentDigests;
+        if (mContentDigests != null) {
+            contentDigests =
+                    ApkSigningBlockUtils.getContentDigestsForSigners(
+                            mContentDigests, mSignerConfigs);
+        } else {
+            contentDigests =
+                    ApkSigningBlockUtils.computeContentDigests(
+                            mExecutor, mBeforeCentralDir, mCentralDir, mEocd, mSignerConfigs)
+                            .getSecond();
+        }
         return new SigningSchemeBlockAndDigests(
-                generateApkSignatureSchemeV3Block(digestInfo.getSecond()), digestInfo.getSecond());
+                generateApkSignatureSchemeV3Block(contentDigests), contentDigests);
     }
 
     private Pair<byte[], Integer> generateApkSignatureSchemeV3Block(
@@ -433,6 +444,7 @@ public class V3SchemeSigner {
         private int mBlockId = V3SchemeConstants.APK_SIGNATURE_SCHEME_V3_BLOCK_ID;
         private OptionalInt mOptionalV31MinSdkVersion = OptionalInt.empty();
         private boolean mRotationTargetsDevRelease = false;
+        private Map<ContentDigestAlgorithm, byte[]> mContentDigests;
 
         /**
          * Instantiates a new {@code Builder} with an APK's {@code beforeCentralDir}, {@code
@@ -513,6 +525,20 @@ public class V3SchemeSigner {
             return this;
         }
 
+        /**
+         * Sets the precomputed content digests of the APK to be used for the signer blocks instead
+         * of computing them from the APK's {@code beforeCentralDir}, {@code centralDir}, and
+         * {@code eocd}.
+         *
+         * <p>The provided digests must include a digest for each content digest algorithm used by
+         * the {@code signerConfigs}; this allows a single digest pass over the APK to be shared by
+         * the V2, V3.0, and V3.1 signing blocks as well as the source stamp.
+         */
+        public Builder setContentDigests(Map<ContentDigestAlgorithm, byte[]> contentDigests) {
+            mContentDigests = contentDigests;
+            return this;
+        }
+
         /**
          * Returns a new {@link V3SchemeSigner} built with the configuration provided to this
          * {@code Builder}.
@@ -525,7 +551,8 @@ public class V3SchemeSigner {
                     mExecutor,
                     mBlockId,
                     mOptionalV31MinSdkVersion,
-                    mRotationTargetsDevRelease);
+                    mRotationTargetsDevRelease,
+                    mContentDigests);
         }
     }
 }
@@ -71,6 +71,7 @@ import java.util.TreeMap;
  */
 public class V3SchemeVerifier {
     private final RunnablesExecutor mExecutor;
+    private final ApkSigningBlockUtils.ChunkDigestsCache mChunkDigestsCache;
     private final DataSource mApk;
     private final ApkUtils.ZipSections mZipSections;
     private final ApkSigningBlockUtils.Result mResult;
@@ -85,6 +86,7 @@ public class V3SchemeVerifier {
 
     private V3SchemeVerifier(
             RunnablesExecutor executor,
+            ApkSigningBlockUtils.ChunkDigestsCache chunkDigestsCache,
             DataSource apk,
             ApkUtils.ZipSections zipSections,
             Set<ContentDigestAlgorithm> contentDigestsToVerify,
@@ -95,6 +97,7 @@ public class V3SchemeVerifier {
             OptionalInt optionalRotationMinSdkVersion,
             boolean fullVerification) {
         mExecutor = executor;
+        mChunkDigestsCache = chunkDigestsCache;
         mApk = apk;
         mZipSections = zipSections;
         mContentDigestsToVerify = contentDigestsToVerify;
@@ -176,7 +179,7 @@ public class V3SchemeVerifier {
             return mResult;
         }
         ApkSigningBlockUtils.verifyIntegrity(mExecutor, beforeApkSigningBlock, centralDir, eocd,
-                mContentDigestsToVerify, mResult);
+                mContentDigestsToVerify, mResult, mChunkDigestsCache);
 
         // make sure that the v3 signers cover the entire targeted sdk version ranges and that the
         // longest SigningCertificateHistory, if present, corresponds to the newest platform
@@ -625,6 +628,7 @@ public class V3SchemeVerifier {
     /** Builder of {@link V3SchemeVerifier} instances. */
     public static class Builder {
         private RunnablesExecutor mExecutor = RunnablesExecutor.SINGLE_THREADED;
+        private ApkSigningBlockUtils.ChunkDigestsCache mChunkDigestsCache;
         private DataSource mApk;
         private ApkUtils.ZipSections mZipSections;
         private ByteBuffer mApkSignatureSchemeV3Block;
@@ -669,6 +673,16 @@ public class V3SchemeVerifier {
             return this;
         }
 
+        /**
+         * Sets the cache of the digests of the APK's chunks to be reused, and updated, when
+         * verifying the APK's content digests.
+         */
+        public Builder setChunkDigestsCache(
+                ApkSigningBlockUtils.ChunkDigestsCache chunkDigestsCache) {
+            mChunkDigestsCache = chunkDigestsCache;
+            return this;
+        }
+
         /**
          * Sets the V3 {code blockId} to be verified in the provided APK.
          *
@@ -765,6 +779,7 @@ public class V3SchemeVerifier {
 
             V3SchemeVerifier verifier = new V3SchemeVerifier(
                     mExecutor,
+                    mChunkDigestsCache,
                     mApk,
                     mZipSections,
                     mContentDigestsToVerify,
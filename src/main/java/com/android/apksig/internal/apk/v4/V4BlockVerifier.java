@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk.v4;
+
+import com.android.apksig.internal.apk.ApkSigningBlockUtils;
+import com.android.apksig.internal.util.VerityTreeBlockVerifier;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Verifier of individual 4 KB blocks of an APK against its APK Signature Scheme v4 signature
+ * file, for clients which read the APK incrementally.
+ *
+ * <p>The signatures of the file and the root hash of the verity tree it contains are verified
+ * once, when the verifier is created. Each block is then verified on demand by digesting it and
+ * walking the path of the tree from the block to the root, see {@link VerityTreeBlockVerifier}.
+ *
+ * <p>The signature file is kept open until the verifier is closed. The caller is responsible for
+ * checking that the signers returned by {@link #getSignerCertificates()} are the expected ones.
+ */
+public class V4BlockVerifier implements Closeable {
+    private final RandomAccessFile mSignatureFile;
+    private final VerityTreeBlockVerifier mTreeVerifier;
+    private final List<X509Certificate> mSignerCertificates;
+
+    private V4BlockVerifier(RandomAccessFile signatureFile, VerityTreeBlockVerifier treeVerifier,
+            List<X509Certificate> signerCertificates) {
+        mSignatureFile = signatureFile;
+        mTreeVerifier = treeVerifier;
+        mSignerCertificates = signerCertificates;
+    }
+
+    /**
+     * Returns a verifier of the blocks of an APK of {@code apkSize} bytes against the provided v4
+     * signature file, retaining up to {@link VerityTreeBlockVerifier#DEFAULT_CACHED_PAGES}
+     * verified tree pages in memory.
+     *
+     * @throws SignatureException if a signature of the file does not verify, or if the file does
+     *         not contain a verity tree which matches its signed root hash
+     */
+    public static V4BlockVerifier create(long apkSize, File v4SignatureFile)
+            throws IOException, NoSuchAlgorithmException, SignatureException {
+        return create(apkSize, v4SignatureFile, VerityTreeBlockVerifier.DEFAULT_CACHED_PAGES);
+    }
+
+    /**
+     * Returns a verifier of the blocks of an APK of {@code apkSize} bytes against the provided v4
+     * signature file, retaining up to {@code cachedPages} verified tree pages in memory.
+     *
+     * @throws SignatureException if a signature of the file does not verify, or if the file does
+     *         not contain a verity tree which matches its signed root hash
+     */
+    public static V4BlockVerifier create(long apkSize, File v4SignatureFile, int cachedPages)
+            throws IOException, NoSuchAlgorithmException, SignatureException {
+        V4SchemeVerifier.SignatureFile signatureFile =
+                V4SchemeVerifier.readSignatureFile(v4SignatureFile);
+        if (signatureFile.treeOffset < 0) {
+            throw new SignatureException("Signature file does not contain a verity tree");
+        }
+        V4Signature.HashingInfo hashingInfo =
+                V4Signature.HashingInfo.fromByteArray(signatureFile.signature.hashingInfo);
+        if (hashingInfo.hashAlgorithm != V4Signature.HASHING_ALGORITHM_SHA256
+                || hashingInfo.log2BlockSize != V4Signature.LOG2_BLOCK_SIZE_4096_BYTES) {
+            throw new SignatureException("Unsupported hashing algorithm: "
+                    + hashingInfo.hashAlgorithm + ", log2 block size: "
+                    + hashingInfo.log2BlockSize);
+        }
+
+        ApkSigningBlockUtils.Result result = new ApkSigningBlockUtils.Result(
+                ApkSigningBlockUtils.VERSION_APK_SIGNATURE_SCHEME_V4);
+        V4SchemeVerifier.verifySignatures(signatureFile.signature, hashingInfo, apkSize, result);
+        if (result.containsErrors()) {
+            throw new SignatureException("Failed to verify v4 signatures: " + result.getErrors());
+        }
+        List<X509Certificate> signerCertificates = new ArrayList<>(result.signers.size());
+        for (ApkSigningBlockUtils.Result.SignerInfo signer : result.signers) {
+            signerCertificates.addAll(signer.certs);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(v4SignatureFile, "r");
+        try {
+            DataSource tree = DataSources.asDataSource(
+                    file, signatureFile.treeOffset, signatureFile.treeSize);
+            VerityTreeBlockVerifier treeVerifier;
+            try {
+                treeVerifier = new VerityTreeBlockVerifier(hashingInfo.salt,
+                        hashingInfo.rawRootHash, tree, apkSize, cachedPages);
+            } catch (IllegalArgumentException e) {
+                throw new SignatureException("Verity tree does not verify", e);
+            }
+            V4BlockVerifier verifier = new V4BlockVerifier(file, treeVerifier,
+                    Collections.unmodifiableList(signerCertificates));
+            file = null;
+            return verifier;
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    /** Returns the certificates of the signers of the v4 signature file. */
+    public List<X509Certificate> getSignerCertificates() {
+        return mSignerCertificates;
+    }
+
+    /** Returns the number of 4 KB blocks of the APK. */
+    public long getBlockCount() {
+        return mTreeVerifier.getBlockCount();
+    }
+
+    /**
+     * Returns {@code true} if the block with the provided index of the APK is valid. Only the
+     * block is read from {@code apk}.
+     */
+    public boolean isBlockValid(DataSource apk, long blockIndex) throws IOException {
+        return mTreeVerifier.isBlockValid(apk, blockIndex);
+    }
+
+    /**
+     * Returns {@code true} if the provided contents of the block with the provided index of the
+     * APK are valid.
+     */
+    public boolean isBlockValid(long blockIndex, ByteBuffer block) throws IOException {
+        return mTreeVerifier.isBlockValid(blockIndex, block);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSignatureFile.close();
+    }
+}
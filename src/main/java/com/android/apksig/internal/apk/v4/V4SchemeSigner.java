@@ -118,7 +118,21 @@ public abstract class V4SchemeSigner {
     public static void generateV4Signature(
         DataSource apkContent, SignerConfig signerConfig, File outputFile)
         throws IOException, InvalidKeyException, NoSuchAlgorithmException {
-      Pair<V4Signature, byte[]> pair = generateV4Signature(apkContent, signerConfig);
+      generateV4Signature(apkContent, signerConfig, null, null, outputFile);
+    }
+
+    /**
+     * Generate v4 signature for a given APK like
+     * {@link #generateV4Signature(DataSource, SignerConfig, File)}, using the provided content
+     * digests and hash tree of the APK unless {@code null}. Write the serialized data to output
+     * file.
+     */
+    public static void generateV4Signature(
+        DataSource apkContent, SignerConfig signerConfig, Map<Integer, byte[]> apkDigests,
+        ApkSigningBlockUtils.VerityTreeAndDigest verityContentDigestInfo, File outputFile)
+        throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+      Pair<V4Signature, byte[]> pair = generateV4Signature(apkContent, signerConfig, apkDigests,
+              verityContentDigestInfo);
       try (final OutputStream output = new FileOutputStream(outputFile)) {
         pair.getFirst().writeTo(output);
         V4Signature.writeBytes(output, pair.getSecond());
@@ -133,6 +147,24 @@ public abstract class V4SchemeSigner {
             DataSource apkContent,
             SignerConfig signerConfig)
             throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+        return generateV4Signature(apkContent, signerConfig, null, null);
+    }
+
+    /**
+     * Generate v4 signature and hash tree for a given APK.
+     *
+     * @param apkDigests strongest supported content digest of each of the v2/v3/v3.1 blocks of
+     *        the APK, as returned by {@link #pickBestDigest(Map)}, or {@code null} to obtain them
+     *        from the signature blocks of the APK
+     * @param verityContentDigestInfo hash tree and root hash of the APK, or {@code null} to
+     *        compute them from the APK
+     */
+    public static Pair<V4Signature, byte[]> generateV4Signature(
+            DataSource apkContent,
+            SignerConfig signerConfig,
+            Map<Integer, byte[]> apkDigests,
+            ApkSigningBlockUtils.VerityTreeAndDigest verityContentDigestInfo)
+            throws IOException, InvalidKeyException, NoSuchAlgorithmException {
         // Salt has to stay empty for fs-verity compatibility.
         final byte[] salt = null;
         // Not used by apksigner.
@@ -142,11 +174,15 @@ public abstract class V4SchemeSigner {
 
         // Obtaining the strongest supported digest for each of the v2/v3/v3.1 blocks
         // (CHUNKED_SHA256 or CHUNKED_SHA512).
-        final Map<Integer, byte[]> apkDigests = getApkDigests(apkContent);
+        if (apkDigests == null) {
+            apkDigests = getApkDigests(apkContent);
+        }
 
         // Obtaining the merkle tree and the root hash in verity format.
-        ApkSigningBlockUtils.VerityTreeAndDigest verityContentDigestInfo =
-                ApkSigningBlockUtils.computeChunkVerityTreeAndDigest(apkContent);
+        if (verityContentDigestInfo == null) {
+            verityContentDigestInfo =
+                    ApkSigningBlockUtils.computeChunkVerityTreeAndDigest(apkContent);
+        }
 
         final ContentDigestAlgorithm verityContentDigestAlgorithm =
                 verityContentDigestInfo.contentDigestAlgorithm;
@@ -399,6 +435,33 @@ public abstract class V4SchemeSigner {
         return bestDigest;
     }
 
+    /**
+     * Returns the strongest content digest supported by v4 among the provided content digests of
+     * a v2/v3/v3.1 signer.
+     *
+     * @throws SignatureException if none of the content digests is supported
+     */
+    public static byte[] pickBestDigest(Map<ContentDigestAlgorithm, byte[]> contentDigests)
+            throws SignatureException {
+        int bestAlgorithmOrder = -1;
+        byte[] bestDigest = null;
+        for (Map.Entry<ContentDigestAlgorithm, byte[]> contentDigest : contentDigests.entrySet()) {
+            final ContentDigestAlgorithm contentDigestAlgorithm = contentDigest.getKey();
+            if (!isSupported(contentDigestAlgorithm, true)) {
+                continue;
+            }
+            final int algorithmOrder = digestAlgorithmSortingOrder(contentDigestAlgorithm);
+            if (bestAlgorithmOrder < algorithmOrder) {
+                bestAlgorithmOrder = algorithmOrder;
+                bestDigest = contentDigest.getValue();
+            }
+        }
+        if (bestDigest == null) {
+            throw new SignatureException("Failed to find a supported digest");
+        }
+        return bestDigest;
+    }
+
     public static int digestAlgorithmSortingOrder(ContentDigestAlgorithm contentDigestAlgorithm) {
         switch (contentDigestAlgorithm) {
             case CHUNKED_SHA256:
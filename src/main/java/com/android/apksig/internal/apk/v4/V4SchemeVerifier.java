@@ -26,11 +26,15 @@ import com.android.apksig.internal.apk.SignatureAlgorithm;
 import com.android.apksig.internal.util.GuaranteedEncodedFormX509Certificate;
 import com.android.apksig.internal.util.X509CertificateUtils;
 import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.util.RunnablesExecutor;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -67,12 +71,22 @@ public abstract class V4SchemeVerifier {
      */
     public static ApkSigningBlockUtils.Result verify(DataSource apk, File v4SignatureFile)
             throws IOException, NoSuchAlgorithmException {
-        final V4Signature signature;
-        final byte[] tree;
-        try (InputStream input = new FileInputStream(v4SignatureFile)) {
-            signature = V4Signature.readFrom(input);
-            tree = V4Signature.readBytes(input);
-        }
+        return verify(apk, v4SignatureFile, RunnablesExecutor.MULTI_THREADED);
+    }
+
+    /**
+     * Verifies the V4Signature file against an APK like {@link #verify(DataSource, File)}, using
+     * the provided executor to compute the hash tree of the APK.
+     *
+     * <p>The hash tree of the APK is compared with the verity tree contained in the file as it is
+     * computed, stopping at the first mismatch, without holding either tree in memory.
+     */
+    public static ApkSigningBlockUtils.Result verify(DataSource apk, File v4SignatureFile,
+            RunnablesExecutor executor) throws IOException, NoSuchAlgorithmException {
+        final SignatureFile signatureFile = readSignatureFile(v4SignatureFile);
+        final V4Signature signature = signatureFile.signature;
+        final long treeOffset = signatureFile.treeOffset;
+        final long treeSize = signatureFile.treeSize;
 
         final ApkSigningBlockUtils.Result result = new ApkSigningBlockUtils.Result(
                 ApkSigningBlockUtils.VERSION_APK_SIGNATURE_SCHEME_V4);
@@ -83,14 +97,84 @@ public abstract class V4SchemeVerifier {
             return result;
         }
 
+        V4Signature.HashingInfo hashingInfo = V4Signature.HashingInfo.fromByteArray(
+                signature.hashingInfo);
+
+        final ApkSigningBlockUtils.Result.SignerInfo signerInfo =
+                verifySignatures(signature, hashingInfo, apk.size(), result);
+        if (result.containsErrors()) {
+            return result;
+        }
+
+        // Check if the root hash and the tree are correct.
+        if (treeOffset < 0) {
+            verifyRootHash(apk, signerInfo, hashingInfo.rawRootHash);
+        } else {
+            try (RandomAccessFile file = new RandomAccessFile(v4SignatureFile, "r")) {
+                verifyRootHashAndTree(apk, signerInfo, hashingInfo.rawRootHash,
+                        DataSources.asDataSource(file, treeOffset, treeSize), executor);
+            }
+        }
+        if (!result.containsErrors()) {
+            result.verified = true;
+        }
+
+        return result;
+    }
+
+    /**
+     * V4Signature read from a file, along with the location of the verity tree following it in
+     * the file.
+     */
+    static class SignatureFile {
+        final V4Signature signature;
+        /** Offset of the verity tree in the file, or {@code -1} if the file contains no tree. */
+        final long treeOffset;
+        final long treeSize;
+
+        private SignatureFile(V4Signature signature, long treeOffset, long treeSize) {
+            this.signature = signature;
+            this.treeOffset = treeOffset;
+            this.treeSize = treeSize;
+        }
+    }
+
+    /**
+     * Reads the V4Signature from the provided file and locates the verity tree which follows it,
+     * without reading the tree. A truncated tree is treated as no tree.
+     */
+    static SignatureFile readSignatureFile(File v4SignatureFile) throws IOException {
+        final V4Signature signature;
+        long treeOffset = -1;
+        long treeSize = -1;
+        try (InputStream input = new FileInputStream(v4SignatureFile)) {
+            signature = V4Signature.readFrom(input);
+            try {
+                treeSize = V4Signature.readIntLE(input) & 0xffffffffL;
+                treeOffset = 4/*version*/ + V4Signature.bytesSize(signature.hashingInfo)
+                        + V4Signature.bytesSize(signature.signingInfos) + 4/*tree size*/;
+            } catch (EOFException ignored) {
+                // No verity tree.
+            }
+        }
+        if (treeOffset >= 0 && treeOffset + treeSize > v4SignatureFile.length()) {
+            treeOffset = -1;
+        }
+        return new SignatureFile(signature, treeOffset, treeSize);
+    }
+
+    /**
+     * Verifies the signatures of the provided V4Signature of an APK of {@code apkSize} bytes and
+     * adds their signers to the {@code result}. Returns the primary signer.
+     */
+    static ApkSigningBlockUtils.Result.SignerInfo verifySignatures(V4Signature signature,
+            V4Signature.HashingInfo hashingInfo, long apkSize, ApkSigningBlockUtils.Result result)
+            throws IOException, NoSuchAlgorithmException {
         if (signature.version != V4Signature.CURRENT_VERSION) {
             result.addWarning(Issue.V4_SIG_VERSION_NOT_CURRENT, signature.version,
                     V4Signature.CURRENT_VERSION);
         }
 
-        V4Signature.HashingInfo hashingInfo = V4Signature.HashingInfo.fromByteArray(
-                signature.hashingInfo);
-
         V4Signature.SigningInfos signingInfos = V4Signature.SigningInfos.fromByteArray(
                 signature.signingInfos);
 
@@ -99,12 +183,12 @@ public abstract class V4SchemeVerifier {
         // Verify the primary signature over signedData.
         {
             V4Signature.SigningInfo signingInfo = signingInfos.signingInfo;
-            final byte[] signedData = V4Signature.getSignedData(apk.size(), hashingInfo,
+            final byte[] signedData = V4Signature.getSignedData(apkSize, hashingInfo,
                     signingInfo);
             signerInfo = parseAndVerifySignatureBlock(signingInfo, signedData);
             result.signers.add(signerInfo);
             if (result.containsErrors()) {
-                return result;
+                return signerInfo;
             }
         }
 
@@ -112,21 +196,14 @@ public abstract class V4SchemeVerifier {
         for (V4Signature.SigningInfoBlock signingInfoBlock : signingInfos.signingInfoBlocks) {
             V4Signature.SigningInfo signingInfo = V4Signature.SigningInfo.fromByteArray(
                     signingInfoBlock.signingInfo);
-            final byte[] signedData = V4Signature.getSignedData(apk.size(), hashingInfo,
+            final byte[] signedData = V4Signature.getSignedData(apkSize, hashingInfo,
                     signingInfo);
             result.signers.add(parseAndVerifySignatureBlock(signingInfo, signedData));
             if (result.containsErrors()) {
-                return result;
+                return signerInfo;
             }
         }
-
-        // Check if the root hash and the tree are correct.
-        verifyRootHashAndTree(apk, signerInfo, hashingInfo.rawRootHash, tree);
-        if (!result.containsErrors()) {
-            result.verified = true;
-        }
-
-        return result;
+        return signerInfo;
     }
 
     /**
@@ -234,15 +311,14 @@ public abstract class V4SchemeVerifier {
         return result;
     }
 
-    private static void verifyRootHashAndTree(DataSource apkContent,
-            ApkSigningBlockUtils.Result.SignerInfo signerInfo, byte[] expectedDigest,
-            byte[] expectedTree) throws IOException, NoSuchAlgorithmException {
+    private static void verifyRootHash(DataSource apkContent,
+            ApkSigningBlockUtils.Result.SignerInfo signerInfo, byte[] expectedDigest)
+            throws IOException, NoSuchAlgorithmException {
         ApkSigningBlockUtils.VerityTreeAndDigest actualContentDigestInfo =
                 ApkSigningBlockUtils.computeChunkVerityTreeAndDigest(apkContent);
 
         ContentDigestAlgorithm algorithm = actualContentDigestInfo.contentDigestAlgorithm;
         final byte[] actualDigest = actualContentDigestInfo.rootHash;
-        final byte[] actualTree = actualContentDigestInfo.tree;
 
         if (!Arrays.equals(expectedDigest, actualDigest)) {
             signerInfo.addError(
@@ -252,11 +328,30 @@ public abstract class V4SchemeVerifier {
                     toHex(actualDigest));
             return;
         }
-        // Only check verity tree if it is not empty
-        if (expectedTree != null && !Arrays.equals(expectedTree, actualTree)) {
+
+        signerInfo.verifiedContentDigests.put(algorithm, actualDigest);
+    }
+
+    private static void verifyRootHashAndTree(DataSource apkContent,
+            ApkSigningBlockUtils.Result.SignerInfo signerInfo, byte[] expectedDigest,
+            DataSource expectedTree, RunnablesExecutor executor)
+            throws IOException, NoSuchAlgorithmException {
+        final ContentDigestAlgorithm algorithm = ContentDigestAlgorithm.VERITY_CHUNKED_SHA256;
+        // The digest of the APK is only known once the tree is verified: it is the root hash of
+        // the tree.
+        final byte[] actualDigest = ApkSigningBlockUtils.verifyChunkVerityTreeAndGetDigest(
+                executor, apkContent, expectedTree);
+        if (actualDigest == null) {
             signerInfo.addError(
                     ApkVerifier.Issue.V4_SIG_APK_TREE_DID_NOT_VERIFY,
                     algorithm,
+                    toHex(expectedDigest));
+            return;
+        }
+        if (!Arrays.equals(expectedDigest, actualDigest)) {
+            signerInfo.addError(
+                    ApkVerifier.Issue.V4_SIG_APK_ROOT_DID_NOT_VERIFY,
+                    algorithm,
                     toHex(expectedDigest),
                     toHex(actualDigest));
             return;
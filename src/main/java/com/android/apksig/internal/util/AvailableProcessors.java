@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Determines the number of processors available to this process, taking into account the CPU
+ * quota of the Linux control group (cgroup v1 or v2) the process belongs to. Older JVMs report
+ * all the processors of the host from {@link Runtime#availableProcessors()} even when a container
+ * is limited to a fraction of them.
+ */
+public abstract class AvailableProcessors {
+    private static final Path PROC_SELF_CGROUP = Paths.get("/proc/self/cgroup");
+    private static final Path CGROUP_ROOT = Paths.get("/sys/fs/cgroup");
+
+    /**
+     * CPU limit of the cgroup, determined once as it is read from the file system.
+     */
+    private static volatile Integer sCgroupCpuLimit;
+
+    private AvailableProcessors() {}
+
+    /**
+     * Returns the number of processors available to this process, at least {@code 1}.
+     */
+    public static int get() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        Integer cgroupLimit = sCgroupCpuLimit;
+        if (cgroupLimit == null) {
+            cgroupLimit = getCgroupCpuLimit();
+            sCgroupCpuLimit = cgroupLimit;
+        }
+        if (cgroupLimit > 0) {
+            processors = Math.min(processors, cgroupLimit);
+        }
+        return Math.max(1, processors);
+    }
+
+    /**
+     * Returns the number of processors the process is limited to by its cgroup CPU quota, or
+     * {@code -1} if the process is not limited or the limit cannot be determined.
+     */
+    private static int getCgroupCpuLimit() {
+        try {
+            String cgroupV2Path = null;
+            String cgroupV1CpuPath = null;
+            if (Files.isReadable(PROC_SELF_CGROUP)) {
+                List<String> lines = Files.readAllLines(PROC_SELF_CGROUP, StandardCharsets.UTF_8);
+                for (String line : lines) {
+                    // Format: hierarchy-ID:controller-list:cgroup-path
+                    String[] fields = line.split(":", 3);
+                    if (fields.length != 3) {
+                        continue;
+                    }
+                    if ("0".equals(fields[0]) && fields[1].isEmpty()) {
+                        cgroupV2Path = fields[2];
+                    } else {
+                        for (String controller : fields[1].split(",")) {
+                            if ("cpu".equals(controller)) {
+                                cgroupV1CpuPath = fields[2];
+                            }
+                        }
+                    }
+                }
+            }
+
+            // cgroup v2: cpu.max contains "$MAX $PERIOD", where $MAX may be "max".
+            for (Path cpuMax : new Path[] {
+                    resolve(CGROUP_ROOT, cgroupV2Path, "cpu.max"),
+                    CGROUP_ROOT.resolve("cpu.max")}) {
+                if (cpuMax != null && Files.isReadable(cpuMax)) {
+                    return parseCgroupV2CpuMax(readFirstLine(cpuMax));
+                }
+            }
+
+            // cgroup v1: quota and period are stored in separate files.
+            for (Path cpuDir : new Path[] {
+                    resolve(CGROUP_ROOT.resolve("cpu"), cgroupV1CpuPath, null),
+                    CGROUP_ROOT.resolve("cpu"),
+                    CGROUP_ROOT.resolve("cpu,cpuacct")}) {
+                if (cpuDir == null) {
+                    continue;
+                }
+                Path quota = cpuDir.resolve("cpu.cfs_quota_us");
+                Path period = cpuDir.resolve("cpu.cfs_period_us");
+                if (Files.isReadable(quota) && Files.isReadable(period)) {
+                    return getCpuLimit(
+                            Long.parseLong(readFirstLine(quota)),
+                            Long.parseLong(readFirstLine(period)));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Fall back to the processors reported by the runtime.
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of processors specified by the contents of a cgroup v2 {@code cpu.max}
+     * file, or {@code -1} if unlimited.
+     */
+    static int parseCgroupV2CpuMax(String cpuMax) {
+        String[] fields = cpuMax.trim().split("\\s+");
+        if (fields.length < 1 || "max".equals(fields[0])) {
+            return -1;
+        }
+        long period = (fields.length > 1) ? Long.parseLong(fields[1]) : 100000;
+        return getCpuLimit(Long.parseLong(fields[0]), period);
+    }
+
+    /**
+     * Returns the number of processors corresponding to the provided CFS quota and period,
+     * rounded up, or {@code -1} if the quota is unlimited.
+     */
+    static int getCpuLimit(long quota, long period) {
+        if (quota <= 0 || period <= 0) {
+            return -1;
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (quota + period - 1) / period));
+    }
+
+    private static Path resolve(Path root, String cgroupPath, String fileName) {
+        if (cgroupPath == null || "/".equals(cgroupPath)) {
+            return null;
+        }
+        Path dir = root.resolve(cgroupPath.startsWith("/") ? cgroupPath.substring(1) : cgroupPath);
+        return (fileName != null) ? dir.resolve(fileName) : dir;
+    }
+
+    private static String readFirstLine(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty()) {
+            throw new IOException("Empty file: " + file);
+        }
+        return lines.get(0).trim();
+    }
+}
@@ -23,6 +23,9 @@ import java.io.RandomAccessFile;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * {@link DataSource} backed by a {@link FileChannel} for {@link RandomAccessFile} access.
@@ -31,6 +34,20 @@ public class FileChannelDataSource implements DataSource {
 
     private static final int MAX_READ_CHUNK_SIZE = 1024 * 1024;
 
+    /**
+     * Maximum number of direct read buffers allocated, all of which are retained by the pool once
+     * released. Concurrent {@code feed} calls beyond this number read into heap buffers, which are
+     * left to the garbage collector.
+     */
+    static final int MAX_POOLED_READ_BUFFERS = Math.min(AvailableProcessors.get(), 8);
+
+    /**
+     * Direct buffers of {@link #MAX_READ_CHUNK_SIZE} bytes reused by {@code feed} calls of all
+     * threads. The most recently released buffer is reused first.
+     */
+    private static final Deque<ByteBuffer> sReadBufferPool = new ConcurrentLinkedDeque<>();
+    private static final AtomicInteger sDirectReadBufferCount = new AtomicInteger();
+
     private final FileChannel mChannel;
     private final long mOffset;
     private final long mSize;
@@ -97,29 +114,29 @@ public class FileChannelDataSource implements DataSource {
             return;
         }
 
+        if (sink instanceof RandomAccessFileDataSink
+                && ((RandomAccessFileDataSink) sink).getFile().getChannel() != mChannel) {
+            // Let the operating system copy the data between the files.
+            ((RandomAccessFileDataSink) sink).transferFrom(mChannel, mOffset + offset, size);
+            return;
+        }
+
         long chunkOffsetInFile = mOffset + offset;
         long remaining = size;
-        ByteBuffer buf = ByteBuffer.allocateDirect((int) Math.min(remaining, MAX_READ_CHUNK_SIZE));
-
-        while (remaining > 0) {
-            int chunkSize = (int) Math.min(remaining, buf.capacity());
-            int chunkRemaining = chunkSize;
-            buf.limit(chunkSize);
-            synchronized (mChannel) {
-                mChannel.position(chunkOffsetInFile);
-                while (chunkRemaining > 0) {
-                    int read = mChannel.read(buf);
-                    if (read < 0) {
-                        throw new IOException("Unexpected EOF encountered");
-                    }
-                    chunkRemaining -= read;
-                }
+        ByteBuffer buf = acquireReadBuffer();
+        try {
+            while (remaining > 0) {
+                int chunkSize = (int) Math.min(remaining, buf.capacity());
+                buf.clear();
+                buf.limit(chunkSize);
+                readFully(chunkOffsetInFile, buf);
+                buf.flip();
+                sink.consume(buf);
+                chunkOffsetInFile += chunkSize;
+                remaining -= chunkSize;
             }
-            buf.flip();
-            sink.consume(buf);
-            buf.clear();
-            chunkOffsetInFile += chunkSize;
-            remaining -= chunkSize;
+        } finally {
+            releaseReadBuffer(buf);
         }
     }
 
@@ -134,22 +151,12 @@ public class FileChannelDataSource implements DataSource {
             throw new BufferOverflowException();
         }
 
-        long offsetInFile = mOffset + offset;
-        int remaining = size;
         int prevLimit = dest.limit();
         try {
-            // FileChannel.read(ByteBuffer) reads up to dest.remaining(). Thus, we need to adjust
-            // the buffer's limit to avoid reading more than size bytes.
+            // FileChannel.read(ByteBuffer, long) reads up to dest.remaining(). Thus, we need to
+            // adjust the buffer's limit to avoid reading more than size bytes.
             dest.limit(dest.position() + size);
-            while (remaining > 0) {
-                int chunkSize;
-                synchronized (mChannel) {
-                    mChannel.position(offsetInFile);
-                    chunkSize = mChannel.read(dest);
-                }
-                offsetInFile += chunkSize;
-                remaining -= chunkSize;
-            }
+            readFully(mOffset + offset, dest);
         } finally {
             dest.limit(prevLimit);
         }
@@ -166,6 +173,43 @@ public class FileChannelDataSource implements DataSource {
         return result;
     }
 
+    /**
+     * Reads from the file, starting at {@code offsetInFile}, until {@code dest} is full. Positional
+     * reads do not modify the position of the channel, so concurrent reads from several threads
+     * need not be synchronized.
+     */
+    private void readFully(long offsetInFile, ByteBuffer dest) throws IOException {
+        while (dest.hasRemaining()) {
+            int read = mChannel.read(dest, offsetInFile);
+            if (read < 0) {
+                throw new IOException("Unexpected EOF encountered");
+            }
+            offsetInFile += read;
+        }
+    }
+
+    /**
+     * Returns a pooled read buffer, or a new buffer if all pooled buffers are in use, for example
+     * by other threads or by a sink which feeds from another data source.
+     */
+    static ByteBuffer acquireReadBuffer() {
+        ByteBuffer buf = sReadBufferPool.pollFirst();
+        if (buf != null) {
+            return buf;
+        }
+        if (sDirectReadBufferCount.incrementAndGet() <= MAX_POOLED_READ_BUFFERS) {
+            return ByteBuffer.allocateDirect(MAX_READ_CHUNK_SIZE);
+        }
+        sDirectReadBufferCount.decrementAndGet();
+        return ByteBuffer.allocate(MAX_READ_CHUNK_SIZE);
+    }
+
+    static void releaseReadBuffer(ByteBuffer buf) {
+        if (buf.isDirect()) {
+            sReadBufferPool.offerFirst(buf);
+        }
+    }
+
     private static void checkChunkValid(long offset, long size, long sourceSize) {
         if (offset < 0) {
             throw new IndexOutOfBoundsException("offset: " + offset);
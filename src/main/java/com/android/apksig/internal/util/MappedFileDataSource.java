@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link DataSource} backed by a memory-mapped region of a file.
+ *
+ * <p>The region is mapped read-only in segments of at most {@link #MAX_SEGMENT_SIZE} bytes, as
+ * {@link FileChannel#map(FileChannel.MapMode, long, long)} cannot map more than 2 GB at once.
+ * Segments are mapped on first access and shared with all slices of the data source.
+ * {@link #getByteBuffer(long, int)}, {@link #slice(long, long)} and
+ * {@link #feed(long, long, DataSink)} do not copy the data, except that
+ * {@code getByteBuffer} copies a chunk which spans two segments.
+ *
+ * <p>The size of the region is fixed when the data source is created. Changes to the contents of
+ * the file are visible in the data source, but changes to its size are not.
+ */
+public class MappedFileDataSource implements DataSource {
+
+    /**
+     * Maximum size (in bytes) of a mapped segment.
+     */
+    public static final int MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+    private final Segments mSegments;
+    private final long mOffset;
+    private final long mSize;
+
+    /**
+     * Constructs a new {@code MappedFileDataSource} based on the data contained in the whole file.
+     */
+    public MappedFileDataSource(FileChannel channel) throws IOException {
+        this(channel, 0, channel.size());
+    }
+
+    /**
+     * Constructs a new {@code MappedFileDataSource} based on the data contained in the specified
+     * region of the provided file.
+     *
+     * @throws IndexOutOfBoundsException if {@code offset} or {@code size} is negative.
+     */
+    public MappedFileDataSource(FileChannel channel, long offset, long size) {
+        this(channel, offset, size, MAX_SEGMENT_SIZE);
+    }
+
+    MappedFileDataSource(FileChannel channel, long offset, long size, int segmentSize) {
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset);
+        }
+        if (size < 0) {
+            throw new IndexOutOfBoundsException("size: " + size);
+        }
+        if ((segmentSize < 1) || (segmentSize > MAX_SEGMENT_SIZE)) {
+            throw new IllegalArgumentException("segment size: " + segmentSize);
+        }
+        mSegments = new Segments(channel, offset, size, segmentSize);
+        mOffset = 0;
+        mSize = size;
+    }
+
+    private MappedFileDataSource(Segments segments, long offset, long size) {
+        mSegments = segments;
+        mOffset = offset;
+        mSize = size;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public MappedFileDataSource slice(long offset, long size) {
+        checkChunkValid(offset, size, mSize);
+        if ((offset == 0) && (size == mSize)) {
+            return this;
+        }
+        return new MappedFileDataSource(mSegments, mOffset + offset, size);
+    }
+
+    @Override
+    public void feed(long offset, long size, DataSink sink) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        long position = mOffset + offset;
+        long remaining = size;
+        while (remaining > 0) {
+            ByteBuffer chunk = mSegments.getContiguous(position, remaining);
+            int chunkSize = chunk.remaining();
+            sink.consume(chunk);
+            position += chunkSize;
+            remaining -= chunkSize;
+        }
+    }
+
+    @Override
+    public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        if (size > dest.remaining()) {
+            throw new BufferOverflowException();
+        }
+        long position = mOffset + offset;
+        int remaining = size;
+        while (remaining > 0) {
+            ByteBuffer chunk = mSegments.getContiguous(position, remaining);
+            int chunkSize = chunk.remaining();
+            dest.put(chunk);
+            position += chunkSize;
+            remaining -= chunkSize;
+        }
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        ByteBuffer chunk = mSegments.getContiguous(mOffset + offset, size);
+        if (chunk.remaining() == size) {
+            return chunk;
+        }
+
+        // The chunk spans two segments
+        ByteBuffer result = ByteBuffer.allocate(size);
+        copyTo(offset, size, result);
+        result.flip();
+        return result;
+    }
+
+    private static void checkChunkValid(long offset, long size, long sourceSize) {
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset);
+        }
+        if (size < 0) {
+            throw new IndexOutOfBoundsException("size: " + size);
+        }
+        if (offset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") > source size (" + sourceSize + ")");
+        }
+        long endOffset = offset + size;
+        if (endOffset < offset) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size + ") overflow");
+        }
+        if (endOffset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size
+                            + ") > source size (" + sourceSize  +")");
+        }
+    }
+
+    /**
+     * Lazily mapped segments of a region of a file, shared by a data source and its slices.
+     */
+    private static class Segments {
+        private final FileChannel mChannel;
+        private final long mOffsetInFile;
+        private final long mSize;
+        private final int mSegmentSize;
+        private final AtomicReferenceArray<ByteBuffer> mSegments;
+
+        private Segments(FileChannel channel, long offsetInFile, long size, int segmentSize) {
+            long segmentCount = (size + segmentSize - 1) / segmentSize;
+            if (segmentCount > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("size too large: " + size);
+            }
+            mChannel = channel;
+            mOffsetInFile = offsetInFile;
+            mSize = size;
+            mSegmentSize = segmentSize;
+            mSegments = new AtomicReferenceArray<>((int) segmentCount);
+        }
+
+        /**
+         * Returns a view of the data starting at {@code position} (relative to the start of the
+         * region) which ends at {@code maxSize} bytes or at the end of the segment containing
+         * {@code position}, whichever comes first.
+         */
+        private ByteBuffer getContiguous(long position, long maxSize) throws IOException {
+            if (maxSize == 0) {
+                return ByteBuffer.allocate(0);
+            }
+            int index = (int) (position / mSegmentSize);
+            int offsetInSegment = (int) (position % mSegmentSize);
+            ByteBuffer segment = getSegment(index).duplicate();
+            int end = (int) Math.min(segment.capacity(), offsetInSegment + maxSize);
+            segment.limit(end);
+            segment.position(offsetInSegment);
+            return segment.slice();
+        }
+
+        private ByteBuffer getSegment(int index) throws IOException {
+            ByteBuffer segment = mSegments.get(index);
+            if (segment == null) {
+                long segmentOffset = ((long) index) * mSegmentSize;
+                long segmentSize = Math.min(mSegmentSize, mSize - segmentOffset);
+                segment = mChannel.map(
+                        FileChannel.MapMode.READ_ONLY, mOffsetInFile + segmentOffset, segmentSize);
+                // Concurrent readers may map the same segment. Only one mapping is retained.
+                if (!mSegments.compareAndSet(index, null, segment)) {
+                    segment = mSegments.get(index);
+                }
+            }
+            return segment;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link DataSource} backed by a region of an {@link AsynchronousFileChannel}, which reads ahead
+ * of sequential readers.
+ *
+ * <p>The region is read in windows of a fixed size. Whenever a window is accessed, reads of up to
+ * {@code readAheadWindows} of the windows which follow it are issued asynchronously, so that the
+ * I/O latency of those windows overlaps with the processing of the current one. This suits the
+ * access pattern of content digesting, where one or more threads read consecutive chunks of the
+ * APK, each chunk once. A window is discarded as soon as all of its bytes have been read, and the
+ * number of windows read ahead but not yet accessed never exceeds {@code readAheadWindows}, which
+ * bounds the memory used for read-ahead.
+ *
+ * <p>Windows are shared with all slices of the data source. The size of the region is fixed when
+ * the data source is created.
+ */
+public class PrefetchingFileDataSource implements DataSource {
+
+    /**
+     * Default window size (in bytes), equal to the size of the chunks of APK content digests.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 1024 * 1024;
+
+    /**
+     * Default number of windows read ahead.
+     */
+    public static final int DEFAULT_READ_AHEAD_WINDOWS = 16;
+
+    private final Prefetcher mPrefetcher;
+    private final long mOffset;
+    private final long mSize;
+
+    /**
+     * Constructs a new {@code PrefetchingFileDataSource} based on the data contained in the
+     * specified region of the provided file.
+     *
+     * @param windowSize size (in bytes) of the windows in which the file is read
+     * @param readAheadWindows maximum number of windows read ahead of the readers
+     *
+     * @throws IndexOutOfBoundsException if {@code offset} or {@code size} is negative.
+     */
+    public PrefetchingFileDataSource(AsynchronousFileChannel channel, long offset, long size,
+            int windowSize, int readAheadWindows) {
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset);
+        }
+        if (size < 0) {
+            throw new IndexOutOfBoundsException("size: " + size);
+        }
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("window size: " + windowSize);
+        }
+        if (readAheadWindows < 0) {
+            throw new IllegalArgumentException("read-ahead windows: " + readAheadWindows);
+        }
+        mPrefetcher = new Prefetcher(channel, offset, size, windowSize, readAheadWindows);
+        mOffset = 0;
+        mSize = size;
+    }
+
+    private PrefetchingFileDataSource(Prefetcher prefetcher, long offset, long size) {
+        mPrefetcher = prefetcher;
+        mOffset = offset;
+        mSize = size;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public PrefetchingFileDataSource slice(long offset, long size) {
+        checkChunkValid(offset, size, mSize);
+        if ((offset == 0) && (size == mSize)) {
+            return this;
+        }
+        return new PrefetchingFileDataSource(mPrefetcher, mOffset + offset, size);
+    }
+
+    @Override
+    public void feed(long offset, long size, DataSink sink) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        long position = mOffset + offset;
+        long remaining = size;
+        while (remaining > 0) {
+            ByteBuffer chunk = mPrefetcher.getContiguous(position, remaining);
+            int chunkSize = chunk.remaining();
+            sink.consume(chunk);
+            position += chunkSize;
+            remaining -= chunkSize;
+        }
+    }
+
+    @Override
+    public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        if (size > dest.remaining()) {
+            throw new BufferOverflowException();
+        }
+        long position = mOffset + offset;
+        int remaining = size;
+        while (remaining > 0) {
+            ByteBuffer chunk = mPrefetcher.getContiguous(position, remaining);
+            int chunkSize = chunk.remaining();
+            dest.put(chunk);
+            position += chunkSize;
+            remaining -= chunkSize;
+        }
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        ByteBuffer result = ByteBuffer.allocate(size);
+        copyTo(offset, size, result);
+        result.flip();
+        return result;
+    }
+
+    private static void checkChunkValid(long offset, long size, long sourceSize) {
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset);
+        }
+        if (size < 0) {
+            throw new IndexOutOfBoundsException("size: " + size);
+        }
+        if (offset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") > source size (" + sourceSize + ")");
+        }
+        long endOffset = offset + size;
+        if (endOffset < offset) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size + ") overflow");
+        }
+        if (endOffset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size
+                            + ") > source size (" + sourceSize  +")");
+        }
+    }
+
+    /**
+     * Windows of a region of a file, read on demand or ahead of demand, shared by a data source
+     * and its slices.
+     */
+    private static class Prefetcher {
+        private final AsynchronousFileChannel mChannel;
+        private final long mOffsetInFile;
+        private final long mSize;
+        private final int mWindowSize;
+        private final long mWindowCount;
+        private final int mReadAheadWindows;
+        private final Map<Long, Window> mWindows = new ConcurrentHashMap<>();
+
+        /**
+         * Number of windows read ahead which have not been accessed yet.
+         */
+        private final AtomicInteger mPendingReadAheadCount = new AtomicInteger();
+
+        /**
+         * Index of the window following the last window read ahead.
+         */
+        private final AtomicLong mReadAheadEnd = new AtomicLong();
+
+        private Prefetcher(AsynchronousFileChannel channel, long offsetInFile, long size,
+                int windowSize, int readAheadWindows) {
+            mChannel = channel;
+            mOffsetInFile = offsetInFile;
+            mSize = size;
+            mWindowSize = windowSize;
+            mWindowCount = (size + windowSize - 1) / windowSize;
+            mReadAheadWindows = readAheadWindows;
+        }
+
+        /**
+         * Returns a view of the data starting at {@code position} (relative to the start of the
+         * region) which ends at {@code maxSize} bytes or at the end of the window containing
+         * {@code position}, whichever comes first.
+         */
+        private ByteBuffer getContiguous(long position, long maxSize) throws IOException {
+            if (maxSize == 0) {
+                return ByteBuffer.allocate(0);
+            }
+            long index = position / mWindowSize;
+            int offsetInWindow = (int) (position % mWindowSize);
+
+            Window window = mWindows.get(index);
+            boolean wasReadAhead = false;
+            if (window == null) {
+                Window newWindow = new Window(index, getWindowSize(index), false);
+                window = mWindows.putIfAbsent(index, newWindow);
+                if (window == null) {
+                    window = newWindow;
+                    window.startRead();
+                    // A miss behind the read-ahead windows starts a new sequential pass, for
+                    // example of another signature scheme, or a random access. Windows read
+                    // ahead of the previous pass are unlikely to be read anymore.
+                    mReadAheadEnd.set(index + 1);
+                    discardStaleReadAhead(index);
+                }
+            }
+            if (window.markAccessed()) {
+                mPendingReadAheadCount.decrementAndGet();
+                wasReadAhead = true;
+            }
+            readAhead(index);
+
+            ByteBuffer data = window.await();
+            int end = (int) Math.min(data.limit(), offsetInWindow + maxSize);
+            ByteBuffer result = data.duplicate();
+            result.limit(end);
+            result.position(offsetInWindow);
+            result = result.slice();
+            if (window.consume(result.remaining())) {
+                mWindows.remove(index, window);
+            } else if (!wasReadAhead && (mWindows.size() > mReadAheadWindows * 2 + 1)) {
+                evictBefore(index);
+            }
+            return result;
+        }
+
+        /**
+         * Issues reads of the windows following the accessed one, within the read-ahead budget.
+         */
+        private void readAhead(long accessedIndex) {
+            long end = Math.min(mWindowCount, accessedIndex + 1 + mReadAheadWindows);
+            while (true) {
+                long next = mReadAheadEnd.get();
+                if (next <= accessedIndex) {
+                    next = accessedIndex + 1;
+                }
+                if (next >= end) {
+                    return;
+                }
+                if (mPendingReadAheadCount.incrementAndGet() > mReadAheadWindows) {
+                    mPendingReadAheadCount.decrementAndGet();
+                    return;
+                }
+                long current = mReadAheadEnd.get();
+                if ((current > next) || !mReadAheadEnd.compareAndSet(current, next + 1)) {
+                    mPendingReadAheadCount.decrementAndGet();
+                    continue;
+                }
+                Window window = new Window(next, getWindowSize(next), true);
+                if (mWindows.putIfAbsent(next, window) == null) {
+                    window.startRead();
+                } else {
+                    mPendingReadAheadCount.decrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Discards windows preceding the provided one, which have been read only in part, and
+         * windows read ahead which are unlikely to be accessed. This bounds the memory used when
+         * the data source is read at random.
+         */
+        private void evictBefore(long index) {
+            for (Window window : mWindows.values()) {
+                if ((window.mIndex < index) && window.mAccessed.get() != 0) {
+                    mWindows.remove(window.mIndex, window);
+                }
+            }
+            discardStaleReadAhead(index);
+        }
+
+        /**
+         * Discards windows which have been read ahead but not accessed, and are more than
+         * {@code mReadAheadWindows} away from the accessed window, releasing their share of the
+         * read-ahead budget. Windows closer to the accessed window are kept because concurrent
+         * readers may access windows slightly out of order, and the following ones are those
+         * which the accessed window would read ahead.
+         */
+        private void discardStaleReadAhead(long accessedIndex) {
+            for (Window window : mWindows.values()) {
+                if ((Math.abs(window.mIndex - accessedIndex) > mReadAheadWindows)
+                        && window.markAccessed()) {
+                    mPendingReadAheadCount.decrementAndGet();
+                    mWindows.remove(window.mIndex, window);
+                }
+            }
+        }
+
+        private int getWindowSize(long index) {
+            return (int) Math.min(mWindowSize, mSize - index * mWindowSize);
+        }
+
+        /**
+         * Window of the region, whose data is read asynchronously.
+         */
+        private class Window {
+            private final long mIndex;
+            private final int mSize;
+            private final CompletableFuture<ByteBuffer> mData = new CompletableFuture<>();
+            private final AtomicInteger mConsumed = new AtomicInteger();
+
+            /**
+             * {@code 0} if the window has been read ahead and not accessed yet, {@code 1}
+             * otherwise.
+             */
+            private final AtomicInteger mAccessed;
+
+            private Window(long index, int size, boolean readAhead) {
+                mIndex = index;
+                mSize = size;
+                mAccessed = new AtomicInteger(readAhead ? 0 : 1);
+            }
+
+            /**
+             * Marks the window as accessed, returning {@code true} if it was read ahead and this
+             * is its first access.
+             */
+            private boolean markAccessed() {
+                return mAccessed.compareAndSet(0, 1);
+            }
+
+            /**
+             * Records that {@code size} more bytes of the window have been read, returning
+             * {@code true} if all of its bytes have been read.
+             */
+            private boolean consume(int size) {
+                return mConsumed.addAndGet(size) >= mSize;
+            }
+
+            private void startRead() {
+                ByteBuffer buf = ByteBuffer.allocate(mSize);
+                long windowOffsetInFile = mOffsetInFile + mIndex * mWindowSize;
+                CompletionHandler<Integer, Void> handler = new CompletionHandler<Integer, Void>() {
+                    @Override
+                    public void completed(Integer read, Void attachment) {
+                        if (read < 0) {
+                            failed(new IOException("Unexpected EOF encountered"), null);
+                        } else if (buf.hasRemaining()) {
+                            read(buf, windowOffsetInFile + buf.position(), this);
+                        } else {
+                            buf.flip();
+                            mData.complete(buf);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Throwable t, Void attachment) {
+                        // The failure is reported to the readers of the window. Later readers
+                        // read the window again.
+                        mWindows.remove(mIndex, Window.this);
+                        if (markAccessed()) {
+                            mPendingReadAheadCount.decrementAndGet();
+                        }
+                        mData.completeExceptionally(t);
+                    }
+                };
+                read(buf, windowOffsetInFile, handler);
+            }
+
+            private void read(ByteBuffer buf, long offsetInFile,
+                    CompletionHandler<Integer, Void> handler) {
+                try {
+                    mChannel.read(buf, offsetInFile, null, handler);
+                } catch (RuntimeException e) {
+                    handler.failed(e, null);
+                }
+            }
+
+            private ByteBuffer await() throws IOException {
+                boolean interrupted = false;
+                try {
+                    while (true) {
+                        try {
+                            return mData.get();
+                        } catch (InterruptedException e) {
+                            // The read cannot be cancelled. Wait for it to complete, so that
+                            // interrupted readers do not leave the window inconsistent.
+                            interrupted = true;
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw new IOException(
+                                "Failed to read window " + mIndex + ": " + cause.getMessage(),
+                                cause);
+                    }
+                    throw new IOException("Failed to read window " + mIndex, cause);
+                } finally {
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -101,4 +101,28 @@ public class RandomAccessFileDataSink implements DataSink {
             mPosition += length;
         }
     }
+
+    /**
+     * Outputs the specified region of the provided file, letting the operating system transfer
+     * the data directly between the files where possible, rather than through the Java heap.
+     *
+     * @throws IOException if the region extends beyond the end of the provided file
+     */
+    public void transferFrom(FileChannel source, long offset, long size) throws IOException {
+        synchronized (mFile) {
+            mFile.seek(mPosition);
+            long transferred = 0;
+            while (transferred < size) {
+                long chunkSize =
+                        source.transferTo(offset + transferred, size - transferred, mFileChannel);
+                if (chunkSize <= 0) {
+                    throw new IOException(
+                            "Failed to transfer " + (size - transferred) + " bytes at offset "
+                                    + (offset + transferred));
+                }
+                transferred += chunkSize;
+                mPosition += chunkSize;
+            }
+        }
+    }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.MessageDigestProviders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Verifier of individual 4 KB blocks of data against a verity tree, in the format produced by
+ * {@link VerityTreeBuilder}, whose root hash is trusted.
+ *
+ * <p>A block is verified by digesting it and walking the path of tree pages from the block's leaf
+ * digest up to the first page which is already verified, or to the root. Verified pages are
+ * retained in a least recently used cache, so that verifying nearby blocks only reads and digests
+ * the block itself. This class is thread-safe.
+ */
+public class VerityTreeBlockVerifier {
+    /** Size (in bytes) of data blocks and of tree pages. */
+    public static final int BLOCK_SIZE = 4096;
+
+    /** Default number of verified tree pages retained in the cache. */
+    public static final int DEFAULT_CACHED_PAGES = 256;
+
+    private static final String JCA_ALGORITHM = "SHA-256";
+
+    private final byte[] mSalt;
+    private final DataSource mTree;
+    private final long mDataSize;
+    private final long[] mLevelOffset;
+    private final int mDigestSize;
+    private final MessageDigest mMd;
+    private final byte[] mTopPage;
+    private final Map<Long, byte[]> mVerifiedPages;
+
+    /**
+     * Constructs a verifier of blocks of {@code dataSize} bytes of data against the provided
+     * verity tree, which is verified against {@code rootHash} first.
+     *
+     * @param salt salt prepended to each digested block and page, or {@code null}
+     * @param cachedPages maximum number of verified tree pages retained in memory
+     * @throws IllegalArgumentException if the size of the tree does not match the size of the
+     *         data or if the root hash of the tree does not match {@code rootHash}
+     */
+    public VerityTreeBlockVerifier(byte[] salt, byte[] rootHash, DataSource tree, long dataSize,
+            int cachedPages) throws IOException, NoSuchAlgorithmException {
+        if (dataSize <= 0) {
+            throw new IllegalArgumentException("dataSize: " + dataSize);
+        }
+        if (cachedPages < 0) {
+            throw new IllegalArgumentException("cachedPages: " + cachedPages);
+        }
+        mSalt = salt;
+        mTree = tree;
+        mDataSize = dataSize;
+        mMd = MessageDigestProviders.getInstance(JCA_ALGORITHM);
+        mDigestSize = mMd.getDigestLength();
+        mLevelOffset = VerityTreeBuilder.calculateLevelOffset(dataSize, mDigestSize);
+        if (tree.size() != mLevelOffset[mLevelOffset.length - 1]) {
+            throw new IllegalArgumentException("Tree size (" + tree.size()
+                    + ") does not match data size (" + dataSize + ")");
+        }
+        ByteBuffer topPage = tree.getByteBuffer(0, BLOCK_SIZE);
+        mTopPage = new byte[BLOCK_SIZE];
+        topPage.get(mTopPage);
+        if (!Arrays.equals(rootHash, digest(newMessageDigest(), ByteBuffer.wrap(mTopPage)))) {
+            throw new IllegalArgumentException("Root hash of the tree does not match");
+        }
+        mVerifiedPages = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > cachedPages;
+            }
+        };
+    }
+
+    /** Returns the number of blocks of the data. */
+    public long getBlockCount() {
+        return (mDataSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * Returns {@code true} if the block with the provided index of the provided data matches the
+     * tree. Only the block is read from {@code data}.
+     *
+     * @throws IndexOutOfBoundsException if the block is outside of the data
+     */
+    public boolean isBlockValid(DataSource data, long blockIndex) throws IOException {
+        checkBlockIndex(blockIndex);
+        if (data.size() != mDataSize) {
+            return false;
+        }
+        long offset = blockIndex * BLOCK_SIZE;
+        int size = (int) Math.min(BLOCK_SIZE, mDataSize - offset);
+        return isBlockValid(blockIndex, data.getByteBuffer(offset, size));
+    }
+
+    /**
+     * Returns {@code true} if the provided contents of the block with the provided index match
+     * the tree. The contents must not extend past the end of the data, and are padded with zeros
+     * if shorter than a block.
+     *
+     * @throws IndexOutOfBoundsException if the block is outside of the data
+     */
+    public boolean isBlockValid(long blockIndex, ByteBuffer block) throws IOException {
+        checkBlockIndex(blockIndex);
+        long expectedSize = Math.min(BLOCK_SIZE, mDataSize - blockIndex * BLOCK_SIZE);
+        if (block.remaining() != expectedSize) {
+            return false;
+        }
+        MessageDigest md = newMessageDigest();
+        byte[] blockDigest = digest(md, block);
+        int leafLevel = mLevelOffset.length - 2;
+        return matchesVerifiedDigest(md, leafLevel, blockIndex, blockDigest);
+    }
+
+    /**
+     * Returns {@code true} if the digest at {@code index} of the level of the tree matches the
+     * provided digest, verifying the page containing it if necessary.
+     */
+    private boolean matchesVerifiedDigest(MessageDigest md, int level, long index, byte[] digest)
+            throws IOException {
+        long offsetInLevel = index * mDigestSize;
+        byte[] page = getVerifiedPage(md, level, offsetInLevel / BLOCK_SIZE);
+        if (page == null) {
+            return false;
+        }
+        int offsetInPage = (int) (offsetInLevel % BLOCK_SIZE);
+        for (int i = 0; i < mDigestSize; i++) {
+            if (page[offsetInPage + i] != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the contents of the page with the provided index of the level of the tree, or
+     * {@code null} if the page does not match the tree's root hash.
+     */
+    private byte[] getVerifiedPage(MessageDigest md, int level, long pageIndex)
+            throws IOException {
+        if (level == 0) {
+            return mTopPage;
+        }
+        long offset = mLevelOffset[level] + pageIndex * BLOCK_SIZE;
+        synchronized (mVerifiedPages) {
+            byte[] page = mVerifiedPages.get(offset);
+            if (page != null) {
+                return page;
+            }
+        }
+
+        ByteBuffer pageBuffer = mTree.getByteBuffer(offset, BLOCK_SIZE);
+        byte[] page = new byte[BLOCK_SIZE];
+        pageBuffer.get(page);
+        if (!matchesVerifiedDigest(md, level - 1, pageIndex,
+                digest(md, ByteBuffer.wrap(page)))) {
+            return null;
+        }
+        synchronized (mVerifiedPages) {
+            mVerifiedPages.put(offset, page);
+        }
+        return page;
+    }
+
+    private void checkBlockIndex(long blockIndex) {
+        if (blockIndex < 0 || blockIndex >= getBlockCount()) {
+            throw new IndexOutOfBoundsException(
+                    "Block " + blockIndex + " out of " + getBlockCount() + " blocks");
+        }
+    }
+
+    /** Returns the salted digest of the data, padded with zeros to a whole block. */
+    private byte[] digest(MessageDigest md, ByteBuffer data) {
+        md.reset();
+        if (mSalt != null) {
+            md.update(mSalt);
+        }
+        int paddingSize = BLOCK_SIZE - data.remaining();
+        md.update(data);
+        if (paddingSize > 0) {
+            md.update(new byte[paddingSize]);
+        }
+        return md.digest();
+    }
+
+    /**
+     * Clones the message digest, or creates a new instance if clone is unavailable.
+     */
+    private MessageDigest newMessageDigest() {
+        try {
+            return (MessageDigest) mMd.clone();
+        } catch (CloneNotSupportedException ignored) {
+            try {
+                return MessageDigestProviders.getInstance(JCA_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(
+                        "Failed to obtain an instance of a previously available message digest", e);
+            }
+        }
+    }
+}
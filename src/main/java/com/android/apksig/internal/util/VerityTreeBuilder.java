@@ -16,25 +16,24 @@
 
 package com.android.apksig.internal.util;
 
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
-
 import com.android.apksig.internal.zip.ZipUtils;
 import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.MessageDigestProviders;
+import com.android.apksig.util.RunnablesExecutor;
 
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Phaser;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * VerityTreeBuilder is used to generate the root hash of verity tree built from the input file.
@@ -47,15 +46,6 @@ public class VerityTreeBuilder implements AutoCloseable {
      * Maximum size (in bytes) of each node of the tree.
      */
     private final static int CHUNK_SIZE = 4096;
-    /**
-     * Maximum parallelism while calculating digests.
-     */
-    private final static int DIGEST_PARALLELISM = Math.min(32,
-            Runtime.getRuntime().availableProcessors());
-    /**
-     * Queue size.
-     */
-    private final static int MAX_OUTSTANDING_CHUNKS = 4;
     /**
      * Typical prefetch size.
      */
@@ -64,6 +54,11 @@ public class VerityTreeBuilder implements AutoCloseable {
      * Minimum chunks to be processed by a single worker task.
      */
     private final static int MIN_CHUNKS_PER_WORKER = 8;
+    /**
+     * Maximum chunks digested before their digests are output, bounding the memory used for
+     * digests which have not been output yet.
+     */
+    private final static int MAX_ROUND_CHUNKS = 64 * 1024;
 
     /**
      * Digest algorithm (JCA Digest algorithm name) used in the tree.
@@ -77,20 +72,51 @@ public class VerityTreeBuilder implements AutoCloseable {
 
     private final MessageDigest mMd;
 
-    private final ExecutorService mExecutor =
-            new ThreadPoolExecutor(DIGEST_PARALLELISM, DIGEST_PARALLELISM,
-                    0L, MILLISECONDS,
-                    new ArrayBlockingQueue<>(MAX_OUTSTANDING_CHUNKS),
-                    new ThreadPoolExecutor.CallerRunsPolicy());
+    private final RunnablesExecutor mExecutor;
+
+    /**
+     * Maximum size (in bytes) of the data read and digests computed, but not yet output.
+     */
+    private final long mMaxMemoryBytes;
 
     public VerityTreeBuilder(byte[] salt) throws NoSuchAlgorithmException {
+        this(salt, RunnablesExecutor.MULTI_THREADED);
+    }
+
+    /**
+     * Constructs a builder which digests the blocks of data using the provided executor.
+     */
+    public VerityTreeBuilder(byte[] salt, RunnablesExecutor executor)
+            throws NoSuchAlgorithmException {
+        this(salt, executor, Long.MAX_VALUE);
+    }
+
+    /**
+     * Constructs a builder which digests the blocks of data using the provided executor, with at
+     * most {@code maxMemoryBytes} bytes of data read and of digests computed, but not yet output,
+     * at any time. The limit does not cover a tree returned in a {@link ByteBuffer}; use
+     * {@link #generateVerityTree(DataSource, RandomAccessFile)} to keep the tree out of memory.
+     *
+     * <p>The limit is approximate when lower than {@code 8 KB}, as at least one block of data is
+     * read at a time.
+     */
+    public VerityTreeBuilder(byte[] salt, RunnablesExecutor executor, long maxMemoryBytes)
+            throws NoSuchAlgorithmException {
+        if (maxMemoryBytes <= 0) {
+            throw new IllegalArgumentException("maxMemoryBytes must be positive: "
+                    + maxMemoryBytes);
+        }
         mSalt = salt;
         mMd = getNewMessageDigest();
+        mExecutor = executor;
+        mMaxMemoryBytes = maxMemoryBytes;
     }
 
+    /**
+     * Does nothing. The executor is shared and is not owned by this builder.
+     */
     @Override
     public void close() {
-        mExecutor.shutdownNow();
     }
 
     /**
@@ -121,6 +147,66 @@ public class VerityTreeBuilder implements AutoCloseable {
                     DataSources.asDataSource(eocdBuf)));
     }
 
+    /**
+     * Returns the root hash of the APK verity tree built from ZIP blocks, like
+     * {@link #generateVerityTreeRootHash(DataSource, DataSource, DataSource)}, where the digests
+     * of the 4 KB blocks of the section before the APK Signing Block have already been computed.
+     *
+     * @param beforeApkSigningBlockDigests concatenated salted digests of the blocks of the section
+     *        before the APK Signing Block
+     * @param beforeApkSigningBlockSize size (in bytes) of the section before the APK Signing Block
+     */
+    public byte[] generateVerityTreeRootHash(ByteBuffer beforeApkSigningBlockDigests,
+            long beforeApkSigningBlockSize, DataSource centralDir, DataSource eocd)
+            throws IOException {
+        if (beforeApkSigningBlockSize % CHUNK_SIZE != 0) {
+            throw new IllegalStateException("APK Signing Block size not a multiple of " + CHUNK_SIZE
+                    + ": " + beforeApkSigningBlockSize);
+        }
+
+        ByteBuffer eocdBuf = ByteBuffer.allocate((int) eocd.size());
+        eocdBuf.order(ByteOrder.LITTLE_ENDIAN);
+        eocd.copyTo(0, (int) eocd.size(), eocdBuf);
+        eocdBuf.flip();
+        ZipUtils.setZipEocdCentralDirectoryOffset(eocdBuf, beforeApkSigningBlockSize);
+        DataSource afterApkSigningBlock =
+                new ChainedDataSource(centralDir, DataSources.asDataSource(eocdBuf));
+
+        ByteBuffer verityBuffer = generateVerityTree(
+                beforeApkSigningBlockDigests, beforeApkSigningBlockSize, afterApkSigningBlock);
+        return getRootHashFromTree(verityBuffer);
+    }
+
+    /**
+     * Returns the byte buffer that contains the whole verity tree of data which consists of
+     * {@code leadingDataSize} bytes, whose 4 KB blocks have already been digested, followed by
+     * the contents of {@code remainingData}. Only {@code remainingData} is read.
+     *
+     * @param leadingDataDigests concatenated salted digests of the blocks of the leading data
+     * @param leadingDataSize size (in bytes) of the leading data, a multiple of 4 KB
+     */
+    public ByteBuffer generateVerityTree(ByteBuffer leadingDataDigests, long leadingDataSize,
+            DataSource remainingData) throws IOException {
+        if (leadingDataSize % CHUNK_SIZE != 0) {
+            throw new IllegalArgumentException("Leading data size not a multiple of " + CHUNK_SIZE
+                    + ": " + leadingDataSize);
+        }
+        int digestSize = mMd.getDigestLength();
+        if (leadingDataDigests.remaining() != (leadingDataSize / CHUNK_SIZE) * digestSize) {
+            throw new IllegalArgumentException("Unexpected size of block digests: "
+                    + leadingDataDigests.remaining());
+        }
+
+        long dataSize = leadingDataSize + remainingData.size();
+        ByteBuffer leafDigests = ByteBuffer.allocate(
+                Math.toIntExact(divideRoundup(dataSize, CHUNK_SIZE) * digestSize));
+        leafDigests.put(leadingDataDigests.duplicate());
+        digestDataByChunks(remainingData, new ByteBufferSink(leafDigests));
+        leafDigests.flip();
+
+        return generateVerityTree(dataSize, null, leafDigests);
+    }
+
     /**
      * Returns the root hash of the verity tree built from the data source.
      */
@@ -143,37 +229,191 @@ public class VerityTreeBuilder implements AutoCloseable {
      * the actual verity tree format on disk, and is supposed to be re-generated on device.
      */
     public ByteBuffer generateVerityTree(DataSource fileSource) throws IOException {
-        int digestSize = mMd.getDigestLength();
+        return generateVerityTree(fileSource.size(), fileSource, null);
+    }
 
-        // Calculate the summed area table of level size. In other word, this is the offset
-        // table of each level, plus the next non-existing level.
-        int[] levelOffset = calculateLevelOffset(fileSource.size(), digestSize);
+    /**
+     * Writes the whole verity tree, as returned by {@link #generateVerityTree(DataSource)}, to the
+     * beginning of the provided file and returns the data source of the tree in the file. The
+     * file is truncated to the size of the tree.
+     *
+     * <p>Unlike {@code generateVerityTree(DataSource)}, the tree is never held in memory. Each
+     * level of the tree is streamed to the file as it is computed, and is then read back from the
+     * file to compute the level above it, so the memory used is bounded by the limit the builder
+     * was constructed with. The tree size is not limited to {@code 2 GB} either.
+     */
+    public DataSource generateVerityTree(DataSource fileSource, RandomAccessFile treeFile)
+            throws IOException {
+        long[] levelOffset = calculateLevelOffset(fileSource.size(), mMd.getDigestLength());
+        long treeSize = levelOffset[levelOffset.length - 1];
+        treeFile.setLength(treeSize);
+        generateVerityTree(fileSource.size(), fileSource, null, levelOffset, new TreeStorage() {
+            @Override
+            public DataSink getLevelSink(long offset, long size) {
+                return new RandomAccessFileDataSink(treeFile, offset);
+            }
 
-        ByteBuffer verityBuffer = ByteBuffer.allocate(levelOffset[levelOffset.length - 1]);
+            @Override
+            public DataSource getLevel(long offset, long size) {
+                return DataSources.asDataSource(treeFile, offset, size);
+            }
+        });
+        return DataSources.asDataSource(treeFile, 0, treeSize);
+    }
+
+    /**
+     * Returns the byte buffer that contains the whole verity tree of {@code dataSize} bytes of
+     * data, either read from {@code fileSource} or, if {@code leafDigests} is provided, already
+     * digested into the bottom level of the tree.
+     */
+    private ByteBuffer generateVerityTree(long dataSize, DataSource fileSource,
+            ByteBuffer leafDigests) throws IOException {
+        long[] levelOffset = calculateLevelOffset(dataSize, mMd.getDigestLength());
+
+        // We don't support in-memory verity tree if it is larger then Integer.MAX_VALUE.
+        ByteBuffer verityBuffer =
+                ByteBuffer.allocate(Math.toIntExact(levelOffset[levelOffset.length - 1]));
+        generateVerityTree(dataSize, fileSource, leafDigests, levelOffset, new TreeStorage() {
+            @Override
+            public DataSink getLevelSink(long offset, long size) {
+                return new ByteBufferSink(
+                        slice(verityBuffer, (int) offset, (int) (offset + size)));
+            }
+
+            @Override
+            public DataSource getLevel(long offset, long size) {
+                return DataSources.asDataSource(slice(verityBuffer.asReadOnlyBuffer(),
+                        (int) offset, (int) (offset + size)));
+            }
+        });
+        return verityBuffer;
+    }
+
+    /**
+     * Generates the verity tree bottom-up into the provided storage, where each level starts at
+     * the offset given by {@code levelOffset}.
+     */
+    private void generateVerityTree(long dataSize, DataSource fileSource,
+            ByteBuffer leafDigests, long[] levelOffset, TreeStorage storage) throws IOException {
+        int digestSize = mMd.getDigestLength();
 
-        // Generate the hash tree bottom-up.
         for (int i = levelOffset.length - 2; i >= 0; i--) {
-            DataSink middleBufferSink = new ByteBufferSink(
-                    slice(verityBuffer, levelOffset[i], levelOffset[i + 1]));
-            DataSource src;
+            DataSink middleBufferSink =
+                    storage.getLevelSink(levelOffset[i], levelOffset[i + 1] - levelOffset[i]);
+            long srcSize;
             if (i == levelOffset.length - 2) {
-                src = fileSource;
-                digestDataByChunks(src, middleBufferSink);
+                srcSize = dataSize;
+                if (leafDigests != null) {
+                    middleBufferSink.consume(leafDigests.duplicate());
+                } else {
+                    digestDataByChunks(fileSource, middleBufferSink);
+                }
             } else {
-                src = DataSources.asDataSource(slice(verityBuffer.asReadOnlyBuffer(),
-                        levelOffset[i + 1], levelOffset[i + 2]));
+                DataSource src = storage.getLevel(
+                        levelOffset[i + 1], levelOffset[i + 2] - levelOffset[i + 1]);
+                srcSize = src.size();
                 digestDataByChunks(src, middleBufferSink);
             }
 
             // If the output is not full chunk, pad with 0s.
-            long totalOutput = divideRoundup(src.size(), CHUNK_SIZE) * digestSize;
+            long totalOutput = divideRoundup(srcSize, CHUNK_SIZE) * digestSize;
             int incomplete = (int) (totalOutput % CHUNK_SIZE);
             if (incomplete > 0) {
                 byte[] padding = new byte[CHUNK_SIZE - incomplete];
                 middleBufferSink.consume(padding, 0, padding.length);
             }
         }
-        return verityBuffer;
+    }
+
+    /**
+     * Returns {@code true} if the provided verity tree is the verity tree of the data source, as
+     * returned by {@link #generateVerityTree(DataSource)}.
+     *
+     * <p>The tree of the data source is never held in memory. The digests of each level are
+     * compared with the provided tree as they are computed, one round of digests at a time, and
+     * the comparison stops at the first round which does not match. The levels above the bottom
+     * one are computed from the lower level of the provided tree, which has been verified by then.
+     */
+    public boolean verifyVerityTree(DataSource fileSource, DataSource verityTree)
+            throws IOException {
+        long[] levelOffset = calculateLevelOffset(fileSource.size(), mMd.getDigestLength());
+        if (verityTree.size() != levelOffset[levelOffset.length - 1]) {
+            return false;
+        }
+
+        try {
+            for (int i = levelOffset.length - 2; i >= 0; i--) {
+                ComparingDataSink levelSink = new ComparingDataSink(
+                        verityTree.slice(levelOffset[i], levelOffset[i + 1] - levelOffset[i]));
+                if (i == levelOffset.length - 2) {
+                    digestDataByChunks(fileSource, levelSink);
+                } else {
+                    digestDataByChunks(verityTree.slice(levelOffset[i + 1],
+                            levelOffset[i + 2] - levelOffset[i + 1]), levelSink);
+                }
+                // The rest of the level is padding.
+                levelSink.consumeZerosToEnd();
+            }
+        } catch (MismatchException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sink which compares the data it consumes with the contents of a data source, throwing
+     * {@link MismatchException} as soon as they differ.
+     */
+    private static class ComparingDataSink implements DataSink {
+        private final DataSource mExpected;
+        private long mOffset;
+
+        private ComparingDataSink(DataSource expected) {
+            mExpected = expected;
+        }
+
+        @Override
+        public void consume(byte[] buf, int offset, int length) throws IOException {
+            consume(ByteBuffer.wrap(buf, offset, length));
+        }
+
+        @Override
+        public void consume(ByteBuffer buf) throws IOException {
+            int length = buf.remaining();
+            if (length > mExpected.size() - mOffset) {
+                throw new MismatchException();
+            }
+            if (!mExpected.getByteBuffer(mOffset, length).equals(buf)) {
+                throw new MismatchException();
+            }
+            buf.position(buf.limit());
+            mOffset += length;
+        }
+
+        private void consumeZerosToEnd() throws IOException {
+            while (mOffset < mExpected.size()) {
+                int size = (int) Math.min(CHUNK_SIZE, mExpected.size() - mOffset);
+                consume(ByteBuffer.allocate(size));
+            }
+        }
+    }
+
+    /**
+     * Thrown by {@link ComparingDataSink} to stop digesting once a mismatch is found.
+     */
+    private static class MismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Storage of the levels of a verity tree.
+     */
+    private interface TreeStorage {
+        /** Returns the sink to which the level at the provided offset of the tree is output. */
+        DataSink getLevelSink(long offset, long size);
+
+        /** Returns the level at the provided offset of the tree, once it has been output. */
+        DataSource getLevel(long offset, long size);
     }
 
     /**
@@ -184,13 +424,21 @@ public class VerityTreeBuilder implements AutoCloseable {
         return saltedDigest(firstPage);
     }
 
+    /**
+     * Returns the digested root hash from the top level (only page) of a verity tree returned by
+     * {@link #generateVerityTree(DataSource, RandomAccessFile)}.
+     */
+    public byte[] getRootHashFromTree(DataSource verityTree) throws IOException {
+        return saltedDigest(verityTree.getByteBuffer(0, CHUNK_SIZE));
+    }
+
     /**
      * Returns an array of summed area table of level size in the verity tree.  In other words, the
      * returned array is offset of each level in the verity tree file format, plus an additional
      * offset of the next non-existing level (i.e. end of the last level + 1).  Thus the array size
      * is level + 1.
      */
-    private static int[] calculateLevelOffset(long dataSize, int digestSize) {
+    static long[] calculateLevelOffset(long dataSize, int digestSize) {
         // Compute total size of each level, bottom to top.
         ArrayList<Long> levelSize = new ArrayList<>();
         while (true) {
@@ -204,12 +452,10 @@ public class VerityTreeBuilder implements AutoCloseable {
         }
 
         // Reverse and convert to summed area table.
-        int[] levelOffset = new int[levelSize.size() + 1];
+        long[] levelOffset = new long[levelSize.size() + 1];
         levelOffset[0] = 0;
         for (int i = 0; i < levelSize.size(); i++) {
-            // We don't support verity tree if it is larger then Integer.MAX_VALUE.
-            levelOffset[i + 1] = levelOffset[i] + Math.toIntExact(
-                    levelSize.get(levelSize.size() - i - 1));
+            levelOffset[i + 1] = levelOffset[i] + levelSize.get(levelSize.size() - i - 1);
         }
         return levelOffset;
     }
@@ -218,57 +464,104 @@ public class VerityTreeBuilder implements AutoCloseable {
      * Digest data source by chunks then feeds them to the sink one by one.  If the last unit is
      * less than the chunk size and padding is desired, feed with extra padding 0 to fill up the
      * chunk before digesting.
+     *
+     * <p>The data is digested in rounds of up to {@link #MAX_ROUND_CHUNKS} chunks, whose digests
+     * are fed to the sink at the end of each round. Together with the read buffers, whose total
+     * size is capped to half of the memory limit, this bounds the memory used.
      */
     private void digestDataByChunks(DataSource dataSource, DataSink dataSink) throws IOException {
         final long size = dataSource.size();
-        final int chunks = (int) divideRoundup(size, CHUNK_SIZE);
+        final long chunks = divideRoundup(size, CHUNK_SIZE);
+        final int digestSize = mMd.getDigestLength();
 
         /** Single IO operation size, in chunks. */
-        final int ioSizeChunks = MAX_PREFETCH_CHUNKS;
-
-        final byte[][] hashes = new byte[chunks][];
-
-        Phaser tasks = new Phaser(1);
-
-        // Reading the input file as fast as we can.
-        final long maxReadSize = ioSizeChunks * CHUNK_SIZE;
-
-        long readOffset = 0;
-        int startChunkIndex = 0;
-        while (readOffset < size) {
-            final long readLimit = Math.min(readOffset + maxReadSize, size);
-            final int readSize = (int) (readLimit - readOffset);
-            final int bufferSizeChunks = (int) divideRoundup(readSize, CHUNK_SIZE);
-
-            // Overllocating to zero-pad last chunk.
-            // With 4MiB block size, 32 threads and 4 queue size we might allocate up to 144MiB.
-            final ByteBuffer buffer = ByteBuffer.allocate(bufferSizeChunks * CHUNK_SIZE);
-            dataSource.copyTo(readOffset, readSize, buffer);
-            buffer.rewind();
-
-            final int readChunkIndex = startChunkIndex;
-            Runnable task = () -> {
-                final MessageDigest md = cloneMessageDigest();
-                for (int offset = 0, finish = buffer.capacity(), chunkIndex = readChunkIndex;
-                        offset < finish; offset += CHUNK_SIZE, ++chunkIndex) {
-                    ByteBuffer chunk = slice(buffer, offset, offset + CHUNK_SIZE);
-                    hashes[chunkIndex] = saltedDigest(md, chunk);
-                }
-                tasks.arriveAndDeregister();
-            };
-            tasks.register();
-            mExecutor.execute(task);
+        final long readBudget = Math.max(CHUNK_SIZE, mMaxMemoryBytes / 2);
+        final int ioSizeChunks = (int) Math.min(MAX_PREFETCH_CHUNKS, readBudget / CHUNK_SIZE);
+        final long maxReadSize = (long) ioSizeChunks * CHUNK_SIZE;
+
+        /** Chunks digested in each round, a multiple of the IO operation size. */
+        final long digestBudget = Math.max(digestSize, mMaxMemoryBytes / 4);
+        final int roundChunks = (int) Math.max(ioSizeChunks,
+                Math.min(MAX_ROUND_CHUNKS, digestBudget / digestSize)
+                        / ioSizeChunks * ioSizeChunks);
+
+        final byte[] digests = new byte[(int) Math.min(chunks, roundChunks) * digestSize];
+        final AtomicLong availableReadBytes = new AtomicLong(readBudget);
+        for (long roundStart = 0; roundStart < chunks; roundStart += roundChunks) {
+            final long roundOffset = roundStart * CHUNK_SIZE;
+            final long roundSize = Math.min((long) roundChunks * CHUNK_SIZE, size - roundOffset);
+            final int reads = (int) divideRoundup(roundSize, maxReadSize);
+
+            // Each worker repeatedly claims the next unread range of the round, reads it into its
+            // own buffer and digests it. Workers which cannot fit a buffer into the remaining read
+            // budget leave the work to the others.
+            final AtomicInteger nextRead = new AtomicInteger();
+            try {
+                mExecutor.execute(() -> () -> {
+                    if (!reserve(availableReadBytes, maxReadSize)) {
+                        return;
+                    }
+                    try {
+                        final MessageDigest md = cloneMessageDigest();
+                        ByteBuffer buffer = null;
+                        for (int read = nextRead.getAndIncrement(); read < reads;
+                                read = nextRead.getAndIncrement()) {
+                            final long readOffset = read * maxReadSize;
+                            final int readSize =
+                                    (int) Math.min(maxReadSize, roundSize - readOffset);
+                            final int bufferSizeChunks = (int) divideRoundup(readSize, CHUNK_SIZE);
+                            if (buffer == null) {
+                                buffer = ByteBuffer.allocate((int) Math.min(maxReadSize,
+                                        divideRoundup(roundSize, CHUNK_SIZE) * CHUNK_SIZE));
+                            }
+
+                            // Zero-padding the last chunk.
+                            buffer.clear();
+                            try {
+                                dataSource.copyTo(roundOffset + readOffset, readSize, buffer);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                            while (buffer.position() < bufferSizeChunks * CHUNK_SIZE) {
+                                buffer.put((byte) 0);
+                            }
+
+                            for (int offset = 0, chunkIndex = read * ioSizeChunks;
+                                    offset < buffer.position();
+                                    offset += CHUNK_SIZE, ++chunkIndex) {
+                                ByteBuffer chunk = slice(buffer, offset, offset + CHUNK_SIZE);
+                                byte[] hash = saltedDigest(md, chunk);
+                                System.arraycopy(
+                                        hash, 0, digests, chunkIndex * digestSize, digestSize);
+                            }
+                        }
+                    } finally {
+                        availableReadBytes.addAndGet(maxReadSize);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
 
-            startChunkIndex += bufferSizeChunks;
-            readOffset += readSize;
+            // Streaming hashes back.
+            int roundChunkCount = (int) divideRoundup(roundSize, CHUNK_SIZE);
+            dataSink.consume(digests, 0, roundChunkCount * digestSize);
         }
+    }
 
-        // Waiting for the tasks to complete.
-        tasks.arriveAndAwaitAdvance();
-
-        // Streaming hashes back.
-        for (byte[] hash : hashes) {
-            dataSink.consume(hash, 0, hash.length);
+    /**
+     * Reserves {@code bytes} of the available bytes, returning {@code false} if fewer bytes are
+     * available.
+     */
+    private static boolean reserve(AtomicLong available, long bytes) {
+        while (true) {
+            long current = available.get();
+            if (current < bytes) {
+                return false;
+            }
+            if (available.compareAndSet(current, current - bytes)) {
+                return true;
+            }
         }
     }
 
@@ -304,7 +597,7 @@ public class VerityTreeBuilder implements AutoCloseable {
      * Obtains a new instance of the message digest algorithm.
      */
     private static MessageDigest getNewMessageDigest() throws NoSuchAlgorithmException {
-        return MessageDigest.getInstance(JCA_ALGORITHM);
+        return MessageDigestProviders.getInstance(JCA_ALGORITHM);
     }
 
     /**
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.zip;
+
+import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.zip.ZipFormatException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Index of the records of a ZIP Central Directory (CD).
+ *
+ * <p>The sizes and offsets of the records are stored in primitive arrays over the buffer which
+ * contains the CD, rather than in a {@link CentralDirectoryRecord} per record, and entry names are
+ * decoded when first requested. The order of the records by the offset of their Local File Header
+ * is computed once, and records are looked up by name through a hash table of the bytes of their
+ * names, which is built when first used. Indexing and iterating over the records of archives with
+ * many entries thus allocates little memory per entry. {@link CentralDirectoryRecord} instances
+ * are created on request.
+ *
+ * <p>Records are identified by their position in the CD, starting at {@code 0}.
+ */
+public class CentralDirectoryIndex {
+    private static final int COMPRESSION_METHOD_OFFSET = 10;
+    private static final int LAST_MODIFICATION_TIME_OFFSET = 12;
+    private static final int LAST_MODIFICATION_DATE_OFFSET = 14;
+    private static final int CRC32_OFFSET = 16;
+    private static final int NAME_LENGTH_OFFSET = 28;
+
+    private final ByteBuffer mCentralDir;
+    private final int mRecordCount;
+    /** Position of each record in the CD buffer, followed by the position of the records' end. */
+    private final int[] mRecordPositions;
+    private final long[] mCompressedSizes;
+    private final long[] mUncompressedSizes;
+    private final long[] mLocalFileHeaderOffsets;
+    private final String[] mNames;
+    private final int[] mRecordsByLocalFileHeaderOffset;
+    /**
+     * Open addressing hash table of record indices, by the hash of the bytes of their names, in
+     * which empty slots are {@code -1}, or {@code null} if not built yet.
+     */
+    private int[] mRecordsByNameHash;
+
+    private CentralDirectoryIndex(
+            ByteBuffer centralDir,
+            int recordCount,
+            int[] recordPositions,
+            long[] compressedSizes,
+            long[] uncompressedSizes,
+            long[] localFileHeaderOffsets) {
+        mCentralDir = centralDir;
+        mRecordCount = recordCount;
+        mRecordPositions = recordPositions;
+        mCompressedSizes = compressedSizes;
+        mUncompressedSizes = uncompressedSizes;
+        mLocalFileHeaderOffsets = localFileHeaderOffsets;
+        mNames = new String[recordCount];
+        mRecordsByLocalFileHeaderOffset = sortByLocalFileHeaderOffset();
+    }
+
+    /**
+     * Indexes the provided number of records starting at the current position of the provided
+     * buffer and advances the buffer's position immediately past the end of the last record.
+     *
+     * <p>NOTE: Byte order of {@code centralDir} must be little-endian. The buffer must not be
+     * modified while the returned index is in use.
+     *
+     * @param centralDirOffset offset of the CD in the archive, used in error messages
+     *
+     * @throws ApkFormatException if a record is malformed
+     */
+    public static CentralDirectoryIndex create(
+            ByteBuffer centralDir, long centralDirOffset, int recordCount)
+            throws ApkFormatException {
+        ZipUtils.assertByteOrderLittleEndian(centralDir);
+        int[] recordPositions = new int[recordCount + 1];
+        long[] compressedSizes = new long[recordCount];
+        long[] uncompressedSizes = new long[recordCount];
+        long[] localFileHeaderOffsets = new long[recordCount];
+        for (int i = 0; i < recordCount; i++) {
+            int position = centralDir.position();
+            recordPositions[i] = position;
+            try {
+                indexRecord(
+                        centralDir, i, compressedSizes, uncompressedSizes, localFileHeaderOffsets);
+            } catch (ZipFormatException e) {
+                throw new ApkFormatException(
+                        "Malformed ZIP Central Directory record #" + (i + 1)
+                                + " at file offset " + (centralDirOffset + position),
+                        e);
+            }
+        }
+        recordPositions[recordCount] = centralDir.position();
+        return new CentralDirectoryIndex(
+                centralDir,
+                recordCount,
+                recordPositions,
+                compressedSizes,
+                uncompressedSizes,
+                localFileHeaderOffsets);
+    }
+
+    /**
+     * Indexes the record starting at the current position of the provided buffer as the record
+     * with the provided index and advances the buffer's position immediately past its end.
+     *
+     * @see CentralDirectoryRecord#getRecord(ByteBuffer)
+     */
+    private static void indexRecord(
+            ByteBuffer buf,
+            int index,
+            long[] compressedSizes,
+            long[] uncompressedSizes,
+            long[] localFileHeaderOffsets) throws ZipFormatException {
+        int position = buf.position();
+        if (buf.remaining() < CentralDirectoryRecord.HEADER_SIZE_BYTES) {
+            throw new ZipFormatException(
+                    "Input too short. Need at least: " + CentralDirectoryRecord.HEADER_SIZE_BYTES
+                            + " bytes, available: " + buf.remaining() + " bytes",
+                    new BufferUnderflowException());
+        }
+        int recordSignature = buf.getInt(position);
+        if (recordSignature != CentralDirectoryRecord.RECORD_SIGNATURE) {
+            throw new ZipFormatException(
+                    "Not a Central Directory record. Signature: 0x"
+                            + Long.toHexString(recordSignature & 0xffffffffL));
+        }
+        long compressedSize =
+                ZipUtils.getUnsignedInt32(
+                        buf, position + CentralDirectoryRecord.COMPRESSED_SIZE_OFFSET);
+        long uncompressedSize =
+                ZipUtils.getUnsignedInt32(
+                        buf, position + CentralDirectoryRecord.UNCOMPRESSED_SIZE_OFFSET);
+        long localFileHeaderOffset =
+                ZipUtils.getUnsignedInt32(
+                        buf, position + CentralDirectoryRecord.LOCAL_FILE_HEADER_OFFSET_OFFSET);
+        int nameSize = ZipUtils.getUnsignedInt16(buf, position + NAME_LENGTH_OFFSET);
+        int extraSize =
+                ZipUtils.getUnsignedInt16(
+                        buf, position + CentralDirectoryRecord.EXTRA_LENGTH_OFFSET);
+        int commentSize =
+                ZipUtils.getUnsignedInt16(
+                        buf, position + CentralDirectoryRecord.COMMENT_LENGTH_OFFSET);
+        int recordSize =
+                CentralDirectoryRecord.HEADER_SIZE_BYTES + nameSize + extraSize + commentSize;
+        if (recordSize > buf.remaining()) {
+            throw new ZipFormatException(
+                    "Input too short. Need: " + recordSize + " bytes, available: "
+                            + buf.remaining() + " bytes",
+                    new BufferUnderflowException());
+        }
+        if ((uncompressedSize == ZipUtils.UINT32_MAX_VALUE)
+                || (compressedSize == ZipUtils.UINT32_MAX_VALUE)
+                || (localFileHeaderOffset == ZipUtils.UINT32_MAX_VALUE)) {
+            int namePosition = position + CentralDirectoryRecord.NAME_OFFSET;
+            String name = CentralDirectoryRecord.getName(buf, namePosition, nameSize);
+            ByteBuffer zip64ExtendedInformation =
+                    CentralDirectoryRecord.getZip64ExtendedInformation(
+                            buf, namePosition + nameSize, extraSize, name);
+            if (uncompressedSize == ZipUtils.UINT32_MAX_VALUE) {
+                uncompressedSize =
+                        CentralDirectoryRecord.getZip64Value(zip64ExtendedInformation, name);
+            }
+            if (compressedSize == ZipUtils.UINT32_MAX_VALUE) {
+                compressedSize =
+                        CentralDirectoryRecord.getZip64Value(zip64ExtendedInformation, name);
+            }
+            if (localFileHeaderOffset == ZipUtils.UINT32_MAX_VALUE) {
+                localFileHeaderOffset =
+                        CentralDirectoryRecord.getZip64Value(zip64ExtendedInformation, name);
+            }
+        }
+        compressedSizes[index] = compressedSize;
+        uncompressedSizes[index] = uncompressedSize;
+        localFileHeaderOffsets[index] = localFileHeaderOffset;
+        // Consume this record
+        buf.position(position + recordSize);
+    }
+
+    /**
+     * Returns the number of indexed records.
+     */
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Returns the name of the entry of the provided record.
+     */
+    public String getName(int index) {
+        String name = mNames[index];
+        if (name == null) {
+            int position = mRecordPositions[index];
+            name =
+                    CentralDirectoryRecord.getName(
+                            mCentralDir,
+                            position + CentralDirectoryRecord.NAME_OFFSET,
+                            getNameSizeBytes(index));
+            mNames[index] = name;
+        }
+        return name;
+    }
+
+    private int getNameSizeBytes(int index) {
+        return ZipUtils.getUnsignedInt16(mCentralDir, mRecordPositions[index] + NAME_LENGTH_OFFSET);
+    }
+
+    /**
+     * Returns {@code true} if the provided record is the record of a directory, whose name ends
+     * with {@code /}. The entry's name is not decoded.
+     */
+    public boolean isDirectory(int index) {
+        int nameSize = getNameSizeBytes(index);
+        return (nameSize > 0)
+                && (mCentralDir.get(
+                                mRecordPositions[index]
+                                        + CentralDirectoryRecord.NAME_OFFSET
+                                        + nameSize
+                                        - 1)
+                        == '/');
+    }
+
+    public long getLocalFileHeaderOffset(int index) {
+        return mLocalFileHeaderOffsets[index];
+    }
+
+    public long getCompressedSize(int index) {
+        return mCompressedSizes[index];
+    }
+
+    public long getUncompressedSize(int index) {
+        return mUncompressedSizes[index];
+    }
+
+    public long getCrc32(int index) {
+        return ZipUtils.getUnsignedInt32(mCentralDir, mRecordPositions[index] + CRC32_OFFSET);
+    }
+
+    /**
+     * Returns the index of the record of the entry with the provided name or {@code -1} if there
+     * is no such record. If there are several such records, the first one in the CD is returned.
+     */
+    public int findRecord(String name) {
+        if (name.indexOf('\uFFFD') != -1) {
+            // Names which are not valid UTF-8 are decoded with replacement characters, which
+            // cannot be matched against the bytes of the names.
+            for (int i = 0; i < mRecordCount; i++) {
+                if (name.equals(getName(i))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        if (mRecordsByNameHash == null) {
+            mRecordsByNameHash = createRecordsByNameHash();
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int hash = 0;
+        for (byte b : nameBytes) {
+            hash = 31 * hash + b;
+        }
+        // Records with the same name are stored in the order of the CD along the same probe
+        // sequence, thus the first of them is found.
+        int mask = mRecordsByNameHash.length - 1;
+        int slot = mix(hash) & mask;
+        while (mRecordsByNameHash[slot] != -1) {
+            int index = mRecordsByNameHash[slot];
+            if (isNameEqual(index, nameBytes)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the indices of the records in the order of the offsets of their Local File Headers.
+     * Records with the same offset are in the order in which they are stored in the CD. The
+     * returned array must not be modified.
+     */
+    public int[] getRecordsByLocalFileHeaderOffset() {
+        return mRecordsByLocalFileHeaderOffset;
+    }
+
+    /**
+     * Returns the provided record. The returned record shares its contents with the CD buffer
+     * of this index.
+     */
+    public CentralDirectoryRecord getRecord(int index) {
+        int position = mRecordPositions[index];
+        ByteBuffer data = mCentralDir.duplicate();
+        data.limit(mRecordPositions[index + 1]);
+        data.position(position);
+        return new CentralDirectoryRecord(
+                data.slice(),
+                mCentralDir.getShort(position + CentralDirectoryRecord.GP_FLAGS_OFFSET),
+                mCentralDir.getShort(position + COMPRESSION_METHOD_OFFSET),
+                ZipUtils.getUnsignedInt16(mCentralDir, position + LAST_MODIFICATION_TIME_OFFSET),
+                ZipUtils.getUnsignedInt16(mCentralDir, position + LAST_MODIFICATION_DATE_OFFSET),
+                getCrc32(index),
+                mCompressedSizes[index],
+                mUncompressedSizes[index],
+                mLocalFileHeaderOffsets[index],
+                mNames[index],
+                getNameSizeBytes(index));
+    }
+
+    private int[] createRecordsByNameHash() {
+        // The table is kept at most half full for short probe sequences.
+        int[] table = new int[Integer.highestOneBit(Math.max(mRecordCount, 1)) << 2];
+        Arrays.fill(table, -1);
+        int mask = table.length - 1;
+        for (int i = 0; i < mRecordCount; i++) {
+            int namePosition = mRecordPositions[i] + CentralDirectoryRecord.NAME_OFFSET;
+            int nameEnd = namePosition + getNameSizeBytes(i);
+            int hash = 0;
+            for (int position = namePosition; position < nameEnd; position++) {
+                hash = 31 * hash + mCentralDir.get(position);
+            }
+            int slot = mix(hash) & mask;
+            while (table[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i;
+        }
+        return table;
+    }
+
+    /** Spreads the high bits of the provided hash to the low bits used to index hash tables. */
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean isNameEqual(int index, byte[] nameBytes) {
+        if (getNameSizeBytes(index) != nameBytes.length) {
+            return false;
+        }
+        int namePosition = mRecordPositions[index] + CentralDirectoryRecord.NAME_OFFSET;
+        for (int i = 0; i < nameBytes.length; i++) {
+            if (mCentralDir.get(namePosition + i) != nameBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the indices of the records sorted by the offsets of their Local File Headers. The
+     * sort is stable. Records are usually already in this order, in which case they are not
+     * sorted.
+     */
+    private int[] sortByLocalFileHeaderOffset() {
+        int[] result = new int[mRecordCount];
+        boolean sorted = true;
+        for (int i = 0; i < mRecordCount; i++) {
+            result[i] = i;
+            if ((i > 0) && (mLocalFileHeaderOffsets[i - 1] > mLocalFileHeaderOffsets[i])) {
+                sorted = false;
+            }
+        }
+        if (!sorted) {
+            mergeSort(result, new int[mRecordCount], 0, mRecordCount);
+        }
+        return result;
+    }
+
+    private void mergeSort(int[] indices, int[] buf, int start, int end) {
+        if (end - start < 2) {
+            return;
+        }
+        int middle = (start + end) >>> 1;
+        mergeSort(indices, buf, start, middle);
+        mergeSort(indices, buf, middle, end);
+        System.arraycopy(indices, start, buf, start, end - start);
+        int left = start;
+        int right = middle;
+        for (int i = start; i < end; i++) {
+            if ((right >= end)
+                    || ((left < middle)
+                            && (mLocalFileHeaderOffsets[buf[left]]
+                                    <= mLocalFileHeaderOffsets[buf[right]]))) {
+                indices[i] = buf[left++];
+            } else {
+                indices[i] = buf[right++];
+            }
+        }
+    }
+}
@@ -35,12 +35,20 @@ public class CentralDirectoryRecord {
     public static final Comparator<CentralDirectoryRecord> BY_LOCAL_FILE_HEADER_OFFSET_COMPARATOR =
             new ByLocalFileHeaderOffsetComparator();
 
-    private static final int RECORD_SIGNATURE = 0x02014b50;
-    private static final int HEADER_SIZE_BYTES = 46;
+    static final int RECORD_SIGNATURE = 0x02014b50;
+    static final int HEADER_SIZE_BYTES = 46;
 
-    private static final int GP_FLAGS_OFFSET = 8;
-    private static final int LOCAL_FILE_HEADER_OFFSET_OFFSET = 42;
-    private static final int NAME_OFFSET = HEADER_SIZE_BYTES;
+    private static final int VERSION_NEEDED_OFFSET = 6;
+    static final int GP_FLAGS_OFFSET = 8;
+    static final int COMPRESSED_SIZE_OFFSET = 20;
+    static final int UNCOMPRESSED_SIZE_OFFSET = 24;
+    static final int EXTRA_LENGTH_OFFSET = 30;
+    static final int COMMENT_LENGTH_OFFSET = 32;
+    static final int LOCAL_FILE_HEADER_OFFSET_OFFSET = 42;
+    static final int NAME_OFFSET = HEADER_SIZE_BYTES;
+
+    /** Minimum version needed to extract entries whose records use ZIP64 extensions (4.5). */
+    private static final int ZIP64_VERSION_NEEDED = 45;
 
     private final ByteBuffer mData;
     private final short mGpFlags;
@@ -51,10 +59,14 @@ public class CentralDirectoryRecord {
     private final long mCompressedSize;
     private final long mUncompressedSize;
     private final long mLocalFileHeaderOffset;
-    private final String mName;
+    private String mName;
     private final int mNameSizeBytes;
 
-    private CentralDirectoryRecord(
+    /**
+     * Constructs a new record. If {@code name} is {@code null}, the name is decoded from
+     * {@code data} when first requested.
+     */
+    CentralDirectoryRecord(
             ByteBuffer data,
             short gpFlags,
             short compressionMethod,
@@ -84,6 +96,9 @@ public class CentralDirectoryRecord {
     }
 
     public String getName() {
+        if (mName == null) {
+            mName = getName(mData, NAME_OFFSET, mNameSizeBytes);
+        }
         return mName;
     }
 
@@ -164,6 +179,24 @@ public class CentralDirectoryRecord {
                     new BufferUnderflowException());
         }
         String name = getName(buf, originalPosition + NAME_OFFSET, nameSize);
+        if ((uncompressedSize == ZipUtils.UINT32_MAX_VALUE)
+                || (compressedSize == ZipUtils.UINT32_MAX_VALUE)
+                || (localFileHeaderOffset == ZipUtils.UINT32_MAX_VALUE)) {
+            // The actual values are stored in the ZIP64 Extended Information extra field, in this
+            // order, but only for the fields set to 0xffffffff
+            ByteBuffer zip64ExtendedInformation =
+                    getZip64ExtendedInformation(
+                            buf, originalPosition + NAME_OFFSET + nameSize, extraSize, name);
+            if (uncompressedSize == ZipUtils.UINT32_MAX_VALUE) {
+                uncompressedSize = getZip64Value(zip64ExtendedInformation, name);
+            }
+            if (compressedSize == ZipUtils.UINT32_MAX_VALUE) {
+                compressedSize = getZip64Value(zip64ExtendedInformation, name);
+            }
+            if (localFileHeaderOffset == ZipUtils.UINT32_MAX_VALUE) {
+                localFileHeaderOffset = getZip64Value(zip64ExtendedInformation, name);
+            }
+        }
         buf.position(originalPosition);
         int originalLimit = buf.limit();
         int recordEndInBuf = originalPosition + recordSize;
@@ -190,12 +223,60 @@ public class CentralDirectoryRecord {
                 nameSize);
     }
 
+    static ByteBuffer getZip64ExtendedInformation(
+            ByteBuffer buf, int extraStartPosition, int extraSize, String entryName)
+            throws ZipFormatException {
+        int originalPosition = buf.position();
+        int originalLimit = buf.limit();
+        ByteBuffer zip64ExtendedInformation;
+        try {
+            buf.position(extraStartPosition);
+            buf.limit(extraStartPosition + extraSize);
+            zip64ExtendedInformation = ZipUtils.findZip64ExtendedInformationExtraField(buf);
+        } finally {
+            buf.limit(originalLimit);
+            buf.position(originalPosition);
+        }
+        if (zip64ExtendedInformation == null) {
+            throw new ZipFormatException(
+                    "ZIP64 Extended Information extra field not found for entry " + entryName);
+        }
+        return zip64ExtendedInformation;
+    }
+
+    static long getZip64Value(ByteBuffer zip64ExtendedInformation, String entryName)
+            throws ZipFormatException {
+        if (zip64ExtendedInformation.remaining() < 8) {
+            throw new ZipFormatException(
+                    "ZIP64 Extended Information extra field too short for entry " + entryName,
+                    new BufferUnderflowException());
+        }
+        long value = zip64ExtendedInformation.getLong();
+        if (value < 0) {
+            throw new ZipFormatException(
+                    "ZIP64 value out of range for entry " + entryName + ": " + value);
+        }
+        return value;
+    }
+
     public void copyTo(ByteBuffer output) {
         output.put(mData.slice());
     }
 
+    /**
+     * Returns a copy of this record with the provided Local File Header offset. Offsets which do
+     * not fit into the record's 32-bit field are stored in its ZIP64 Extended Information extra
+     * field, which is added to the record if necessary.
+     */
     public CentralDirectoryRecord createWithModifiedLocalFileHeaderOffset(
             long localFileHeaderOffset) {
+        ByteBuffer data = mData.slice();
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        if ((localFileHeaderOffset >= ZipUtils.UINT32_MAX_VALUE)
+                || (ZipUtils.getUnsignedInt32(data, LOCAL_FILE_HEADER_OFFSET_OFFSET)
+                        == ZipUtils.UINT32_MAX_VALUE)) {
+            return createWithZip64LocalFileHeaderOffset(data, localFileHeaderOffset);
+        }
         ByteBuffer result = ByteBuffer.allocate(mData.remaining());
         result.put(mData.slice());
         result.flip();
@@ -215,6 +296,82 @@ public class CentralDirectoryRecord {
                 mNameSizeBytes);
     }
 
+    private CentralDirectoryRecord createWithZip64LocalFileHeaderOffset(
+            ByteBuffer data, long localFileHeaderOffset) {
+        int extraStartOffset = NAME_OFFSET + mNameSizeBytes;
+        int extraSize = ZipUtils.getUnsignedInt16(data, EXTRA_LENGTH_OFFSET);
+        int commentSize = ZipUtils.getUnsignedInt16(data, COMMENT_LENGTH_OFFSET);
+        data.position(extraStartOffset);
+        data.limit(extraStartOffset + extraSize);
+        ByteBuffer extra = data.slice();
+        data.clear();
+
+        // Keep the sizes stored in the ZIP64 Extended Information extra field, if any, followed
+        // by the new offset and by the rest of the field, such as the disk number
+        int zip64SizesLength = 0;
+        if (ZipUtils.getUnsignedInt32(data, UNCOMPRESSED_SIZE_OFFSET)
+                == ZipUtils.UINT32_MAX_VALUE) {
+            zip64SizesLength += 8;
+        }
+        if (ZipUtils.getUnsignedInt32(data, COMPRESSED_SIZE_OFFSET)
+                == ZipUtils.UINT32_MAX_VALUE) {
+            zip64SizesLength += 8;
+        }
+        int zip64OffsetLength =
+                (ZipUtils.getUnsignedInt32(data, LOCAL_FILE_HEADER_OFFSET_OFFSET)
+                        == ZipUtils.UINT32_MAX_VALUE) ? 8 : 0;
+        ByteBuffer zip64ExtendedInformation =
+                ZipUtils.findZip64ExtendedInformationExtraField(extra);
+        int zip64RemainderStart = zip64SizesLength + zip64OffsetLength;
+        int zip64RemainderLength =
+                (zip64ExtendedInformation != null)
+                        ? Math.max(0, zip64ExtendedInformation.remaining() - zip64RemainderStart)
+                        : 0;
+        ByteBuffer newZip64ExtendedInformation =
+                ByteBuffer.allocate(zip64SizesLength + 8 + zip64RemainderLength);
+        newZip64ExtendedInformation.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < zip64SizesLength; i++) {
+            newZip64ExtendedInformation.put(zip64ExtendedInformation.get(i));
+        }
+        ZipUtils.putUnsignedInt64(newZip64ExtendedInformation, localFileHeaderOffset);
+        for (int i = 0; i < zip64RemainderLength; i++) {
+            newZip64ExtendedInformation.put(zip64ExtendedInformation.get(zip64RemainderStart + i));
+        }
+        newZip64ExtendedInformation.flip();
+        ByteBuffer newExtra =
+                ZipUtils.createExtraFieldWithZip64ExtendedInformation(
+                        extra, newZip64ExtendedInformation);
+        int newExtraSize = newExtra.remaining();
+
+        ByteBuffer result = ByteBuffer.allocate(extraStartOffset + newExtraSize + commentSize);
+        result.order(ByteOrder.LITTLE_ENDIAN);
+        data.limit(extraStartOffset);
+        result.put(data);
+        result.put(newExtra);
+        data.limit(data.capacity());
+        data.position(extraStartOffset + extraSize);
+        result.put(data);
+        result.flip();
+        if (ZipUtils.getUnsignedInt16(result, VERSION_NEEDED_OFFSET) < ZIP64_VERSION_NEEDED) {
+            ZipUtils.setUnsignedInt16(result, VERSION_NEEDED_OFFSET, ZIP64_VERSION_NEEDED);
+        }
+        ZipUtils.setUnsignedInt16(result, EXTRA_LENGTH_OFFSET, newExtraSize);
+        ZipUtils.setUnsignedInt32(
+                result, LOCAL_FILE_HEADER_OFFSET_OFFSET, ZipUtils.UINT32_MAX_VALUE);
+        return new CentralDirectoryRecord(
+                result,
+                mGpFlags,
+                mCompressionMethod,
+                mLastModificationTime,
+                mLastModificationDate,
+                mCrc32,
+                mCompressedSize,
+                mUncompressedSize,
+                localFileHeaderOffset,
+                mName,
+                mNameSizeBytes);
+    }
+
     public static CentralDirectoryRecord createWithDeflateCompressedData(
             String name,
             int lastModifiedTime,
@@ -245,14 +402,17 @@ public class CentralDirectoryRecord {
         ZipUtils.putUnsignedInt16(result, 0); // Disk number
         ZipUtils.putUnsignedInt16(result, 0); // Internal file attributes
         ZipUtils.putUnsignedInt32(result, 0); // External file attributes
-        ZipUtils.putUnsignedInt32(result, localFileHeaderOffset);
+        // Offsets which do not fit into this field are stored in the ZIP64 Extended Information
+        // extra field added below
+        boolean zip64 = localFileHeaderOffset >= ZipUtils.UINT32_MAX_VALUE;
+        ZipUtils.putUnsignedInt32(result, zip64 ? 0 : localFileHeaderOffset);
         result.put(nameBytes);
 
         if (result.hasRemaining()) {
             throw new RuntimeException("pos: " + result.position() + ", limit: " + result.limit());
         }
         result.flip();
-        return new CentralDirectoryRecord(
+        CentralDirectoryRecord record = new CentralDirectoryRecord(
                 result,
                 gpFlags,
                 compressionMethod,
@@ -261,9 +421,13 @@ public class CentralDirectoryRecord {
                 crc32,
                 compressedSize,
                 uncompressedSize,
-                localFileHeaderOffset,
+                zip64 ? 0 : localFileHeaderOffset,
                 name,
                 nameBytes.length);
+        if (zip64) {
+            return record.createWithModifiedLocalFileHeaderOffset(localFileHeaderOffset);
+        }
+        return record;
     }
 
     static String getName(ByteBuffer record, int position, int nameLengthBytes) {
@@ -21,6 +21,11 @@ import java.nio.ByteOrder;
 
 /**
  * ZIP End of Central Directory record.
+ *
+ * <p>The record may be preceded by the ZIP64 End of Central Directory record and locator, which
+ * are then treated as part of it. See
+ * {@link ZipUtils#findZip64EndOfCentralDirectoryRecord(com.android.apksig.util.DataSource, long,
+ * ByteBuffer)}.
  */
 public class EocdRecord {
     private static final int CD_RECORD_COUNT_ON_DISK_OFFSET = 8;
@@ -28,11 +33,47 @@ public class EocdRecord {
     private static final int CD_SIZE_OFFSET = 12;
     private static final int CD_OFFSET_OFFSET = 16;
 
+    private static final int ZIP64_RECORD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_RECORD_SIZE_BYTES = 56;
+    private static final int ZIP64_VERSION = 45;
+    private static final int ZIP64_CD_RECORD_COUNT_ON_DISK_OFFSET = 24;
+    private static final int ZIP64_CD_RECORD_COUNT_TOTAL_OFFSET = 32;
+    private static final int ZIP64_CD_SIZE_OFFSET = 40;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE_BYTES = 20;
+
+    private static final int UINT16_MAX_VALUE = 0xffff;
+
+    /**
+     * Returns a copy of the provided record with the provided Central Directory information. The
+     * ZIP64 End of Central Directory record and locator are added if the information does not fit
+     * into the record, and kept if the provided record already has them.
+     */
     public static ByteBuffer createWithModifiedCentralDirectoryInfo(
             ByteBuffer original,
             int centralDirectoryRecordCount,
             long centralDirectorySizeBytes,
             long centralDirectoryOffset) {
+        if ((ZipUtils.isZip64EndOfCentralDirectory(original))
+                || (centralDirectoryRecordCount >= UINT16_MAX_VALUE)
+                || (centralDirectorySizeBytes >= ZipUtils.UINT32_MAX_VALUE)
+                || (centralDirectoryOffset >= ZipUtils.UINT32_MAX_VALUE)) {
+            ByteBuffer result = createWithZip64Records(original);
+            int position = result.position();
+            ZipUtils.setUnsignedInt64(
+                    result,
+                    position + ZIP64_CD_RECORD_COUNT_ON_DISK_OFFSET,
+                    centralDirectoryRecordCount);
+            ZipUtils.setUnsignedInt64(
+                    result,
+                    position + ZIP64_CD_RECORD_COUNT_TOTAL_OFFSET,
+                    centralDirectoryRecordCount);
+            ZipUtils.setUnsignedInt64(
+                    result, position + ZIP64_CD_SIZE_OFFSET, centralDirectorySizeBytes);
+            // Also sets the offset in the locator
+            ZipUtils.setZipEocdCentralDirectoryOffset(result, centralDirectoryOffset);
+            return result;
+        }
         ByteBuffer result = ByteBuffer.allocate(original.remaining());
         result.order(ByteOrder.LITTLE_ENDIAN);
         result.put(original.slice());
@@ -46,6 +87,66 @@ public class EocdRecord {
         return result;
     }
 
+    /**
+     * Returns a copy of the provided record preceded by the ZIP64 End of Central Directory record
+     * and locator, which contain the Central Directory information of the provided record. The
+     * fields of the returned ZIP End of Central Directory record which are superseded by the ZIP64
+     * record are set to their maximum value. The ZIP64 records of the provided record, if any, are
+     * kept.
+     */
+    public static ByteBuffer createWithZip64Records(ByteBuffer original) {
+        ByteBuffer result;
+        if (ZipUtils.isZip64EndOfCentralDirectory(original)) {
+            result = ByteBuffer.allocate(original.remaining());
+            result.order(ByteOrder.LITTLE_ENDIAN);
+            result.put(original.slice());
+            result.flip();
+        } else {
+            result = createZip64Records(original);
+        }
+        int eocdPosition = ZipUtils.getZipEocdRecordPosition(result);
+        ZipUtils.setUnsignedInt16(
+                result, eocdPosition + CD_RECORD_COUNT_ON_DISK_OFFSET, UINT16_MAX_VALUE);
+        ZipUtils.setUnsignedInt16(
+                result, eocdPosition + CD_RECORD_COUNT_TOTAL_OFFSET, UINT16_MAX_VALUE);
+        ZipUtils.setUnsignedInt32(
+                result, eocdPosition + CD_SIZE_OFFSET, ZipUtils.UINT32_MAX_VALUE);
+        ZipUtils.setUnsignedInt32(
+                result, eocdPosition + CD_OFFSET_OFFSET, ZipUtils.UINT32_MAX_VALUE);
+        return result;
+    }
+
+    private static ByteBuffer createZip64Records(ByteBuffer original) {
+        int centralDirectoryRecordCount =
+                ZipUtils.getZipEocdCentralDirectoryTotalRecordCount(original);
+        long centralDirectorySizeBytes = ZipUtils.getZipEocdCentralDirectorySizeBytes(original);
+        long centralDirectoryOffset = ZipUtils.getZipEocdCentralDirectoryOffset(original);
+
+        ByteBuffer result =
+                ByteBuffer.allocate(
+                        ZIP64_RECORD_SIZE_BYTES + ZIP64_LOCATOR_SIZE_BYTES + original.remaining());
+        result.order(ByteOrder.LITTLE_ENDIAN);
+        result.putInt(ZIP64_RECORD_SIGNATURE);
+        // Size of the rest of the record, excluding the signature and this field
+        ZipUtils.putUnsignedInt64(result, ZIP64_RECORD_SIZE_BYTES - 12);
+        ZipUtils.putUnsignedInt16(result, ZIP64_VERSION); // Version made by
+        ZipUtils.putUnsignedInt16(result, ZIP64_VERSION); // Minimum version needed to extract
+        ZipUtils.putUnsignedInt32(result, 0); // Number of this disk
+        ZipUtils.putUnsignedInt32(result, 0); // Disk where Central Directory starts
+        ZipUtils.putUnsignedInt64(result, centralDirectoryRecordCount); // Records on this disk
+        ZipUtils.putUnsignedInt64(result, centralDirectoryRecordCount); // Total records
+        ZipUtils.putUnsignedInt64(result, centralDirectorySizeBytes);
+        ZipUtils.putUnsignedInt64(result, centralDirectoryOffset);
+        result.putInt(ZIP64_LOCATOR_SIGNATURE);
+        ZipUtils.putUnsignedInt32(result, 0); // Disk where ZIP64 EoCD record starts
+        // Offset of the ZIP64 EoCD record, which immediately follows the Central Directory
+        ZipUtils.putUnsignedInt64(result, centralDirectoryOffset + centralDirectorySizeBytes);
+        ZipUtils.putUnsignedInt32(result, 1); // Total number of disks
+        result.put(original.slice());
+        result.flip();
+        return result;
+    }
+
     public static ByteBuffer createWithPaddedComment(ByteBuffer original, int padding) {
         ByteBuffer result = ByteBuffer.allocate((int) original.remaining() + padding);
         result.order(ByteOrder.LITTLE_ENDIAN);
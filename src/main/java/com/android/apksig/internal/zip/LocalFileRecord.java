@@ -46,6 +46,7 @@ public class LocalFileRecord {
     private static final int NAME_OFFSET = HEADER_SIZE_BYTES;
 
     private static final int DATA_DESCRIPTOR_SIZE_BYTES_WITHOUT_SIGNATURE = 12;
+    private static final int ZIP64_DATA_DESCRIPTOR_SIZE_BYTES_WITHOUT_SIGNATURE = 20;
     private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
 
     private final String mName;
@@ -59,6 +60,7 @@ public class LocalFileRecord {
     private final long mDataSize;
     private final boolean mDataCompressed;
     private final long mUncompressedDataSize;
+    private final boolean mDataDescriptorUsed;
 
     private LocalFileRecord(
             String name,
@@ -69,7 +71,8 @@ public class LocalFileRecord {
             int dataStartOffset,
             long dataSize,
             boolean dataCompressed,
-            long uncompressedDataSize) {
+            long uncompressedDataSize,
+            boolean dataDescriptorUsed) {
         mName = name;
         mNameSizeBytes = nameSizeBytes;
         mExtra = extra;
@@ -79,6 +82,7 @@ public class LocalFileRecord {
         mDataSize = dataSize;
         mDataCompressed = dataCompressed;
         mUncompressedDataSize = uncompressedDataSize;
+        mDataDescriptorUsed = dataDescriptorUsed;
     }
 
     public String getName() {
@@ -115,6 +119,15 @@ public class LocalFileRecord {
         return mDataCompressed;
     }
 
+    /**
+     * Returns {@code true} if this record's CRC-32 and sizes are stored in a Data Descriptor
+     * following its data. Otherwise, they are stored in its Local File Header and were checked to
+     * match those of the entry's Central Directory record.
+     */
+    public boolean isDataDescriptorUsed() {
+        return mDataDescriptorUsed;
+    }
+
     /**
      * Returns the Local File record starting at the current position of the provided buffer
      * and advances the buffer's position immediately past the end of the record. The record
@@ -194,13 +207,28 @@ public class LocalFileRecord {
                                 + ", CD: " + uncompressedDataCrc32FromCdRecord);
             }
             long compressedSize = ZipUtils.getUnsignedInt32(header, COMPRESSED_SIZE_OFFSET);
+            long uncompressedSize = ZipUtils.getUnsignedInt32(header, UNCOMPRESSED_SIZE_OFFSET);
+            if ((compressedSize == ZipUtils.UINT32_MAX_VALUE)
+                    || (uncompressedSize == ZipUtils.UINT32_MAX_VALUE)) {
+                // Unlike in Central Directory records, the ZIP64 Extended Information extra field
+                // of Local File Headers contains both sizes
+                ByteBuffer zip64ExtendedInformation =
+                        getZip64ExtendedInformation(apk, headerStartOffset, header);
+                if ((zip64ExtendedInformation == null)
+                        || (zip64ExtendedInformation.remaining() < 16)) {
+                    throw new ZipFormatException(
+                            "ZIP64 Extended Information extra field not found or too short for"
+                                    + " entry " + entryName);
+                }
+                uncompressedSize = zip64ExtendedInformation.getLong();
+                compressedSize = zip64ExtendedInformation.getLong();
+            }
             if (compressedSize != compressedDataSizeFromCdRecord) {
                 throw new ZipFormatException(
                         "Compressed size mismatch between Local File Header and Central Directory"
                                 + " for entry " + entryName + ". LFH: " + compressedSize
                                 + ", CD: " + compressedDataSizeFromCdRecord);
             }
-            long uncompressedSize = ZipUtils.getUnsignedInt32(header, UNCOMPRESSED_SIZE_OFFSET);
             if (uncompressedSize != uncompressedDataSizeFromCdRecord) {
                 throw new ZipFormatException(
                         "Uncompressed size mismatch between Local File Header and Central Directory"
@@ -256,8 +284,20 @@ public class LocalFileRecord {
             // assume that it is indeed the record's signature. However, this is the wrong
             // conclusion if the record's CRC-32 (next field after the signature) has the same value
             // as the signature. In any case, we're doing what Android is doing.
+            // The sizes in the Data Descriptor of ZIP64 entries are 8 bytes long. Some writers
+            // only use ZIP64 Data Descriptors for entries whose sizes do not fit into 4 bytes
+            // while others use them for all entries with a ZIP64 Extended Information extra
+            // field in their Local File Header.
+            boolean zip64DataDescriptor =
+                    (compressedDataSizeFromCdRecord >= ZipUtils.UINT32_MAX_VALUE)
+                            || (uncompressedDataSizeFromCdRecord >= ZipUtils.UINT32_MAX_VALUE)
+                            || (getZip64ExtendedInformation(apk, headerStartOffset, header)
+                                    != null);
             long dataDescriptorEndOffset =
-                    dataEndOffset + DATA_DESCRIPTOR_SIZE_BYTES_WITHOUT_SIGNATURE;
+                    dataEndOffset
+                            + (zip64DataDescriptor
+                                    ? ZIP64_DATA_DESCRIPTOR_SIZE_BYTES_WITHOUT_SIGNATURE
+                                    : DATA_DESCRIPTOR_SIZE_BYTES_WITHOUT_SIGNATURE);
             if (dataDescriptorEndOffset > cdStartOffset) {
                 throw new ZipFormatException(
                         "Data Descriptor of " + entryName + " overlaps with Central Directory"
@@ -290,7 +330,24 @@ public class LocalFileRecord {
                 dataStartOffsetInRecord,
                 dataSize,
                 compressed,
-                uncompressedDataSizeFromCdRecord);
+                uncompressedDataSizeFromCdRecord,
+                dataDescriptorUsed);
+    }
+
+    /**
+     * Returns the data of the ZIP64 Extended Information extra field of the Local File Header
+     * whose fixed-size part is provided, or {@code null} if it does not contain such a field.
+     */
+    private static ByteBuffer getZip64ExtendedInformation(
+            DataSource apk, long headerStartOffset, ByteBuffer header) throws IOException {
+        int nameLength = ZipUtils.getUnsignedInt16(header, NAME_LENGTH_OFFSET);
+        int extraLength = ZipUtils.getUnsignedInt16(header, EXTRA_LENGTH_OFFSET);
+        if (extraLength == 0) {
+            return null;
+        }
+        ByteBuffer extra =
+                apk.getByteBuffer(headerStartOffset + HEADER_SIZE_BYTES + nameLength, extraLength);
+        return ZipUtils.findZip64ExtendedInformationExtraField(extra);
     }
 
     /**
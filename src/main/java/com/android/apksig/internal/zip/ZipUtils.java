@@ -53,19 +53,98 @@ public abstract class ZipUtils {
     private static final int ZIP_EOCD_CENTRAL_DIR_OFFSET_FIELD_OFFSET = 16;
     private static final int ZIP_EOCD_COMMENT_LENGTH_FIELD_OFFSET = 20;
 
+    private static final int ZIP64_EOCD_REC_MIN_SIZE = 56;
+    private static final int ZIP64_EOCD_REC_SIG = 0x06064b50;
+    private static final int ZIP64_EOCD_REC_SIZE_FIELD_OFFSET = 4;
+    private static final int ZIP64_EOCD_CENTRAL_DIR_TOTAL_RECORD_COUNT_OFFSET = 32;
+    private static final int ZIP64_EOCD_CENTRAL_DIR_SIZE_FIELD_OFFSET = 40;
+    private static final int ZIP64_EOCD_CENTRAL_DIR_OFFSET_FIELD_OFFSET = 48;
+
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_ZIP64_EOCD_OFFSET_FIELD_OFFSET = 8;
+
+    private static final short ZIP64_EXTENDED_INFO_EXTRA_FIELD_HEADER_ID = 0x0001;
+
     private static final int UINT16_MAX_VALUE = 0xffff;
 
+    /**
+     * Value of 32-bit size and offset fields whose actual value is stored in ZIP64 records or
+     * extra fields. Values greater than or equal to this value must be stored there.
+     */
+    public static final long UINT32_MAX_VALUE = 0xffffffffL;
+
+    /**
+     * Returns {@code true} if the provided ZIP End of Central Directory starts with the ZIP64 End
+     * of Central Directory record and locator, as returned by
+     * {@link #findZip64EndOfCentralDirectoryRecord(DataSource, long, ByteBuffer)}.
+     *
+     * <p>NOTE: Byte order of {@code zipEndOfCentralDirectory} must be little-endian.
+     */
+    public static boolean isZip64EndOfCentralDirectory(ByteBuffer zipEndOfCentralDirectory) {
+        assertByteOrderLittleEndian(zipEndOfCentralDirectory);
+        return zipEndOfCentralDirectory.remaining() >= ZIP64_EOCD_REC_MIN_SIZE
+                && zipEndOfCentralDirectory.getInt(zipEndOfCentralDirectory.position())
+                        == ZIP64_EOCD_REC_SIG;
+    }
+
+    /**
+     * Returns the position of the ZIP End of Central Directory record in the provided ZIP End of
+     * Central Directory, which may start with the ZIP64 End of Central Directory record and
+     * locator.
+     */
+    static int getZipEocdRecordPosition(ByteBuffer zipEndOfCentralDirectory) {
+        int position = zipEndOfCentralDirectory.position();
+        if (!isZip64EndOfCentralDirectory(zipEndOfCentralDirectory)) {
+            return position;
+        }
+        return position + getZip64EocdRecordSize(zipEndOfCentralDirectory, position)
+                + ZIP64_EOCD_LOCATOR_SIZE;
+    }
+
+    private static int getZip64EocdRecordSize(ByteBuffer buffer, int position) {
+        // The size field does not include the signature and the size field itself
+        long size = buffer.getLong(position + ZIP64_EOCD_REC_SIZE_FIELD_OFFSET) + 12;
+        if (size < ZIP64_EOCD_REC_MIN_SIZE || size > buffer.limit() - position) {
+            throw new IllegalArgumentException("Malformed ZIP64 End of Central Directory record");
+        }
+        return (int) size;
+    }
+
     /**
      * Sets the offset of the start of the ZIP Central Directory in the archive.
      *
+     * <p>If the ZIP End of Central Directory starts with the ZIP64 End of Central Directory record
+     * and locator, the offset is set in the ZIP64 record, the offset of the ZIP64 record is set in
+     * the locator as though the ZIP64 record immediately followed the ZIP Central Directory, and
+     * the offset field of the ZIP End of Central Directory record is set to
+     * {@link #UINT32_MAX_VALUE}.
+     *
      * <p>NOTE: Byte order of {@code zipEndOfCentralDirectory} must be little-endian.
      */
     public static void setZipEocdCentralDirectoryOffset(
             ByteBuffer zipEndOfCentralDirectory, long offset) {
         assertByteOrderLittleEndian(zipEndOfCentralDirectory);
+        if (isZip64EndOfCentralDirectory(zipEndOfCentralDirectory)) {
+            int position = zipEndOfCentralDirectory.position();
+            setUnsignedInt64(
+                    zipEndOfCentralDirectory,
+                    position + ZIP64_EOCD_CENTRAL_DIR_OFFSET_FIELD_OFFSET,
+                    offset);
+            long sizeBytes = getUnsignedInt64(
+                    zipEndOfCentralDirectory, position + ZIP64_EOCD_CENTRAL_DIR_SIZE_FIELD_OFFSET);
+            setUnsignedInt64(
+                    zipEndOfCentralDirectory,
+                    position
+                            + getZip64EocdRecordSize(zipEndOfCentralDirectory, position)
+                            + ZIP64_EOCD_LOCATOR_ZIP64_EOCD_OFFSET_FIELD_OFFSET,
+                    offset + sizeBytes);
+            offset = UINT32_MAX_VALUE;
+        }
         setUnsignedInt32(
                 zipEndOfCentralDirectory,
-                zipEndOfCentralDirectory.position() + ZIP_EOCD_CENTRAL_DIR_OFFSET_FIELD_OFFSET,
+                getZipEocdRecordPosition(zipEndOfCentralDirectory)
+                        + ZIP_EOCD_CENTRAL_DIR_OFFSET_FIELD_OFFSET,
                 offset);
     }
 
@@ -76,10 +155,12 @@ public abstract class ZipUtils {
      */
     public static void updateZipEocdCommentLen(ByteBuffer zipEndOfCentralDirectory) {
         assertByteOrderLittleEndian(zipEndOfCentralDirectory);
-        int commentLen = zipEndOfCentralDirectory.remaining() - ZIP_EOCD_REC_MIN_SIZE;
+        int eocdRecordPosition = getZipEocdRecordPosition(zipEndOfCentralDirectory);
+        int commentLen =
+                zipEndOfCentralDirectory.limit() - eocdRecordPosition - ZIP_EOCD_REC_MIN_SIZE;
         setUnsignedInt16(
                 zipEndOfCentralDirectory,
-                zipEndOfCentralDirectory.position() + ZIP_EOCD_COMMENT_LENGTH_FIELD_OFFSET,
+                eocdRecordPosition + ZIP_EOCD_COMMENT_LENGTH_FIELD_OFFSET,
                 commentLen);
     }
 
@@ -90,6 +171,12 @@ public abstract class ZipUtils {
      */
     public static long getZipEocdCentralDirectoryOffset(ByteBuffer zipEndOfCentralDirectory) {
         assertByteOrderLittleEndian(zipEndOfCentralDirectory);
+        if (isZip64EndOfCentralDirectory(zipEndOfCentralDirectory)) {
+            return getUnsignedInt64(
+                    zipEndOfCentralDirectory,
+                    zipEndOfCentralDirectory.position()
+                            + ZIP64_EOCD_CENTRAL_DIR_OFFSET_FIELD_OFFSET);
+        }
         return getUnsignedInt32(
                 zipEndOfCentralDirectory,
                 zipEndOfCentralDirectory.position() + ZIP_EOCD_CENTRAL_DIR_OFFSET_FIELD_OFFSET);
@@ -102,19 +189,34 @@ public abstract class ZipUtils {
      */
     public static long getZipEocdCentralDirectorySizeBytes(ByteBuffer zipEndOfCentralDirectory) {
         assertByteOrderLittleEndian(zipEndOfCentralDirectory);
+        if (isZip64EndOfCentralDirectory(zipEndOfCentralDirectory)) {
+            return getUnsignedInt64(
+                    zipEndOfCentralDirectory,
+                    zipEndOfCentralDirectory.position()
+                            + ZIP64_EOCD_CENTRAL_DIR_SIZE_FIELD_OFFSET);
+        }
         return getUnsignedInt32(
                 zipEndOfCentralDirectory,
                 zipEndOfCentralDirectory.position() + ZIP_EOCD_CENTRAL_DIR_SIZE_FIELD_OFFSET);
     }
 
     /**
-     * Returns the total number of records in ZIP Central Directory.
+     * Returns the total number of records in ZIP Central Directory. Counts which do not fit into
+     * an {@code int} are returned as {@link Integer#MAX_VALUE}, as a Central Directory with that
+     * many records cannot be read into memory anyway.
      *
      * <p>NOTE: Byte order of {@code zipEndOfCentralDirectory} must be little-endian.
      */
     public static int getZipEocdCentralDirectoryTotalRecordCount(
             ByteBuffer zipEndOfCentralDirectory) {
         assertByteOrderLittleEndian(zipEndOfCentralDirectory);
+        if (isZip64EndOfCentralDirectory(zipEndOfCentralDirectory)) {
+            long count = getUnsignedInt64(
+                    zipEndOfCentralDirectory,
+                    zipEndOfCentralDirectory.position()
+                            + ZIP64_EOCD_CENTRAL_DIR_TOTAL_RECORD_COUNT_OFFSET);
+            return (int) Math.min(count, Integer.MAX_VALUE);
+        }
         return getUnsignedInt16(
                 zipEndOfCentralDirectory,
                 zipEndOfCentralDirectory.position()
@@ -160,6 +262,75 @@ public abstract class ZipUtils {
         return findZipEndOfCentralDirectoryRecord(zip, UINT16_MAX_VALUE);
     }
 
+    /**
+     * Returns the ZIP64 End of Central Directory record and locator of the provided ZIP file,
+     * followed by its ZIP End of Central Directory record, if the ZIP file contains a ZIP64 End of
+     * Central Directory locator immediately before its ZIP End of Central Directory record.
+     *
+     * <p>ZIP files whose sizes, offsets or record counts do not fit into the fields of the ZIP End
+     * of Central Directory record store them in the ZIP64 End of Central Directory record instead.
+     * The returned buffer can be passed to the {@code getZipEocd...} and {@code setZipEocd...}
+     * methods of this class, which then operate on the fields of the ZIP64 record.
+     *
+     * @param eocdOffset offset of the ZIP End of Central Directory record in the file
+     * @param eocd contents of the ZIP End of Central Directory record, as returned by
+     *        {@link #findZipEndOfCentralDirectoryRecord(DataSource)}
+     *
+     * @return contents of the ZIP64 End of Central Directory record, locator and ZIP End of
+     *         Central Directory record and the ZIP64 record's offset in the file or {@code null}
+     *         if the file does not contain a ZIP64 End of Central Directory locator.
+     *
+     * @throws IOException if an I/O error occurs while reading the file.
+     * @throws ZipFormatException if the ZIP64 End of Central Directory record is malformed or does
+     *         not immediately precede its locator.
+     */
+    public static Pair<ByteBuffer, Long> findZip64EndOfCentralDirectoryRecord(
+            DataSource zip, long eocdOffset, ByteBuffer eocd)
+            throws IOException, ZipFormatException {
+        long locatorOffset = eocdOffset - ZIP64_EOCD_LOCATOR_SIZE;
+        if (locatorOffset < ZIP64_EOCD_REC_MIN_SIZE) {
+            return null;
+        }
+        ByteBuffer locator = zip.getByteBuffer(locatorOffset, ZIP64_EOCD_LOCATOR_SIZE);
+        locator.order(ByteOrder.LITTLE_ENDIAN);
+        if (locator.getInt(0) != ZIP64_EOCD_LOCATOR_SIG) {
+            return null;
+        }
+        long zip64EocdOffset =
+                getUnsignedInt64(locator, ZIP64_EOCD_LOCATOR_ZIP64_EOCD_OFFSET_FIELD_OFFSET);
+        if (zip64EocdOffset < 0 || zip64EocdOffset > locatorOffset - ZIP64_EOCD_REC_MIN_SIZE) {
+            throw new ZipFormatException(
+                    "ZIP64 End of Central Directory record offset out of range: "
+                            + zip64EocdOffset + ". Locator offset: " + locatorOffset);
+        }
+        ByteBuffer zip64EocdHeader = zip.getByteBuffer(zip64EocdOffset, ZIP64_EOCD_REC_MIN_SIZE);
+        zip64EocdHeader.order(ByteOrder.LITTLE_ENDIAN);
+        if (zip64EocdHeader.getInt(0) != ZIP64_EOCD_REC_SIG) {
+            throw new ZipFormatException(
+                    "Not a ZIP64 End of Central Directory record. Signature: 0x"
+                            + Long.toHexString(zip64EocdHeader.getInt(0) & 0xffffffffL));
+        }
+        long zip64EocdEndOffset =
+                zip64EocdOffset + 12
+                        + zip64EocdHeader.getLong(ZIP64_EOCD_REC_SIZE_FIELD_OFFSET);
+        if (zip64EocdEndOffset != locatorOffset) {
+            throw new ZipFormatException(
+                    "ZIP64 End of Central Directory record is not immediately followed by its"
+                            + " locator. Record end: " + zip64EocdEndOffset
+                            + ", locator start: " + locatorOffset);
+        }
+        long size = eocdOffset - zip64EocdOffset + eocd.remaining();
+        if (size > Integer.MAX_VALUE) {
+            throw new ZipFormatException("ZIP64 End of Central Directory record too large");
+        }
+        ByteBuffer result = ByteBuffer.allocate((int) size);
+        result.order(ByteOrder.LITTLE_ENDIAN);
+        zip.copyTo(zip64EocdOffset, (int) (eocdOffset - zip64EocdOffset), result);
+        result.put(eocd.slice());
+        result.flip();
+        return Pair.of(result, zip64EocdOffset);
+    }
+
     /**
      * Returns the ZIP End of Central Directory record of the provided ZIP file.
      *
@@ -281,25 +452,16 @@ public abstract class ZipUtils {
         cd.order(ByteOrder.LITTLE_ENDIAN);
 
         // Parse the ZIP Central Directory
-        int expectedCdRecordCount = apkSections.getZipCentralDirectoryRecordCount();
-        List<CentralDirectoryRecord> cdRecords = new ArrayList<>(expectedCdRecordCount);
-        for (int i = 0; i < expectedCdRecordCount; i++) {
-            CentralDirectoryRecord cdRecord;
-            int offsetInsideCd = cd.position();
-            try {
-                cdRecord = CentralDirectoryRecord.getRecord(cd);
-            } catch (ZipFormatException e) {
-                throw new ApkFormatException(
-                        "Malformed ZIP Central Directory record #" + (i + 1)
-                                + " at file offset " + (cdOffset + offsetInsideCd),
-                        e);
-            }
-            String entryName = cdRecord.getName();
-            if (entryName.endsWith("/")) {
+        CentralDirectoryIndex cdIndex =
+                CentralDirectoryIndex.create(
+                        cd, cdOffset, apkSections.getZipCentralDirectoryRecordCount());
+        List<CentralDirectoryRecord> cdRecords = new ArrayList<>(cdIndex.getRecordCount());
+        for (int i = 0; i < cdIndex.getRecordCount(); i++) {
+            if (cdIndex.isDirectory(i)) {
                 // Ignore directory entries
                 continue;
             }
-            cdRecords.add(cdRecord);
+            cdRecords.add(cdIndex.getRecord(i));
         }
         // There may be more data in Central Directory, but we don't warn or throw because Android
         // ignores unused CD data.
@@ -343,6 +505,108 @@ public abstract class ZipUtils {
         buffer.putInt((int) value);
     }
 
+    static long getUnsignedInt64(ByteBuffer buffer, int offset) {
+        long value = buffer.getLong(offset);
+        if (value < 0) {
+            throw new IllegalArgumentException("uint64 value of out range: " + value);
+        }
+        return value;
+    }
+
+    static void setUnsignedInt64(ByteBuffer buffer, int offset, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("uint64 value of out range: " + value);
+        }
+        buffer.putLong(offset, value);
+    }
+
+    static void putUnsignedInt64(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("uint64 value of out range: " + value);
+        }
+        buffer.putLong(value);
+    }
+
+    /**
+     * Returns the data of the ZIP64 Extended Information extra field contained in the provided
+     * extra field or {@code null} if it does not contain such a field. The returned buffer is
+     * little-endian and shares its contents with the provided buffer.
+     */
+    static ByteBuffer findZip64ExtendedInformationExtraField(ByteBuffer extra) {
+        ByteBuffer fields = extra.slice();
+        fields.order(ByteOrder.LITTLE_ENDIAN);
+        while (fields.remaining() >= 4) {
+            short headerId = fields.getShort();
+            int dataSize = getUnsignedInt16(fields);
+            if (dataSize > fields.remaining()) {
+                // Malformed extra field. Android does not care, thus neither do we.
+                return null;
+            }
+            if (headerId == ZIP64_EXTENDED_INFO_EXTRA_FIELD_HEADER_ID) {
+                int originalLimit = fields.limit();
+                fields.limit(fields.position() + dataSize);
+                ByteBuffer result = fields.slice();
+                fields.limit(originalLimit);
+                result.order(ByteOrder.LITTLE_ENDIAN);
+                return result;
+            }
+            fields.position(fields.position() + dataSize);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the provided extra field with its ZIP64 Extended Information extra field, if any,
+     * replaced with one containing the provided data. The field is prepended if there was none.
+     */
+    static ByteBuffer createExtraFieldWithZip64ExtendedInformation(
+            ByteBuffer extra, ByteBuffer zip64ExtendedInformation) {
+        ByteBuffer fields = extra.slice();
+        fields.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer result =
+                ByteBuffer.allocate(
+                        fields.remaining() + 4 + zip64ExtendedInformation.remaining());
+        result.order(ByteOrder.LITTLE_ENDIAN);
+        if (findZip64ExtendedInformationExtraField(fields) == null) {
+            putZip64ExtendedInformationExtraField(result, zip64ExtendedInformation);
+            result.put(fields);
+            result.flip();
+            return result;
+        }
+        boolean replaced = false;
+        while (fields.remaining() >= 4) {
+            int fieldStart = fields.position();
+            short headerId = fields.getShort();
+            int dataSize = getUnsignedInt16(fields);
+            int fieldEnd = fieldStart + 4 + dataSize;
+            if ((headerId == ZIP64_EXTENDED_INFO_EXTRA_FIELD_HEADER_ID) && (!replaced)) {
+                putZip64ExtendedInformationExtraField(result, zip64ExtendedInformation);
+                replaced = true;
+                fields.position(fieldEnd);
+            } else {
+                fields.position(fieldStart);
+                if (fieldEnd > fields.limit()) {
+                    break;
+                }
+                ByteBuffer field = fields.slice();
+                field.limit(fieldEnd - fieldStart);
+                result.put(field);
+                fields.position(fieldEnd);
+            }
+        }
+        // Preserve trailing data which is not a well-formed field
+        result.put(fields);
+        result.flip();
+        return result;
+    }
+
+    private static void putZip64ExtendedInformationExtraField(
+            ByteBuffer output, ByteBuffer zip64ExtendedInformation) {
+        output.putShort(ZIP64_EXTENDED_INFO_EXTRA_FIELD_HEADER_ID);
+        putUnsignedInt16(output, zip64ExtendedInformation.remaining());
+        output.put(zip64ExtendedInformation.slice());
+    }
+
     public static DeflateResult deflate(ByteBuffer input) {
         byte[] inputBuf;
         int inputOffset;
@@ -18,8 +18,12 @@ package com.android.apksig.util;
 
 import com.android.apksig.internal.util.ByteBufferDataSource;
 import com.android.apksig.internal.util.FileChannelDataSource;
+import com.android.apksig.internal.util.MappedFileDataSource;
+import com.android.apksig.internal.util.PrefetchingFileDataSource;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.FileChannel;
 
 /**
@@ -77,4 +81,75 @@ public abstract class DataSources {
         }
         return new FileChannelDataSource(channel, offset, size);
     }
+
+    /**
+     * Returns a {@link DataSource} backed by a read-only memory mapping of the provided
+     * {@link FileChannel}. Unlike {@link #asDataSource(FileChannel)}, the returned data source
+     * serves {@link DataSource#getByteBuffer(long, int) getByteBuffer},
+     * {@link DataSource#slice(long, long) slice} and
+     * {@link DataSource#feed(long, long, DataSink) feed} straight from the mapped memory, without
+     * copying. The 1 MB chunks of APK contents are also digested straight from the mapped memory,
+     * rather than copied into buffers first. Files larger than 1 GB are mapped in several
+     * segments.
+     *
+     * <p>The size of the data source is the size of the file at the time of this call. Changes to
+     * the contents of the file will be visible in the data source, but changes to its size will
+     * not.
+     */
+    public static DataSource asMappedDataSource(FileChannel channel) throws IOException {
+        if (channel == null) {
+            throw new NullPointerException();
+        }
+        return new MappedFileDataSource(channel);
+    }
+
+    /**
+     * Returns a {@link DataSource} backed by a read-only memory mapping of the provided region of
+     * the {@link FileChannel}. Changes to the contents of the file will be visible in the data
+     * source.
+     *
+     * @see #asMappedDataSource(FileChannel)
+     */
+    public static DataSource asMappedDataSource(FileChannel channel, long offset, long size) {
+        if (channel == null) {
+            throw new NullPointerException();
+        }
+        return new MappedFileDataSource(channel, offset, size);
+    }
+
+    /**
+     * Returns a {@link DataSource} backed by the provided {@link AsynchronousFileChannel}, which
+     * reads ahead of sequential readers, such as APK content digesting. This hides the latency of
+     * slow storage, for example of network file systems. The file is read in windows of 1 MB, with
+     * up to 16 windows read ahead.
+     *
+     * <p>The size of the data source is the size of the file at the time of this call. Changes to
+     * the contents of the file may not be visible in the data source.
+     */
+    public static DataSource asPrefetchingDataSource(AsynchronousFileChannel channel)
+            throws IOException {
+        if (channel == null) {
+            throw new NullPointerException();
+        }
+        return asPrefetchingDataSource(channel, 0, channel.size(),
+                PrefetchingFileDataSource.DEFAULT_WINDOW_SIZE,
+                PrefetchingFileDataSource.DEFAULT_READ_AHEAD_WINDOWS);
+    }
+
+    /**
+     * Returns a {@link DataSource} backed by the provided region of the
+     * {@link AsynchronousFileChannel}, which reads ahead of sequential readers.
+     *
+     * @param windowSize size (in bytes) of the windows in which the file is read
+     * @param readAheadWindows maximum number of windows read ahead of the readers
+     *
+     * @see #asPrefetchingDataSource(AsynchronousFileChannel)
+     */
+    public static DataSource asPrefetchingDataSource(AsynchronousFileChannel channel,
+            long offset, long size, int windowSize, int readAheadWindows) {
+        if (channel == null) {
+            throw new NullPointerException();
+        }
+        return new PrefetchingFileDataSource(channel, offset, size, windowSize, readAheadWindows);
+    }
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the JCA providers used for the {@link MessageDigest} instances which digest APK
+ * contents.
+ *
+ * <p>When several installed providers implement a digest algorithm (for example, the JDK's
+ * {@code SUN} provider and Conscrypt), the fastest of them is selected by digesting a small
+ * amount of data with each, the first time the algorithm is requested. The provider preferred by
+ * the JCA provider order is kept unless another provider is faster by a clear margin, so that
+ * the selection does not vary from run to run with measurement noise. The selection can
+ * instead be loaded from a previously saved calibration, either via
+ * {@link #loadCalibration(Map)} or via the {@value #CALIBRATION_PROPERTY} system property, whose
+ * value is a comma-separated list of {@code algorithm=provider} pairs, for example
+ * {@code SHA-256=Conscrypt,SHA-512=SUN}. {@link #getCalibration()} returns the current selection
+ * in a form accepted by {@code loadCalibration}.
+ *
+ * <p>Selections are made once per algorithm. Call {@link #reset()} after installing or removing
+ * providers to have them made again.
+ */
+public abstract class MessageDigestProviders {
+    /**
+     * System property holding the provider to use for each digest algorithm.
+     */
+    public static final String CALIBRATION_PROPERTY = "com.android.apksig.messageDigestProviders";
+
+    /**
+     * Size (in bytes) of the data digested with each provider in each calibration round.
+     */
+    private static final int CALIBRATION_DATA_SIZE_BYTES = 64 * 1024;
+
+    /**
+     * Number of calibration rounds run with each provider before any round is timed, so that the
+     * provider's code is compiled by the time it is measured.
+     */
+    private static final int CALIBRATION_WARM_UP_ROUNDS = 64;
+
+    /**
+     * Number of timed calibration rounds. The fastest round of each provider is used.
+     */
+    private static final int CALIBRATION_ROUNDS = 16;
+
+    /**
+     * Minimum margin (in percent) by which a provider must be faster than the provider preferred
+     * by the JCA provider order to be selected instead of it.
+     */
+    private static final int CALIBRATION_MIN_SPEEDUP_PERCENT = 20;
+
+    /**
+     * Selected provider of each algorithm. The provider is absent from the selection if it is to
+     * be left for {@link MessageDigest#getInstance(String)} to choose.
+     */
+    private static final Map<String, Selection> sSelections = new ConcurrentHashMap<>();
+
+    static {
+        String calibration = System.getProperty(CALIBRATION_PROPERTY);
+        if (calibration != null) {
+            Map<String, String> providerNames = new TreeMap<>();
+            for (String entry : calibration.split(",")) {
+                int separatorIndex = entry.indexOf('=');
+                if (separatorIndex > 0) {
+                    providerNames.put(entry.substring(0, separatorIndex).trim(),
+                            entry.substring(separatorIndex + 1).trim());
+                }
+            }
+            loadCalibration(providerNames);
+        }
+    }
+
+    private MessageDigestProviders() {}
+
+    /**
+     * Returns a {@link MessageDigest} instance of the provided JCA algorithm from the provider
+     * selected for the algorithm.
+     */
+    public static MessageDigest getInstance(String algorithm) throws NoSuchAlgorithmException {
+        Provider provider = getSelection(algorithm).mProvider;
+        if (provider != null) {
+            try {
+                return MessageDigest.getInstance(algorithm, provider);
+            } catch (NoSuchAlgorithmException e) {
+                // Fall back to the default provider order.
+            }
+        }
+        return MessageDigest.getInstance(algorithm);
+    }
+
+    /**
+     * Returns the provider selected for the provided JCA digest algorithm, or {@code null} if no
+     * installed provider implements the algorithm.
+     */
+    public static Provider getProvider(String algorithm) {
+        Provider provider = getSelection(algorithm).mProvider;
+        if (provider != null) {
+            return provider;
+        }
+        try {
+            return MessageDigest.getInstance(algorithm).getProvider();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the name of the provider selected for each digest algorithm requested so far,
+     * keyed by JCA algorithm name.
+     */
+    public static Map<String, String> getCalibration() {
+        Map<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, Selection> entry : sSelections.entrySet()) {
+            Provider provider = entry.getValue().mProvider;
+            if (provider != null) {
+                result.put(entry.getKey(), provider.getName());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Selects the providers to use for digest algorithms without calibrating, for example with
+     * the result of {@link #getCalibration()} saved by an earlier run. Entries naming providers
+     * which are not installed, or which do not implement the algorithm, are ignored.
+     *
+     * @param providerNames names of the providers keyed by JCA digest algorithm name
+     */
+    public static void loadCalibration(Map<String, String> providerNames) {
+        for (Map.Entry<String, String> entry : providerNames.entrySet()) {
+            String algorithm = entry.getKey();
+            Provider provider = Security.getProvider(entry.getValue());
+            if (provider == null) {
+                continue;
+            }
+            try {
+                MessageDigest.getInstance(algorithm, provider);
+            } catch (NoSuchAlgorithmException e) {
+                continue;
+            }
+            sSelections.put(algorithm, new Selection(provider));
+        }
+    }
+
+    /**
+     * Forgets the providers selected so far. Providers are then selected again, the next time an
+     * algorithm is requested.
+     */
+    public static void reset() {
+        sSelections.clear();
+    }
+
+    private static Selection getSelection(String algorithm) {
+        Selection selection = sSelections.get(algorithm);
+        if (selection == null) {
+            selection = new Selection(calibrate(algorithm));
+            Selection existing = sSelections.putIfAbsent(algorithm, selection);
+            if (existing != null) {
+                selection = existing;
+            }
+        }
+        return selection;
+    }
+
+    /**
+     * Returns the fastest of the providers implementing the algorithm, or {@code null} if no
+     * provider is found. The first usable provider in the JCA provider order is returned unless
+     * another one is faster by at least {@link #CALIBRATION_MIN_SPEEDUP_PERCENT} percent.
+     */
+    private static Provider calibrate(String algorithm) {
+        Provider[] providers;
+        try {
+            providers = Security.getProviders("MessageDigest." + algorithm);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        if (providers == null || providers.length == 0) {
+            return null;
+        } else if (providers.length == 1) {
+            return providers[0];
+        }
+
+        MessageDigest[] mds = new MessageDigest[providers.length];
+        for (int i = 0; i < providers.length; i++) {
+            try {
+                mds[i] = MessageDigest.getInstance(algorithm, providers[i]);
+            } catch (NoSuchAlgorithmException | RuntimeException e) {
+                // Not usable, leave it out.
+            }
+        }
+
+        byte[] data = new byte[CALIBRATION_DATA_SIZE_BYTES];
+        long[] fastestRoundNanos = new long[providers.length];
+        for (int i = 0; i < fastestRoundNanos.length; i++) {
+            fastestRoundNanos[i] = Long.MAX_VALUE;
+        }
+        for (int round = 0; round < CALIBRATION_WARM_UP_ROUNDS + CALIBRATION_ROUNDS; round++) {
+            for (int i = 0; i < mds.length; i++) {
+                if (mds[i] == null) {
+                    continue;
+                }
+                long startNanos = System.nanoTime();
+                mds[i].update(data);
+                mds[i].digest();
+                if (round >= CALIBRATION_WARM_UP_ROUNDS) {
+                    fastestRoundNanos[i] =
+                            Math.min(fastestRoundNanos[i], System.nanoTime() - startNanos);
+                }
+            }
+        }
+
+        int preferred = -1;
+        int fastest = -1;
+        for (int i = 0; i < mds.length; i++) {
+            if (mds[i] == null) {
+                continue;
+            }
+            if (preferred == -1) {
+                preferred = i;
+            }
+            if (fastest == -1 || fastestRoundNanos[i] < fastestRoundNanos[fastest]) {
+                fastest = i;
+            }
+        }
+        if (fastest == -1) {
+            return null;
+        }
+        // Another provider is only selected if it is clearly faster than the preferred one.
+        if (fastestRoundNanos[fastest] * (100 + CALIBRATION_MIN_SPEEDUP_PERCENT)
+                > fastestRoundNanos[preferred] * 100) {
+            return providers[preferred];
+        }
+        return providers[fastest];
+    }
+
+    private static class Selection {
+        private final Provider mProvider;
+
+        private Selection(Provider provider) {
+            mProvider = provider;
+        }
+    }
+}
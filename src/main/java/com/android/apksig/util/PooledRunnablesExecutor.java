@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import com.android.apksig.internal.util.AvailableProcessors;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link RunnablesExecutor} which runs the {@link Runnable}s on a long-lived thread pool, rather
+ * than on a pool created for each {@link #execute(RunnablesProvider)} call.
+ *
+ * <p>The pool is either owned by this executor or supplied by the caller, and may be shared by
+ * any number of concurrent and nested {@code execute} calls. The calling thread always takes part
+ * in running the {@code Runnable}s, and runs those that the pool has not picked up yet, so an
+ * {@code execute} call completes even when all threads of the pool are busy.
+ *
+ * <p>Use {@link #getDefault()} to obtain the process-wide instance used by
+ * {@link RunnablesExecutor#MULTI_THREADED}, or {@link Builder} to create a dedicated one.
+ */
+public class PooledRunnablesExecutor implements RunnablesExecutor, AutoCloseable {
+    /**
+     * Maximum default parallelism, regardless of the number of available processors.
+     */
+    private static final int MAX_DEFAULT_PARALLELISM = 32;
+
+    /**
+     * Time (in seconds) after which idle threads of an owned pool are stopped.
+     */
+    static final long KEEP_ALIVE_TIME_SECONDS = 30;
+
+    private static final AtomicInteger sPoolCount = new AtomicInteger();
+
+    private static volatile PooledRunnablesExecutor sDefault;
+
+    private final ExecutorService mExecutorService;
+    private final boolean mOwnsExecutorService;
+    private final int mParallelism;
+
+    private PooledRunnablesExecutor(
+            ExecutorService executorService, boolean ownsExecutorService, int parallelism) {
+        mExecutorService = executorService;
+        mOwnsExecutorService = ownsExecutorService;
+        mParallelism = parallelism;
+    }
+
+    /**
+     * Returns the process-wide executor. Its threads are daemon threads which are stopped when
+     * idle, so it never needs to be closed.
+     */
+    public static PooledRunnablesExecutor getDefault() {
+        PooledRunnablesExecutor result = sDefault;
+        if (result == null) {
+            synchronized (PooledRunnablesExecutor.class) {
+                result = sDefault;
+                if (result == null) {
+                    result = new Builder().build();
+                    sDefault = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the maximum number of {@code Runnable}s run concurrently for each
+     * {@link #execute(RunnablesProvider)} call, including the one run by the calling thread.
+     */
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    @Override
+    public void execute(RunnablesProvider provider) {
+        if (mParallelism == 1) {
+            provider.createRunnable().run();
+            return;
+        }
+
+        Phaser phaser = new Phaser(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Task[] tasks = new Task[mParallelism];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new Task(provider, phaser, failure);
+            phaser.register();
+        }
+
+        // The first task is reserved for the calling thread, the rest are offered to the pool.
+        // Tasks rejected by the pool are left for the calling thread to run.
+        for (int i = 1; i < tasks.length; i++) {
+            try {
+                mExecutorService.execute(tasks[i]);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+
+        // Run the tasks which the pool has not started yet. A task started by the pool is a no-op
+        // when run here, and vice versa.
+        for (Task task : tasks) {
+            task.run();
+        }
+
+        // Waiting for the tasks to complete. When called from a ForkJoinPool worker, the pool is
+        // allowed to compensate for the blocked thread.
+        awaitAdvance(phaser, phaser.arrive());
+
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    private static void awaitAdvance(Phaser phaser, int phase) {
+        ForkJoinPool.ManagedBlocker blocker = new ForkJoinPool.ManagedBlocker() {
+            @Override
+            public boolean block() {
+                phaser.awaitAdvance(phase);
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return phaser.getPhase() != phase;
+            }
+        };
+        boolean interrupted = false;
+        while (true) {
+            try {
+                ForkJoinPool.managedBlock(blocker);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Shuts down the thread pool if it is owned by this executor. A pool supplied via
+     * {@link Builder#setExecutorService(ExecutorService)} is left for the caller to shut down.
+     */
+    @Override
+    public void close() {
+        if (mOwnsExecutorService) {
+            mExecutorService.shutdown();
+        }
+    }
+
+    /**
+     * {@code Runnable} obtained from the provider and run by whichever thread claims it first.
+     */
+    private static class Task implements Runnable {
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+        private final RunnablesProvider mProvider;
+        private final Phaser mPhaser;
+        private final AtomicReference<Throwable> mFailure;
+
+        private Task(RunnablesProvider provider, Phaser phaser,
+                AtomicReference<Throwable> failure) {
+            mProvider = provider;
+            mPhaser = phaser;
+            mFailure = failure;
+        }
+
+        @Override
+        public void run() {
+            if (!mClaimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                mProvider.createRunnable().run();
+            } catch (Throwable t) {
+                mFailure.compareAndSet(null, t);
+            } finally {
+                mPhaser.arriveAndDeregister();
+            }
+        }
+    }
+
+    /**
+     * Builder of {@link PooledRunnablesExecutor} instances.
+     */
+    public static class Builder {
+        private int mParallelism = -1;
+        private int mQueueSize = -1;
+        private ExecutorService mExecutorService;
+
+        /**
+         * Sets the maximum number of {@code Runnable}s run concurrently for each
+         * {@code execute} call, including the one run by the calling thread.
+         *
+         * <p>By default, this is the number of processors available to the process (taking
+         * container CPU quotas into account), up to {@code 32}.
+         */
+        public Builder setParallelism(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+            }
+            mParallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of tasks waiting in the queue of the owned thread pool. Tasks
+         * which do not fit into the queue are run by the thread calling {@code execute}.
+         *
+         * <p>By default, this is equal to the parallelism. This setting is ignored when the
+         * thread pool is supplied via {@link #setExecutorService(ExecutorService)}.
+         */
+        public Builder setQueueSize(int queueSize) {
+            if (queueSize < 1) {
+                throw new IllegalArgumentException("queue size must be positive: " + queueSize);
+            }
+            mQueueSize = queueSize;
+            return this;
+        }
+
+        /**
+         * Sets the thread pool on which to run the {@code Runnable}s. The pool is not shut down by
+         * {@link PooledRunnablesExecutor#close()}.
+         *
+         * <p>By default, the executor creates and owns its own pool.
+         */
+        public Builder setExecutorService(ExecutorService executorService) {
+            mExecutorService = executorService;
+            return this;
+        }
+
+        /**
+         * Returns a new {@code PooledRunnablesExecutor} instance configured by this builder.
+         */
+        public PooledRunnablesExecutor build() {
+            int parallelism = mParallelism;
+            if (parallelism == -1) {
+                parallelism = Math.min(MAX_DEFAULT_PARALLELISM, AvailableProcessors.get());
+            }
+            if (mExecutorService != null) {
+                return new PooledRunnablesExecutor(mExecutorService, false, parallelism);
+            }
+
+            int queueSize = (mQueueSize != -1) ? mQueueSize : parallelism;
+            int poolSize = Math.max(1, parallelism - 1);
+            ThreadPoolExecutor executorService =
+                    new ThreadPoolExecutor(poolSize, poolSize,
+                            KEEP_ALIVE_TIME_SECONDS, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(queueSize),
+                            new DaemonThreadFactory(),
+                            new ThreadPoolExecutor.AbortPolicy());
+            executorService.allowCoreThreadTimeOut(true);
+            return new PooledRunnablesExecutor(executorService, true, parallelism);
+        }
+    }
+
+    /**
+     * Factory of daemon threads, named after the pool they belong to.
+     */
+    static class DaemonThreadFactory implements ThreadFactory {
+        private final String mNamePrefix =
+                "apksig-pool-" + sPoolCount.incrementAndGet() + "-thread-";
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mNamePrefix + mThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
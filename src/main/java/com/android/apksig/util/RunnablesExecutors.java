@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import com.android.apksig.internal.util.AvailableProcessors;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Utility methods for working with {@link RunnablesExecutor} abstraction.
+ *
+ * <p>In addition to {@link RunnablesExecutor#SINGLE_THREADED} and
+ * {@link RunnablesExecutor#MULTI_THREADED}, this class provides executors backed by a
+ * {@link ForkJoinPool}, which suits CPU-bound digesting, and by virtual threads, which suit
+ * workloads that block on I/O or on remote signing services.
+ */
+public abstract class RunnablesExecutors {
+    private RunnablesExecutors() {}
+
+    /**
+     * Returns an executor which runs the {@code Runnable}s on the common {@link ForkJoinPool},
+     * with the calling thread taking part.
+     */
+    public static RunnablesExecutor forkJoin() {
+        return forkJoin(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns an executor which runs the {@code Runnable}s on the provided {@link ForkJoinPool},
+     * with the calling thread taking part. {@code Runnable}s submitted from a worker of the pool,
+     * such as those of nested {@code execute} calls, are queued on that worker and may be stolen
+     * by idle workers.
+     *
+     * <p>The pool is not shut down by the returned executor.
+     */
+    public static RunnablesExecutor forkJoin(ForkJoinPool pool) {
+        if (pool == null) {
+            throw new NullPointerException("pool == null");
+        }
+        return new PooledRunnablesExecutor.Builder()
+                .setExecutorService(pool)
+                .setParallelism(pool.getParallelism() + 1)
+                .build();
+    }
+
+    /**
+     * Returns {@code true} if the Java runtime supports virtual threads (Java 21 and newer).
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return VirtualThreadExecutorServiceHolder.INSTANCE != null;
+    }
+
+    /**
+     * Returns an executor which runs each {@code Runnable} on a new virtual thread, with at most
+     * as many {@code Runnable}s running concurrently as there are available processors. If the
+     * Java runtime does not support virtual threads, the executor of
+     * {@link RunnablesExecutor#MULTI_THREADED} is returned instead.
+     *
+     * @see #isVirtualThreadsSupported()
+     */
+    public static RunnablesExecutor virtualThreads() {
+        return virtualThreads(AvailableProcessors.get());
+    }
+
+    /**
+     * Returns an executor which runs each {@code Runnable} on a new virtual thread, with at most
+     * {@code parallelism} {@code Runnable}s running concurrently. If the Java runtime does not
+     * support virtual threads, the {@code Runnable}s are run on a process-wide pool of platform
+     * threads instead, which are stopped when idle. In both cases, the returned executor does not
+     * need to be closed.
+     *
+     * @see #isVirtualThreadsSupported()
+     */
+    public static RunnablesExecutor virtualThreads(int parallelism) {
+        ExecutorService executorService = VirtualThreadExecutorServiceHolder.INSTANCE;
+        if (executorService == null) {
+            if (parallelism == PooledRunnablesExecutor.getDefault().getParallelism()) {
+                return RunnablesExecutor.MULTI_THREADED;
+            }
+            executorService = PlatformThreadExecutorServiceHolder.INSTANCE;
+        }
+        return new PooledRunnablesExecutor.Builder()
+                .setExecutorService(executorService)
+                .setParallelism(parallelism)
+                .build();
+    }
+
+    /**
+     * Holds the process-wide virtual thread per task {@link ExecutorService}, or {@code null} if
+     * virtual threads are not supported. The executor service is obtained reflectively so that
+     * this library can be compiled for and run on older Java runtimes.
+     */
+    private static class VirtualThreadExecutorServiceHolder {
+        private static final ExecutorService INSTANCE = newVirtualThreadPerTaskExecutor();
+
+        private static ExecutorService newVirtualThreadPerTaskExecutor() {
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Virtual threads are not supported, or are a disabled preview feature.
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Holds the process-wide pool of platform threads used instead of virtual threads by the
+     * executors of {@link #virtualThreads(int)} on Java runtimes which do not support them. The
+     * pool grows to the parallelism of the concurrent {@code execute} calls and its idle threads
+     * are stopped, so that it is never shut down.
+     */
+    private static class PlatformThreadExecutorServiceHolder {
+        private static final ExecutorService INSTANCE = new ThreadPoolExecutor(
+                0, Integer.MAX_VALUE,
+                PooledRunnablesExecutor.KEEP_ALIVE_TIME_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                new PooledRunnablesExecutor.DaemonThreadFactory());
+    }
+}
@@ -70,14 +70,17 @@ public class ZipSections {
 
     /**
      * Returns the start offset of the ZIP End of Central Directory record. The record extends
-     * until the very end of the APK.
+     * until the very end of the APK. For ZIP64 archives, this is the start offset of the ZIP64 End
+     * of Central Directory record, which is followed by its locator and by the ZIP End of Central
+     * Directory record.
      */
     public long getZipEndOfCentralDirectoryOffset() {
         return mEocdOffset;
     }
 
     /**
-     * Returns the contents of the ZIP End of Central Directory.
+     * Returns the contents of the ZIP End of Central Directory, starting at
+     * {@link #getZipEndOfCentralDirectoryOffset()}.
      */
     public ByteBuffer getZipEndOfCentralDirectory() {
         return mEocd;
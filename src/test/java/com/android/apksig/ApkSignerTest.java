@@ -60,6 +60,7 @@ import com.android.apksig.internal.apk.stamp.SourceStampConstants;
 import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
 import com.android.apksig.internal.apk.v2.V2SchemeConstants;
 import com.android.apksig.internal.apk.v3.V3SchemeConstants;
+import com.android.apksig.internal.apk.v4.V4BlockVerifier;
 import com.android.apksig.internal.asn1.Asn1BerParser;
 import com.android.apksig.internal.util.AndroidSdkVersion;
 import com.android.apksig.internal.util.Pair;
@@ -68,14 +69,18 @@ import com.android.apksig.internal.x509.RSAPublicKey;
 import com.android.apksig.internal.x509.SubjectPublicKeyInfo;
 import com.android.apksig.internal.zip.CentralDirectoryRecord;
 import com.android.apksig.internal.zip.LocalFileRecord;
+import com.android.apksig.internal.zip.ZipUtils;
 // BEGIN-AOSP
 import com.android.apksig.kms.aws.AwsSignerConfigGenerator;
 import com.android.apksig.kms.aws.KeyAliasClient;
 import com.android.apksig.kms.gcp.GcpSignerConfigGenerator;
 import com.android.apksig.kms.gcp.KeyRingClient;
 // END-AOSP
+import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.PooledRunnablesExecutor;
+import com.android.apksig.util.RunnablesExecutor;
 import com.android.apksig.zip.ZipFormatException;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -87,12 +92,14 @@ import org.junit.runners.JUnit4;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -107,8 +114,11 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 @RunWith(JUnit4.class)
 public class ApkSignerTest {
@@ -1190,6 +1200,377 @@ public class ApkSignerTest {
         }
     }
 
+    @Test
+    public void testV1EntriesDigestedInParallelMatchSequentialSigning() throws Exception {
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        String in = "original.apk";
+
+        File sequential = sign(in,
+                new ApkSigner.Builder(rsa2048SignerConfig)
+                        .setV1SigningEnabled(true)
+                        .setRunnablesExecutor(RunnablesExecutor.SINGLE_THREADED));
+        // Entries are only digested in parallel if the input APK is a file opened by the signer.
+        File inFile = mTemporaryFolder.newFile();
+        Files.write(inFile.toPath(), Resources.toByteArray(getClass(), in));
+        File parallel = mTemporaryFolder.newFile();
+        try (PooledRunnablesExecutor executor =
+                new PooledRunnablesExecutor.Builder().setParallelism(4).build()) {
+            new ApkSigner.Builder(rsa2048SignerConfig)
+                    .setV1SigningEnabled(true)
+                    .setRunnablesExecutor(executor)
+                    .setInputApk(inFile)
+                    .setOutputApk(parallel)
+                    .setV4SigningEnabled(false)
+                    .build()
+                    .sign();
+        }
+
+        assertVerified(verify(parallel, null));
+        assertFileContentsEqual(sequential, parallel);
+    }
+
+    @Test
+    public void testInputDataSourceNotReadConcurrently() throws Exception {
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        SingleThreadedDataSource in =
+                new SingleThreadedDataSource(
+                        DataSources.asDataSource(
+                                ByteBuffer.wrap(
+                                        Resources.toByteArray(getClass(), "original.apk"))));
+        File out;
+        try (PooledRunnablesExecutor executor =
+                new PooledRunnablesExecutor.Builder().setParallelism(4).build()) {
+            out = sign(in,
+                    new ApkSigner.Builder(rsa2048SignerConfig)
+                            .setV1SigningEnabled(true)
+                            .setRunnablesExecutor(executor));
+        }
+
+        assertVerified(verify(out, null));
+        assertFalse(in.mConcurrentReadDetected.get());
+    }
+
+    @Test
+    public void testV1EntryDigestsCacheReusedWhenResigning() throws Exception {
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        String in = "original.apk";
+        File cacheFile = new File(mTemporaryFolder.newFolder(), "jar-entry-digests");
+
+        File uncached = sign(in, new ApkSigner.Builder(rsa2048SignerConfig));
+        File firstCached = sign(in,
+                new ApkSigner.Builder(rsa2048SignerConfig)
+                        .setJarEntryDigestsCacheFile(cacheFile));
+        assertTrue(cacheFile.isFile());
+        File secondCached = sign(in,
+                new ApkSigner.Builder(rsa2048SignerConfig)
+                        .setJarEntryDigestsCacheFile(cacheFile));
+
+        assertVerified(verify(secondCached, null));
+        assertFileContentsEqual(uncached, firstCached);
+        assertFileContentsEqual(uncached, secondCached);
+    }
+
+    @Test
+    public void testBatchSigningMatchesSigningEachApk() throws Exception {
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        String in = "original.apk";
+        File inputApk = mTemporaryFolder.newFile();
+        Files.write(inputApk.toPath(), Resources.toByteArray(getClass(), in));
+        File firstOutputApk = mTemporaryFolder.newFile();
+        File secondOutputApk = mTemporaryFolder.newFile();
+        File inPlaceApk = mTemporaryFolder.newFile();
+        Files.copy(inputApk.toPath(), inPlaceApk.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        ApkBatchSigner.Result result =
+                new ApkBatchSigner.Builder(rsa2048SignerConfig)
+                        .setApkSignerOptions(builder -> builder.setV4SigningEnabled(false))
+                        .setMaxConcurrentApks(2)
+                        .addApk(inputApk, firstOutputApk)
+                        .addApk(inputApk, secondOutputApk)
+                        .addApk(inPlaceApk, inPlaceApk)
+                        .addApk(new File(mTemporaryFolder.getRoot(), "missing.apk"),
+                                mTemporaryFolder.newFile())
+                        .build()
+                        .sign();
+
+        assertFalse(result.isSuccessful());
+        assertEquals(1, result.getFailures().size());
+        assertEquals(result.getApks().get(3), result.getFailures().keySet().iterator().next());
+        File expected = sign(in, new ApkSigner.Builder(rsa2048SignerConfig));
+        assertVerified(verify(firstOutputApk, null));
+        assertFileContentsEqual(expected, firstOutputApk);
+        assertFileContentsEqual(expected, secondOutputApk);
+        assertFileContentsEqual(expected, inPlaceApk);
+    }
+
+    @Test
+    public void testFanOutSigningMatchesSigningWithEachSigner() throws Exception {
+        List<ApkSigner.SignerConfig> firstSignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        List<ApkSigner.SignerConfig> secondSignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(SECOND_RSA_2048_SIGNER_RESOURCE_NAME));
+        String in = "original.apk";
+        File inputApk = mTemporaryFolder.newFile();
+        Files.write(inputApk.toPath(), Resources.toByteArray(getClass(), in));
+        File firstOutputApk = mTemporaryFolder.newFile();
+        File secondOutputApk = mTemporaryFolder.newFile();
+        File secondOutputV4Signature = mTemporaryFolder.newFile();
+
+        new ApkFanOutSigner.Builder(inputApk)
+                .setApkSignerOptions(builder -> builder.setMinSdkVersion(24))
+                .addOutput(firstSignerConfig, firstOutputApk)
+                .addOutput(secondSignerConfig, null, secondOutputApk, secondOutputV4Signature)
+                .build()
+                .sign();
+
+        File firstExpected =
+                sign(in, new ApkSigner.Builder(firstSignerConfig)
+                        .setV1SigningEnabled(false)
+                        .setV4SigningEnabled(false)
+                        .setMinSdkVersion(24));
+        File secondExpected =
+                sign(in, new ApkSigner.Builder(secondSignerConfig)
+                        .setV1SigningEnabled(false)
+                        .setMinSdkVersion(24));
+        assertVerified(verifyForMinSdkVersion(secondOutputApk, 24));
+        assertFileContentsEqual(firstExpected, firstOutputApk);
+        assertFileContentsEqual(secondExpected, secondOutputApk);
+        assertFileContentsEqual(
+                new File(secondExpected.getCanonicalPath() + ".idsig"), secondOutputV4Signature);
+    }
+
+    @Test
+    public void testFanOutSigningWithCopiedZipEntriesMatchesSigningWithEachSigner()
+            throws Exception {
+        List<ApkSigner.SignerConfig> firstSignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        List<ApkSigner.SignerConfig> secondSignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(SECOND_RSA_2048_SIGNER_RESOURCE_NAME));
+        // The ZIP entries section of an APK without a JAR signature is copied unchanged, and is
+        // digested once for both outputs.
+        File signedApk =
+                sign("original.apk", new ApkSigner.Builder(firstSignerConfig)
+                        .setV1SigningEnabled(false)
+                        .setMinSdkVersion(24));
+        File firstOutputApk = mTemporaryFolder.newFile();
+        File secondOutputApk = mTemporaryFolder.newFile();
+
+        new ApkFanOutSigner.Builder(signedApk)
+                .setApkSignerOptions(
+                        builder -> builder.setMinSdkVersion(24).setInPlaceSigningEnabled(true))
+                .addOutput(secondSignerConfig, firstOutputApk)
+                .addOutput(firstSignerConfig, secondOutputApk)
+                .build()
+                .sign();
+
+        File firstExpected =
+                sign(signedApk, new ApkSigner.Builder(secondSignerConfig)
+                        .setV1SigningEnabled(false)
+                        .setV4SigningEnabled(false)
+                        .setMinSdkVersion(24));
+        File secondExpected =
+                sign(signedApk, new ApkSigner.Builder(firstSignerConfig)
+                        .setV1SigningEnabled(false)
+                        .setV4SigningEnabled(false)
+                        .setMinSdkVersion(24));
+        assertVerified(verifyForMinSdkVersion(firstOutputApk, 24));
+        assertVerified(verifyForMinSdkVersion(secondOutputApk, 24));
+        assertFileContentsEqual(firstExpected, firstOutputApk);
+        assertFileContentsEqual(secondExpected, secondOutputApk);
+    }
+
+    @Test
+    public void testResigningWithReusedContentDigestsMatchesResigning() throws Exception {
+        List<ApkSigner.SignerConfig> firstSignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        List<ApkSigner.SignerConfig> secondSignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(SECOND_RSA_2048_SIGNER_RESOURCE_NAME));
+        File signedApk =
+                sign("original.apk", new ApkSigner.Builder(firstSignerConfig)
+                        .setV1SigningEnabled(false)
+                        .setMinSdkVersion(24));
+
+        File expected =
+                sign(signedApk, new ApkSigner.Builder(secondSignerConfig)
+                        .setV1SigningEnabled(false)
+                        .setMinSdkVersion(24));
+        File verifiedReuseOut =
+                sign(signedApk, new ApkSigner.Builder(secondSignerConfig)
+                        .setV1SigningEnabled(false)
+                        .setMinSdkVersion(24)
+                        .setInputContentDigestsReused(true));
+        File trustedReuseOut =
+                sign(signedApk, new ApkSigner.Builder(secondSignerConfig)
+                        .setV1SigningEnabled(false)
+                        .setMinSdkVersion(24)
+                        .setInputContentDigestsReused(true)
+                        .setInputContentDigestsIntegrityVerified(false));
+
+        assertVerified(verifyForMinSdkVersion(verifiedReuseOut, 24));
+        assertFileContentsEqual(expected, verifiedReuseOut);
+        assertFileContentsEqual(expected, trustedReuseOut);
+        assertFileContentsEqual(
+                new File(expected.getCanonicalPath() + ".idsig"),
+                new File(trustedReuseOut.getCanonicalPath() + ".idsig"));
+    }
+
+    @Test
+    public void testInPlaceSigningMatchesResigning() throws Exception {
+        List<ApkSigner.SignerConfig> firstSignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        List<ApkSigner.SignerConfig> secondSignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(SECOND_RSA_2048_SIGNER_RESOURCE_NAME));
+        File signedApk =
+                sign("original.apk", new ApkSigner.Builder(firstSignerConfig)
+                        .setV1SigningEnabled(false)
+                        .setMinSdkVersion(24));
+        File expected =
+                sign(signedApk, new ApkSigner.Builder(secondSignerConfig)
+                        .setV1SigningEnabled(false)
+                        .setV4SigningEnabled(false)
+                        .setMinSdkVersion(24));
+
+        File apk = mTemporaryFolder.newFile();
+        Files.copy(signedApk.toPath(), apk.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        new ApkSigner.Builder(secondSignerConfig)
+                .setV1SigningEnabled(false)
+                .setV4SigningEnabled(false)
+                .setMinSdkVersion(24)
+                .setInPlaceSigningEnabled(true)
+                .setInputApk(apk)
+                .setOutputApk(apk)
+                .build()
+                .sign();
+
+        assertVerified(verifyForMinSdkVersion(apk, 24));
+        assertFileContentsEqual(expected, apk);
+    }
+
+    @Test
+    public void testInPlaceSigningLeavesApkUnchangedIfSigningFails() throws Exception {
+        List<ApkSigner.SignerConfig> signers =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        // The signatures generated with the private key of the first signer do not verify with
+        // the certificate of the second signer, which fails signing after the entries are output.
+        List<ApkSigner.SignerConfig> mismatchedSigners =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(
+                                FIRST_RSA_2048_SIGNER_RESOURCE_NAME,
+                                SECOND_RSA_2048_SIGNER_RESOURCE_NAME + ".x509.pem"));
+        File signedApk =
+                sign("original.apk", new ApkSigner.Builder(signers)
+                        .setV1SigningEnabled(false)
+                        .setMinSdkVersion(24));
+        byte[] signedApkContents = Files.readAllBytes(signedApk.toPath());
+
+        assertThrows(
+                SignatureException.class,
+                () ->
+                        new ApkSigner.Builder(mismatchedSigners)
+                                .setV1SigningEnabled(false)
+                                .setV4SigningEnabled(false)
+                                .setMinSdkVersion(24)
+                                .setInPlaceSigningEnabled(true)
+                                .setInputApk(signedApk)
+                                .setOutputApk(signedApk)
+                                .build()
+                                .sign());
+        assertArrayEquals(signedApkContents, Files.readAllBytes(signedApk.toPath()));
+    }
+
+    @Test
+    public void testInPlaceSigningRejectsApkWhoseEntriesNeedToBeModified() throws Exception {
+        List<ApkSigner.SignerConfig> signers =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        // The JAR signature of the input APK is removed when signing with v1 signing disabled.
+        File signedApk = sign("original.apk", new ApkSigner.Builder(signers));
+        byte[] signedApkContents = Files.readAllBytes(signedApk.toPath());
+
+        assertThrows(
+                IllegalStateException.class,
+                () ->
+                        new ApkSigner.Builder(signers)
+                                .setV1SigningEnabled(false)
+                                .setV4SigningEnabled(false)
+                                .setInPlaceSigningEnabled(true)
+                                .setInputApk(signedApk)
+                                .setOutputApk(signedApk)
+                                .build()
+                                .sign());
+        assertArrayEquals(signedApkContents, Files.readAllBytes(signedApk.toPath()));
+    }
+
+    @Test
+    public void testSignApkWithZip64EndOfCentralDirectory() throws Exception {
+        // The record count of an APK with more than 65534 ZIP entries does not fit into the ZIP
+        // End of Central Directory record and is stored in the ZIP64 End of Central Directory
+        // record instead.
+        List<ApkSigner.SignerConfig> signers =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        File inputApk = mTemporaryFolder.newFile();
+        int entryCount = 0;
+        try (ZipInputStream in =
+                        new ZipInputStream(
+                                Resources.toInputStream(ApkSignerTest.class, "original.apk"));
+                ZipOutputStream out = new ZipOutputStream(new FileOutputStream(inputApk))) {
+            byte[] buf = new byte[65536];
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                if (entry.getName().startsWith("META-INF/")) {
+                    continue;
+                }
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                for (int n = in.read(buf); n != -1; n = in.read(buf)) {
+                    out.write(buf, 0, n);
+                }
+                out.closeEntry();
+                entryCount++;
+            }
+            for (int i = 0; i < 0x10000; i++) {
+                out.putNextEntry(new ZipEntry("assets/" + i));
+                out.closeEntry();
+                entryCount++;
+            }
+        }
+
+        File signedApk =
+                sign(inputApk, new ApkSigner.Builder(signers)
+                        .setV1SigningEnabled(false)
+                        .setMinSdkVersion(24));
+        File resignedApk =
+                sign(signedApk, new ApkSigner.Builder(signers)
+                        .setV1SigningEnabled(false)
+                        .setMinSdkVersion(24));
+
+        assertVerified(verifyForMinSdkVersion(signedApk, 24));
+        assertVerified(verifyForMinSdkVersion(resignedApk, 24));
+        assertFileContentsEqual(signedApk, resignedApk);
+        try (RandomAccessFile f = new RandomAccessFile(signedApk, "r")) {
+            ApkUtils.ZipSections zipSections = findZipSections(DataSources.asDataSource(f));
+            assertEquals(entryCount, zipSections.getZipCentralDirectoryRecordCount());
+            assertTrue(ZipUtils.isZip64EndOfCentralDirectory(
+                    zipSections.getZipEndOfCentralDirectory()));
+        }
+    }
+
     private void assumeSHA1withDetDSAIsSupported() {
         try {
             Signature.getInstance("SHA1withDetDSA");
@@ -3345,6 +3726,60 @@ public class ApkSignerTest {
         assertFalse(result.isVerifiedUsingV31Scheme());
     }
 
+    @Test
+    public void testV4_treeMatchesTreeOfOutputApk() throws Exception {
+        // The V4 verity tree is built from the digests of the ZIP entries computed while they were
+        // output; it must match the tree built by reading the whole output APK.
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+
+        File signedApk = sign("original.apk",
+                new ApkSigner.Builder(rsa2048SignerConfig)
+                        .setV1SigningEnabled(true)
+                        .setV2SigningEnabled(true)
+                        .setV3SigningEnabled(true)
+                        .setV4SigningEnabled(true));
+        assertVerified(verify(signedApk, null));
+
+        byte[] expectedTree;
+        try (RandomAccessFile apkFile = new RandomAccessFile(signedApk, "r")) {
+            expectedTree = ApkSigningBlockUtils.computeChunkVerityTreeAndDigest(
+                    DataSources.asDataSource(apkFile)).tree;
+        }
+        byte[] idSig = Files.readAllBytes(
+                new File(signedApk.getCanonicalPath() + ".idsig").toPath());
+        assertArrayEquals(expectedTree,
+                Arrays.copyOfRange(idSig, idSig.length - expectedTree.length, idSig.length));
+    }
+
+    @Test
+    public void testV4_blocksVerifiedOnDemand() throws Exception {
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        File signedApk = sign("original.apk",
+                new ApkSigner.Builder(rsa2048SignerConfig).setV4SigningEnabled(true));
+        File idSig = new File(signedApk.getCanonicalPath() + ".idsig");
+        byte[] apk = Files.readAllBytes(signedApk.toPath());
+
+        try (V4BlockVerifier verifier = V4BlockVerifier.create(apk.length, idSig)) {
+            assertEquals(
+                    rsa2048SignerConfig.get(0).getCertificates(),
+                    verifier.getSignerCertificates());
+            DataSource apkSource = DataSources.asDataSource(ByteBuffer.wrap(apk));
+            for (long i = 0; i < verifier.getBlockCount(); i++) {
+                assertTrue(verifier.isBlockValid(apkSource, i));
+            }
+
+            apk[apk.length - 1] ^= 1;
+            assertFalse(verifier.isBlockValid(apkSource, verifier.getBlockCount() - 1));
+        }
+
+        assertThrows(SignatureException.class,
+                () -> V4BlockVerifier.create(apk.length + 1, idSig));
+    }
+
     @Test
     public void testV4_rotationMinSdkVersionLessThanT_signatureOnlyHasRotatedSigner()
             throws Exception {
@@ -3891,6 +4326,82 @@ public class ApkSignerTest {
         return outFile;
     }
 
+    /**
+     * {@link DataSource} which records whether it, or any of its slices, is read by several
+     * threads at once. Each read takes a little while so that concurrent reads overlap.
+     */
+    private static class SingleThreadedDataSource implements DataSource {
+        private final DataSource mDelegate;
+        private final AtomicInteger mActiveReads;
+        private final AtomicBoolean mConcurrentReadDetected;
+
+        private SingleThreadedDataSource(DataSource delegate) {
+            this(delegate, new AtomicInteger(), new AtomicBoolean());
+        }
+
+        private SingleThreadedDataSource(
+                DataSource delegate,
+                AtomicInteger activeReads,
+                AtomicBoolean concurrentReadDetected) {
+            mDelegate = delegate;
+            mActiveReads = activeReads;
+            mConcurrentReadDetected = concurrentReadDetected;
+        }
+
+        @Override
+        public long size() {
+            return mDelegate.size();
+        }
+
+        @Override
+        public void feed(long offset, long size, DataSink sink) throws IOException {
+            startRead();
+            try {
+                mDelegate.feed(offset, size, sink);
+            } finally {
+                mActiveReads.decrementAndGet();
+            }
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+            startRead();
+            try {
+                return mDelegate.getByteBuffer(offset, size);
+            } finally {
+                mActiveReads.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+            startRead();
+            try {
+                mDelegate.copyTo(offset, size, dest);
+            } finally {
+                mActiveReads.decrementAndGet();
+            }
+        }
+
+        @Override
+        public DataSource slice(long offset, long size) {
+            return new SingleThreadedDataSource(
+                    mDelegate.slice(offset, size), mActiveReads, mConcurrentReadDetected);
+        }
+
+        private void startRead() throws IOException {
+            if (mActiveReads.incrementAndGet() > 1) {
+                mConcurrentReadDetected.set(true);
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+    }
+
     private static ApkVerifier.Result verifyForMinSdkVersion(File apk, int minSdkVersion)
             throws IOException, ApkFormatException, NoSuchAlgorithmException {
         return verify(apk, minSdkVersion);
@@ -53,6 +53,7 @@ import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
@@ -111,6 +112,23 @@ public class ApkVerifierTest {
         assertVerified(verify("original.apk"));
     }
 
+    @Test
+    public void testChunkDigestsCacheDirectory() throws Exception {
+        File cacheDir = new File(mTemporaryFolder.getRoot(), "chunk-digests");
+        for (String apk : new String[] {"original.apk", "v3-only-with-stamp.apk"}) {
+            File apkFile = Resources.toFile(getClass(), apk, mTemporaryFolder);
+            // The first verification records the digests, the second one reuses them.
+            for (int i = 0; i < 2; i++) {
+                assertVerified(
+                        new ApkVerifier.Builder(apkFile)
+                                .setChunkDigestsCacheDirectory(cacheDir)
+                                .build()
+                                .verify());
+            }
+        }
+        assertEquals(2, cacheDir.listFiles().length);
+    }
+
     @Test
     public void testV1OneSignerMD5withRSAAccepted() throws Exception {
         // APK signed with v1 scheme only, one signer
@@ -23,5 +23,6 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
     com.android.apksig.internal.asn1.AllTests.class,
     com.android.apksig.internal.util.AllTests.class,
+    com.android.apksig.internal.zip.AllTests.class,
 })
 public class AllTests {}
@@ -2,7 +2,11 @@ package com.android.apksig.internal.apk;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import com.android.apksig.internal.util.VerityTreeBuilder;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
 import com.android.apksig.util.RunnablesExecutor;
@@ -11,9 +15,13 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -120,6 +128,402 @@ public class ApkSigningBlockUtilsTest {
         assertEqualDigests(outputContentDigestsMultithreaded, outputContentDigests);
     }
 
+    @Test
+    public void testChunkSupplierSplitsReadsAtChunkAndDataSourceBoundaries() throws Exception {
+        int chunkSize = (int) ApkSigningBlockUtils.CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES;
+        DataSource[] contents = new DataSource[] {
+                dataSource[0],
+                DataSources.asDataSource(ByteBuffer.allocate(0)),
+                createFileDataSource(chunkSize - 1),
+                createFileDataSource(chunkSize),
+                createFileDataSource(3 * chunkSize + 1),
+        };
+        int[] firstChunkIndices = new int[contents.length + 1];
+        for (int i = 0; i < contents.length; i++) {
+            firstChunkIndices[i + 1] =
+                    firstChunkIndices[i] + (int) ((contents[i].size() + chunkSize - 1) / chunkSize);
+        }
+        int chunkCount = firstChunkIndices[contents.length];
+        boolean[] skippedChunks = new boolean[chunkCount];
+        skippedChunks[1] = true;
+        skippedChunks[firstChunkIndices[4] + 2] = true;
+
+        boolean[] suppliedChunks = new boolean[chunkCount];
+        ApkSigningBlockUtils.ChunkSupplier supplier =
+                new ApkSigningBlockUtils.ChunkSupplier(contents, skippedChunks);
+        for (ApkSigningBlockUtils.ChunkSupplier.Chunks chunks = supplier.get();
+                chunks != null;
+                chunks = supplier.get()) {
+            try {
+                int source = 0;
+                while (firstChunkIndices[source + 1] <= chunks.firstChunkIndex) {
+                    source++;
+                }
+                long offset = (long) (chunks.firstChunkIndex - firstChunkIndices[source])
+                        * chunkSize;
+                // A read never spans data sources nor exceeds a pooled buffer
+                assertTrue(offset + chunks.size <= contents[source].size());
+                assertTrue(chunks.size <= ApkSigningBlockUtils.ChunkSupplier.BUFFER_SIZE_BYTES);
+                assertTrue(chunks.size == contents[source].size() - offset
+                        || chunks.size % chunkSize == 0);
+                assertEquals(contents[source].getByteBuffer(offset, chunks.size), chunks.data);
+                for (int i = 0; i < (chunks.size + chunkSize - 1) / chunkSize; i++) {
+                    int chunkIndex = chunks.firstChunkIndex + i;
+                    assertFalse(skippedChunks[chunkIndex]);
+                    assertFalse(suppliedChunks[chunkIndex]);
+                    suppliedChunks[chunkIndex] = true;
+                }
+            } finally {
+                supplier.release(chunks);
+            }
+        }
+        for (int i = 0; i < chunkCount; i++) {
+            assertEquals(!skippedChunks[i], suppliedChunks[i]);
+        }
+    }
+
+    @Test
+    public void testChunkSupplierReusesReleasedBuffers() throws Exception {
+        DataSource[] contents = new DataSource[] {dataSource[0]};
+        ApkSigningBlockUtils.ChunkSupplier supplier =
+                new ApkSigningBlockUtils.ChunkSupplier(contents);
+        ApkSigningBlockUtils.ChunkSupplier.Chunks chunks = supplier.get();
+        ByteBuffer buffer = chunks.data;
+        assertTrue(buffer.isDirect());
+        supplier.release(chunks);
+
+        // The released buffer is reused by the same supplier and by subsequent suppliers.
+        chunks = supplier.get();
+        assertSame(buffer, chunks.data);
+        supplier.release(chunks);
+        ApkSigningBlockUtils.ChunkSupplier otherSupplier =
+                new ApkSigningBlockUtils.ChunkSupplier(contents);
+        chunks = otherSupplier.get();
+        assertSame(buffer, chunks.data);
+        assertEquals(dataSource[0].getByteBuffer(0, chunks.size), chunks.data);
+        otherSupplier.release(chunks);
+
+        // Buffers beyond the capacity of the pool are heap buffers, which are not retained.
+        int bufferCount = ApkSigningBlockUtils.ChunkSupplier.MAX_POOLED_BUFFERS + 1;
+        List<ApkSigningBlockUtils.ChunkSupplier.Chunks> released = getChunks(contents, bufferCount);
+        Set<ByteBuffer> releasedBuffers =
+                Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+        int directBufferCount = 0;
+        for (ApkSigningBlockUtils.ChunkSupplier.Chunks releasedChunks : released) {
+            releasedBuffers.add(releasedChunks.data);
+            if (releasedChunks.data.isDirect()) {
+                directBufferCount++;
+            }
+            otherSupplier.release(releasedChunks);
+        }
+        assertEquals(ApkSigningBlockUtils.ChunkSupplier.MAX_POOLED_BUFFERS, directBufferCount);
+        int reusedBufferCount = 0;
+        for (ApkSigningBlockUtils.ChunkSupplier.Chunks reacquired :
+                getChunks(contents, bufferCount)) {
+            if (releasedBuffers.contains(reacquired.data)) {
+                reusedBufferCount++;
+            }
+            otherSupplier.release(reacquired);
+        }
+        assertEquals(ApkSigningBlockUtils.ChunkSupplier.MAX_POOLED_BUFFERS, reusedBufferCount);
+    }
+
+    @Test
+    public void testChunkSupplierSuppliesViewsOfMappedFiles() throws Exception {
+        try (FileChannel channel = FileChannel.open(
+                new File(temporaryFolder.getRoot(), "fake.apk").toPath())) {
+            DataSource[] contents = new DataSource[] {
+                    DataSources.asMappedDataSource(channel), dataSource[1], dataSource[2],
+            };
+            ApkSigningBlockUtils.ChunkSupplier supplier =
+                    new ApkSigningBlockUtils.ChunkSupplier(contents);
+            ApkSigningBlockUtils.ChunkSupplier.Chunks chunks = supplier.get();
+            // Views of the read-only mapping, rather than pooled buffers
+            assertTrue(chunks.data.isReadOnly());
+            assertEquals(dataSource[0].getByteBuffer(0, chunks.size), chunks.data);
+            supplier.release(chunks);
+
+            Map<ContentDigestAlgorithm, byte[]> expectedDigests =
+                    new EnumMap<>(ContentDigestAlgorithm.class);
+            ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                    RunnablesExecutor.MULTI_THREADED, algos, dataSource, expectedDigests);
+            Map<ContentDigestAlgorithm, byte[]> mappedDigests =
+                    new EnumMap<>(ContentDigestAlgorithm.class);
+            ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                    RunnablesExecutor.MULTI_THREADED, algos, contents, mappedDigests);
+            assertEqualDigests(expectedDigests, mappedDigests);
+        }
+    }
+
+    /**
+     * Returns the provided number of chunks of the provided contents without releasing them.
+     */
+    private static List<ApkSigningBlockUtils.ChunkSupplier.Chunks> getChunks(
+            DataSource[] contents, int count) {
+        List<ApkSigningBlockUtils.ChunkSupplier.Chunks> result = new ArrayList<>(count);
+        ApkSigningBlockUtils.ChunkSupplier supplier =
+                new ApkSigningBlockUtils.ChunkSupplier(contents);
+        while (result.size() < count) {
+            ApkSigningBlockUtils.ChunkSupplier.Chunks chunks = supplier.get();
+            if (chunks == null) {
+                supplier = new ApkSigningBlockUtils.ChunkSupplier(contents);
+                continue;
+            }
+            result.add(chunks);
+        }
+        return result;
+    }
+
+    private DataSource createFileDataSource(int size) throws Exception {
+        byte[] data = new byte[size];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) (i % BASE);
+        }
+        File file = temporaryFolder.newFile();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(data);
+        }
+        return DataSources.asDataSource(new RandomAccessFile(file, "r"));
+    }
+
+    @Test
+    public void testChunkDigestsCacheReusesUnmodifiedChunks() throws Exception {
+        ApkSigningBlockUtils.ChunkDigestsCache cache =
+                new ApkSigningBlockUtils.ChunkDigestsCache();
+        cache.setSameInstancesUnmodified(true);
+        Map<ContentDigestAlgorithm, byte[]> cachedDigests =
+                new EnumMap<>(ContentDigestAlgorithm.class);
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                RunnablesExecutor.SINGLE_THREADED, algos, dataSource, cachedDigests, cache);
+
+        // Digesting the same contents again must produce the same digests.
+        Map<ContentDigestAlgorithm, byte[]> expectedDigests =
+                new EnumMap<>(ContentDigestAlgorithm.class);
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                RunnablesExecutor.SINGLE_THREADED, algos, dataSource, expectedDigests);
+        cachedDigests.clear();
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                RunnablesExecutor.SINGLE_THREADED, algos, dataSource, cachedDigests, cache);
+        assertEqualDigests(expectedDigests, cachedDigests);
+
+        // Modify and grow the last segment, provided as a different data source instance.
+        byte[] part3 = new byte[40_000];
+        for (int i = 0; i < part3.length; ++i) {
+            part3[i] = (byte) (i % 7);
+        }
+        DataSource[] modified = new DataSource[] {
+                dataSource[0],
+                DataSources.asDataSource(
+                        dataSource[1].getByteBuffer(0, (int) dataSource[1].size())),
+                DataSources.asDataSource(ByteBuffer.wrap(part3)),
+        };
+        expectedDigests.clear();
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                RunnablesExecutor.SINGLE_THREADED, algos, modified, expectedDigests);
+        cachedDigests.clear();
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                RunnablesExecutor.SINGLE_THREADED, algos, modified, cachedDigests, cache);
+        assertEqualDigests(expectedDigests, cachedDigests);
+    }
+
+    @Test
+    public void testChunkDigestsCacheDetectsModifiedInstanceByDefault() throws Exception {
+        byte[] part1 = new byte[3 * 1024 * 1024];
+        DataSource[] contents = new DataSource[] {
+                DataSources.asDataSource(ByteBuffer.wrap(part1)), dataSource[2],
+        };
+        ApkSigningBlockUtils.ChunkDigestsCache cache =
+                new ApkSigningBlockUtils.ChunkDigestsCache();
+        Map<ContentDigestAlgorithm, byte[]> cachedDigests =
+                new EnumMap<>(ContentDigestAlgorithm.class);
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                RunnablesExecutor.SINGLE_THREADED, algos, contents, cachedDigests, cache);
+
+        // Rewrite the data of the same data source instance without changing its size.
+        part1[2 * 1024 * 1024 + 1] = 1;
+        Map<ContentDigestAlgorithm, byte[]> expectedDigests =
+                new EnumMap<>(ContentDigestAlgorithm.class);
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                RunnablesExecutor.SINGLE_THREADED, algos, contents, expectedDigests);
+        cachedDigests.clear();
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                RunnablesExecutor.SINGLE_THREADED, algos, contents, cachedDigests, cache);
+        assertEqualDigests(expectedDigests, cachedDigests);
+    }
+
+    @Test
+    public void testChunkDigestsSidecarCacheDetectsStaleDigests() throws Exception {
+        File apkFile = new File(temporaryFolder.getRoot(), "fake.apk");
+        File sidecarFile = new File(temporaryFolder.getRoot(), "fake.apk.chunkdigests");
+        byte[] signingBlockDigest = new byte[32];
+        Map<ContentDigestAlgorithm, byte[]> expectedDigests =
+                new EnumMap<>(ContentDigestAlgorithm.class);
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                RunnablesExecutor.SINGLE_THREADED, algos, dataSource, expectedDigests);
+
+        // The first verification records the digests of all chunks.
+        Map<ContentDigestAlgorithm, byte[]> cachedDigests =
+                new EnumMap<>(ContentDigestAlgorithm.class);
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                RunnablesExecutor.SINGLE_THREADED, algos, dataSource, cachedDigests,
+                new ChunkDigestsSidecarCache(sidecarFile, apkFile, signingBlockDigest));
+        assertEqualDigests(expectedDigests, cachedDigests);
+        assertTrue(sidecarFile.isFile());
+
+        // A new cache instance reuses the recorded digests.
+        cachedDigests.clear();
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                RunnablesExecutor.SINGLE_THREADED, algos, dataSource, cachedDigests,
+                new ChunkDigestsSidecarCache(sidecarFile, apkFile, signingBlockDigest));
+        assertEqualDigests(expectedDigests, cachedDigests);
+
+        // Contents of the same size whose first chunk differs: the first chunk is always sampled,
+        // so the stale digests are detected and all chunks are digested again.
+        byte[] part1 = new byte[(int) dataSource[0].size()];
+        dataSource[0].copyTo(0, part1.length, ByteBuffer.wrap(part1));
+        part1[0] ^= 1;
+        DataSource[] modified = new DataSource[] {
+                DataSources.asDataSource(ByteBuffer.wrap(part1)), dataSource[1], dataSource[2],
+        };
+        expectedDigests.clear();
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                RunnablesExecutor.SINGLE_THREADED, algos, modified, expectedDigests);
+        cachedDigests.clear();
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                RunnablesExecutor.SINGLE_THREADED, algos, modified, cachedDigests,
+                new ChunkDigestsSidecarCache(sidecarFile, apkFile, signingBlockDigest));
+        assertEqualDigests(expectedDigests, cachedDigests);
+    }
+
+    @Test
+    public void testStreamedDigestsMatchDigestsOfData() throws Exception {
+        Set<ContentDigestAlgorithm> digestAlgorithms = EnumSet.of(
+                ContentDigestAlgorithm.CHUNKED_SHA256,
+                ContentDigestAlgorithm.CHUNKED_SHA512,
+                ContentDigestAlgorithm.VERITY_CHUNKED_SHA256);
+        byte[] zipEntries = new byte[3 * 1024 * 1024 + 12345];
+        for (int i = 0; i < zipEntries.length; ++i) {
+            zipEntries[i] = (byte) (i % BASE);
+        }
+        StreamingContentDigester digester = new StreamingContentDigester(digestAlgorithms);
+        // Feed the data in pieces which are not aligned with chunks or blocks.
+        int offset = 0;
+        for (int pieceSize = 1; offset < zipEntries.length; pieceSize = pieceSize * 3 + 7) {
+            int size = Math.min(pieceSize, zipEntries.length - offset);
+            if ((pieceSize & 1) == 0) {
+                digester.getDataSink().consume(zipEntries, offset, size);
+            } else {
+                digester.getDataSink().consume(ByteBuffer.wrap(zipEntries, offset, size));
+            }
+            offset += size;
+        }
+        assertEquals(zipEntries.length, digester.size());
+
+        DataSource beforeCentralDir = ApkSigningBlockUtils.generateApkSigningBlockPadding(
+                DataSources.asDataSource(ByteBuffer.wrap(zipEntries)), true).getFirst();
+        DataSource centralDir = DataSources.asDataSource(ByteBuffer.wrap(new byte[5000]));
+        ByteBuffer eocd = ByteBuffer.allocate(22);
+        eocd.putInt(0, 0x06054b50);
+        DataSource eocdDataSource = DataSources.asDataSource(eocd);
+
+        Map<ContentDigestAlgorithm, byte[]> expectedDigests =
+                ApkSigningBlockUtils.computeContentDigests(
+                        RunnablesExecutor.SINGLE_THREADED,
+                        digestAlgorithms,
+                        beforeCentralDir,
+                        centralDir,
+                        eocdDataSource);
+        Map<ContentDigestAlgorithm, byte[]> streamedDigests =
+                ApkSigningBlockUtils.computeContentDigests(
+                        RunnablesExecutor.SINGLE_THREADED,
+                        digestAlgorithms,
+                        beforeCentralDir,
+                        centralDir,
+                        eocdDataSource,
+                        null,
+                        digester);
+        assertEqualDigests(expectedDigests, streamedDigests);
+    }
+
+    @Test
+    public void testStreamedDigestsComputedConcurrentlyMatchThoseComputedSerially()
+            throws Exception {
+        Set<ContentDigestAlgorithm> digestAlgorithms = EnumSet.of(
+                ContentDigestAlgorithm.CHUNKED_SHA256,
+                ContentDigestAlgorithm.CHUNKED_SHA512,
+                ContentDigestAlgorithm.VERITY_CHUNKED_SHA256);
+        byte[] zipEntries = new byte[19 * 1024 * 1024 + 12345];
+        for (int i = 0; i < zipEntries.length; ++i) {
+            zipEntries[i] = (byte) (i % BASE);
+        }
+        StreamingContentDigester serialDigester =
+                new StreamingContentDigester(digestAlgorithms, true);
+        StreamingContentDigester concurrentDigester = new StreamingContentDigester(
+                digestAlgorithms, true, RunnablesExecutor.MULTI_THREADED);
+        // Digests are also obtained part way through, before all data has been consumed.
+        int[] splits = {3 * 1024 * 1024 + 100, 3 * 1024 * 1024 + 100, 15 * 1024 * 1024};
+        int offset = 0;
+        for (int split : splits) {
+            serialDigester.getDataSink().consume(zipEntries, offset, split - offset);
+            concurrentDigester.getDataSink().consume(
+                    ByteBuffer.wrap(zipEntries, offset, split - offset));
+            offset = split;
+            assertEqualStreamedDigests(serialDigester, concurrentDigester, 4096 - 100);
+        }
+        for (int pieceSize = 1; offset < zipEntries.length; pieceSize = pieceSize * 5 + 3) {
+            int size = Math.min(pieceSize, zipEntries.length - offset);
+            serialDigester.getDataSink().consume(zipEntries, offset, size);
+            concurrentDigester.getDataSink().consume(zipEntries, offset, size);
+            offset += size;
+        }
+        assertEquals(zipEntries.length, concurrentDigester.size());
+        assertEqualStreamedDigests(serialDigester, concurrentDigester, 0);
+        assertEqualStreamedDigests(serialDigester, concurrentDigester, 4096 - 12345 % 4096);
+    }
+
+    @Test
+    public void testVerityDigestComputedWithChunkDigests() throws Exception {
+        Set<ContentDigestAlgorithm> digestAlgorithms = EnumSet.of(
+                ContentDigestAlgorithm.CHUNKED_SHA256,
+                ContentDigestAlgorithm.VERITY_CHUNKED_SHA256);
+        byte[] zipEntries = new byte[5 * 1024 * 1024 + 3 * 4096];
+        for (int i = 0; i < zipEntries.length; ++i) {
+            zipEntries[i] = (byte) (i % BASE);
+        }
+        DataSource beforeCentralDir = DataSources.asDataSource(ByteBuffer.wrap(zipEntries));
+        DataSource centralDir = DataSources.asDataSource(ByteBuffer.wrap(new byte[5000]));
+        ByteBuffer eocd = ByteBuffer.allocate(22);
+        eocd.putInt(0, 0x06054b50);
+        DataSource eocdDataSource = DataSources.asDataSource(eocd);
+
+        ByteBuffer expectedVerityDigest = ByteBuffer.allocate(32 + 8);
+        expectedVerityDigest.order(ByteOrder.LITTLE_ENDIAN);
+        try (VerityTreeBuilder builder =
+                new VerityTreeBuilder(ApkSigningBlockUtils.VERITY_SALT)) {
+            expectedVerityDigest.put(builder.generateVerityTreeRootHash(
+                    beforeCentralDir, centralDir, eocdDataSource));
+        }
+        expectedVerityDigest.putLong(zipEntries.length + 5000 + 22);
+
+        // The second computation reuses the cached chunk digests, so the chunks are read for
+        // their verity digests only.
+        ApkSigningBlockUtils.ChunkDigestsCache cache =
+                new ApkSigningBlockUtils.ChunkDigestsCache();
+        cache.setSameInstancesUnmodified(true);
+        for (int i = 0; i < 2; i++) {
+            Map<ContentDigestAlgorithm, byte[]> digests =
+                    ApkSigningBlockUtils.computeContentDigests(
+                            RunnablesExecutor.MULTI_THREADED,
+                            digestAlgorithms,
+                            beforeCentralDir,
+                            centralDir,
+                            eocdDataSource,
+                            cache);
+            assertArrayEquals(expectedVerityDigest.array(),
+                    digests.get(ContentDigestAlgorithm.VERITY_CHUNKED_SHA256));
+        }
+    }
+
     private void assertEqualDigests(
             Map<ContentDigestAlgorithm, byte[]> d1, Map<ContentDigestAlgorithm, byte[]> d2) {
         assertEquals(d1.keySet(), d2.keySet());
@@ -129,4 +533,21 @@ public class ApkSigningBlockUtilsTest {
             assertArrayEquals(digest1, digest2);
         }
     }
+
+    private static void assertEqualStreamedDigests(
+            StreamingContentDigester expected, StreamingContentDigester actual, int paddingSize)
+            throws Exception {
+        for (ContentDigestAlgorithm digestAlgorithm : EnumSet.of(
+                ContentDigestAlgorithm.CHUNKED_SHA256, ContentDigestAlgorithm.CHUNKED_SHA512)) {
+            assertArrayEquals(
+                    expected.getChunkDigests(digestAlgorithm, paddingSize),
+                    actual.getChunkDigests(digestAlgorithm, paddingSize));
+        }
+        assertEquals(
+                expected.getVerityLeafDigests(paddingSize),
+                actual.getVerityLeafDigests(paddingSize));
+        assertEquals(
+                expected.getV4VerityLeafDigests(paddingSize),
+                actual.getV4VerityLeafDigests(paddingSize));
+    }
 }
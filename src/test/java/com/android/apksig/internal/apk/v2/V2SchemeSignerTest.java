@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk.v2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.android.apksig.ApkSignerTest;
+import com.android.apksig.ApkVerifier;
+import com.android.apksig.KeyConfig;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.apk.ApkSigningBlockUtils;
+import com.android.apksig.internal.apk.ContentDigestAlgorithm;
+import com.android.apksig.internal.util.Resources;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.util.RunnablesExecutor;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+/** Unit tests for {@link V2SchemeSigner}. */
+@RunWith(JUnit4.class)
+public class V2SchemeSignerTest {
+    private static final String SIGNER_RESOURCE_NAME =
+            Resources.FIRST_RSA_2048_SIGNER_RESOURCE_NAME;
+
+    @Test
+    public void testSignWithPrecomputedContentDigests() throws Exception {
+        DataSource apk = DataSources.asDataSource(
+                ByteBuffer.wrap(Resources.toByteArray(ApkSignerTest.class, "original.apk")));
+        ApkUtils.ZipSections zipSections = ApkUtils.findZipSections(apk);
+        DataSource beforeCentralDir = apk.slice(0, zipSections.getZipCentralDirectoryOffset());
+        DataSource centralDir = apk.slice(
+                zipSections.getZipCentralDirectoryOffset(),
+                zipSections.getZipCentralDirectorySizeBytes());
+        ByteBuffer eocd = zipSections.getZipEndOfCentralDirectory();
+        List<ApkSigningBlockUtils.SignerConfig> signerConfigs =
+                Collections.singletonList(createSignerConfig());
+        // Digests of algorithms not used by the signers are not reported.
+        Map<ContentDigestAlgorithm, byte[]> contentDigests =
+                ApkSigningBlockUtils.computeContentDigests(
+                        RunnablesExecutor.SINGLE_THREADED,
+                        EnumSet.of(
+                                ContentDigestAlgorithm.CHUNKED_SHA256,
+                                ContentDigestAlgorithm.CHUNKED_SHA512),
+                        beforeCentralDir,
+                        centralDir,
+                        DataSources.asDataSource(eocd.slice()));
+
+        ApkSigningBlockUtils.SigningSchemeBlockAndDigests blockAndDigests =
+                V2SchemeSigner.generateApkSignatureSchemeV2Block(
+                        contentDigests, signerConfigs, false, null);
+
+        assertEquals(
+                Collections.singleton(ContentDigestAlgorithm.CHUNKED_SHA256),
+                blockAndDigests.digestInfo.keySet());
+        assertArrayEquals(
+                contentDigests.get(ContentDigestAlgorithm.CHUNKED_SHA256),
+                blockAndDigests.digestInfo.get(ContentDigestAlgorithm.CHUNKED_SHA256));
+
+        byte[] apkSigningBlock = ApkSigningBlockUtils.generateApkSigningBlock(
+                Collections.singletonList(blockAndDigests.signingSchemeBlock));
+        int centralDirOffset = (int) beforeCentralDir.size();
+        ByteBuffer signedApk = ByteBuffer.allocate((int) apk.size() + apkSigningBlock.length);
+        beforeCentralDir.copyTo(0, centralDirOffset, signedApk);
+        signedApk.put(apkSigningBlock);
+        centralDir.copyTo(0, (int) centralDir.size(), signedApk);
+        ByteBuffer signedEocd = signedApk.slice();
+        signedApk.put(eocd.slice());
+        ApkUtils.setZipEocdCentralDirectoryOffset(
+                signedEocd, centralDirOffset + apkSigningBlock.length);
+        signedApk.flip();
+
+        ApkVerifier.Result result =
+                new ApkVerifier.Builder(DataSources.asDataSource(signedApk)).build().verify();
+        assertTrue(result.getAllErrors().toString(), result.isVerified());
+        assertTrue(result.isVerifiedUsingV2Scheme());
+    }
+
+    @Test
+    public void testSignWithPrecomputedContentDigestsRejectsNoSigners() throws Exception {
+        Map<ContentDigestAlgorithm, byte[]> contentDigests =
+                new EnumMap<>(ContentDigestAlgorithm.class);
+        contentDigests.put(ContentDigestAlgorithm.CHUNKED_SHA256, new byte[32]);
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> V2SchemeSigner.generateApkSignatureSchemeV2Block(
+                        contentDigests, Collections.emptyList(), false, null));
+    }
+
+    @Test
+    public void testSignWithPrecomputedContentDigestsRejectsMissingDigest() throws Exception {
+        Map<ContentDigestAlgorithm, byte[]> contentDigests =
+                new EnumMap<>(ContentDigestAlgorithm.class);
+        contentDigests.put(ContentDigestAlgorithm.CHUNKED_SHA512, new byte[64]);
+
+        IllegalArgumentException e = assertThrows(
+                IllegalArgumentException.class,
+                () -> V2SchemeSigner.generateApkSignatureSchemeV2Block(
+                        contentDigests,
+                        Collections.singletonList(createSignerConfig()),
+                        false,
+                        null));
+        assertTrue(e.getMessage(), e.getMessage().contains("CHUNKED_SHA256"));
+    }
+
+    private static ApkSigningBlockUtils.SignerConfig createSignerConfig() throws Exception {
+        PrivateKey privateKey =
+                Resources.toPrivateKey(ApkSignerTest.class, SIGNER_RESOURCE_NAME + ".pk8");
+        List<X509Certificate> certs = Resources.toCertificateChain(
+                ApkSignerTest.class, SIGNER_RESOURCE_NAME + ".x509.pem");
+        ApkSigningBlockUtils.SignerConfig signerConfig = new ApkSigningBlockUtils.SignerConfig();
+        signerConfig.keyConfig = new KeyConfig.Jca(privateKey);
+        signerConfig.certificates = certs;
+        signerConfig.signatureAlgorithms = V2SchemeSigner.getSuggestedSignatureAlgorithms(
+                certs.get(0).getPublicKey(), 1, false, false);
+        return signerConfig;
+    }
+}
@@ -22,8 +22,12 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
     ArrayBackedByteBufferSinkTest.class,
+    AvailableProcessorsTest.class,
     ChainedDataSourceTest.class,
     DirectByteBufferSinkTest.class,
+    MappedFileDataSourceTest.class,
+    PrefetchingFileDataSourceTest.class,
+    VerityTreeBlockVerifierTest.class,
     VerityTreeBuilderTest.class,
     X509CertificateUtilsTest.class,
 })
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link AvailableProcessors}. */
+@RunWith(JUnit4.class)
+public class AvailableProcessorsTest {
+    @Test
+    public void testGetWithinRuntimeLimit() {
+        int processors = AvailableProcessors.get();
+        assertTrue(processors >= 1);
+        assertTrue(processors <= Runtime.getRuntime().availableProcessors());
+    }
+
+    @Test
+    public void testParseCgroupV2CpuMax() {
+        assertEquals(-1, AvailableProcessors.parseCgroupV2CpuMax("max 100000"));
+        assertEquals(2, AvailableProcessors.parseCgroupV2CpuMax("200000 100000\n"));
+        assertEquals(2, AvailableProcessors.parseCgroupV2CpuMax("150000 100000"));
+        assertEquals(1, AvailableProcessors.parseCgroupV2CpuMax("50000 100000"));
+        assertEquals(4, AvailableProcessors.parseCgroupV2CpuMax("400000"));
+    }
+
+    @Test
+    public void testGetCpuLimitFromCgroupV1Quota() {
+        assertEquals(-1, AvailableProcessors.getCpuLimit(-1, 100000));
+        assertEquals(3, AvailableProcessors.getCpuLimit(300000, 100000));
+        assertEquals(1, AvailableProcessors.getCpuLimit(1000, 100000));
+    }
+}
@@ -17,13 +17,22 @@
 package com.android.apksig.internal.util;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import com.android.apksig.util.DataSource;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -90,6 +99,129 @@ public class FileChannelDataSourceTest {
         assertArrayEquals(expectedBytes, resultBytes);
     }
 
+    @Test
+    public void testFeedsCorrectData_whenReadConcurrently() throws Exception {
+        byte[] fullFileContent = createFileContent(4 * 1024 * 1024 + 987654);
+        RandomAccessFile raf = createRaf(fullFileContent);
+        DataSource rafDataSource = new FileChannelDataSource(raf.getChannel());
+
+        int threadCount = 8;
+        int bytesToFeed = 1024 * 1024 + 12345;
+        byte[][] results = new byte[threadCount][];
+        Thread[] threads = new Thread[threadCount];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < threadCount; i++) {
+            int threadIndex = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int round = 0; round < 4; round++) {
+                        ByteArrayDataSink dataSink = new ByteArrayDataSink();
+                        rafDataSource.feed(threadIndex * 333333L, bytesToFeed, dataSink);
+                        results[threadIndex] = getDataSinkBytes(dataSink);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+
+        for (int i = 0; i < threadCount; i++) {
+            int offset = i * 333333;
+            assertArrayEquals(
+                    Arrays.copyOfRange(fullFileContent, offset, offset + bytesToFeed), results[i]);
+        }
+    }
+
+    @Test
+    public void testFeedsCorrectData_whenSinkFeedsFromSameThread() throws Exception {
+        byte[] fullFileContent = createFileContent(2 * 1024 * 1024 + 987654);
+        RandomAccessFile raf = createRaf(fullFileContent);
+        DataSource rafDataSource = new FileChannelDataSource(raf.getChannel());
+
+        // Each chunk consumed by the outer sink triggers a nested feed on the same thread, which
+        // must not overwrite the outer read buffer.
+        ByteArrayDataSink innerDataSink = new ByteArrayDataSink();
+        ByteArrayDataSink outerDataSink = new ByteArrayDataSink() {
+            @Override
+            public void consume(ByteBuffer buf) throws IOException {
+                rafDataSource.feed(7, 1024 * 1024, innerDataSink);
+                super.consume(buf);
+            }
+        };
+
+        int bytesToFeed = 2 * 1024 * 1024 + 12345;
+        rafDataSource.feed(0, bytesToFeed, outerDataSink);
+
+        assertArrayEquals(
+                Arrays.copyOf(fullFileContent, bytesToFeed), getDataSinkBytes(outerDataSink));
+    }
+
+    @Test
+    public void testReadBuffersSharedByThreadsAndBounded() throws Exception {
+        // Buffers released by one thread are reused by others.
+        ByteBuffer released = FileChannelDataSource.acquireReadBuffer();
+        assertTrue(released.isDirect());
+        FileChannelDataSource.releaseReadBuffer(released);
+        AtomicReference<ByteBuffer> reacquired = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            ByteBuffer buf = FileChannelDataSource.acquireReadBuffer();
+            reacquired.set(buf);
+            FileChannelDataSource.releaseReadBuffer(buf);
+        });
+        thread.start();
+        thread.join();
+        assertSame(released, reacquired.get());
+
+        // Buffers in use beyond the capacity of the pool are heap buffers.
+        List<ByteBuffer> buffers = new ArrayList<>();
+        int directBufferCount = 0;
+        for (int i = 0; i < FileChannelDataSource.MAX_POOLED_READ_BUFFERS + 1; i++) {
+            ByteBuffer buf = FileChannelDataSource.acquireReadBuffer();
+            buffers.add(buf);
+            if (buf.isDirect()) {
+                directBufferCount++;
+            }
+        }
+        for (ByteBuffer buf : buffers) {
+            FileChannelDataSource.releaseReadBuffer(buf);
+        }
+        assertEquals(FileChannelDataSource.MAX_POOLED_READ_BUFFERS, directBufferCount);
+    }
+
+    @Test
+    public void testFeedsCorrectData_whenSinkIsFile() throws Exception {
+        byte[] fullFileContent = createFileContent(3 * 1024 * 1024 + 987654);
+        RandomAccessFile raf = createRaf(fullFileContent);
+        DataSource rafDataSource =
+                new FileChannelDataSource(raf.getChannel()).slice(1000, 3 * 1024 * 1024);
+
+        File outputFile = temporaryFolder.newFile();
+        try (RandomAccessFile outputRaf = new RandomAccessFile(outputFile, "rw")) {
+            RandomAccessFileDataSink dataSink = new RandomAccessFileDataSink(outputRaf, 3);
+            dataSink.consume(new byte[] {1, 2}, 0, 2);
+            rafDataSource.feed(23456, 1024 * 1024 + 12345, dataSink);
+            rafDataSource.feed(0, 7, dataSink);
+            dataSink.consume(new byte[] {3}, 0, 1);
+        }
+
+        byte[] expectedBytes = new byte[3 + 2 + 1024 * 1024 + 12345 + 7 + 1];
+        int offset = 3;
+        expectedBytes[offset++] = 1;
+        expectedBytes[offset++] = 2;
+        System.arraycopy(fullFileContent, 1000 + 23456, expectedBytes, offset, 1024 * 1024 + 12345);
+        offset += 1024 * 1024 + 12345;
+        System.arraycopy(fullFileContent, 1000, expectedBytes, offset, 7);
+        offset += 7;
+        expectedBytes[offset] = 3;
+
+        assertArrayEquals(expectedBytes, Files.readAllBytes(outputFile.toPath()));
+    }
+
     private static byte[] getDataSinkBytes(ByteArrayDataSink dataSink) {
         ByteBuffer result = dataSink.getByteBuffer(0, (int)dataSink.size());
         byte[] resultBytes = new byte[result.limit()];
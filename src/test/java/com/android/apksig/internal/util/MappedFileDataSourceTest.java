@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSourceTestBase;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link MappedFileDataSource}. The data sources under test are mapped in segments of
+ * {@link #SEGMENT_SIZE} bytes so that most chunks span segment boundaries.
+ */
+@RunWith(JUnit4.class)
+public class MappedFileDataSourceTest extends DataSourceTestBase {
+    private static final int SEGMENT_SIZE = 3;
+
+    @Test
+    public void testGetByteBufferWithinSegmentDoesNotCopy() throws Exception {
+        try (CloseableWithDataSource c = createDataSource("abcdefg")) {
+            DataSource ds = c.getDataSource();
+            ByteBuffer withinSegment = ds.getByteBuffer(3, 3);
+            assertTrue(withinSegment.isDirect());
+            assertEquals("def", toString(withinSegment));
+
+            ByteBuffer acrossSegments = ds.getByteBuffer(2, 3);
+            assertFalse(acrossSegments.isDirect());
+            assertEquals("cde", toString(acrossSegments));
+        }
+    }
+
+    @Test
+    public void testSliceOfRegionSpanningSegments() throws Exception {
+        try (CloseableWithDataSource c = createDataSource("abcdefghijk")) {
+            DataSource slice = c.getDataSource().slice(2, 8);
+            assertGetByteBufferEquals("cdefghij", slice, 0, 8);
+            assertFeedEquals("efghi", slice, 2, 5);
+            assertCopyToEquals("ghij", slice, 4, 4);
+            assertSliceEquals("fgh", slice.slice(1, 6), 2, 3);
+        }
+    }
+
+    @Test
+    public void testRegionOfFile() throws Exception {
+        File tmp = File.createTempFile(MappedFileDataSourceTest.class.getSimpleName(), ".bin");
+        try (RandomAccessFile f = new RandomAccessFile(tmp, "r")) {
+            Files.write(tmp.toPath(), "abcdefghijk".getBytes(StandardCharsets.UTF_8));
+            DataSource ds = new MappedFileDataSource(f.getChannel(), 4, 6, SEGMENT_SIZE);
+            assertEquals(6, ds.size());
+            assertGetByteBufferEquals("efghij", ds, 0, 6);
+            assertFeedEquals("ghi", ds, 2, 3);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    @Override
+    protected CloseableWithDataSource createDataSource(byte[] contents) throws IOException {
+        File tmp = File.createTempFile(MappedFileDataSourceTest.class.getSimpleName(), ".bin");
+        RandomAccessFile f = null;
+        try {
+            Files.write(tmp.toPath(), contents);
+            f = new RandomAccessFile(tmp, "r");
+        } finally {
+            if (f == null) {
+                tmp.delete();
+            }
+        }
+
+        RandomAccessFile file = f;
+        Closeable closeable = () -> {
+            try {
+                file.close();
+            } finally {
+                tmp.delete();
+            }
+        };
+        return CloseableWithDataSource.of(
+                new MappedFileDataSource(file.getChannel(), 0, contents.length, SEGMENT_SIZE),
+                closeable);
+    }
+
+    private static String toString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
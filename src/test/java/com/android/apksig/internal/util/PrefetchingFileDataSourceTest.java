@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSourceTestBase;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link PrefetchingFileDataSource}. The data sources under test read windows of
+ * {@link #WINDOW_SIZE} bytes so that most chunks span several windows.
+ */
+@RunWith(JUnit4.class)
+public class PrefetchingFileDataSourceTest extends DataSourceTestBase {
+    private static final int WINDOW_SIZE = 3;
+    private static final int READ_AHEAD_WINDOWS = 2;
+
+    @Test
+    public void testRepeatedSequentialPasses() throws Exception {
+        byte[] contents = createFileContent(100000);
+        try (CloseableWithDataSource c = createDataSource(contents)) {
+            DataSource ds = c.getDataSource();
+            for (int pass = 0; pass < 3; pass++) {
+                ByteArrayDataSink sink = new ByteArrayDataSink();
+                for (int offset = 0; offset < contents.length; offset += 1000) {
+                    ds.feed(offset, Math.min(1000, contents.length - offset), sink);
+                }
+                assertArrayEquals(contents, getDataSinkBytes(sink));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentChunkReaders() throws Exception {
+        int chunkSize = 4096;
+        int chunkCount = 64;
+        byte[] contents = createFileContent(chunkSize * chunkCount - 123);
+        try (CloseableWithDataSource c = createDataSource(contents, 1024, 8)) {
+            DataSource ds = c.getDataSource();
+            byte[] result = new byte[contents.length];
+            AtomicInteger nextChunk = new AtomicInteger();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    try {
+                        int chunk;
+                        while ((chunk = nextChunk.getAndIncrement()) < chunkCount) {
+                            int offset = chunk * chunkSize;
+                            int size = Math.min(chunkSize, contents.length - offset);
+                            ByteBuffer buf = ByteBuffer.wrap(result, offset, size);
+                            ds.copyTo(offset, size, buf);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertNull(failure.get());
+            assertArrayEquals(contents, result);
+        }
+    }
+
+    @Test
+    public void testReadAheadResumesAfterRandomAccess() throws Exception {
+        int windowSize = 4;
+        int readAheadWindows = 3;
+        byte[] contents = createFileContent(windowSize * 100);
+        File tmp = File.createTempFile(PrefetchingFileDataSourceTest.class.getSimpleName(), ".bin");
+        try {
+            Files.write(tmp.toPath(), contents);
+            try (ReadRecordingChannel channel =
+                    new ReadRecordingChannel(
+                            AsynchronousFileChannel.open(tmp.toPath(), StandardOpenOption.READ))) {
+                DataSource ds =
+                        new PrefetchingFileDataSource(
+                                channel, 0, contents.length, windowSize, readAheadWindows);
+                // Sequential reads, whose windows read ahead are left unread
+                assertWindowReadAhead(ds, channel, 0, windowSize, readAheadWindows);
+                assertWindowReadAhead(ds, channel, 1, windowSize, readAheadWindows);
+                // Random reads, for example of the ZIP Central Directory
+                assertWindowReadAhead(ds, channel, 90, windowSize, readAheadWindows);
+                assertWindowReadAhead(ds, channel, 40, windowSize, readAheadWindows);
+                // Sequential reads
+                for (int window = 10; window < 20; window++) {
+                    assertWindowReadAhead(ds, channel, window, windowSize, readAheadWindows);
+                }
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    @Test
+    public void testSliceOfRegionSpanningWindows() throws Exception {
+        try (CloseableWithDataSource c = createDataSource("abcdefghijk")) {
+            DataSource slice = c.getDataSource().slice(2, 8);
+            assertGetByteBufferEquals("cdefghij", slice, 0, 8);
+            assertFeedEquals("efghi", slice, 2, 5);
+            assertCopyToEquals("ghij", slice, 4, 4);
+            assertSliceEquals("fgh", slice.slice(1, 6), 2, 3);
+        }
+    }
+
+    @Override
+    protected CloseableWithDataSource createDataSource(byte[] contents) throws IOException {
+        return createDataSource(contents, WINDOW_SIZE, READ_AHEAD_WINDOWS);
+    }
+
+    private CloseableWithDataSource createDataSource(
+            byte[] contents, int windowSize, int readAheadWindows) throws IOException {
+        File tmp = File.createTempFile(PrefetchingFileDataSourceTest.class.getSimpleName(), ".bin");
+        AsynchronousFileChannel channel = null;
+        try {
+            Files.write(tmp.toPath(), contents);
+            channel = AsynchronousFileChannel.open(tmp.toPath(), StandardOpenOption.READ);
+        } finally {
+            if (channel == null) {
+                tmp.delete();
+            }
+        }
+
+        AsynchronousFileChannel openedChannel = channel;
+        return CloseableWithDataSource.of(
+                new PrefetchingFileDataSource(
+                        channel, 0, contents.length, windowSize, readAheadWindows),
+                () -> {
+                    try {
+                        openedChannel.close();
+                    } finally {
+                        tmp.delete();
+                    }
+                });
+    }
+
+    /**
+     * Reads the provided window, and asserts that it is read correctly and that the windows which
+     * follow it have been read ahead.
+     */
+    private static void assertWindowReadAhead(DataSource ds, ReadRecordingChannel channel,
+            int window, int windowSize, int readAheadWindows) throws IOException {
+        ByteBuffer buf = ds.getByteBuffer((long) window * windowSize, windowSize);
+        for (int i = 0; i < windowSize; i++) {
+            assertEquals((byte) ((window * windowSize + i) % 251), buf.get(i));
+        }
+        for (int i = 1; i <= readAheadWindows; i++) {
+            long offset = (long) (window + i) * windowSize;
+            assertTrue("window " + (window + i) + " not read ahead of window " + window,
+                    channel.mReadOffsets.contains(offset));
+        }
+    }
+
+    /** Channel which records the offsets at which reads start. */
+    private static class ReadRecordingChannel extends AsynchronousFileChannel {
+        private final AsynchronousFileChannel mChannel;
+        private final Set<Long> mReadOffsets = ConcurrentHashMap.newKeySet();
+
+        private ReadRecordingChannel(AsynchronousFileChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return mChannel.size();
+        }
+
+        @Override
+        public AsynchronousFileChannel truncate(long size) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            mChannel.force(metaData);
+        }
+
+        @Override
+        public <A> void lock(long position, long size, boolean shared, A attachment,
+                CompletionHandler<FileLock, ? super A> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<FileLock> lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <A> void read(ByteBuffer dst, long position, A attachment,
+                CompletionHandler<Integer, ? super A> handler) {
+            mReadOffsets.add(position);
+            mChannel.read(dst, position, attachment, handler);
+        }
+
+        @Override
+        public Future<Integer> read(ByteBuffer dst, long position) {
+            mReadOffsets.add(position);
+            return mChannel.read(dst, position);
+        }
+
+        @Override
+        public <A> void write(ByteBuffer src, long position, A attachment,
+                CompletionHandler<Integer, ? super A> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Integer> write(ByteBuffer src, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mChannel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+
+    private static byte[] getDataSinkBytes(ByteArrayDataSink dataSink) {
+        ByteBuffer result = dataSink.getByteBuffer(0, (int) dataSink.size());
+        byte[] resultBytes = new byte[result.remaining()];
+        result.get(resultBytes);
+        return resultBytes;
+    }
+
+    private static byte[] createFileContent(int fileSize) {
+        byte[] contents = new byte[fileSize];
+        for (int i = 0; i < fileSize; ++i) {
+            contents[i] = (byte) (i % 251);
+        }
+        return contents;
+    }
+}
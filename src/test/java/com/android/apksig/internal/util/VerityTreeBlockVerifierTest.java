@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class VerityTreeBlockVerifierTest {
+    private static final int BLOCK_SIZE = VerityTreeBlockVerifier.BLOCK_SIZE;
+    private static final byte[] SALT = new byte[] { 0x07, 0x08 };
+
+    // Large enough for a two-level tree whose bottom level spans several pages.
+    private final byte[] mData = new byte[1024 * 1024 + 77];
+    private byte[] mTree;
+    private byte[] mRootHash;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(0xb10c).nextBytes(mData);
+        try (VerityTreeBuilder builder = new VerityTreeBuilder(SALT)) {
+            ByteBuffer tree = builder.generateVerityTree(
+                    DataSources.asDataSource(ByteBuffer.wrap(mData)));
+            mTree = tree.array();
+            mRootHash = builder.getRootHashFromTree(tree);
+        }
+    }
+
+    @Test
+    public void testAllBlocksValid() throws Exception {
+        VerityTreeBlockVerifier verifier = createVerifier(mTree, 1);
+        DataSource data = DataSources.asDataSource(ByteBuffer.wrap(mData));
+        assertEquals(257, verifier.getBlockCount());
+        // Walk backwards so that the single cached page is mostly evicted.
+        for (long i = verifier.getBlockCount() - 1; i >= 0; i--) {
+            assertTrue("block " + i, verifier.isBlockValid(data, i));
+        }
+    }
+
+    @Test
+    public void testModifiedBlockInvalid() throws Exception {
+        VerityTreeBlockVerifier verifier =
+                createVerifier(mTree, VerityTreeBlockVerifier.DEFAULT_CACHED_PAGES);
+        byte[] modifiedData = mData.clone();
+        modifiedData[5 * BLOCK_SIZE + 17] ^= 1;
+        DataSource data = DataSources.asDataSource(ByteBuffer.wrap(modifiedData));
+        assertTrue(verifier.isBlockValid(data, 4));
+        assertFalse(verifier.isBlockValid(data, 5));
+        assertTrue(verifier.isBlockValid(data, 6));
+
+        // The last block is shorter than a block.
+        ByteBuffer lastBlock = ByteBuffer.wrap(mData, 256 * BLOCK_SIZE, 77);
+        assertTrue(verifier.isBlockValid(256, lastBlock.slice()));
+        assertFalse(verifier.isBlockValid(256, ByteBuffer.allocate(BLOCK_SIZE)));
+    }
+
+    @Test
+    public void testModifiedTreePageInvalidatesItsBlocksOnly() throws Exception {
+        // The second page of the bottom level holds the digests of blocks 128 to 255.
+        byte[] modifiedTree = mTree.clone();
+        modifiedTree[2 * BLOCK_SIZE + 100] ^= 1;
+        VerityTreeBlockVerifier verifier = createVerifier(modifiedTree, 4);
+        DataSource data = DataSources.asDataSource(ByteBuffer.wrap(mData));
+        assertTrue(verifier.isBlockValid(data, 127));
+        assertFalse(verifier.isBlockValid(data, 128));
+        assertFalse(verifier.isBlockValid(data, 255));
+        assertTrue(verifier.isBlockValid(data, 256));
+    }
+
+    @Test
+    public void testWrongRootHashRejected() throws Exception {
+        mRootHash[0] ^= 1;
+        try {
+            createVerifier(mTree, 1);
+            fail("Tree with a different root hash accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testBlockOutsideOfData() throws Exception {
+        createVerifier(mTree, 1).isBlockValid(
+                DataSources.asDataSource(ByteBuffer.wrap(mData)), 257);
+    }
+
+    private VerityTreeBlockVerifier createVerifier(byte[] tree, int cachedPages)
+            throws Exception {
+        return new VerityTreeBlockVerifier(SALT, mRootHash,
+                DataSources.asDataSource(ByteBuffer.wrap(tree)), mData.length, cachedPages);
+    }
+}
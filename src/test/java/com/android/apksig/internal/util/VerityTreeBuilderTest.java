@@ -18,19 +18,26 @@ package com.android.apksig.internal.util;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertTrue;
 import static junit.framework.TestCase.fail;
 
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.PooledRunnablesExecutor;
+import com.android.apksig.util.RunnablesExecutor;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
+import java.util.Random;
 
 
 /** Unit tests for {@link VerityTreeBuilder}. */
@@ -111,4 +118,88 @@ public final class VerityTreeBuilderTest {
             assertEquals(expectedRootHash, HexEncoding.encode(rootHash));
         }
     }
+
+    @Test public void rootHashDoesNotDependOnExecutor() throws Exception {
+        // Large enough to be read in several parts, the last of which is not block-aligned.
+        byte[] input = new byte[9 * 1024 * 1024 + 123];
+        new Random(0x5eed).nextBytes(input);
+        DataSource data = DataSources.asDataSource(ByteBuffer.wrap(input));
+        byte[] salt = new byte[] { 0x01, 0x02 };
+
+        String expectedRootHash;
+        try (VerityTreeBuilder builder =
+                new VerityTreeBuilder(salt, RunnablesExecutor.SINGLE_THREADED)) {
+            expectedRootHash = HexEncoding.encode(builder.generateVerityTreeRootHash(data));
+        }
+        try (VerityTreeBuilder builder =
+                new VerityTreeBuilder(salt, RunnablesExecutor.MULTI_THREADED)) {
+            assertEquals(expectedRootHash,
+                    HexEncoding.encode(builder.generateVerityTreeRootHash(data)));
+        }
+        try (PooledRunnablesExecutor executor =
+                new PooledRunnablesExecutor.Builder().setParallelism(3).setQueueSize(1).build();
+                VerityTreeBuilder builder = new VerityTreeBuilder(salt, executor)) {
+            assertEquals(expectedRootHash,
+                    HexEncoding.encode(builder.generateVerityTreeRootHash(data)));
+        }
+    }
+
+    @Test public void treeInFileMatchesTreeInMemory() throws Exception {
+        // Large enough for a two-level tree, with a memory limit low enough for the data to be
+        // digested in several rounds.
+        byte[] input = new byte[5 * 1024 * 1024 + 77];
+        new Random(0x7ee).nextBytes(input);
+        DataSource data = DataSources.asDataSource(ByteBuffer.wrap(input));
+        byte[] salt = new byte[] { 0x03, 0x04 };
+
+        ByteBuffer expectedTree;
+        byte[] expectedRootHash;
+        try (VerityTreeBuilder builder = new VerityTreeBuilder(salt)) {
+            expectedTree = builder.generateVerityTree(data);
+            expectedRootHash = builder.getRootHashFromTree(expectedTree);
+        }
+
+        File treeFile = File.createTempFile(VerityTreeBuilderTest.class.getSimpleName(), ".tree");
+        try (RandomAccessFile raf = new RandomAccessFile(treeFile, "rw");
+                VerityTreeBuilder builder = new VerityTreeBuilder(
+                        salt, RunnablesExecutor.MULTI_THREADED, 64 * 1024)) {
+            DataSource tree = builder.generateVerityTree(data, raf);
+            assertEquals(expectedTree.remaining(), tree.size());
+            assertEquals(expectedTree, tree.getByteBuffer(0, (int) tree.size()));
+            assertEquals(raf.length(), tree.size());
+            assertEquals(HexEncoding.encode(expectedRootHash),
+                    HexEncoding.encode(builder.getRootHashFromTree(tree)));
+        } finally {
+            treeFile.delete();
+        }
+    }
+
+    @Test public void verifyVerityTreeDetectsMismatchInAnyLevel() throws Exception {
+        // Large enough for a two-level tree, with a memory limit low enough for the data to be
+        // compared in several rounds.
+        byte[] input = new byte[5 * 1024 * 1024 + 77];
+        new Random(0x7ef).nextBytes(input);
+        DataSource data = DataSources.asDataSource(ByteBuffer.wrap(input));
+        byte[] salt = new byte[] { 0x05, 0x06 };
+
+        byte[] tree;
+        try (VerityTreeBuilder builder = new VerityTreeBuilder(salt)) {
+            tree = builder.generateVerityTree(data).array();
+        }
+
+        try (VerityTreeBuilder builder = new VerityTreeBuilder(
+                salt, RunnablesExecutor.MULTI_THREADED, 64 * 1024)) {
+            assertTrue(builder.verifyVerityTree(
+                    data, DataSources.asDataSource(ByteBuffer.wrap(tree))));
+            // Top level, a digest of the bottom level and the padding of the bottom level.
+            for (int offset : new int[] { 0, tree.length - 4096 - 1, tree.length - 1 }) {
+                byte[] modifiedTree = tree.clone();
+                modifiedTree[offset] ^= 1;
+                assertFalse(builder.verifyVerityTree(
+                        data, DataSources.asDataSource(ByteBuffer.wrap(modifiedTree))));
+            }
+            assertFalse(builder.verifyVerityTree(
+                    data, DataSources.asDataSource(ByteBuffer.wrap(tree, 0, tree.length - 1))));
+        }
+    }
 }
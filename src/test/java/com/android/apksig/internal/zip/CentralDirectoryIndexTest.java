@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.zip;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.android.apksig.apk.ApkFormatException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** Unit tests for {@link CentralDirectoryIndex}. */
+@RunWith(JUnit4.class)
+public class CentralDirectoryIndexTest {
+    private static final long ZIP64_VALUE = 0x1_2345_6789L;
+
+    @Test
+    public void testRecordsInOrderOfLocalFileHeaderOffsets() throws Exception {
+        CentralDirectoryIndex index =
+                createIndex(
+                        createRecord("a", 1, 1, 0),
+                        createRecord("b", 1, 1, 100),
+                        createRecord("c", 1, 1, 200));
+
+        assertArrayEquals(new int[] {0, 1, 2}, index.getRecordsByLocalFileHeaderOffset());
+    }
+
+    @Test
+    public void testRecordsOutOfOrderOfLocalFileHeaderOffsets() throws Exception {
+        // Records with the same offset stay in the order in which they are stored in the CD.
+        CentralDirectoryIndex index =
+                createIndex(
+                        createRecord("a", 1, 1, 300),
+                        createRecord("b", 1, 1, 100),
+                        createRecord("c", 1, 1, 200),
+                        createRecord("d", 1, 1, 100),
+                        createRecord("e", 1, 1, 0),
+                        createRecord("f", 1, 1, ZIP64_VALUE));
+
+        assertArrayEquals(
+                new int[] {4, 1, 3, 2, 0, 5}, index.getRecordsByLocalFileHeaderOffset());
+        assertEquals(300, index.getLocalFileHeaderOffset(0));
+        assertEquals(ZIP64_VALUE, index.getLocalFileHeaderOffset(5));
+    }
+
+    @Test
+    public void testDirectoryRecords() throws Exception {
+        CentralDirectoryIndex index =
+                createIndex(
+                        createRecord("res/", 0, 0, 0),
+                        createRecord("res/layout/main.xml", 1, 1, 100),
+                        createRecord("", 0, 0, 200),
+                        createRecord("res/layout/", 0, 0, 300));
+
+        assertTrue(index.isDirectory(0));
+        assertFalse(index.isDirectory(1));
+        assertFalse(index.isDirectory(2));
+        assertTrue(index.isDirectory(3));
+        assertEquals("res/layout/", index.getName(3));
+    }
+
+    @Test
+    public void testZip64SizesAndOffsets() throws Exception {
+        CentralDirectoryIndex index =
+                createIndex(
+                        createRecord("small", 10, 20, 30),
+                        createRecord("uncompressed", 10, ZIP64_VALUE, 30),
+                        createRecord("compressed", ZIP64_VALUE, 20, 30),
+                        createRecord("offset", 10, 20, ZIP64_VALUE),
+                        createRecord("all", ZIP64_VALUE + 1, ZIP64_VALUE + 2, ZIP64_VALUE + 3));
+
+        assertEquals(10, index.getCompressedSize(0));
+        assertEquals(20, index.getUncompressedSize(0));
+        assertEquals(30, index.getLocalFileHeaderOffset(0));
+        assertEquals(10, index.getCompressedSize(1));
+        assertEquals(ZIP64_VALUE, index.getUncompressedSize(1));
+        assertEquals(30, index.getLocalFileHeaderOffset(1));
+        assertEquals(ZIP64_VALUE, index.getCompressedSize(2));
+        assertEquals(20, index.getUncompressedSize(2));
+        assertEquals(30, index.getLocalFileHeaderOffset(2));
+        assertEquals(10, index.getCompressedSize(3));
+        assertEquals(20, index.getUncompressedSize(3));
+        assertEquals(ZIP64_VALUE, index.getLocalFileHeaderOffset(3));
+        assertEquals(ZIP64_VALUE + 1, index.getCompressedSize(4));
+        assertEquals(ZIP64_VALUE + 2, index.getUncompressedSize(4));
+        assertEquals(ZIP64_VALUE + 3, index.getLocalFileHeaderOffset(4));
+
+        CentralDirectoryRecord record = index.getRecord(4);
+        assertEquals("all", record.getName());
+        assertEquals(ZIP64_VALUE + 1, record.getCompressedSize());
+        assertEquals(ZIP64_VALUE + 2, record.getUncompressedSize());
+        assertEquals(ZIP64_VALUE + 3, record.getLocalFileHeaderOffset());
+    }
+
+    @Test
+    public void testNamesDecodedAsUtf8() throws Exception {
+        String name = "assets/r\u00e9sum\u00e9/\u65e5\u672c.txt";
+        CentralDirectoryIndex index =
+                createIndex(
+                        createRecord("a", 1, 1, 0),
+                        createRecord(name, 1, 1, 100),
+                        createRecord(new byte[] {'b', (byte) 0xff}, 1, 1, 200));
+
+        assertEquals(name, index.getName(1));
+        assertEquals(name, index.getRecord(1).getName());
+        assertEquals("b\uFFFD", index.getName(2));
+    }
+
+    @Test
+    public void testFindRecord() throws Exception {
+        // "Aa" and "BB" have the same hash.
+        CentralDirectoryIndex index =
+                createIndex(
+                        createRecord("AndroidManifest.xml", 1, 1, 0),
+                        createRecord("Aa", 1, 1, 100),
+                        createRecord("BB", 1, 1, 200),
+                        createRecord("classes.dex", 1, 1, 300),
+                        createRecord("Aa", 1, 1, 400),
+                        createRecord("r\u00e9sum\u00e9", 1, 1, 500),
+                        createRecord(new byte[] {'b', (byte) 0xff}, 1, 1, 600));
+
+        assertEquals(0, index.findRecord("AndroidManifest.xml"));
+        assertEquals(1, index.findRecord("Aa"));
+        assertEquals(2, index.findRecord("BB"));
+        assertEquals(3, index.findRecord("classes.dex"));
+        assertEquals(5, index.findRecord("r\u00e9sum\u00e9"));
+        assertEquals(6, index.findRecord("b\uFFFD"));
+        assertEquals(-1, index.findRecord("classes2.dex"));
+        assertEquals(-1, index.findRecord(""));
+    }
+
+    @Test
+    public void testFindRecordInEmptyIndex() throws Exception {
+        CentralDirectoryIndex index = createIndex();
+
+        assertEquals(0, index.getRecordCount());
+        assertEquals(-1, index.findRecord("AndroidManifest.xml"));
+        assertArrayEquals(new int[0], index.getRecordsByLocalFileHeaderOffset());
+    }
+
+    @Test
+    public void testCreateAdvancesPositionPastLastRecord() throws Exception {
+        ByteBuffer centralDir =
+                concat(createRecord("a", 1, 1, 0), createRecord("b", 1, 1, 100));
+        int size = centralDir.remaining();
+        ByteBuffer buffer = ByteBuffer.allocate(size + 7).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(3);
+        buffer.put(centralDir);
+        buffer.position(3);
+
+        CentralDirectoryIndex index = CentralDirectoryIndex.create(buffer, 0, 2);
+
+        assertEquals(3 + size, buffer.position());
+        assertEquals(2, index.getRecordCount());
+        assertEquals("b", index.getName(1));
+    }
+
+    @Test
+    public void testCreateRejectsMalformedRecord() throws Exception {
+        ByteBuffer centralDir = createRecord("a", 1, 1, 0);
+        centralDir.putInt(0, 0x12345678);
+
+        assertThrows(
+                ApkFormatException.class, () -> CentralDirectoryIndex.create(centralDir, 0, 1));
+        assertThrows(
+                ApkFormatException.class,
+                () -> CentralDirectoryIndex.create(createRecord("a", 1, 1, 0), 0, 2));
+    }
+
+    private static CentralDirectoryIndex createIndex(ByteBuffer... records) throws Exception {
+        return CentralDirectoryIndex.create(concat(records), 0, records.length);
+    }
+
+    private static ByteBuffer concat(ByteBuffer... buffers) {
+        int size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        ByteBuffer result = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        for (ByteBuffer buffer : buffers) {
+            result.put(buffer.slice());
+        }
+        result.flip();
+        return result;
+    }
+
+    private static ByteBuffer createRecord(
+            String name, long compressedSize, long uncompressedSize, long localFileHeaderOffset) {
+        return createRecord(
+                name.getBytes(UTF_8), compressedSize, uncompressedSize, localFileHeaderOffset);
+    }
+
+    /**
+     * Returns a CD record with the provided values, of which those which do not fit into the
+     * record are stored in the ZIP64 Extended Information extra field.
+     */
+    private static ByteBuffer createRecord(
+            byte[] name, long compressedSize, long uncompressedSize, long localFileHeaderOffset) {
+        ByteBuffer zip64 = ByteBuffer.allocate(3 * 8).order(ByteOrder.LITTLE_ENDIAN);
+        // Values are stored in the extra field in this order, if they do not fit into the record
+        long[] values = {uncompressedSize, compressedSize, localFileHeaderOffset};
+        for (long value : values) {
+            if (value >= ZipUtils.UINT32_MAX_VALUE) {
+                zip64.putLong(value);
+            }
+        }
+        zip64.flip();
+        int extraSize = zip64.hasRemaining() ? 4 + zip64.remaining() : 0;
+
+        int recordSize = CentralDirectoryRecord.HEADER_SIZE_BYTES + name.length + extraSize;
+        ByteBuffer result = ByteBuffer.allocate(recordSize).order(ByteOrder.LITTLE_ENDIAN);
+        result.putInt(CentralDirectoryRecord.RECORD_SIGNATURE);
+        ZipUtils.putUnsignedInt16(result, 0x14); // Version made by
+        ZipUtils.putUnsignedInt16(result, 0x14); // Minimum version needed to extract
+        result.putShort(ZipUtils.GP_FLAG_EFS);
+        result.putShort(ZipUtils.COMPRESSION_METHOD_DEFLATED);
+        ZipUtils.putUnsignedInt16(result, 0); // Last modification time
+        ZipUtils.putUnsignedInt16(result, 0); // Last modification date
+        ZipUtils.putUnsignedInt32(result, 0x12345678); // CRC-32
+        ZipUtils.putUnsignedInt32(result, Math.min(compressedSize, ZipUtils.UINT32_MAX_VALUE));
+        ZipUtils.putUnsignedInt32(result, Math.min(uncompressedSize, ZipUtils.UINT32_MAX_VALUE));
+        ZipUtils.putUnsignedInt16(result, name.length);
+        ZipUtils.putUnsignedInt16(result, extraSize);
+        ZipUtils.putUnsignedInt16(result, 0); // File comment length
+        ZipUtils.putUnsignedInt16(result, 0); // Disk number
+        ZipUtils.putUnsignedInt16(result, 0); // Internal file attributes
+        ZipUtils.putUnsignedInt32(result, 0); // External file attributes
+        ZipUtils.putUnsignedInt32(
+                result, Math.min(localFileHeaderOffset, ZipUtils.UINT32_MAX_VALUE));
+        result.put(name);
+        if (extraSize > 0) {
+            ZipUtils.putUnsignedInt16(result, 0x0001); // ZIP64 Extended Information header ID
+            ZipUtils.putUnsignedInt16(result, zip64.remaining());
+            result.put(zip64);
+        }
+        result.flip();
+        return result;
+    }
+}
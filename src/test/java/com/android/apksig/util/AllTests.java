@@ -28,5 +28,8 @@ import org.junit.runners.Suite;
     DataSourceFromRAFTest.class,
     InMemoryDataSinkDataSourceTest.class,
     InMemoryDataSinkTest.class,
+    MessageDigestProvidersTest.class,
+    PooledRunnablesExecutorTest.class,
+    RunnablesExecutorsTest.class,
 })
 public class AllTests {}
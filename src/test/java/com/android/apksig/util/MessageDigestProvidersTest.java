@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Unit tests for {@link MessageDigestProviders}. */
+@RunWith(JUnit4.class)
+public class MessageDigestProvidersTest {
+    @After
+    public void tearDown() {
+        MessageDigestProviders.reset();
+    }
+
+    @Test
+    public void testDigestMatchesDefaultProvider() throws Exception {
+        byte[] data = "Hello, world!".getBytes(StandardCharsets.UTF_8);
+        for (String algorithm : new String[] {"SHA-1", "SHA-256", "SHA-512"}) {
+            assertArrayEquals(
+                    MessageDigest.getInstance(algorithm).digest(data),
+                    MessageDigestProviders.getInstance(algorithm).digest(data));
+        }
+    }
+
+    @Test
+    public void testSelectionIsVisible() throws Exception {
+        MessageDigestProviders.getInstance("SHA-256");
+        Map<String, String> calibration = MessageDigestProviders.getCalibration();
+        assertTrue(calibration.containsKey("SHA-256"));
+        assertEquals(calibration.get("SHA-256"),
+                MessageDigestProviders.getProvider("SHA-256").getName());
+    }
+
+    @Test
+    public void testLoadCalibration() throws Exception {
+        String providerName = MessageDigest.getInstance("SHA-256").getProvider().getName();
+        Map<String, String> calibration = new HashMap<>();
+        calibration.put("SHA-256", providerName);
+        calibration.put("SHA-512", "NoSuchProvider");
+        MessageDigestProviders.loadCalibration(calibration);
+
+        assertEquals(Collections.singletonMap("SHA-256", providerName),
+                MessageDigestProviders.getCalibration());
+        assertEquals(providerName,
+                MessageDigestProviders.getInstance("SHA-256").getProvider().getName());
+        // The algorithm with an unknown provider is calibrated when requested.
+        assertNotNull(MessageDigestProviders.getInstance("SHA-512"));
+    }
+
+    @Test
+    public void testPreferredProviderKeptUnlessClearlyFaster() throws Exception {
+        // A provider as fast as the default SHA-256 implementation, as it delegates to it, is
+        // preferred over it by the JCA provider order and must be selected in every run.
+        Provider delegatingProvider = new DelegatingProvider();
+        Security.insertProviderAt(delegatingProvider, 1);
+        try {
+            for (int i = 0; i < 5; i++) {
+                MessageDigestProviders.reset();
+                assertEquals(DelegatingProvider.NAME,
+                        MessageDigestProviders.getProvider("SHA-256").getName());
+            }
+        } finally {
+            Security.removeProvider(DelegatingProvider.NAME);
+        }
+    }
+
+    @Test(expected = NoSuchAlgorithmException.class)
+    public void testUnknownAlgorithm() throws Exception {
+        MessageDigestProviders.getInstance("NO-SUCH-DIGEST");
+    }
+
+    private static class DelegatingProvider extends Provider {
+        private static final String NAME = "ApksigTestDelegating";
+
+        private DelegatingProvider() {
+            super(NAME, 1.0, "SHA-256 delegating to the default implementation");
+            put("MessageDigest.SHA-256", DelegatingSha256.class.getName());
+        }
+    }
+
+    public static class DelegatingSha256 extends MessageDigest {
+        private final MessageDigest mDelegate;
+
+        public DelegatingSha256() throws NoSuchAlgorithmException, NoSuchProviderException {
+            super("SHA-256");
+            mDelegate = MessageDigest.getInstance("SHA-256", "SUN");
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            mDelegate.update(input);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            mDelegate.update(input, offset, len);
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            return mDelegate.digest();
+        }
+
+        @Override
+        protected void engineReset() {
+            mDelegate.reset();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit tests for {@link PooledRunnablesExecutor}. */
+@RunWith(JUnit4.class)
+public class PooledRunnablesExecutorTest {
+    private static final int WORK_ITEMS = 1000;
+
+    @Test
+    public void testAllWorkIsDone() {
+        try (PooledRunnablesExecutor executor =
+                new PooledRunnablesExecutor.Builder().setParallelism(4).setQueueSize(1).build()) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals(WORK_ITEMS, runWork(executor));
+            }
+        }
+    }
+
+    @Test
+    public void testDefaultExecutorIsShared() {
+        assertSame(PooledRunnablesExecutor.getDefault(), PooledRunnablesExecutor.getDefault());
+        assertTrue(PooledRunnablesExecutor.getDefault().getParallelism() >= 1);
+        assertEquals(WORK_ITEMS, runWork(RunnablesExecutor.MULTI_THREADED));
+    }
+
+    @Test
+    public void testCallerSuppliedExecutorService() {
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            PooledRunnablesExecutor executor = new PooledRunnablesExecutor.Builder()
+                    .setExecutorService(executorService)
+                    .setParallelism(8)
+                    .build();
+            assertEquals(WORK_ITEMS, runWork(executor));
+            executor.close();
+            // The caller-supplied pool is not shut down by the executor.
+            assertEquals(WORK_ITEMS, runWork(executor));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testNestedExecutionCompletes() {
+        // Every thread of the pool is busy running an outer task which itself waits for inner
+        // tasks to complete.
+        try (PooledRunnablesExecutor executor =
+                new PooledRunnablesExecutor.Builder().setParallelism(3).setQueueSize(1).build()) {
+            AtomicInteger outer = new AtomicInteger();
+            AtomicInteger inner = new AtomicInteger();
+            executor.execute(() -> () -> {
+                while (outer.getAndIncrement() < 20) {
+                    inner.addAndGet(runWork(executor));
+                }
+            });
+            assertEquals(20 * WORK_ITEMS, inner.get());
+        }
+    }
+
+    @Test
+    public void testExceptionIsPropagated() {
+        try (PooledRunnablesExecutor executor =
+                new PooledRunnablesExecutor.Builder().setParallelism(4).build()) {
+            IllegalStateException expected = new IllegalStateException("expected");
+            try {
+                executor.execute(() -> () -> {
+                    throw expected;
+                });
+                fail("Exception not propagated");
+            } catch (IllegalStateException e) {
+                assertSame(expected, e);
+            }
+
+            // The executor remains usable.
+            assertEquals(WORK_ITEMS, runWork(executor));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidParallelismRejected() {
+        new PooledRunnablesExecutor.Builder().setParallelism(0);
+    }
+
+    /** Processes {@code WORK_ITEMS} items using the executor and returns their count. */
+    private static int runWork(RunnablesExecutor executor) {
+        AtomicInteger nextItem = new AtomicInteger();
+        AtomicInteger processed = new AtomicInteger();
+        executor.execute(() -> () -> {
+            while (nextItem.getAndIncrement() < WORK_ITEMS) {
+                processed.incrementAndGet();
+            }
+        });
+        return processed.get();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit tests for {@link RunnablesExecutors}. */
+@RunWith(JUnit4.class)
+public class RunnablesExecutorsTest {
+    private static final int WORK_ITEMS = 1000;
+
+    @Test
+    public void testForkJoinCommonPool() {
+        assertEquals(WORK_ITEMS, runWork(RunnablesExecutors.forkJoin()));
+    }
+
+    @Test
+    public void testForkJoinNestedExecution() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            RunnablesExecutor executor = RunnablesExecutors.forkJoin(pool);
+            AtomicInteger outer = new AtomicInteger();
+            AtomicInteger inner = new AtomicInteger();
+            executor.execute(() -> () -> {
+                while (outer.getAndIncrement() < 20) {
+                    inner.addAndGet(runWork(executor));
+                }
+            });
+            assertEquals(20 * WORK_ITEMS, inner.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() {
+        // Falls back to platform threads on Java runtimes without virtual threads.
+        RunnablesExecutor executor = RunnablesExecutors.virtualThreads(16);
+        assertNotNull(executor);
+        assertEquals(WORK_ITEMS, runWork(executor));
+        assertEquals(WORK_ITEMS, runWork(RunnablesExecutors.virtualThreads()));
+    }
+
+    @Test
+    public void testVirtualThreadsFallbackSharesThreadPool() {
+        Set<String> poolsBefore = getPoolNames();
+        for (int i = 0; i < 20; i++) {
+            RunnablesExecutor executor = RunnablesExecutors.virtualThreads(16 + i);
+            assertEquals(WORK_ITEMS, runWork(executor));
+        }
+        Set<String> newPools = getPoolNames();
+        newPools.removeAll(poolsBefore);
+        // Executors obtained from separate calls do not each own a thread pool which outlives
+        // them.
+        assertTrue(newPools.toString(), newPools.size() <= 1);
+    }
+
+    /** Processes {@code WORK_ITEMS} items using the executor and returns their count. */
+    private static int runWork(RunnablesExecutor executor) {
+        AtomicInteger nextItem = new AtomicInteger();
+        AtomicInteger processed = new AtomicInteger();
+        executor.execute(() -> () -> {
+            while (nextItem.getAndIncrement() < WORK_ITEMS) {
+                processed.incrementAndGet();
+            }
+        });
+        return processed.get();
+    }
+
+    /** Returns the names of the thread pools of {@link PooledRunnablesExecutor} in use. */
+    private static Set<String> getPoolNames() {
+        Set<String> result = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            String name = thread.getName();
+            if (name.startsWith("apksig-pool-")) {
+                result.add(name.substring(0, name.indexOf("-thread-")));
+            }
+        }
+        return result;
+    }
+}